@@ -0,0 +1,79 @@
+package com.kvdb.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+
+/* Put and get of byte[] values from 16 bytes to 1 MB, values are random so
+ * compression, when enabled, does not change the amount of data copied
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlobSizeBenchmark {
+    private static final int KEYS = 32;
+
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int size;
+
+    private DBConnection c;
+    private String[] keys;
+    private byte[] value;
+    private ByteBuffer direct;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(DBState state) throws KVDBException {
+        c = state.db.getConnection();
+        keys = DBState.keys("blob " + size + " ", KEYS);
+        value = new byte[size];
+        new Random(size).nextBytes(value);
+        direct = ByteBuffer.allocateDirect(size);
+        for(String key : keys) {
+            c.put(key, value);
+        }
+    }
+    @TearDown(Level.Trial)
+    public void release() {
+        c.release();
+    }
+
+    private String key() {
+        return keys[next++ & (KEYS - 1)];
+    }
+
+    @Benchmark
+    public void putBytes() throws KVDBException {
+        c.put(key(), value);
+    }
+    @Benchmark
+    public byte[] getBytes() throws KVDBException {
+        return c.getBytes(key());
+    }
+    /* read into a reused direct buffer, without a new array per value */
+    @Benchmark
+    public int getIntoBuffer() throws KVDBException {
+        direct.clear();
+        return c.get(key(), direct);
+    }
+}
@@ -0,0 +1,60 @@
+package com.kvdb.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.kvdb.DB;
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+
+/* Database in a new temporary directory, opened once per trial and shared by
+ * all benchmark threads. Subclasses change the configuration it is opened with
+ */
+@State(Scope.Benchmark)
+public class DBState {
+    public DB db;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException, KVDBException {
+        dir = File.createTempFile("kvdb-bench", "");
+        if(!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+        DBConfig config = new DBConfig(new File(dir, "bench.db").getPath(), DB.DEFAULT_FLAGS);
+        configure(config);
+        db = DB.open(config);
+        populate();
+    }
+
+    protected void configure(DBConfig config) {
+    }
+    /* write values every thread of the benchmark reads */
+    protected void populate() throws KVDBException {
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws KVDBException {
+        db.close();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /* keys prefix0 .. prefix(count - 1), made up front so benchmarks do not measure building them */
+    public static String[] keys(String prefix, int count) {
+        String[] keys = new String[count];
+        for(int i = 0; i < count; i++) {
+            keys[i] = prefix + i;
+        }
+        return keys;
+    }
+}
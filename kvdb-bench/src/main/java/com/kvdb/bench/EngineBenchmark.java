@@ -0,0 +1,93 @@
+package com.kvdb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.DB;
+import com.kvdb.KVDBException;
+import com.kvdb.connection.StorageEngine;
+import com.kvdb.internal.DBConfig;
+
+/* Random gets and appending puts of 100 byte values on each storage engine.
+ * Get time of the bitcask engine should stay flat as the number of keys grows,
+ * sqlite gets walk a deeper b-tree
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+    @Param({"sqlite", "bitcask"})
+    public String engine;
+    @Param({"1000", "100000"})
+    public int keys;
+
+    private StorageEngine store;
+    private File dir;
+    private String[] names;
+    private byte[] value;
+    private final AtomicInteger appended = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void open() throws IOException, KVDBException {
+        dir = File.createTempFile("kvdb-bench", "");
+        if(!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+        DBConfig config = new DBConfig(new File(dir, "engine.db").getPath(), DB.DEFAULT_FLAGS);
+        config.engine = "bitcask".equals(engine) ? DBConfig.ENGINE_BITCASK : DBConfig.ENGINE_SQLITE;
+        store = DB.openEngine(config);
+        names = DBState.keys("engine ", keys);
+        value = new byte[100];
+        new Random(keys).nextBytes(value);
+        for(String name : names) {
+            store.put(name, value);
+        }
+    }
+    @TearDown(Level.Trial)
+    public void close() throws KVDBException {
+        store.close();
+        delete(dir);
+    }
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] get() throws KVDBException {
+        return store.getBytes(names[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+    /* new keys only, so bitcask appends and sqlite inserts */
+    @Benchmark
+    public void putNew() throws KVDBException {
+        store.put("appended " + appended.incrementAndGet(), value);
+    }
+    @Benchmark
+    public void putExisting() throws KVDBException {
+        store.put(names[ThreadLocalRandom.current().nextInt(keys)], value);
+    }
+}
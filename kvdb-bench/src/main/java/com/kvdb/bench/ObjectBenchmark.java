@@ -0,0 +1,95 @@
+package com.kvdb.bench;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+
+/* Put and get of objects, a Serializable class goes through java serialization
+ * and a map of plain values through the compact binary codec
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ObjectBenchmark {
+    private static final int KEYS = 256;
+
+    public static class Record implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long id;
+        public final String name;
+        public final double[] scores;
+
+        public Record(long id, String name, double[] scores) {
+            this.id = id;
+            this.name = name;
+            this.scores = scores;
+        }
+    }
+
+    private DBConnection c;
+    private String[] recordKeys;
+    private String[] mapKeys;
+    private Record record;
+    private HashMap<String, Object> map;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(DBState state) throws KVDBException {
+        c = state.db.getConnection();
+        recordKeys = DBState.keys("record ", KEYS);
+        mapKeys = DBState.keys("map ", KEYS);
+        record = new Record(42, "record name", new double[]{1.5, 2.5, 3.5, 4.5});
+        map = new HashMap<String, Object>();
+        for(int i = 0; i < 16; i++) {
+            map.put("field " + i, i % 2 == 0 ? (Object) Long.valueOf(i) : "value " + i);
+        }
+        for(int i = 0; i < KEYS; i++) {
+            c.put(recordKeys[i], record);
+            c.put(mapKeys[i], map);
+        }
+    }
+    @TearDown(Level.Trial)
+    public void release() {
+        c.release();
+    }
+
+    private int index() {
+        return next++ & (KEYS - 1);
+    }
+
+    @Benchmark
+    public void putSerializable() throws KVDBException {
+        c.put(recordKeys[index()], record);
+    }
+    @Benchmark
+    public Record getSerializable() throws KVDBException {
+        return c.get(recordKeys[index()], Record.class);
+    }
+    @Benchmark
+    public void putMap() throws KVDBException {
+        c.put(mapKeys[index()], map);
+    }
+    @Benchmark
+    public HashMap getMap() throws KVDBException {
+        return c.get(mapKeys[index()], HashMap.class);
+    }
+}
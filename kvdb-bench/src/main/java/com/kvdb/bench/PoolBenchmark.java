@@ -0,0 +1,107 @@
+package com.kvdb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.DB;
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+import com.kvdb.internal.DBConfig;
+
+/* Eight threads sharing one database through its connection pool */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(PoolBenchmark.THREADS)
+public class PoolBenchmark {
+    static final int THREADS = 8;
+    private static final int KEYS = 1024;
+
+    /* pool large enough for every thread to hold a connection */
+    @State(Scope.Benchmark)
+    public static class PoolState extends DBState {
+        String[] keys;
+        /* thread local lookup behind one monitor shared by all threads, for comparison */
+        final Object monitor = new Object();
+        final ThreadLocal<DBConnection> local = new ThreadLocal<DBConnection>();
+
+        @Override
+        protected void configure(DBConfig config) {
+            config.maxPoolSize = THREADS;
+            config.readerPoolSize = THREADS;
+        }
+        @Override
+        protected void populate() throws KVDBException {
+            keys = keys("pool ", KEYS);
+            DBConnection c = db.getConnection();
+            try {
+                for(int i = 0; i < KEYS; i++) {
+                    c.putInt(keys[i], i);
+                }
+            } finally {
+                c.release();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String key(PoolState state) {
+            return state.keys[next++ & (KEYS - 1)];
+        }
+    }
+
+    /* lock free lookup of the connection the thread holds already */
+    @Benchmark
+    public DBConnection getConnection(PoolState state) throws KVDBException {
+        return state.db.getConnection();
+    }
+    /* same lookup serialized on a shared monitor */
+    @Benchmark
+    public DBConnection getConnectionSharedMonitor(PoolState state) throws KVDBException {
+        synchronized (state.monitor) {
+            DBConnection c = state.local.get();
+            if(c == null) {
+                c = state.db.getConnection();
+                state.local.set(c);
+            }
+            if(!c.isOpen()) c.open();
+            return c;
+        }
+    }
+    /* connection borrowed and given back around every read */
+    @Benchmark
+    public int borrowGetRelease(PoolState state, Cursor cursor) throws KVDBException {
+        DB db = state.db;
+        DBConnection c = db.getConnection();
+        try {
+            return c.getInt(cursor.key(state));
+        } finally {
+            c.release();
+        }
+    }
+    /* thread keeps its connection, reads go through the pool's reader connections */
+    @Benchmark
+    public int get(PoolState state, Cursor cursor) throws KVDBException {
+        return state.db.getConnection().getInt(cursor.key(state));
+    }
+    /* writers of all threads serialize on the single database write lock */
+    @Benchmark
+    public void put(PoolState state, Cursor cursor) throws KVDBException {
+        state.db.getConnection().putInt(cursor.key(state), cursor.next);
+    }
+}
@@ -0,0 +1,80 @@
+package com.kvdb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.DBResult;
+import com.kvdb.connection.WriteBatch;
+
+/* Counts, sql queries and range scans over a table of 10000 keys */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+    private static final int KEYS = 10000;
+    private static final int ROWS = 100;
+    private static final String RANGE_QUERY = "SELECT _key, _value FROM kvstore WHERE _key >= ? ORDER BY _key LIMIT " + ROWS;
+
+    private DBConnection c;
+    private Object[] rangeStart;
+
+    @Setup(Level.Trial)
+    public void setup(DBState state) throws KVDBException {
+        c = state.db.getConnection();
+        WriteBatch batch = new WriteBatch();
+        String[] keys = DBState.keys("query ", KEYS);
+        for(int i = 0; i < KEYS; i++) {
+            batch.put(keys[i], "value " + i);
+        }
+        c.write(batch);
+        rangeStart = new Object[]{"query 5"};
+    }
+    @TearDown(Level.Trial)
+    public void release() {
+        c.release();
+    }
+
+    @Benchmark
+    public long count() throws KVDBException {
+        return c.getCount();
+    }
+    @Benchmark
+    public long countPrefix() throws KVDBException {
+        return c.getCount("query 5");
+    }
+    @Benchmark
+    public String[][] executeQueryForResult() throws KVDBException {
+        return c.executeQueryForResult(RANGE_QUERY, rangeStart);
+    }
+    /* same rows as executeQueryForResult through a cursor */
+    @Benchmark
+    public int scan() throws KVDBException {
+        DBResult result = c.scan("query 5", null, ROWS);
+        try {
+            int rows = 0;
+            while(result.next()) {
+                rows += result.getString(1).length();
+            }
+            return rows;
+        } finally {
+            result.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.kvdb.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.WriteBatch;
+import com.kvdb.internal.DBConfig;
+
+/* Puts and gets of 100 byte values on the rowid table of schema version 1 and
+ * the clustered table of version 2. Pages written divided by puts gives the
+ * write amplification of each layout, the database file size is printed at
+ * the end of a trial
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaBenchmark {
+    private static final int KEYS = 100000;
+
+    @State(Scope.Benchmark)
+    public static class SchemaState extends DBState {
+        @Param({"rowid", "clustered"})
+        public String schema;
+
+        String[] keys;
+        byte[] value;
+        final AtomicInteger appended = new AtomicInteger();
+
+        @Override
+        protected void configure(DBConfig config) {
+            config.schemaVersion = "rowid".equals(schema) ? DBConfig.SCHEMA_ROWID : DBConfig.SCHEMA_CLUSTERED;
+            config.metrics = true;
+        }
+        @Override
+        protected void populate() throws KVDBException {
+            keys = keys("schema ", KEYS);
+            value = new byte[100];
+            new Random(KEYS).nextBytes(value);
+            DBConnection c = db.getConnection();
+            try {
+                WriteBatch batch = new WriteBatch();
+                for(String key : keys) {
+                    batch.put(key, value);
+                }
+                c.write(batch);
+            } finally {
+                c.release();
+            }
+        }
+        @Override
+        public void close() throws KVDBException {
+            File file = new File(db.getPath());
+            System.out.println("\n" + schema + " table : " + file.length() + " bytes, "
+                    + (KEYS + appended.get()) + " keys");
+            super.close();
+        }
+        String key() {
+            return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        }
+    }
+
+    /* puts made and pages they wrote in an iteration */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long puts;
+        public long pages;
+
+        @Setup(Level.Iteration)
+        public void reset(SchemaState state) throws KVDBException {
+            state.db.getMetrics().reset();
+            puts = 0;
+            pages = 0;
+        }
+        @TearDown(Level.Iteration)
+        public void collect(SchemaState state) throws KVDBException {
+            pages = state.db.getMetrics().getPagesWritten();
+        }
+    }
+
+    /* new keys only, so the table and the key index of version 1 grow */
+    @Benchmark
+    public void putNew(SchemaState state, Written written) throws KVDBException {
+        DBConnection c = state.db.getConnection();
+        try {
+            c.put("appended " + state.appended.incrementAndGet(), state.value);
+        } finally {
+            c.release();
+        }
+        written.puts++;
+    }
+    /* replaces the row, a delete and an insert on version 1 */
+    @Benchmark
+    public void putExisting(SchemaState state, Written written) throws KVDBException {
+        DBConnection c = state.db.getConnection();
+        try {
+            c.put(state.key(), state.value);
+        } finally {
+            c.release();
+        }
+        written.puts++;
+    }
+    /* version 1 finds the rowid in the key index and then the row */
+    @Benchmark
+    public byte[] get(SchemaState state) throws KVDBException {
+        DBConnection c = state.db.getConnection();
+        try {
+            return c.getBytes(state.key());
+        } finally {
+            c.release();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.kvdb.bench;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.DBSnapshot;
+import com.kvdb.connection.DBSnapshotWriter;
+
+/* Point lookups of the same keys through a connection and through an exported
+ * snapshot, and the time to open a snapshot
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    private static final int KEYS = 100000;
+
+    /* database and a snapshot exported from it, holding the same keys */
+    @State(Scope.Benchmark)
+    public static class SnapshotState extends DBState {
+        String[] keys;
+        File file;
+        DBSnapshot snapshot;
+
+        @Override
+        protected void populate() throws KVDBException {
+            keys = keys("snapshot ", KEYS);
+            DBConnection c = db.getConnection();
+            try {
+                c.beginReadWriteTransaction();
+                for(int i = 0; i < KEYS; i++) {
+                    c.putLong(keys[i], i);
+                }
+                c.endReadWriteTransaction();
+                file = new File(new File(db.getPath()).getParentFile(), "bench.kvs");
+                new DBSnapshotWriter(file).export(c);
+            } finally {
+                c.release();
+            }
+            snapshot = DBSnapshot.open(file);
+        }
+        String key() {
+            return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+        }
+    }
+
+    @Benchmark
+    public long connectionGet(SnapshotState state) throws KVDBException {
+        DBConnection c = state.db.getConnection();
+        try {
+            return c.getLong(state.key());
+        } finally {
+            c.release();
+        }
+    }
+    @Benchmark
+    public long snapshotGet(SnapshotState state) throws KVDBException {
+        return state.snapshot.getLong(state.key());
+    }
+    @Benchmark
+    public boolean snapshotMiss(SnapshotState state) throws KVDBException {
+        return state.snapshot.exists("missing " + ThreadLocalRandom.current().nextInt(KEYS));
+    }
+    @Benchmark
+    public DBSnapshot snapshotOpen(SnapshotState state) throws KVDBException {
+        return DBSnapshot.open(state.file);
+    }
+}
@@ -0,0 +1,77 @@
+package com.kvdb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.WriteBatch;
+
+/* Cost per put of writing 100 values one commit each, in one transaction
+ * and as one write batch
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(TransactionBenchmark.PUTS)
+public class TransactionBenchmark {
+    static final int PUTS = 100;
+    private static final String VALUE = "transaction value";
+
+    private DBConnection c;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setup(DBState state) throws KVDBException {
+        c = state.db.getConnection();
+        keys = DBState.keys("transaction ", PUTS);
+    }
+    @TearDown(Level.Trial)
+    public void release() {
+        c.release();
+    }
+
+    @Benchmark
+    public void autocommit() throws KVDBException {
+        for(String key : keys) {
+            c.put(key, VALUE);
+        }
+    }
+    @Benchmark
+    public void transaction() throws KVDBException {
+        c.beginReadWriteTransaction();
+        try {
+            for(String key : keys) {
+                c.put(key, VALUE);
+            }
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            throw e;
+        }
+    }
+    @Benchmark
+    public void writeBatch() throws KVDBException {
+        WriteBatch batch = new WriteBatch();
+        for(String key : keys) {
+            batch.put(key, VALUE);
+        }
+        c.write(batch);
+    }
+}
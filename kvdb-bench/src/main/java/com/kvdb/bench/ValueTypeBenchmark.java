@@ -0,0 +1,106 @@
+package com.kvdb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kvdb.KVDBException;
+import com.kvdb.connection.DBConnection;
+
+/* Single put and get of every value type, each in its own autocommit transaction */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueTypeBenchmark {
+    private static final int KEYS = 1024;
+    private static final String STRING = "a string value of moderate length";
+
+    private DBConnection c;
+    /* every type is benchmarked on its own keys, gets always find a value */
+    private String[] booleanKeys;
+    private String[] intKeys;
+    private String[] longKeys;
+    private String[] doubleKeys;
+    private String[] stringKeys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(DBState state) throws KVDBException {
+        c = state.db.getConnection();
+        booleanKeys = DBState.keys("boolean ", KEYS);
+        intKeys = DBState.keys("int ", KEYS);
+        longKeys = DBState.keys("long ", KEYS);
+        doubleKeys = DBState.keys("double ", KEYS);
+        stringKeys = DBState.keys("string ", KEYS);
+        for(int i = 0; i < KEYS; i++) {
+            c.putBoolean(booleanKeys[i], true);
+            c.putInt(intKeys[i], i);
+            c.putLong(longKeys[i], i);
+            c.putDouble(doubleKeys[i], i);
+            c.put(stringKeys[i], STRING);
+        }
+    }
+    @TearDown(Level.Trial)
+    public void release() {
+        c.release();
+    }
+
+    private String key(String[] keys) {
+        return keys[next++ & (KEYS - 1)];
+    }
+
+    @Benchmark
+    public void putBoolean() throws KVDBException {
+        c.putBoolean(key(booleanKeys), true);
+    }
+    @Benchmark
+    public boolean getBoolean() throws KVDBException {
+        return c.getBoolean(key(booleanKeys));
+    }
+    @Benchmark
+    public void putInt() throws KVDBException {
+        c.putInt(key(intKeys), next);
+    }
+    @Benchmark
+    public int getInt() throws KVDBException {
+        return c.getInt(key(intKeys));
+    }
+    @Benchmark
+    public void putLong() throws KVDBException {
+        c.putLong(key(longKeys), next);
+    }
+    @Benchmark
+    public long getLong() throws KVDBException {
+        return c.getLong(key(longKeys));
+    }
+    @Benchmark
+    public void putDouble() throws KVDBException {
+        c.putDouble(key(doubleKeys), next);
+    }
+    @Benchmark
+    public double getDouble() throws KVDBException {
+        return c.getDouble(key(doubleKeys));
+    }
+    @Benchmark
+    public void putString() throws KVDBException {
+        c.put(key(stringKeys), STRING);
+    }
+    @Benchmark
+    public String getString() throws KVDBException {
+        return c.get(key(stringKeys));
+    }
+}
@@ -2,8 +2,17 @@ package com.kvdb;
 
 import java.io.File;
 
+import com.kvdb.connection.BitcaskEngine;
+import com.kvdb.connection.DBBloomFilter;
+import com.kvdb.connection.DBCompressor;
 import com.kvdb.connection.DBConnection;
 import com.kvdb.connection.DBConnectionPool;
+import com.kvdb.connection.DBMetrics;
+import com.kvdb.connection.DBValueCache;
+import com.kvdb.connection.AsyncDBConnection;
+import com.kvdb.connection.GroupCommitQueue;
+import com.kvdb.connection.SqliteEngine;
+import com.kvdb.connection.StorageEngine;
 import com.kvdb.internal.DBConfig;
 import com.kvdb.internal.DBRegister;
 import com.kvdb.internal.Log;
@@ -30,6 +39,12 @@ public class DB {
     /*Database configuration consisting of path and flags */
     DBConfig config;
 
+    /*Queue of writes committed in groups, only when enabled in config*/
+    GroupCommitQueue groupCommitQueue;
+
+    /*Non blocking facade, created on first use*/
+    private AsyncDBConnection asyncConnection;
+
     public static DB open(String folder, String dbName) throws KVDBException {
         return open(folder,dbName,DEFAULT_FLAGS);
     }
@@ -44,10 +59,44 @@ public class DB {
 
     public static DB open(String folder, String dbName,int flags) throws KVDBException {
         String dbFilePath = folder + File.separator + dbName;
-        return openInternal(dbFilePath,flags);
+        return openInternal(new DBConfig(dbFilePath,flags));
+    }
+
+    /* Open database split into shard files, each key stored in the shard chosen
+     * by a stable hash of the key. Shard files are named after config.path, which
+     * must be opened with the same number of shards every time
+     */
+    public static ShardedDB open(DBConfig config, int shards) throws KVDBException {
+        if(config == null || config.path == null) throw new KVDBException("Database path cannot be null");
+        return ShardedDB.open(config, shards);
+    }
+
+    /* Open storage engine selected by config.engine. The sqlite engine runs on the
+     * same DB as open(config), other engines have files of their own and can only
+     * be open once at a time
+     */
+    public static StorageEngine openEngine(DBConfig config) throws KVDBException {
+        if(config == null || config.path == null) throw new KVDBException("Database path cannot be null");
+        switch (config.engine) {
+            case DBConfig.ENGINE_SQLITE:
+                return new SqliteEngine(open(config), config.poolWaitMs);
+            case DBConfig.ENGINE_BITCASK:
+                return BitcaskEngine.open(config);
+            default:
+                throw new KVDBException("Unknown storage engine " + config.engine);
+        }
     }
 
-    private static DB openInternal(String path, int flags) throws KVDBException{
+    /* Open database with full configuration. Config is only read when database
+     * is opened the first time for its path and must not be changed afterwards
+     */
+    public static DB open(DBConfig config) throws KVDBException {
+        if(config == null || config.path == null) throw new KVDBException("Database path cannot be null");
+        return openInternal(config);
+    }
+
+    private static DB openInternal(DBConfig config) throws KVDBException{
+        String path = config.path;
         //check if db instance for this path is already registered
         DB db = DBRegister.get(path);
         if(db != null) {
@@ -55,8 +104,11 @@ public class DB {
         }
 
         //create DB instance and try open database with provided flags
-        db = new DB(path, flags);
+        db = new DB(config);
         if(db.open()){
+            if(config.groupCommit) {
+                db.groupCommitQueue = GroupCommitQueue.create(db.pool, config);
+            }
             DBRegister.register(path,db);
         } else {
             db = null;
@@ -65,39 +117,312 @@ public class DB {
         return db;
     }
 
-    private DB(String path,int flags) {
-        config = new DBConfig(path,flags);
-        pool = DBConnectionPool.create(path, flags, this);
+    private DB(DBConfig c) {
+        config = c;
+        pool = DBConnectionPool.create(config, this);
     }
 
     /*Used to open or create database */
     private boolean open() throws KVDBException{
+        if(config.schemaVersion != DBConfig.SCHEMA_ROWID && config.schemaVersion != DBConfig.SCHEMA_CLUSTERED) {
+            throw new KVDBException("Invalid schema version " + config.schemaVersion);
+        }
         boolean isNewDB = !(new File(config.path).exists());
         boolean isOpenSuccess = false;
 
         //open a connection to database ( it will be created if not present )
         Log.i(TAG, "Opening database path : " + config.path);
         DBConnection c = pool.getConnection();
-        isOpenSuccess = c.isOpen();
+        try {
+            isOpenSuccess = c.isOpen();
 
-        //prepare if it is a new database with table, index, write ahead logging pragma
-        if(isOpenSuccess && isNewDB) {
-            Log.i(TAG, "Preparing new database..");
-            if(config.wal)
-                c.execute(DBQuery.PRAGMA_WAL);
-            c.execute(DBQuery.CREATE_TABLE);
-            c.execute(DBQuery.CREATE_INDEX);
+            //prepare if it is a new database with table, index, write ahead logging pragma
+            if(isOpenSuccess && isNewDB) {
+                Log.i(TAG, "Preparing new database..");
+                if(config.wal)
+                    c.execute(DBQuery.PRAGMA_WAL);
+                if(config.schemaVersion == DBConfig.SCHEMA_CLUSTERED) {
+                    c.execute(DBQuery.CREATE_TABLE_V2);
+                    for(String sql : DBQuery.CREATE_BLOB_TABLE) {
+                        c.execute(sql);
+                    }
+                } else {
+                    c.execute(DBQuery.CREATE_TABLE);
+                    c.execute(DBQuery.CREATE_INDEX);
+                }
+                c.execute(DBQuery.setSchemaVersion(config.schemaVersion));
+                pool.setSchemaVersion(config.schemaVersion);
+            } else if(isOpenSuccess) {
+                int version = schemaVersion(c);
+                pool.setSchemaVersion(version);
+                if((config.openFlags & OPEN_READONLY) == 0) {
+                    boolean values = upgradeSchema(c);
+                    boolean layout = version < config.schemaVersion;
+                    if(layout) startLayoutMigration(c);
+                    if(values || layout) startMigration(values, layout);
+                }
+            }
+            if(isOpenSuccess && (config.openFlags & OPEN_READONLY) == 0
+                    && pool.getSchemaVersion() >= DBConfig.SCHEMA_CLUSTERED) {
+                setChangeCounter(c, config.bloomFilter);
+            }
+            if(isOpenSuccess && config.bloomFilter) {
+                pool.setBloomFilter(DBBloomFilter.open(c, config));
+            } else if(isOpenSuccess) {
+                //writes made without the filter are not counted, a saved one would be stale
+                new File(config.path + "-bloom").delete();
+            }
+        } finally {
+            //give connection back so it counts against pool size only while in use
+            c.release();
         }
         return isOpenSuccess;
     }
 
+    /* Add _type column to tables created by older versions. Returns true if there
+     * are untyped values left to migrate, they stay readable until then
+     */
+    static boolean upgradeSchema(DBConnection c) throws KVDBException {
+        boolean hasType = false;
+        String[][] columns = c.executeQueryForResult(DBQuery.TABLE_INFO, null);
+        if(columns != null) {
+            for(String[] column : columns) {
+                if("_type".equals(column[1])) hasType = true;
+            }
+        }
+        if(!hasType) {
+            Log.i(TAG, "Adding value type to database..");
+            c.execute(DBQuery.ADD_TYPE_COLUMN);
+        }
+        return c.executeQueryForResult(DBQuery.SELECT_UNTYPED, null) != null;
+    }
+
+    /* Layout of kvstore table, databases which did not record it have the rowid table */
+    static int schemaVersion(DBConnection c) throws KVDBException {
+        String[][] result = c.executeQueryForResult(DBQuery.GET_SCHEMA_VERSION, null);
+        int version = result == null ? 0 : Integer.parseInt(result[0][0]);
+        return version == 0 ? DBConfig.SCHEMA_ROWID : version;
+    }
+
+    /* Create the clustered table next to the rowid table along with triggers
+     * copying writes into it. Does nothing if an earlier open started it already
+     */
+    static void startLayoutMigration(DBConnection c) throws KVDBException {
+        Log.i(TAG, "Migrating database to clustered table..");
+        c.beginReadWriteTransaction();
+        try {
+            for(String sql : DBQuery.MIGRATE_LAYOUT_START) {
+                c.executeMigration(sql);
+            }
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            throw e;
+        }
+    }
+
+    /* Create or drop the change counter of the clustered table, it stamps the
+     * saved bloom filter and costs every insert and delete. Does nothing if it is
+     * already there or gone
+     */
+    static void setChangeCounter(DBConnection c, boolean enabled) throws KVDBException {
+        boolean exists = c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null) != null;
+        if(exists == enabled) return;
+        Log.i(TAG, (enabled ? "Adding" : "Dropping") + " change counter of database..");
+        c.beginReadWriteTransaction();
+        try {
+            for(String sql : enabled ? DBQuery.CREATE_CHANGE_COUNTER : DBQuery.DROP_CHANGE_COUNTER) {
+                c.executeMigration(sql);
+            }
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            throw e;
+        }
+    }
+
+    /* Copy next chunk of rows into the clustered table in its own short write
+     * transaction. Returns false once all rows are copied
+     */
+    static boolean migrateLayout(DBConnection c) throws KVDBException {
+        c.beginReadWriteTransaction();
+        try {
+            c.executeMigration(DBQuery.MIGRATE_LAYOUT_COPY);
+            c.executeMigration(DBQuery.MIGRATE_LAYOUT_ADVANCE);
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            throw e;
+        }
+        return c.executeQueryForResult(DBQuery.SELECT_MIGRATION_LEFT, null) != null;
+    }
+
+    /* Replace the rowid table by the copied clustered table and record the new
+     * schema version, all in one transaction. The change counter is created
+     * along with it for a database with a bloom filter
+     */
+    static void switchLayout(DBConnection c, DBConnectionPool pool, boolean changeCounter) throws KVDBException {
+        c.beginReadWriteTransaction();
+        //statements of the new layout work on the old table too, so connections switch first
+        pool.setSchemaVersion(DBConfig.SCHEMA_CLUSTERED);
+        try {
+            for(String sql : DBQuery.MIGRATE_LAYOUT_SWITCH) {
+                c.executeMigration(sql);
+            }
+            if(changeCounter) {
+                for(String sql : DBQuery.CREATE_CHANGE_COUNTER) {
+                    c.executeMigration(sql);
+                }
+            }
+            c.executeMigration(DBQuery.setSchemaVersion(DBConfig.SCHEMA_CLUSTERED));
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            pool.setSchemaVersion(DBConfig.SCHEMA_ROWID);
+            throw e;
+        }
+    }
+
+    /* Convert one chunk of untyped values in its own short write transaction,
+     * so other writers can proceed in between. Returns false once nothing is left
+     */
+    static boolean migrateValues(DBConnection c) throws KVDBException {
+        c.beginReadWriteTransaction();
+        try {
+            c.executeMigration(DBQuery.MIGRATE_UNTYPED);
+            c.endReadWriteTransaction();
+        } catch (KVDBException e) {
+            c.rollbackTransaction();
+            throw e;
+        }
+        return c.executeQueryForResult(DBQuery.SELECT_UNTYPED, null) != null;
+    }
+
+    /* Migrate table layout and then untyped values in background while database
+     * stays usable
+     */
+    private void startMigration(final boolean values, final boolean layout) {
+        Thread migration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DBConnection c = pool.getConnection();
+                    try {
+                        if(layout) {
+                            while(migrateLayout(c));
+                            switchLayout(c, pool, config.bloomFilter);
+                            Log.i(TAG, "Layout migration complete : " + config.path);
+                        }
+                        if(values) {
+                            while(migrateValues(c));
+                            Log.i(TAG, "Value migration complete : " + config.path);
+                        }
+                    } finally {
+                        c.release();
+                    }
+                } catch (KVDBException e) {
+                    Log.e(TAG, "Migration stopped, it will resume on next open : " + e.getMessage());
+                }
+            }
+        }, "KVDB-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
     /*Used to obtain new connection from pool*/
     public DBConnection getConnection() throws KVDBException {
         return pool.getConnection();
     }
 
+    /* Borrow a connection not bound to any thread, waiting up to timeout when all
+     * connections are in use. Give it back with release()
+     */
+    public DBConnection borrowConnection(long timeoutMs) throws KVDBException {
+        return pool.borrowConnection(timeoutMs);
+    }
+
+    /* Path of the database file */
+    public String getPath() {
+        return config.path;
+    }
+
+    /* Pool of connections, for statistics */
+    public DBConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /* Queue whose writes are committed in groups by a single writer thread.
+     * A new one is started if database was closed since
+     */
+    public synchronized GroupCommitQueue getGroupCommitQueue() throws KVDBException {
+        if(!config.groupCommit) throw new KVDBException("Group commit is not enabled");
+        if(groupCommitQueue == null) {
+            groupCommitQueue = GroupCommitQueue.create(pool, config);
+        }
+        return groupCommitQueue;
+    }
+
+    /* Facade returning futures for reads and writes, run on a pool of
+     * DBConfig.asyncThreads threads. Use AsyncDBConnection.create for a
+     * custom executor. A new one is created if database was closed since
+     */
+    public synchronized AsyncDBConnection getAsyncConnection() {
+        if(asyncConnection == null) {
+            asyncConnection = AsyncDBConnection.create(pool, config);
+        }
+        return asyncConnection;
+    }
+
+    /* Read cache shared by all connections, for statistics or to clear it */
+    public DBValueCache getValueCache() throws KVDBException {
+        DBValueCache cache = pool.getValueCache();
+        if(cache == null) throw new KVDBException("Read cache is not enabled");
+        return cache;
+    }
+
+    /* Bloom filter of keys, for statistics */
+    public DBBloomFilter getBloomFilter() throws KVDBException {
+        DBBloomFilter filter = pool.getBloomFilter();
+        if(filter == null) throw new KVDBException("Bloom filter is not enabled");
+        return filter;
+    }
+
+    /* Operation latencies, lock waits and sqlite counters, see DBConfig.metrics */
+    public DBMetrics getMetrics() throws KVDBException {
+        DBMetrics metrics = pool.getMetrics();
+        if(metrics == null) throw new KVDBException("Metrics are not enabled");
+        return metrics;
+    }
+
+    /* Value compression, for statistics. Present even if compression is off,
+     * as compressed values written earlier are still read through it
+     */
+    public DBCompressor getCompressor() {
+        return pool.getCompressor();
+    }
+
     public void close() throws KVDBException {
+        //queued writes are committed first, their keys belong in the saved filter
+        GroupCommitQueue queue;
+        AsyncDBConnection async;
+        synchronized (this) {
+            queue = groupCommitQueue;
+            groupCommitQueue = null;
+            async = asyncConnection;
+            asyncConnection = null;
+        }
+        if(async != null) async.close();
+        if(queue != null) queue.close();
         //we only close current thread connection right now
-        pool.getConnection().release();
+        DBConnection c = pool.getConnection();
+        try {
+            DBBloomFilter filter = pool.getBloomFilter();
+            if(filter != null && (config.openFlags & OPEN_READONLY) == 0) {
+                filter.save(c);
+            }
+        } finally {
+            c.release();
+            pool.closeIdleConnections();
+        }
     }
 }
@@ -4,8 +4,64 @@ public class DBQuery {
     public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS kvstore" +
             " (rowid INTEGER PRIMARY KEY AUTOINCREMENT," +
             "  _key TEXT NOT NULL," +
-            "  _value BLOB" +
+            "  _value BLOB," +
+            "  _type INTEGER NOT NULL DEFAULT 0" +
             " );";
+    /* schema version 2, rows clustered by key in a table without rowid, so a
+     * write changes a single b-tree
+     */
+    public static final String CREATE_TABLE_V2 = "CREATE TABLE IF NOT EXISTS kvstore" +
+            " (_key TEXT NOT NULL PRIMARY KEY," +
+            "  _value BLOB," +
+            "  _type INTEGER NOT NULL DEFAULT 0" +
+            " ) WITHOUT ROWID;";
+    /* schema version 2 keeps values written by a value stream in kvstore_blob,
+     * which has the rowid incremental blob io needs. Their kvstore row has type 10
+     * and the rowid as value, triggers delete the blob along with the row
+     */
+    public static final String[] CREATE_BLOB_TABLE = {
+            "CREATE TABLE IF NOT EXISTS kvstore_blob (_value BLOB);",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_blob_delete AFTER DELETE ON kvstore WHEN OLD._type = 10 BEGIN" +
+            " DELETE FROM kvstore_blob WHERE rowid = OLD._value; END;",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_blob_update AFTER UPDATE ON kvstore WHEN OLD._type = 10" +
+            " AND (NEW._type != 10 OR NEW._value != OLD._value) BEGIN" +
+            " DELETE FROM kvstore_blob WHERE rowid = OLD._value; END;"
+    };
+    /* schema version 2 counts inserts and deletes of kvstore rows, the stamp of
+     * the saved bloom filter. Its single row is written once per transaction, so
+     * the counter only exists while the database is opened with a bloom filter
+     */
+    public static final String[] CREATE_CHANGE_COUNTER = {
+            "CREATE TABLE IF NOT EXISTS kvstore_changes (_count INTEGER NOT NULL);",
+            "INSERT INTO kvstore_changes (_count) SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM kvstore_changes);",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_changes_insert AFTER INSERT ON kvstore BEGIN" +
+            " UPDATE kvstore_changes SET _count = _count + 1; END;",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_changes_delete AFTER DELETE ON kvstore BEGIN" +
+            " UPDATE kvstore_changes SET _count = _count + 1; END;"
+    };
+    public static final String SELECT_CHANGE_COUNTER = "SELECT 1 FROM sqlite_master" +
+            " WHERE type = 'trigger' AND name = 'kvstore_changes_insert';";
+    public static final String[] DROP_CHANGE_COUNTER = {
+            "DROP TRIGGER IF EXISTS kvstore_changes_insert;",
+            "DROP TRIGGER IF EXISTS kvstore_changes_delete;",
+            "DROP TABLE IF EXISTS kvstore_changes;"
+    };
+    /* value and type columns of schema version 2 with streamed values resolved */
+    public static final String STREAMED_VALUE = "CASE WHEN _type = 10 THEN" +
+            " (SELECT _value FROM kvstore_blob WHERE rowid = kvstore._value) ELSE _value END";
+    public static final String STREAMED_TYPE = "CASE WHEN _type = 10 THEN 1 ELSE _type END";
+    /* chunk of a value the clustered table holds itself, with its length and type.
+     * Text is cast so offsets count bytes
+     */
+    public static final String VALUE_CHUNK = "SELECT substr(CAST(_value AS BLOB), ?, ?)," +
+            " length(CAST(_value AS BLOB)), _type FROM kvstore WHERE _key = ?;";
+    /* blob io does not run triggers, a value streamed into the rowid table while
+     * it is migrated is copied to kvstore_v2 by touching its row
+     */
+    public static final String TOUCH_MIGRATING = "UPDATE kvstore SET _type = _type WHERE _key = ?" +
+            " AND EXISTS (SELECT 1 FROM sqlite_master WHERE name = 'kvstore_v2_update');";
+    /* layout of kvstore table, 0 for databases created before it was recorded */
+    public static final String GET_SCHEMA_VERSION = "PRAGMA user_version;";
     public static final String PRAGMA_WAL = "PRAGMA journal_mode=WAL;";
     public static final String CREATE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " +
             "keyindex ON kvstore (_key)";
@@ -13,4 +69,83 @@ public class DBQuery {
     public static final String BEIGIN_IMMEDIATE = "BEGIN IMMEDIATE TRANSACTION;";
     public static final String COMMIT = "COMMIT TRANSACTION;";
     public static final String ROLLBACK = "ROLLBACK TRANSACTION;";
+    /* value output stream inside a read/write transaction, see DBValueOutputStream */
+    public static final String SAVEPOINT_STREAM = "SAVEPOINT kvdb_stream;";
+    public static final String RELEASE_STREAM = "RELEASE kvdb_stream;";
+    public static final String ROLLBACK_STREAM = "ROLLBACK TO kvdb_stream;";
+    /* identifies table contents for the saved bloom filter */
+    public static final String TABLE_STAMP = "SELECT count(*), max(rowid) FROM kvstore;";
+    /* a table without rowid has no insert counter, kvstore_changes keeps one */
+    public static final String TABLE_STAMP_V2 = "SELECT _count FROM kvstore_changes;";
+    /* upgrade of tables created before values had a type */
+    public static final String TABLE_INFO = "PRAGMA table_info(kvstore);";
+    public static final String ADD_TYPE_COLUMN = "ALTER TABLE kvstore ADD COLUMN _type INTEGER NOT NULL DEFAULT 0;";
+    public static final String SELECT_UNTYPED = "SELECT 1 FROM kvstore WHERE _type = 0 LIMIT 1;";
+    /* converts a chunk of untyped text encoded values. Numbers whose text round trips
+     * exactly become INTEGER (long) or REAL (double) values, others are kept as blobs
+     */
+    public static final String MIGRATE_UNTYPED = "UPDATE kvstore SET" +
+            " _type = CASE WHEN " + canonical("INTEGER") + " THEN 6" +
+            "  WHEN " + canonical("REAL") + " THEN 8 ELSE 1 END," +
+            " _value = CASE WHEN " + canonical("INTEGER") + " THEN CAST(CAST(_value AS TEXT) AS INTEGER)" +
+            "  WHEN " + canonical("REAL") + " THEN CAST(CAST(_value AS TEXT) AS REAL) ELSE _value END" +
+            " WHERE _key IN (SELECT _key FROM kvstore WHERE _type = 0 LIMIT 500);";
+
+    /* online migration to schema version 2. Rows are copied in key order into
+     * kvstore_v2 a chunk at a time, kvstore_migration keeps the last key copied,
+     * NULL before the first chunk, so an interrupted migration resumes there.
+     * Triggers repeat writes made to the old table meanwhile, once all rows are
+     * copied the new table replaces it
+     */
+    public static final String[] MIGRATE_LAYOUT_START = {
+            CREATE_TABLE_V2.replace("kvstore", "kvstore_v2"),
+            CREATE_BLOB_TABLE[0],
+            "CREATE TABLE IF NOT EXISTS kvstore_migration (_last TEXT, _done INTEGER NOT NULL DEFAULT 0);",
+            "INSERT INTO kvstore_migration (_last) SELECT NULL WHERE NOT EXISTS (SELECT 1 FROM kvstore_migration);",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_v2_insert AFTER INSERT ON kvstore BEGIN" +
+            " INSERT OR REPLACE INTO kvstore_v2 (_key,_value,_type) VALUES (NEW._key,NEW._value,NEW._type); END;",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_v2_update AFTER UPDATE ON kvstore BEGIN" +
+            " DELETE FROM kvstore_v2 WHERE _key = OLD._key;" +
+            " INSERT OR REPLACE INTO kvstore_v2 (_key,_value,_type) VALUES (NEW._key,NEW._value,NEW._type); END;",
+            "CREATE TRIGGER IF NOT EXISTS kvstore_v2_delete AFTER DELETE ON kvstore BEGIN" +
+            " DELETE FROM kvstore_v2 WHERE _key = OLD._key; END;"
+    };
+    /* no row once every row was copied */
+    public static final String SELECT_MIGRATION_LEFT = "SELECT 1 FROM kvstore_migration WHERE _done = 0;";
+    /* keys after the last one copied, all of them while it is NULL. Written as a
+     * range from the smallest key, '', so the copy seeks the key index
+     */
+    private static final String MIGRATION_NEXT = " FROM kvstore" +
+            " WHERE _key >= coalesce((SELECT _last FROM kvstore_migration), '')" +
+            " AND _key IS NOT (SELECT _last FROM kvstore_migration) ORDER BY _key LIMIT 1000";
+    public static final String MIGRATE_LAYOUT_COPY = "INSERT OR IGNORE INTO kvstore_v2 (_key,_value,_type)" +
+            " SELECT _key,_value,_type" + MIGRATION_NEXT + ";";
+    /* a chunk shorter than the limit was the last one */
+    public static final String MIGRATE_LAYOUT_ADVANCE = "UPDATE kvstore_migration SET" +
+            " _last = coalesce((SELECT max(_key) FROM (SELECT _key" + MIGRATION_NEXT + ")), _last)," +
+            " _done = (SELECT count(*) < 1000 FROM (SELECT _key" + MIGRATION_NEXT + "));";
+    /* triggers and index go with the old table, kvstore_blob exists from the start
+     * as connections read through it once they switch. The change counter is
+     * added after these if a bloom filter is in use
+     */
+    public static final String[] MIGRATE_LAYOUT_SWITCH = {
+            "DROP TABLE kvstore;",
+            "ALTER TABLE kvstore_v2 RENAME TO kvstore;",
+            "DROP TABLE kvstore_migration;",
+            CREATE_BLOB_TABLE[1],
+            CREATE_BLOB_TABLE[2]
+    };
+
+    /* every string key and its value in key order, for DBSnapshotWriter */
+    public static final String SNAPSHOT_EXPORT = "SELECT _key,_type,_value FROM kvstore WHERE _key < x'' ORDER BY _key;";
+    public static final String SNAPSHOT_EXPORT_V2 = "SELECT _key," + STREAMED_TYPE + "," + STREAMED_VALUE +
+            " FROM kvstore WHERE _key < x'' ORDER BY _key;";
+
+    public static String setSchemaVersion(int version) {
+        return "PRAGMA user_version = " + version + ";";
+    }
+
+    private static String canonical(String type) {
+        return "CAST(CAST(CAST(_value AS TEXT) AS " + type + ") AS TEXT) = CAST(_value AS TEXT)";
+    }
 }
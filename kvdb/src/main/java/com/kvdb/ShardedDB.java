@@ -0,0 +1,332 @@
+package com.kvdb;
+
+import java.io.File;
+
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.DBResult;
+import com.kvdb.connection.WriteBatch;
+import com.kvdb.internal.DBConfig;
+import com.kvdb.internal.DBRegister;
+import com.kvdb.internal.Log;
+
+/* Database split into several SQLite files, each with its own connection pool,
+ * write lock and WAL, so writes to different shards run in parallel. A key is
+ * always stored in shard shardOf(key, shards). Shard i of path is the file
+ * path.shard<i>of<shards>, a path is only ever opened with the number of shards
+ * it was created with.
+ *
+ * Single key operations and write batches within one shard are atomic as in
+ * DB. A batch spanning shards is applied as one atomic batch per shard, a
+ * failure may leave the batches of other shards applied.
+ */
+public class ShardedDB {
+    private static final String TAG = "ShardedDB";
+    private static final String SHARD_SUFFIX = ".shard";
+
+    private final String path;
+    private final DB[] shards;
+    private final long waitMs;
+
+    static ShardedDB open(DBConfig config, int shards) throws KVDBException {
+        if(shards < 1) throw new KVDBException("Invalid number of shards " + shards);
+        synchronized (ShardedDB.class) {
+            ShardedDB db = DBRegister.getSharded(config.path);
+            if(db != null) {
+                if(db.getShardCount() != shards) {
+                    throw new KVDBException("Database is open with " + db.getShardCount() + " shards");
+                }
+                return db;
+            }
+            checkShardFiles(config.path, shards);
+            DB[] dbs = new DB[shards];
+            for(int i = 0; i < shards; i++) {
+                dbs[i] = DB.open(config.withPath(shardPath(config.path, i, shards)));
+            }
+            db = new ShardedDB(config.path, dbs, config.poolWaitMs);
+            DBRegister.registerSharded(config.path, db);
+            Log.i(TAG, "Opened " + shards + " shards of " + config.path);
+            return db;
+        }
+    }
+
+    private ShardedDB(String path, DB[] shards, long waitMs) {
+        this.path = path;
+        this.shards = shards;
+        this.waitMs = waitMs;
+    }
+
+    /* Shard of key among shards. Stored keys depend on it, it must never change */
+    public static int shardOf(String key, int shards) {
+        //String.hashCode is fixed by the language spec, mixed so similar keys spread
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % shards;
+    }
+
+    public String getPath() {
+        return path;
+    }
+    public int getShardCount() {
+        return shards.length;
+    }
+    /* Database of one shard, for statistics or per shard configuration */
+    public DB getShard(int shard) {
+        return shards[shard];
+    }
+    /* Database of the shard holding key */
+    public DB getShardFor(String key) throws KVDBException {
+        isValid(key);
+        return shards[shardOf(key, shards.length)];
+    }
+    /* Connection of current thread to the shard holding key, for operations not
+     * offered here. Same rules as DB.getConnection apply
+     */
+    public DBConnection getConnection(String key) throws KVDBException {
+        return getShardFor(key).getConnection();
+    }
+
+    public String get(String key) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            return c.get(key);
+        } finally {
+            c.release();
+        }
+    }
+    public byte[] getBytes(String key) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            return c.getBytes(key);
+        } finally {
+            c.release();
+        }
+    }
+    public long getLong(String key) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            return c.getLong(key);
+        } finally {
+            c.release();
+        }
+    }
+    public void put(String key, String value) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            c.put(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    public void put(String key, byte[] value) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            c.put(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    public void putLong(String key, long value) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            c.putLong(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    public void delete(String key) throws KVDBException {
+        DBConnection c = borrow(getShardFor(key));
+        try {
+            c.delete(key);
+        } finally {
+            c.release();
+        }
+    }
+
+    /* values of keys in order, null for keys not present. One multiGet per shard */
+    public byte[][] multiGet(String[] keys) throws KVDBException {
+        byte[][] values = new byte[keys.length][];
+        int[][] positions = route(keys);
+        for(int s = 0; s < shards.length; s++) {
+            int[] p = positions[s];
+            if(p.length == 0) continue;
+            DBConnection c = borrow(shards[s]);
+            try {
+                byte[][] found = c.multiGet(select(keys, p));
+                for(int i = 0; i < p.length; i++) {
+                    values[p[i]] = found[i];
+                }
+            } finally {
+                c.release();
+            }
+        }
+        return values;
+    }
+    public String[] multiGetString(String[] keys) throws KVDBException {
+        String[] values = new String[keys.length];
+        int[][] positions = route(keys);
+        for(int s = 0; s < shards.length; s++) {
+            int[] p = positions[s];
+            if(p.length == 0) continue;
+            DBConnection c = borrow(shards[s]);
+            try {
+                String[] found = c.multiGetString(select(keys, p));
+                for(int i = 0; i < p.length; i++) {
+                    values[p[i]] = found[i];
+                }
+            } finally {
+                c.release();
+            }
+        }
+        return values;
+    }
+
+    /* apply batch as one atomic batch per shard it touches */
+    public void write(WriteBatch batch) throws KVDBException {
+        if(batch == null) throw new KVDBException("Batch cannot be null");
+        WriteBatch[] parts = batch.split(shards.length);
+        for(int s = 0; s < shards.length; s++) {
+            if(parts[s] == null) continue;
+            DBConnection c = borrow(shards[s]);
+            try {
+                c.write(parts[s]);
+            } finally {
+                c.release();
+            }
+        }
+    }
+
+    /* cursor over keys starting with prefix in key order across all shards, same
+     * columns and flags as DBConnection.scan. Cursor must be closed
+     */
+    public ShardedResult scan(String prefix) throws KVDBException {
+        return scan(prefix, 0);
+    }
+    public ShardedResult scan(String prefix, int flags) throws KVDBException {
+        if(prefix == null) throw new KVDBException("Prefix cannot be null");
+        return scan(prefix, null, 0, flags, true);
+    }
+    /* cursor over keys from fromKey (inclusive) to toKey (exclusive) in key order
+     * across all shards, returning at most limit rows
+     */
+    public ShardedResult scan(String fromKey, String toKey, int limit) throws KVDBException {
+        return scan(fromKey, toKey, limit, 0);
+    }
+    public ShardedResult scan(String fromKey, String toKey, int limit, int flags) throws KVDBException {
+        return scan(fromKey, toKey, limit, flags, false);
+    }
+    private ShardedResult scan(String fromKey, String toKey, int limit, int flags, boolean prefix) throws KVDBException {
+        //every cursor keeps its own connection until the merged cursor is closed
+        DBConnection[] connections = new DBConnection[shards.length];
+        DBResult[] cursors = new DBResult[shards.length];
+        try {
+            for(int s = 0; s < shards.length; s++) {
+                connections[s] = borrow(shards[s]);
+                if(prefix) {
+                    cursors[s] = connections[s].scan(fromKey, flags);
+                } else {
+                    cursors[s] = connections[s].scan(fromKey, toKey, limit, flags);
+                }
+            }
+            ShardedResult result = new ShardedResult(connections, cursors, limit,
+                    (flags & DBConnection.SCAN_REVERSE) != 0);
+            connections = null;
+            return result;
+        } finally {
+            if(connections != null) {
+                for(int s = 0; s < shards.length; s++) {
+                    if(cursors[s] != null) cursors[s].close();
+                    if(connections[s] != null) connections[s].release();
+                }
+            }
+        }
+    }
+
+    /* number of keys starting with prefix in all shards, all keys if prefix is null */
+    public long getCount(String prefix) throws KVDBException {
+        long count = 0;
+        for(DB shard : shards) {
+            DBConnection c = borrow(shard);
+            try {
+                count += c.getCount(prefix);
+            } finally {
+                c.release();
+            }
+        }
+        return count;
+    }
+
+    /* close every shard */
+    public void close() throws KVDBException {
+        KVDBException error = null;
+        for(DB shard : shards) {
+            try {
+                shard.close();
+            } catch (KVDBException e) {
+                Log.e(TAG, "Cannot close shard " + shard.getPath() + " : " + e.getMessage());
+                error = e;
+            }
+        }
+        if(error != null) throw error;
+    }
+
+    static String shardPath(String path, int shard, int shards) {
+        return path + SHARD_SUFFIX + shard + "of" + shards;
+    }
+    /* shard files of path created with another number of shards would hide their keys */
+    private static void checkShardFiles(String path, int shards) throws KVDBException {
+        File base = new File(path);
+        File folder = base.getAbsoluteFile().getParentFile();
+        String[] names = folder == null ? null : folder.list();
+        if(names == null) return;
+        String prefix = base.getName() + SHARD_SUFFIX;
+        String expected = "of" + shards;
+        for(String name : names) {
+            if(!name.startsWith(prefix)) continue;
+            //skip -wal, -shm and -journal files of the shard
+            int end = name.indexOf('-', prefix.length());
+            String shard = end < 0 ? name : name.substring(0, end);
+            if(!shard.endsWith(expected) || !shard.substring(prefix.length(), shard.length() - expected.length()).matches("\\d+")) {
+                throw new KVDBException("Database " + path + " was created with a different number of shards : " + name);
+            }
+        }
+    }
+    /* positions of keys in each shard */
+    private int[][] route(String[] keys) throws KVDBException {
+        if(keys == null) throw new KVDBException("Keys cannot be null");
+        int[] shardOfKey = new int[keys.length];
+        int[] counts = new int[shards.length];
+        for(int i = 0; i < keys.length; i++) {
+            isValid(keys[i]);
+            shardOfKey[i] = shardOf(keys[i], shards.length);
+            counts[shardOfKey[i]]++;
+        }
+        int[][] positions = new int[shards.length][];
+        for(int s = 0; s < shards.length; s++) {
+            positions[s] = new int[counts[s]];
+            counts[s] = 0;
+        }
+        for(int i = 0; i < keys.length; i++) {
+            int s = shardOfKey[i];
+            positions[s][counts[s]++] = i;
+        }
+        return positions;
+    }
+    private static String[] select(String[] keys, int[] positions) {
+        String[] selected = new String[positions.length];
+        for(int i = 0; i < positions.length; i++) {
+            selected[i] = keys[positions[i]];
+        }
+        return selected;
+    }
+    /* connection of its own, so calls never release a connection the caller holds on this thread */
+    private DBConnection borrow(DB shard) throws KVDBException {
+        return shard.borrowConnection(waitMs);
+    }
+    private void isValid(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+    }
+}
@@ -0,0 +1,116 @@
+package com.kvdb;
+
+import java.io.Closeable;
+
+import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.DBResult;
+import com.kvdb.connection.DBSnapshot;
+
+/* Cursor merging the key ordered cursors of every shard of a ShardedDB into
+ * one key ordered cursor. Column 0 of every row is the key. Each shard cursor
+ * keeps a connection of its shard until this cursor is closed.
+ */
+public class ShardedResult implements Closeable {
+    private final DBConnection[] connections;
+    private final DBResult[] cursors;
+    /* key of the current row of each shard cursor, null once it reached its end */
+    private final String[] keys;
+    private final boolean reverse;
+    private final int limit;
+    private int returned;
+    private DBResult current;
+    private boolean started;
+    private boolean closed;
+
+    ShardedResult(DBConnection[] connections, DBResult[] cursors, int limit, boolean reverse) {
+        this.connections = connections;
+        this.cursors = cursors;
+        this.keys = new String[cursors.length];
+        this.limit = limit;
+        this.reverse = reverse;
+    }
+
+    /* move to next row, returns false once there are no more rows */
+    public boolean next() throws KVDBException {
+        if(closed) throw new KVDBException("Cursor is closed");
+        if(!started) {
+            started = true;
+            for(int s = 0; s < cursors.length; s++) {
+                advance(s);
+            }
+        } else if(current != null) {
+            for(int s = 0; s < cursors.length; s++) {
+                if(cursors[s] == current) advance(s);
+            }
+        }
+        current = null;
+        if(limit > 0 && returned >= limit) return false;
+        int next = -1;
+        for(int s = 0; s < cursors.length; s++) {
+            if(keys[s] == null) continue;
+            if(next < 0) {
+                next = s;
+            } else {
+                //shard cursors come back in sqlite's order of the utf-8 keys, not String.compareTo's
+                int order = DBSnapshot.compareKeys(keys[s], keys[next]);
+                if(reverse ? order > 0 : order < 0) next = s;
+            }
+        }
+        if(next < 0) return false;
+        current = cursors[next];
+        returned++;
+        return true;
+    }
+
+    public int getColumnCount() {
+        return cursors[0].getColumnCount();
+    }
+    public String getColumnName(int column) {
+        return cursors[0].getColumnName(column);
+    }
+    public String getKey() throws KVDBException {
+        return row().getString(0);
+    }
+    public int getType(int column) throws KVDBException {
+        return row().getType(column);
+    }
+    public boolean isNull(int column) throws KVDBException {
+        return row().isNull(column);
+    }
+    public long getLong(int column) throws KVDBException {
+        return row().getLong(column);
+    }
+    public int getInt(int column) throws KVDBException {
+        return row().getInt(column);
+    }
+    public double getDouble(int column) throws KVDBException {
+        return row().getDouble(column);
+    }
+    public String getString(int column) throws KVDBException {
+        return row().getString(column);
+    }
+    public byte[] getBytes(int column) throws KVDBException {
+        return row().getBytes(column);
+    }
+
+    /* close every shard cursor and give back their connections */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        current = null;
+        for(int s = 0; s < cursors.length; s++) {
+            cursors[s].close();
+            connections[s].release();
+        }
+    }
+
+    private void advance(int s) throws KVDBException {
+        keys[s] = cursors[s].next() ? cursors[s].getString(0) : null;
+    }
+    private DBResult row() throws KVDBException {
+        if(closed) throw new KVDBException("Cursor is closed");
+        if(current == null) throw new KVDBException("No current row");
+        return current;
+    }
+}
@@ -0,0 +1,403 @@
+package com.kvdb.connection;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+import com.kvdb.internal.Log;
+
+/* Non blocking facade over a database for event loop threads. Operations are
+ * queued and run on an executor, callers get a DBFuture to wait on or to add a
+ * listener to. Gets queued next to each other are read with a single multiGet
+ * and writes queued next to each other are committed as one write batch.
+ *
+ * Writes are applied in submission order by one executor thread at a time,
+ * reads run on up to parallelism threads. A read submitted before the future of
+ * a write is done may not see that write.
+ *
+ * At most maxInFlight operations may be queued or running, submitting more
+ * waits for one to finish, up to the pool wait time of the database config.
+ * The executor can be any Executor, native calls are bounded by the connection
+ * pool whatever threads the executor runs them on.
+ */
+public class AsyncDBConnection {
+    private static final String TAG = "AsyncDBConnection";
+    /* most keys read, or operations written, by one native call */
+    static final int MAX_COALESCE = 256;
+
+    /* queued get of one key or of several keys */
+    static final class ReadRequest {
+        final String[] keys;
+        final boolean strings;
+        final DBFuture<Object> future = new DBFuture<Object>();
+        /* multiGet future expects the whole array, single gets just the value */
+        final boolean multi;
+
+        ReadRequest(String[] keys, boolean strings, boolean multi) {
+            this.keys = keys;
+            this.strings = strings;
+            this.multi = multi;
+        }
+    }
+
+    private final DBConnectionPool pool;
+    private final Executor executor;
+    /* executor created here, shut down by close */
+    private final ExecutorService ownExecutor;
+    private final int parallelism;
+    private final long waitMs;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    private final ConcurrentLinkedQueue<ReadRequest> reads = new ConcurrentLinkedQueue<ReadRequest>();
+    private final ConcurrentLinkedQueue<GroupCommitQueue.Request> writes = new ConcurrentLinkedQueue<GroupCommitQueue.Request>();
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final AtomicLong readCalls = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+
+    /* facade running on its own bounded pool of DBConfig.asyncThreads daemon threads */
+    public static AsyncDBConnection create(DBConnectionPool pool, DBConfig config) {
+        int threads = Math.max(1, config.asyncThreads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "KVDB-async-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return new AsyncDBConnection(pool, executor, executor, threads, config.asyncMaxInFlight, config.poolWaitMs);
+    }
+    /* facade running on executor, reads use up to parallelism of its threads at once.
+     * Submitting waits up to waitMs while maxInFlight operations are pending
+     */
+    public static AsyncDBConnection create(DBConnectionPool pool, Executor executor, int parallelism,
+                                           int maxInFlight, long waitMs) {
+        if(executor == null) throw new IllegalArgumentException("Executor cannot be null");
+        return new AsyncDBConnection(pool, executor, null, parallelism, maxInFlight, waitMs);
+    }
+
+    private AsyncDBConnection(DBConnectionPool pool, Executor executor, ExecutorService ownExecutor,
+                              int parallelism, int maxInFlight, long waitMs) {
+        this.pool = pool;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.waitMs = waitMs;
+    }
+
+    @SuppressWarnings("unchecked")
+    public DBFuture<String> getAsync(String key) throws KVDBException {
+        isValid(key);
+        return (DBFuture<String>) (DBFuture<?>) read(new ReadRequest(new String[]{key}, true, false));
+    }
+    @SuppressWarnings("unchecked")
+    public DBFuture<byte[]> getBytesAsync(String key) throws KVDBException {
+        isValid(key);
+        return (DBFuture<byte[]>) (DBFuture<?>) read(new ReadRequest(new String[]{key}, false, false));
+    }
+    /* values of keys in order, null for keys not present */
+    @SuppressWarnings("unchecked")
+    public DBFuture<byte[][]> multiGetAsync(String[] keys) throws KVDBException {
+        if(keys == null) throw new KVDBException("Keys cannot be null");
+        for(String key : keys) {
+            isValid(key);
+        }
+        return (DBFuture<byte[][]>) (DBFuture<?>) read(new ReadRequest(keys.clone(), false, true));
+    }
+    public DBFuture<Void> putAsync(String key, String value) throws KVDBException {
+        isValid(key);
+        if(value == null) throw new KVDBException("Value cannot be null");
+        return write(new GroupCommitQueue.Request(WriteBatch.OP_PUT_STRING, ValueType.STRING, key, value, 0));
+    }
+    public DBFuture<Void> putAsync(String key, byte[] value) throws KVDBException {
+        isValid(key);
+        if(value == null) throw new KVDBException("Value cannot be null");
+        return write(new GroupCommitQueue.Request(WriteBatch.OP_PUT, ValueType.BLOB, key, value, 0));
+    }
+    public DBFuture<Void> putLongAsync(String key, long value) throws KVDBException {
+        isValid(key);
+        return write(new GroupCommitQueue.Request(WriteBatch.OP_PUT_INTEGER, ValueType.LONG, key, null, value));
+    }
+    public DBFuture<Void> deleteAsync(String key) throws KVDBException {
+        isValid(key);
+        return write(new GroupCommitQueue.Request(WriteBatch.OP_DELETE, ValueType.UNTYPED, key, null, 0));
+    }
+    /* write all operations of batch atomically, batch must not be changed until
+     * returned future is done
+     */
+    public DBFuture<Void> writeAsync(WriteBatch batch) throws KVDBException {
+        if(batch == null) throw new KVDBException("Batch cannot be null");
+        return write(new GroupCommitQueue.Request(batch));
+    }
+
+    /* operations queued or running */
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+    /* number of multiGet calls made for queued reads */
+    public long getReadCallCount() {
+        return readCalls.get();
+    }
+    /* number of write batches committed for queued writes */
+    public long getWriteCallCount() {
+        return writeCalls.get();
+    }
+    /* number of operations completed */
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    /* stop accepting operations and wait up to the pool wait time for queued
+     * ones to complete. Shuts down the executor if it was created by this facade.
+     * Called by DB.close for the facade of the database
+     */
+    public void close() {
+        closed = true;
+        if(ownExecutor != null) ownExecutor.shutdown();
+        try {
+            if(inFlight.tryAcquire(maxInFlight, waitMs, TimeUnit.MILLISECONDS)) {
+                inFlight.release(maxInFlight);
+            } else {
+                Log.w(TAG, "Closed with operations in flight : " + getInFlightCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DBFuture<Object> read(ReadRequest request) throws KVDBException {
+        acquire();
+        reads.offer(request);
+        scheduleReads();
+        return request.future;
+    }
+    private DBFuture<Void> write(GroupCommitQueue.Request request) throws KVDBException {
+        acquire();
+        writes.offer(request);
+        scheduleWrites();
+        return request.future;
+    }
+    private void acquire() throws KVDBException {
+        if(closed) throw new KVDBException("Async connection is closed");
+        try {
+            if(!inFlight.tryAcquire() && !inFlight.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+                throw new KVDBException("Too many operations in flight : " + maxInFlight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVDBException("Interrupted while waiting to submit");
+        }
+    }
+
+    /* start another reader unless parallelism readers are draining already */
+    private void scheduleReads() {
+        while(true) {
+            int n = readers.get();
+            if(n >= parallelism || reads.isEmpty()) return;
+            if(readers.compareAndSet(n, n + 1)) break;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainReads();
+                } finally {
+                    readers.decrementAndGet();
+                    //request queued while this reader was stopping
+                    scheduleReads();
+                }
+            }
+        }, true);
+    }
+    private void scheduleWrites() {
+        if(writes.isEmpty() || !writing.compareAndSet(false, true)) return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainWrites();
+                } finally {
+                    writing.set(false);
+                    scheduleWrites();
+                }
+            }
+        }, false);
+    }
+    private void execute(Runnable task, boolean read) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if(read) {
+                readers.decrementAndGet();
+            } else {
+                writing.set(false);
+            }
+            KVDBException error = new KVDBException("Executor rejected database operation");
+            ReadRequest r;
+            while((r = reads.poll()) != null) {
+                completed(r.future, null, error);
+            }
+            GroupCommitQueue.Request w;
+            while((w = writes.poll()) != null) {
+                completed(w.future, null, error);
+            }
+        }
+    }
+
+    private void drainReads() {
+        ArrayList<ReadRequest> group = new ArrayList<ReadRequest>();
+        ArrayList<String> keys = new ArrayList<String>();
+        DBConnection c = null;
+        try {
+            ReadRequest request;
+            while((request = reads.poll()) != null) {
+                //requests of the same kind next to each other are read with one call
+                boolean strings = request.strings;
+                do {
+                    group.add(request);
+                    for(String key : request.keys) {
+                        keys.add(key);
+                    }
+                    request = reads.peek();
+                } while(request != null && request.strings == strings && keys.size() + request.keys.length <= MAX_COALESCE
+                        && reads.remove(request));
+                if(c == null) c = pool.getConnection();
+                readGroup(c, group, keys.toArray(new String[keys.size()]), strings);
+                group.clear();
+                keys.clear();
+            }
+        } catch (KVDBException e) {
+            Log.e(TAG, "Cannot read : " + e.getMessage());
+            failed(group, e);
+        } finally {
+            //group left by an unexpected error still frees its in flight slots
+            failed(group, new KVDBException("Read stopped"));
+            if(c != null) c.release();
+        }
+    }
+    private void readGroup(DBConnection c, ArrayList<ReadRequest> group, String[] keys, boolean strings) {
+        Object[] values;
+        try {
+            values = strings ? c.multiGetString(keys) : c.multiGet(keys);
+            readCalls.incrementAndGet();
+        } catch (KVDBException e) {
+            for(ReadRequest r : group) {
+                completed(r.future, null, e);
+            }
+            return;
+        }
+        int index = 0;
+        for(ReadRequest r : group) {
+            if(r.multi) {
+                byte[][] result = new byte[r.keys.length][];
+                System.arraycopy(values, index, result, 0, result.length);
+                completed(r.future, result, null);
+            } else {
+                completed(r.future, values[index], null);
+            }
+            index += r.keys.length;
+        }
+    }
+
+    private void drainWrites() {
+        ArrayList<GroupCommitQueue.Request> group = new ArrayList<GroupCommitQueue.Request>();
+        WriteBatch batch = new WriteBatch();
+        DBConnection c = null;
+        try {
+            GroupCommitQueue.Request request;
+            while((request = writes.poll()) != null) {
+                int size = 0;
+                do {
+                    group.add(request);
+                    size += request.size();
+                } while(size < MAX_COALESCE && (request = writes.poll()) != null);
+                if(c == null) c = pool.getConnection();
+                writeGroup(c, batch, group);
+                group.clear();
+            }
+        } catch (KVDBException e) {
+            Log.e(TAG, "Cannot write : " + e.getMessage());
+            failWrites(group, e);
+        } finally {
+            failWrites(group, new KVDBException("Write stopped"));
+            if(c != null) c.release();
+        }
+    }
+    private void writeGroup(DBConnection c, WriteBatch batch, ArrayList<GroupCommitQueue.Request> group) {
+        try {
+            batch.clear();
+            for(GroupCommitQueue.Request r : group) {
+                r.addTo(batch);
+            }
+            c.write(batch);
+            writeCalls.incrementAndGet();
+            for(GroupCommitQueue.Request r : group) {
+                completed(r.future, null, null);
+            }
+        } catch (KVDBException e) {
+            //one bad write must not fail the others it was grouped with
+            for(GroupCommitQueue.Request r : group) {
+                try {
+                    batch.clear();
+                    r.addTo(batch);
+                    c.write(batch);
+                    writeCalls.incrementAndGet();
+                    completed(r.future, null, null);
+                } catch (KVDBException ex) {
+                    completed(r.future, null, ex);
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /* fail requests of group which are not completed yet */
+    private void failed(ArrayList<ReadRequest> group, KVDBException e) {
+        for(ReadRequest r : group) {
+            completed(r.future, null, e);
+        }
+        group.clear();
+    }
+    private void failWrites(ArrayList<GroupCommitQueue.Request> group, KVDBException e) {
+        for(GroupCommitQueue.Request r : group) {
+            completed(r.future, null, e);
+        }
+        group.clear();
+    }
+
+    /* complete future and free its in flight slot */
+    private <T> void completed(DBFuture<T> future, T value, Throwable error) {
+        boolean done = error == null ? future.complete(value) : future.fail(error);
+        if(done) {
+            operations.incrementAndGet();
+            inFlight.release();
+        }
+    }
+
+    private void isValid(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+    }
+}
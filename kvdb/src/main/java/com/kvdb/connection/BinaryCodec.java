@@ -0,0 +1,483 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/* Compact tagged binary codec. Writes strings, boxed primitives, primitive and
+ * object arrays, the common list/set/map classes and types registered with
+ * field accessors, without class descriptors. Integers are zigzag varints.
+ * Nested values of other Serializable classes are embedded java serialized,
+ * so a single odd field does not push the whole value to the fallback codec.
+ * Collections are read back as the exact class they were written from.
+ */
+public class BinaryCodec implements ValueCodec {
+    public static final int ID = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* value tags */
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int BYTES = 11;
+    private static final int SHORTS = 12;
+    private static final int CHARS = 13;
+    private static final int INTS = 14;
+    private static final int LONGS = 15;
+    private static final int FLOATS = 16;
+    private static final int DOUBLES = 17;
+    private static final int BOOLEANS = 18;
+    private static final int OBJECTS = 19;
+    private static final int ARRAY_LIST = 20;
+    private static final int LINKED_LIST = 21;
+    private static final int HASH_SET = 22;
+    private static final int LINKED_HASH_SET = 23;
+    private static final int HASH_MAP = 24;
+    private static final int LINKED_HASH_MAP = 25;
+    private static final int REGISTERED = 26;
+    private static final int SERIALIZED = 27;
+
+    /* classes written with a tag of their own, everything else is registered or serialized */
+    private static final HashMap<Class<?>, Integer> TAGS = new HashMap<Class<?>, Integer>();
+    static {
+        TAGS.put(Byte.class, BYTE);
+        TAGS.put(Short.class, SHORT);
+        TAGS.put(Character.class, CHAR);
+        TAGS.put(Integer.class, INT);
+        TAGS.put(Long.class, LONG);
+        TAGS.put(Float.class, FLOAT);
+        TAGS.put(Double.class, DOUBLE);
+        TAGS.put(String.class, STRING);
+        TAGS.put(byte[].class, BYTES);
+        TAGS.put(short[].class, SHORTS);
+        TAGS.put(char[].class, CHARS);
+        TAGS.put(int[].class, INTS);
+        TAGS.put(long[].class, LONGS);
+        TAGS.put(float[].class, FLOATS);
+        TAGS.put(double[].class, DOUBLES);
+        TAGS.put(boolean[].class, BOOLEANS);
+        TAGS.put(ArrayList.class, ARRAY_LIST);
+        TAGS.put(LinkedList.class, LINKED_LIST);
+        TAGS.put(HashSet.class, HASH_SET);
+        TAGS.put(LinkedHashSet.class, LINKED_HASH_SET);
+        TAGS.put(HashMap.class, HASH_MAP);
+        TAGS.put(LinkedHashMap.class, LINKED_HASH_MAP);
+    }
+
+    private final CodecRegistry registry;
+    private final SerializableCodec serializer = new SerializableCodec();
+
+    BinaryCodec(CodecRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    /* true if codec writes values of class itself instead of embedding them serialized */
+    boolean handles(Class<?> type) {
+        if(type == Boolean.class || TAGS.containsKey(type) || registry.getType(type) != null) return true;
+        return type.isArray() && !type.getComponentType().isPrimitive();
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Output out = new Output();
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        Input in = new Input(data, offset, offset + length);
+        Object value = read(in);
+        if(in.pos != in.limit) throw new IOException("Trailing bytes after value");
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Output out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if(type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+            return;
+        }
+        Integer tag = TAGS.get(type);
+        if(tag == null) {
+            if(type.isArray() && !type.getComponentType().isPrimitive()) {
+                writeObjects(out, (Object[]) value);
+                return;
+            }
+            CodecRegistry.RegisteredType<Object> registered = (CodecRegistry.RegisteredType<Object>) registry.getType(type);
+            if(registered != null) {
+                out.writeByte(REGISTERED);
+                out.writeVarInt(registered.id);
+                writeElements(out, registered.accessor.getFields(value));
+                return;
+            }
+            if(!(value instanceof Serializable)) throw new IOException("No codec for " + type.getName());
+            out.writeByte(SERIALIZED);
+            out.writeBytes(serializer.encode(value));
+            return;
+        }
+        out.writeByte(tag);
+        switch (tag) {
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case SHORT:
+                out.writeVarLong((Short) value);
+                break;
+            case CHAR:
+                out.writeVarInt((Character) value);
+                break;
+            case INT:
+                out.writeVarLong((Integer) value);
+                break;
+            case LONG:
+                out.writeVarLong((Long) value);
+                break;
+            case FLOAT:
+                out.writeFixed(Float.floatToRawIntBits((Float) value), 4);
+                break;
+            case DOUBLE:
+                out.writeFixed(Double.doubleToRawLongBits((Double) value), 8);
+                break;
+            case STRING:
+                out.writeBytes(((String) value).getBytes(UTF8));
+                break;
+            case BYTES:
+                out.writeBytes((byte[]) value);
+                break;
+            case SHORTS: {
+                short[] a = (short[]) value;
+                out.writeVarInt(a.length);
+                for(short v : a) out.writeVarLong(v);
+                break;
+            }
+            case CHARS: {
+                char[] a = (char[]) value;
+                out.writeVarInt(a.length);
+                for(char v : a) out.writeVarInt(v);
+                break;
+            }
+            case INTS: {
+                int[] a = (int[]) value;
+                out.writeVarInt(a.length);
+                for(int v : a) out.writeVarLong(v);
+                break;
+            }
+            case LONGS: {
+                long[] a = (long[]) value;
+                out.writeVarInt(a.length);
+                for(long v : a) out.writeVarLong(v);
+                break;
+            }
+            case FLOATS: {
+                float[] a = (float[]) value;
+                out.writeVarInt(a.length);
+                for(float v : a) out.writeFixed(Float.floatToRawIntBits(v), 4);
+                break;
+            }
+            case DOUBLES: {
+                double[] a = (double[]) value;
+                out.writeVarInt(a.length);
+                for(double v : a) out.writeFixed(Double.doubleToRawLongBits(v), 8);
+                break;
+            }
+            case BOOLEANS: {
+                boolean[] a = (boolean[]) value;
+                out.writeVarInt(a.length);
+                for(boolean v : a) out.writeByte(v ? 1 : 0);
+                break;
+            }
+            case ARRAY_LIST:
+            case LINKED_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET: {
+                Collection<Object> c = (Collection<Object>) value;
+                out.writeVarInt(c.size());
+                for(Object element : c) write(out, element);
+                break;
+            }
+            case HASH_MAP:
+            case LINKED_HASH_MAP: {
+                Map<Object, Object> m = (Map<Object, Object>) value;
+                out.writeVarInt(m.size());
+                for(Map.Entry<Object, Object> entry : m.entrySet()) {
+                    write(out, entry.getKey());
+                    write(out, entry.getValue());
+                }
+                break;
+            }
+            default:
+                throw new IOException("No codec for " + type.getName());
+        }
+    }
+
+    /* array of objects with its component class name, so it is read back with the same type */
+    private void writeObjects(Output out, Object[] values) throws IOException {
+        out.writeByte(OBJECTS);
+        out.writeBytes(values.getClass().getComponentType().getName().getBytes(UTF8));
+        writeElements(out, values);
+    }
+    private void writeElements(Output out, Object[] values) throws IOException {
+        out.writeVarInt(values.length);
+        for(Object element : values) write(out, element);
+    }
+
+    private Object read(Input in) throws IOException {
+        int tag = in.readByte() & 0xff;
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return (short) in.readVarLong();
+            case CHAR:
+                return (char) in.readVarInt();
+            case INT:
+                return (int) in.readVarLong();
+            case LONG:
+                return in.readVarLong();
+            case FLOAT:
+                return Float.intBitsToFloat((int) in.readFixed(4));
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixed(8));
+            case STRING:
+                return in.readString();
+            case BYTES:
+                return in.readBytes();
+            case SHORTS: {
+                short[] a = new short[in.readLength(1)];
+                for(int i = 0; i < a.length; i++) a[i] = (short) in.readVarLong();
+                return a;
+            }
+            case CHARS: {
+                char[] a = new char[in.readLength(1)];
+                for(int i = 0; i < a.length; i++) a[i] = (char) in.readVarInt();
+                return a;
+            }
+            case INTS: {
+                int[] a = new int[in.readLength(1)];
+                for(int i = 0; i < a.length; i++) a[i] = (int) in.readVarLong();
+                return a;
+            }
+            case LONGS: {
+                long[] a = new long[in.readLength(1)];
+                for(int i = 0; i < a.length; i++) a[i] = in.readVarLong();
+                return a;
+            }
+            case FLOATS: {
+                float[] a = new float[in.readLength(4)];
+                for(int i = 0; i < a.length; i++) a[i] = Float.intBitsToFloat((int) in.readFixed(4));
+                return a;
+            }
+            case DOUBLES: {
+                double[] a = new double[in.readLength(8)];
+                for(int i = 0; i < a.length; i++) a[i] = Double.longBitsToDouble(in.readFixed(8));
+                return a;
+            }
+            case BOOLEANS: {
+                boolean[] a = new boolean[in.readLength(1)];
+                for(int i = 0; i < a.length; i++) a[i] = in.readByte() != 0;
+                return a;
+            }
+            case OBJECTS: {
+                Class<?> component = registry.resolveClass(in.readString());
+                int count = in.readLength(1);
+                Object[] a = (Object[]) Array.newInstance(component, count);
+                for(int i = 0; i < count; i++) {
+                    Object element = read(in);
+                    if(element != null && !component.isInstance(element)) {
+                        throw new IOException("Element of " + component.getName() + " array is " + element.getClass().getName());
+                    }
+                    a[i] = element;
+                }
+                return a;
+            }
+            case ARRAY_LIST:
+                return readElements(in, new ArrayList<Object>());
+            case LINKED_LIST:
+                return readElements(in, new LinkedList<Object>());
+            case HASH_SET:
+                return readElements(in, new HashSet<Object>());
+            case LINKED_HASH_SET:
+                return readElements(in, new LinkedHashSet<Object>());
+            case HASH_MAP:
+                return readEntries(in, new HashMap<Object, Object>());
+            case LINKED_HASH_MAP:
+                return readEntries(in, new LinkedHashMap<Object, Object>());
+            case REGISTERED: {
+                int id = in.readVarInt();
+                CodecRegistry.RegisteredType<?> registered = registry.getType(id);
+                if(registered == null) throw new IOException("Type " + id + " is not registered");
+                Object[] fields = new Object[in.readLength(1)];
+                for(int i = 0; i < fields.length; i++) fields[i] = read(in);
+                return registered.accessor.newInstance(fields);
+            }
+            case SERIALIZED: {
+                int length = in.readLength(1);
+                Object value = serializer.decode(in.data, in.pos, length);
+                in.pos += length;
+                return value;
+            }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+    private Collection<Object> readElements(Input in, Collection<Object> c) throws IOException {
+        int count = in.readLength(1);
+        for(int i = 0; i < count; i++) c.add(read(in));
+        return c;
+    }
+    private Map<Object, Object> readEntries(Input in, Map<Object, Object> m) throws IOException {
+        int count = in.readLength(2);
+        for(int i = 0; i < count; i++) m.put(read(in), read(in));
+        return m;
+    }
+
+    /* growable output buffer */
+    private static final class Output {
+        byte[] buf = new byte[64];
+        int pos;
+
+        void ensure(int n) {
+            if(pos + n > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, pos + n)];
+                System.arraycopy(buf, 0, grown, 0, pos);
+                buf = grown;
+            }
+        }
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+        void writeVarInt(int v) {
+            ensure(5);
+            while((v & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+        /* zigzag encoded so small negative numbers stay short */
+        void writeVarLong(long v) {
+            ensure(10);
+            long z = (v << 1) ^ (v >> 63);
+            while((z & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((z & 0x7f) | 0x80);
+                z >>>= 7;
+            }
+            buf[pos++] = (byte) z;
+        }
+        /* little endian */
+        void writeFixed(long v, int bytes) {
+            ensure(bytes);
+            for(int i = 0; i < bytes; i++) {
+                buf[pos++] = (byte) (v >>> (8 * i));
+            }
+        }
+        void writeBytes(byte[] b) {
+            writeVarInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+        byte[] toByteArray() {
+            byte[] result = new byte[pos];
+            System.arraycopy(buf, 0, result, 0, pos);
+            return result;
+        }
+    }
+
+    /* reader over a stored value, checks every length against the bytes left */
+    private static final class Input {
+        final byte[] data;
+        final int limit;
+        int pos;
+
+        Input(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.pos = offset;
+            this.limit = limit;
+        }
+        byte readByte() throws IOException {
+            if(pos >= limit) throw new IOException("Value is truncated");
+            return data[pos++];
+        }
+        int readVarInt() throws IOException {
+            int v = 0;
+            for(int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7f) << shift;
+                if((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+        long readVarLong() throws IOException {
+            long z = 0;
+            for(int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                z |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0) return (z >>> 1) ^ -(z & 1);
+            }
+            throw new IOException("Malformed varint");
+        }
+        long readFixed(int bytes) throws IOException {
+            if(limit - pos < bytes) throw new IOException("Value is truncated");
+            long v = 0;
+            for(int i = 0; i < bytes; i++) {
+                v |= (long) (data[pos++] & 0xff) << (8 * i);
+            }
+            return v;
+        }
+        /* element count of an array of elements taking at least minBytes each */
+        int readLength(int minBytes) throws IOException {
+            int length = readVarInt();
+            if(length < 0 || (long) length * minBytes > limit - pos) throw new IOException("Value is truncated");
+            return length;
+        }
+        byte[] readBytes() throws IOException {
+            int length = readLength(1);
+            byte[] b = new byte[length];
+            System.arraycopy(data, pos, b, 0, length);
+            pos += length;
+            return b;
+        }
+        String readString() throws IOException {
+            int length = readLength(1);
+            String s = new String(data, pos, length, UTF8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,807 @@
+package com.kvdb.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+import com.kvdb.internal.Log;
+
+/* Log structured StorageEngine in the style of Bitcask. Every write is appended
+ * to the active segment file of a directory and an in memory hash index maps
+ * each key to the segment and offset of its latest record, so a get is one
+ * positional read and a put one sequential append.
+ *
+ * Segments are rotated once they reach DBConfig.bitcaskSegmentBytes. Records
+ * overwritten or deleted stay in their segment as dead bytes until a merge
+ * copies the live records of all inactive segments into new ones and deletes
+ * the old files. A merge runs in background once dead bytes reach
+ * DBConfig.bitcaskMergeRatio of inactive segments, or on merge().
+ *
+ * Each inactive segment has a hint file listing its keys and offsets, so opening
+ * reads hint files instead of scanning segments. A segment without valid hint
+ * is scanned record by record, a torn write at the end of the last segment is
+ * cut off. Every key must fit in memory.
+ */
+public class BitcaskEngine implements StorageEngine {
+    private static final String TAG = "BitcaskEngine";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DATA_SUFFIX = ".data";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String LOCK_FILE = "LOCK";
+
+    /* record is crc, flags, type, key length, value length, key and value.
+     * Crc covers everything after it
+     */
+    private static final int HEADER = 4 + 1 + 1 + 4 + 4;
+    private static final int HINT_HEADER = 1 + 1 + 4 + 4 + 8;
+    private static final int FLAG_TOMBSTONE = 0x1;
+    /* more records of the same write batch follow, they are applied together */
+    private static final int FLAG_MORE = 0x2;
+    /* active segments are numbered in steps of MERGE_RANGE, a merge numbers its
+     * output segments just below the active segment it started with
+     */
+    private static final long MERGE_RANGE = 1 << 16;
+
+    /* segment file with the records it holds */
+    static final class Segment {
+        final long id;
+        final File file;
+        /* replaced when an interrupted thread closed it, see reopen */
+        volatile FileChannel channel;
+        volatile long size;
+        /* bytes of records overwritten or deleted since */
+        final AtomicLong dead = new AtomicLong();
+        /* hint entries of records appended to the segment, null once written */
+        ByteArrayOutputStream hint;
+        /* set once merged away or the engine is closed, guarded by this */
+        private boolean discarded;
+
+        Segment(long id, File file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /* open the file again if broken is still its channel, fails once discarded */
+        synchronized void reopen(FileChannel broken) throws IOException {
+            if(discarded) throw new ClosedChannelException();
+            if(channel != broken) return;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            Log.w(TAG, "Reopened " + file + " after an interrupt closed it");
+        }
+        synchronized void discard() {
+            discarded = true;
+            closeQuietly(channel);
+        }
+    }
+
+    /* positional I/O on the channel of a segment */
+    private interface SegmentIO {
+        void run(FileChannel channel) throws IOException;
+    }
+
+    /* value read with the type it was written with */
+    static final class Value {
+        final int type;
+        final byte[] bytes;
+
+        Value(int type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+
+    /* location of the latest record of a key */
+    static final class Entry {
+        final Segment segment;
+        final long offset;
+        final int keyLength;
+        final int valueLength;
+        final int type;
+
+        Entry(Segment segment, long offset, int keyLength, int valueLength, int type) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.type = type;
+        }
+        int size() {
+            return HEADER + keyLength + valueLength;
+        }
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final boolean sync;
+    private final double mergeRatio;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    /* all segments by id, guarded by writeLock */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Object writeLock = new Object();
+    private final Object mergeLock = new Object();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private Segment active;
+    private Thread mergeThread;
+    private volatile boolean closed;
+
+    private final AtomicLong merges = new AtomicLong();
+
+    /* open engine in directory config.path, created if missing */
+    public static BitcaskEngine open(DBConfig config) throws KVDBException {
+        File dir = new File(config.path);
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new KVDBException("Cannot create directory " + config.path);
+        FileChannel lockChannel = null;
+        FileLock lock = null;
+        try {
+            lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            closeQuietly(lockChannel);
+            throw new KVDBException("Cannot lock " + config.path + " : " + e.getMessage());
+        }
+        if(lock == null) {
+            closeQuietly(lockChannel);
+            throw new KVDBException("Database is open already : " + config.path);
+        }
+        BitcaskEngine engine = new BitcaskEngine(dir, config, lockChannel, lock);
+        try {
+            engine.recover();
+        } catch (KVDBException e) {
+            engine.closeFiles();
+            throw e;
+        }
+        return engine;
+    }
+
+    private BitcaskEngine(File dir, DBConfig config, FileChannel lockChannel, FileLock lock) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(HEADER, config.bitcaskSegmentBytes);
+        this.sync = config.bitcaskSync;
+        this.mergeRatio = config.bitcaskMergeRatio;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    @Override
+    public String get(String key) throws KVDBException {
+        Value value = read(key);
+        return value == null ? null : decodeString(value.type, value.bytes);
+    }
+    @Override
+    public byte[] getBytes(String key) throws KVDBException {
+        Value value = read(key);
+        if(value == null) return null;
+        if(value.type == ValueType.STRING || value.type == ValueType.BLOB) return value.bytes;
+        return decodeString(value.type, value.bytes).getBytes(UTF8);
+    }
+    @Override
+    public long getLong(String key) throws KVDBException {
+        Value value = read(key);
+        if(value == null) return 0;
+        if(isReal(value.type)) return (long) Double.longBitsToDouble(ByteBuffer.wrap(value.bytes).getLong());
+        if(isInteger(value.type)) return ByteBuffer.wrap(value.bytes).getLong();
+        try {
+            return Long.parseLong(new String(value.bytes, UTF8).trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+    @Override
+    public boolean exists(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+        return index.containsKey(key);
+    }
+    @Override
+    public byte[][] multiGet(String[] keys) throws KVDBException {
+        if(keys == null) throw new KVDBException("Keys cannot be null");
+        byte[][] values = new byte[keys.length][];
+        for(int i = 0; i < keys.length; i++) {
+            values[i] = getBytes(keys[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public void put(String key, String value) throws KVDBException {
+        if(value == null) throw new KVDBException("Value cannot be null");
+        WriteBatch batch = new WriteBatch();
+        batch.add(WriteBatch.OP_PUT_STRING, ValueType.STRING, key, value, 0);
+        write(batch);
+    }
+    @Override
+    public void put(String key, byte[] value) throws KVDBException {
+        if(value == null) throw new KVDBException("Value cannot be null");
+        WriteBatch batch = new WriteBatch();
+        batch.add(WriteBatch.OP_PUT, ValueType.BLOB, key, value, 0);
+        write(batch);
+    }
+    @Override
+    public void putLong(String key, long value) throws KVDBException {
+        WriteBatch batch = new WriteBatch();
+        batch.add(WriteBatch.OP_PUT_INTEGER, ValueType.LONG, key, null, value);
+        write(batch);
+    }
+    @Override
+    public void delete(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+        //deleting a missing key leaves nothing to hide
+        if(!index.containsKey(key)) return;
+        WriteBatch batch = new WriteBatch();
+        batch.add(WriteBatch.OP_DELETE, ValueType.UNTYPED, key, null, 0);
+        write(batch);
+    }
+    /* records of a batch are appended with one write, a batch torn by a crash is
+     * dropped as a whole when the segment is read back
+     */
+    @Override
+    public void write(WriteBatch batch) throws KVDBException {
+        if(batch == null) throw new KVDBException("Batch cannot be null");
+        if(batch.size == 0) return;
+        byte[][] keys = new byte[batch.size][];
+        byte[][] values = new byte[batch.size][];
+        int total = 0;
+        for(int i = 0; i < batch.size; i++) {
+            if(batch.keys[i] == null) throw new KVDBException("Key cannot be null");
+            keys[i] = batch.keys[i].getBytes(UTF8);
+            values[i] = encode(batch.ops[i], batch.values[i], batch.numbers[i]);
+            total += HEADER + keys[i].length + values[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < batch.size; i++) {
+            int start = buffer.position();
+            int flags = (batch.ops[i] == WriteBatch.OP_DELETE ? FLAG_TOMBSTONE : 0)
+                    | (i < batch.size - 1 ? FLAG_MORE : 0);
+            buffer.putInt(0);
+            buffer.put((byte) flags);
+            buffer.put((byte) batch.types[i]);
+            buffer.putInt(keys[i].length);
+            buffer.putInt(values[i].length);
+            buffer.put(keys[i]);
+            buffer.put(values[i]);
+            crc.reset();
+            crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+            buffer.putInt(start, (int) crc.getValue());
+        }
+        buffer.flip();
+        synchronized (writeLock) {
+            if(closed) throw new KVDBException("Engine is closed");
+            Segment segment = active;
+            long offset = segment.size;
+            try {
+                writeFully(segment, buffer, offset);
+                if(sync) force(segment, false);
+            } catch (IOException e) {
+                //a partial append is overwritten by the next one
+                throw new KVDBException("Cannot write : " + e.getMessage());
+            }
+            segment.size = offset + total;
+            for(int i = 0; i < batch.size; i++) {
+                boolean tombstone = batch.ops[i] == WriteBatch.OP_DELETE;
+                apply(batch.keys[i], new Entry(segment, offset, keys[i].length, values[i].length, batch.types[i]),
+                        tombstone);
+                addHint(segment.hint, tombstone ? FLAG_TOMBSTONE : 0, batch.types[i], keys[i], values[i].length, offset);
+                offset += HEADER + keys[i].length + values[i].length;
+            }
+            if(segment.size >= segmentBytes) rotate();
+        }
+    }
+
+    @Override
+    public long getCount() throws KVDBException {
+        return index.size();
+    }
+    /* number of segment files */
+    public int getSegmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+    /* bytes of all segment files */
+    public long getTotalBytes() {
+        synchronized (writeLock) {
+            long total = 0;
+            for(Segment s : segments.values()) {
+                total += s.size;
+            }
+            return total;
+        }
+    }
+    /* bytes of records overwritten or deleted, freed by the next merge */
+    public long getDeadBytes() {
+        synchronized (writeLock) {
+            long dead = 0;
+            for(Segment s : segments.values()) {
+                dead += s.dead.get();
+            }
+            return dead;
+        }
+    }
+    public long getMergeCount() {
+        return merges.get();
+    }
+
+    /* copy live records of all segments but the active one into new segments
+     * and delete the old ones. Writes and reads go on meanwhile
+     */
+    public void merge() throws KVDBException {
+        synchronized (mergeLock) {
+            Map<Long, Segment> inputs;
+            long base;
+            synchronized (writeLock) {
+                if(closed) throw new KVDBException("Engine is closed");
+                if(active.size > 0) rotate();
+                inputs = new TreeMap<Long, Segment>(segments.headMap(active.id));
+                base = active.id - MERGE_RANGE + 1;
+            }
+            if(inputs.isEmpty()) return;
+            ArrayList<Segment> outputs = new ArrayList<Segment>();
+            try {
+                Segment output = null;
+                for(Map.Entry<String, Entry> item : index.entrySet()) {
+                    Entry e = item.getValue();
+                    if(!inputs.containsKey(e.segment.id)) continue;
+                    if(output == null || output.size >= segmentBytes) {
+                        if(outputs.size() == MERGE_RANGE - 1) throw new KVDBException("Merge output too large");
+                        output = createSegment(base + outputs.size());
+                        outputs.add(output);
+                    }
+                    ByteBuffer record = ByteBuffer.allocate(e.size());
+                    readFully(e.segment, record, e.offset);
+                    record.flip();
+                    long offset = output.size;
+                    writeFully(output, record, offset);
+                    output.size = offset + e.size();
+                    Entry moved = new Entry(output, offset, e.keyLength, e.valueLength, e.type);
+                    addHint(output.hint, 0, e.type, item.getKey().getBytes(UTF8), e.valueLength, offset);
+                    //a key written during the merge keeps its newer record
+                    if(!index.replace(item.getKey(), e, moved)) output.dead.addAndGet(e.size());
+                }
+                for(Segment s : outputs) {
+                    force(s, true);
+                    writeHint(s);
+                }
+            } catch (IOException e) {
+                throw new KVDBException("Merge failed : " + e.getMessage());
+            } finally {
+                synchronized (writeLock) {
+                    for(Segment s : outputs) {
+                        segments.put(s.id, s);
+                    }
+                }
+            }
+            synchronized (writeLock) {
+                for(Segment s : inputs.values()) {
+                    segments.remove(s.id);
+                    s.discard();
+                    s.file.delete();
+                    hintFile(s.id).delete();
+                }
+            }
+            merges.incrementAndGet();
+            Log.i(TAG, "Merged " + inputs.size() + " segments into " + outputs.size() + " : " + dir);
+        }
+    }
+
+    /* wait for a running merge, write hint of the active segment and release files */
+    @Override
+    public void close() throws KVDBException {
+        Thread merging;
+        synchronized (writeLock) {
+            if(closed) return;
+            closed = true;
+            merging = mergeThread;
+        }
+        if(merging != null) {
+            try {
+                merging.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (mergeLock) {
+            synchronized (writeLock) {
+                try {
+                    if(active.size > 0) {
+                        force(active, true);
+                        writeHint(active);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot write hint file : " + e.getMessage());
+                }
+                closeFiles();
+            }
+        }
+    }
+
+    /* value of key, following it if a merge moves its record during the read */
+    private Value read(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+        Entry e = index.get(key);
+        for(int attempt = 0; attempt < 3 && e != null; attempt++) {
+            ByteBuffer value = ByteBuffer.allocate(e.valueLength);
+            try {
+                readFully(e.segment, value, e.offset + HEADER + e.keyLength);
+                return new Value(e.type, value.array());
+            } catch (ClosedChannelException ex) {
+                //segment was merged away, the key has a new record
+                if(closed) throw new KVDBException("Engine is closed");
+                e = index.get(key);
+            } catch (IOException ex) {
+                throw new KVDBException("Cannot read " + key + " : " + ex.getMessage());
+            }
+        }
+        if(e != null) throw new KVDBException("Cannot read " + key + " : segment removed");
+        return null;
+    }
+
+    /* point key to entry, counting the record it replaces as dead */
+    private void apply(String key, Entry entry, boolean tombstone) {
+        Entry old;
+        if(tombstone) {
+            old = index.remove(key);
+            //a tombstone is only needed until the records it hides are merged away
+            entry.segment.dead.addAndGet(entry.size());
+        } else {
+            old = index.put(key, entry);
+        }
+        if(old != null) old.segment.dead.addAndGet(old.size());
+    }
+
+    /* called with writeLock held once active segment is full */
+    private void rotate() throws KVDBException {
+        Segment previous = active;
+        try {
+            if(!sync) force(previous, false);
+            writeHint(previous);
+            active = createSegment(previous.id + MERGE_RANGE);
+        } catch (IOException e) {
+            throw new KVDBException("Cannot start new segment : " + e.getMessage());
+        }
+        segments.put(active.id, active);
+        startMergeIfNeeded();
+    }
+    /* called with writeLock held */
+    private void startMergeIfNeeded() {
+        if(mergeRatio <= 0 || closed || (mergeThread != null && mergeThread.isAlive())) return;
+        long total = 0;
+        long dead = 0;
+        for(Segment s : segments.headMap(active.id).values()) {
+            total += s.size;
+            dead += s.dead.get();
+        }
+        if(total == 0 || dead < total * mergeRatio) return;
+        mergeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge();
+                } catch (KVDBException e) {
+                    Log.e(TAG, "Background merge failed : " + e.getMessage());
+                }
+            }
+        }, "KVDB-merge");
+        mergeThread.setDaemon(true);
+        mergeThread.start();
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = dataFile(id);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        Segment segment = new Segment(id, file, channel, 0);
+        segment.hint = new ByteArrayOutputStream();
+        return segment;
+    }
+    private File dataFile(long id) {
+        return new File(dir, String.format("%016x", id) + DATA_SUFFIX);
+    }
+    private File hintFile(long id) {
+        return new File(dir, String.format("%016x", id) + HINT_SUFFIX);
+    }
+
+    /* load index from hint files and segments, then start a new active segment */
+    private void recover() throws KVDBException {
+        String[] names = dir.list();
+        if(names == null) throw new KVDBException("Cannot list " + dir);
+        long[] ids = new long[names.length];
+        int count = 0;
+        for(String name : names) {
+            if(name.endsWith(HINT_SUFFIX + ".tmp")) {
+                new File(dir, name).delete();
+            } else if(name.endsWith(DATA_SUFFIX)) {
+                try {
+                    ids[count++] = Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        try {
+            for(int i = 0; i < ids.length; i++) {
+                File file = dataFile(ids[i]);
+                FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+                Segment segment = new Segment(ids[i], file, channel, channel.size());
+                segments.put(segment.id, segment);
+                if(!loadHint(segment) && scan(segment, i == ids.length - 1)) {
+                    writeHint(segment);
+                }
+            }
+            long last = ids.length == 0 ? 0 : ids[ids.length - 1];
+            active = createSegment((last / MERGE_RANGE + 1) * MERGE_RANGE);
+            segments.put(active.id, active);
+        } catch (IOException e) {
+            throw new KVDBException("Cannot open " + dir + " : " + e.getMessage());
+        }
+        Log.i(TAG, "Opened " + dir + " with " + index.size() + " keys in " + segments.size() + " segments");
+    }
+    /* apply hint file of segment, false if it is missing or invalid */
+    private boolean loadHint(Segment segment) {
+        File file = hintFile(segment.id);
+        if(!file.isFile()) return false;
+        ByteBuffer hint;
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                hint = ByteBuffer.wrap(bytes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read hint file " + file + " : " + e.getMessage());
+            return false;
+        }
+        int end = hint.limit() - 4;
+        if(end < 0) return false;
+        CRC32 crc = new CRC32();
+        crc.update(hint.array(), 0, end);
+        if(hint.getInt(end) != (int) crc.getValue()) {
+            Log.w(TAG, "Invalid hint file " + file);
+            return false;
+        }
+        //parse everything before applying, so an invalid hint changes nothing
+        ArrayList<Object[]> entries = new ArrayList<Object[]>();
+        while(hint.position() < end) {
+            if(end - hint.position() < HINT_HEADER) return false;
+            int flags = hint.get();
+            int type = hint.get();
+            int keyLength = hint.getInt();
+            int valueLength = hint.getInt();
+            long offset = hint.getLong();
+            if(keyLength < 0 || keyLength > end - hint.position() || valueLength < 0
+                    || offset < 0 || offset + HEADER + keyLength + valueLength > segment.size) return false;
+            String key = new String(hint.array(), hint.position(), keyLength, UTF8);
+            hint.position(hint.position() + keyLength);
+            entries.add(new Object[]{key, new Entry(segment, offset, keyLength, valueLength, type),
+                    (flags & FLAG_TOMBSTONE) != 0});
+        }
+        for(Object[] e : entries) {
+            apply((String) e[0], (Entry) e[1], (Boolean) e[2]);
+        }
+        return true;
+    }
+    /* apply records of segment in order. A batch cut off at the end of the last
+     * segment is a torn write and is truncated. Returns false if records had to be skipped
+     */
+    private boolean scan(Segment segment, boolean last) throws IOException {
+        segment.hint = new ByteArrayOutputStream();
+        ArrayList<Object[]> batch = new ArrayList<Object[]>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        long complete = 0;
+        while(position + HEADER <= segment.size) {
+            header.clear();
+            readFully(segment, header, position);
+            int checksum = header.getInt(0);
+            int flags = header.get(4);
+            int type = header.get(5);
+            int keyLength = header.getInt(6);
+            int valueLength = header.getInt(10);
+            if(keyLength < 0 || valueLength < 0
+                    || position + HEADER + keyLength + valueLength > segment.size) break;
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            readFully(segment, body, position + HEADER);
+            crc.reset();
+            crc.update(header.array(), 4, HEADER - 4);
+            crc.update(body.array(), 0, body.capacity());
+            if(checksum != (int) crc.getValue()) break;
+            byte[] key = Arrays.copyOf(body.array(), keyLength);
+            batch.add(new Object[]{key, new Entry(segment, position, keyLength, valueLength, type), flags});
+            position += HEADER + keyLength + valueLength;
+            if((flags & FLAG_MORE) == 0) {
+                for(Object[] r : batch) {
+                    Entry e = (Entry) r[1];
+                    int f = (Integer) r[2] & FLAG_TOMBSTONE;
+                    apply(new String((byte[]) r[0], UTF8), e, f != 0);
+                    addHint(segment.hint, f, e.type, (byte[]) r[0], e.valueLength, e.offset);
+                }
+                batch.clear();
+                complete = position;
+            }
+        }
+        if(complete == segment.size) return true;
+        if(last) {
+            Log.w(TAG, "Dropping " + (segment.size - complete) + " bytes of torn write at end of " + segment.file);
+            segment.channel.truncate(complete);
+            segment.size = complete;
+            return true;
+        }
+        Log.e(TAG, "Corrupt record at " + complete + " of " + segment.file + ", rest of segment ignored");
+        segment.hint = null;
+        return false;
+    }
+
+    private static void addHint(ByteArrayOutputStream hint, int flags, int type, byte[] key, int valueLength, long offset) {
+        if(hint == null) return;
+        ByteBuffer entry = ByteBuffer.allocate(HINT_HEADER + key.length);
+        entry.put((byte) flags);
+        entry.put((byte) type);
+        entry.putInt(key.length);
+        entry.putInt(valueLength);
+        entry.putLong(offset);
+        entry.put(key);
+        hint.write(entry.array(), 0, entry.capacity());
+    }
+    /* write hint entries collected for segment, through a temporary file so a
+     * crash never leaves a partial hint behind
+     */
+    private void writeHint(Segment segment) throws IOException {
+        if(segment.hint == null) return;
+        byte[] entries = segment.hint.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(entries, 0, entries.length);
+        File file = hintFile(segment.id);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(entries);
+            data.writeInt((int) crc.getValue());
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file)) throw new IOException("Cannot rename " + tmp);
+        segment.hint = null;
+    }
+
+    private static byte[] encode(int op, Object value, long number) throws KVDBException {
+        switch (op) {
+            case WriteBatch.OP_DELETE:
+                return new byte[0];
+            case WriteBatch.OP_PUT:
+                return (byte[]) value;
+            case WriteBatch.OP_PUT_STRING:
+                return ((String) value).getBytes(UTF8);
+            case WriteBatch.OP_PUT_INTEGER:
+            case WriteBatch.OP_PUT_REAL:
+                return ByteBuffer.allocate(8).putLong(number).array();
+            default:
+                throw new KVDBException("Unknown batch operation " + op);
+        }
+    }
+    private static String decodeString(int type, byte[] value) {
+        if(isReal(type)) return Double.toString(Double.longBitsToDouble(ByteBuffer.wrap(value).getLong()));
+        if(isInteger(type)) return Long.toString(ByteBuffer.wrap(value).getLong());
+        return new String(value, UTF8);
+    }
+    private static boolean isInteger(int type) {
+        return type >= ValueType.BOOLEAN && type <= ValueType.LONG;
+    }
+    private static boolean isReal(int type) {
+        return type == ValueType.FLOAT || type == ValueType.DOUBLE;
+    }
+
+    private static void readFully(Segment segment, final ByteBuffer buffer, final long position) throws IOException {
+        final int start = buffer.position();
+        runIO(segment, new SegmentIO() {
+            @Override
+            public void run(FileChannel channel) throws IOException {
+                buffer.position(start);
+                readFully(channel, buffer, position);
+            }
+        });
+    }
+    /* a write cut off by a closed channel is written again over its partial bytes */
+    private static void writeFully(Segment segment, final ByteBuffer buffer, final long position) throws IOException {
+        final int start = buffer.position();
+        runIO(segment, new SegmentIO() {
+            @Override
+            public void run(FileChannel channel) throws IOException {
+                buffer.position(start);
+                writeFully(channel, buffer, position);
+            }
+        });
+    }
+    private static void force(Segment segment, final boolean metaData) throws IOException {
+        runIO(segment, new SegmentIO() {
+            @Override
+            public void run(FileChannel channel) throws IOException {
+                channel.force(metaData);
+            }
+        });
+    }
+    /* An interrupt during FileChannel I/O closes the channel for every thread
+     * sharing it. The interrupt of the caller is held back while io runs and
+     * restored afterwards, a channel closed by an interrupt anyway is reopened
+     * and io retried
+     */
+    private static void runIO(Segment segment, SegmentIO io) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for(int attempt = 1; ; attempt++) {
+                FileChannel channel = segment.channel;
+                try {
+                    io.run(channel);
+                    return;
+                } catch (ClosedChannelException e) {
+                    if(Thread.interrupted()) interrupted = true;
+                    if(attempt == 3) throw e;
+                    segment.reopen(channel);
+                }
+            }
+        } finally {
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if(n < 0) throw new IOException("Unexpected end of segment");
+            position += n;
+        }
+    }
+    private void closeFiles() {
+        for(Segment s : segments.values()) {
+            s.discard();
+        }
+        segments.clear();
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot release lock : " + e.getMessage());
+        }
+        closeQuietly(lockChannel);
+    }
+    private static void closeQuietly(FileChannel channel) {
+        if(channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close file : " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.kvdb.KVDBException;
+
+/* Chooses the codec of objects stored by put(key, Object) and its variants.
+ * Classes registered with a codec use it, values the compact BinaryCodec
+ * handles use that, other Serializable values fall back to java serialization.
+ *
+ * Stored values start with MARKER and the id of the codec which wrote them.
+ * Values without the marker are java serialization streams written before
+ * codecs existed and are still read. Registrations must be made before values
+ * are read and should be identical in every process using a database.
+ */
+public final class CodecRegistry {
+    /* first byte of every encoded value, java serialization streams start with 0xac */
+    static final int MARKER = 0x4b;
+    private static final int HEADER = 2;
+
+    private static final CodecRegistry DEFAULT = new CodecRegistry();
+
+    /* class registered for a compact codec type id, with its accessor */
+    static final class RegisteredType<T> {
+        final Class<T> type;
+        final int id;
+        final FieldAccessor<T> accessor;
+
+        RegisteredType(Class<T> type, int id, FieldAccessor<T> accessor) {
+            this.type = type;
+            this.id = id;
+            this.accessor = accessor;
+        }
+    }
+
+    /* component classes of object arrays which are read back without Class.forName */
+    private static final HashMap<String, Class<?>> KNOWN_CLASSES = new HashMap<String, Class<?>>();
+    static {
+        Class<?>[] known = {Object.class, String.class, Boolean.class, Byte.class, Short.class, Character.class,
+                Integer.class, Long.class, Float.class, Double.class, Number.class, Serializable.class};
+        for(Class<?> c : known) {
+            KNOWN_CLASSES.put(c.getName(), c);
+        }
+    }
+
+    private final ConcurrentHashMap<Class<?>, ValueCodec> codecsByClass = new ConcurrentHashMap<Class<?>, ValueCodec>();
+    private final AtomicReferenceArray<ValueCodec> codecsById = new AtomicReferenceArray<ValueCodec>(256);
+    private final ConcurrentHashMap<Class<?>, RegisteredType<?>> typesByClass = new ConcurrentHashMap<Class<?>, RegisteredType<?>>();
+    private final ConcurrentHashMap<Integer, RegisteredType<?>> typesById = new ConcurrentHashMap<Integer, RegisteredType<?>>();
+    private final ConcurrentHashMap<String, Class<?>> typesByName = new ConcurrentHashMap<String, Class<?>>();
+    private final BinaryCodec binary = new BinaryCodec(this);
+    private final SerializableCodec serializable = new SerializableCodec();
+
+    public CodecRegistry() {
+        codecsById.set(SerializableCodec.ID, serializable);
+        codecsById.set(BinaryCodec.ID, binary);
+    }
+
+    /* registry used by connections, batches and the group commit queue */
+    public static CodecRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /* store values of exactly this class with codec, codec is also used to read
+     * every value carrying its id
+     */
+    public void register(Class<?> type, ValueCodec codec) {
+        if(type == null) throw new IllegalArgumentException("Type cannot be null");
+        registerCodec(codec);
+        codecsByClass.put(type, codec);
+    }
+    /* read values carrying the id of codec with it, without writing any class with it */
+    public void registerCodec(ValueCodec codec) {
+        if(codec == null) throw new IllegalArgumentException("Codec cannot be null");
+        int id = codec.getId();
+        if(id < ValueCodec.FIRST_CUSTOM_ID || id > 255) throw new IllegalArgumentException("Invalid codec id " + id);
+        ValueCodec old = codecsById.get(id);
+        if(old != null && old != codec) throw new IllegalArgumentException("Codec id " + id + " already registered");
+        codecsById.set(id, codec);
+    }
+    /* store objects of type with the compact codec through accessor, typeId is
+     * written instead of the class name and must stay the same for the class
+     */
+    public <T> void registerType(Class<T> type, int typeId, FieldAccessor<T> accessor) {
+        if(type == null || accessor == null) throw new IllegalArgumentException("Type and accessor cannot be null");
+        if(typeId < 0) throw new IllegalArgumentException("Invalid type id " + typeId);
+        RegisteredType<T> registered = new RegisteredType<T>(type, typeId, accessor);
+        RegisteredType<?> old = typesById.putIfAbsent(typeId, registered);
+        if(old != null && old.type != type) throw new IllegalArgumentException("Type id " + typeId + " already registered");
+        typesById.put(typeId, registered);
+        typesByClass.put(type, registered);
+        typesByName.put(type.getName(), type);
+    }
+
+    /* value with codec header */
+    public byte[] encode(Object value) throws KVDBException {
+        if(value == null) throw new KVDBException("Value cannot be null");
+        Class<?> type = value.getClass();
+        ValueCodec codec = codecsByClass.get(type);
+        if(codec == null) {
+            if(binary.handles(type)) {
+                codec = binary;
+            } else if(value instanceof Serializable) {
+                codec = serializable;
+            } else {
+                throw new KVDBException("No codec for " + type.getName());
+            }
+        }
+        try {
+            byte[] body = codec.encode(value);
+            byte[] data = new byte[HEADER + body.length];
+            data[0] = (byte) MARKER;
+            data[1] = (byte) codec.getId();
+            System.arraycopy(body, 0, data, HEADER, body.length);
+            return data;
+        } catch (IOException e) {
+            throw new KVDBException("Error encoding " + type.getName() + " : " + e.getMessage());
+        } catch (RuntimeException e) {
+            throw new KVDBException("Error encoding " + type.getName() + " : " + e);
+        }
+    }
+    /* value stored by encode, or by java serialization before codecs existed */
+    public Object decode(byte[] data) throws KVDBException {
+        if(data == null) return null;
+        try {
+            if(data.length < HEADER || (data[0] & 0xff) != MARKER) {
+                return serializable.decode(data, 0, data.length);
+            }
+            int id = data[1] & 0xff;
+            ValueCodec codec = codecsById.get(id);
+            if(codec == null) throw new KVDBException("No codec registered with id " + id);
+            return codec.decode(data, HEADER, data.length - HEADER);
+        } catch (IOException e) {
+            throw new KVDBException("Error decoding value : " + e.getMessage());
+        } catch (RuntimeException e) {
+            throw new KVDBException("Error decoding value : " + e);
+        }
+    }
+
+    RegisteredType<?> getType(Class<?> type) {
+        return typesByClass.get(type);
+    }
+    RegisteredType<?> getType(int id) {
+        return typesById.get(id);
+    }
+    /* component class of a stored object array, Object if it cannot be loaded */
+    Class<?> resolveClass(String name) {
+        Class<?> c = KNOWN_CLASSES.get(name);
+        if(c == null) c = typesByName.get(name);
+        if(c != null) return c;
+        try {
+            return Class.forName(name, false, CodecRegistry.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return Object.class;
+        } catch (LinkageError e) {
+            return Object.class;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.kvdb.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.kvdb.DBQuery;
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+import com.kvdb.internal.Log;
+
+/* Bloom filter of all keys of a database, shared by its connections so gets of
+ * missing keys are answered without a native call. Keys are added before they
+ * are written and never removed, so the filter can only give false positives.
+ *
+ * The filter is saved next to the database file on close together with the
+ * row count and last rowid of the table, or the change counter of a table
+ * without rowid. The saved file is deleted by the
+ * first put after it was written, so a crash never leaves a stale filter behind.
+ * The counter only exists while the database is opened with a filter, an open
+ * without one deletes the saved file.
+ */
+public class DBBloomFilter {
+    private static final String TAG = "DBBloomFilter";
+    private static final int MAGIC = 0x4b56424c;
+    private static final int VERSION = 1;
+    private static final int SCAN_PAGE = 1000;
+
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final double falsePositiveRate;
+    private final File file;
+    private final AtomicLong keys = new AtomicLong();
+    private final AtomicLong negatives = new AtomicLong();
+    /* true while saved file matches the filter */
+    private final AtomicBoolean saved = new AtomicBoolean();
+    /* keys were written which filter did not see, every key may be present */
+    private volatile boolean stale;
+
+    DBBloomFilter(long expectedKeys, double falsePositiveRate, File file) {
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("Invalid false positive rate");
+        long n = Math.max(1, expectedKeys);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+        this.words = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        this.falsePositiveRate = falsePositiveRate;
+        this.file = file;
+    }
+
+    private DBBloomFilter(long[] bits, int hashCount, double falsePositiveRate, long keyCount, File file) {
+        this.words = new AtomicLongArray(bits);
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = hashCount;
+        this.falsePositiveRate = falsePositiveRate;
+        this.file = file;
+        this.keys.set(keyCount);
+    }
+
+    /* Load saved filter of database, or build it by scanning all keys if there
+     * is none or the database was changed since it was saved
+     */
+    public static DBBloomFilter open(DBConnection c, DBConfig config) throws KVDBException {
+        File file = new File(config.path + "-bloom");
+        String stamp = stamp(c);
+        DBBloomFilter filter = stamp == null ? null : read(file, stamp, config.bloomFalsePositiveRate);
+        if(filter != null) {
+            Log.i(TAG, "Loaded bloom filter : " + file);
+            return filter;
+        }
+        file.delete();
+        long count = c.getCount();
+        filter = new DBBloomFilter(Math.max(config.bloomExpectedKeys, 2 * count), config.bloomFalsePositiveRate, file);
+        String from = "";
+        while(true) {
+            String[] page = c.scanKeys(from, SCAN_PAGE);
+            for(String key : page) {
+                filter.add(key);
+            }
+            if(page.length < SCAN_PAGE) break;
+            //next page starts at last key again, adding it twice is harmless
+            from = page[page.length - 1];
+        }
+        Log.i(TAG, "Built bloom filter of " + count + " keys, " + filter.getMemoryBytes() + " bytes");
+        return filter;
+    }
+
+    /* false if key is definitely not in database */
+    public boolean mightContain(String key) {
+        if(stale) return true;
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                negatives.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* remember key, called before key is written */
+    void add(String key) {
+        invalidateSaved();
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = words.get(index);
+            } while((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+        }
+        keys.incrementAndGet();
+    }
+
+    /* keys may have been written without the filter, stop filtering until next open */
+    void markStale() {
+        if(!stale) {
+            Log.i(TAG, "Raw sql executed, bloom filter disabled until database is opened again");
+            stale = true;
+        }
+        invalidateSaved();
+    }
+
+    /* save filter next to database file. Puts running concurrently delete it again */
+    public void save(DBConnection c) throws KVDBException {
+        if(stale) return;
+        saved.set(true);
+        String stamp = stamp(c);
+        if(stamp == null) {
+            saved.set(false);
+            file.delete();
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(stamp);
+                out.writeDouble(falsePositiveRate);
+                out.writeInt(hashCount);
+                out.writeLong(keys.get());
+                out.writeInt(words.length());
+                for(int i = 0; i < words.length(); i++) {
+                    out.writeLong(words.get(i));
+                }
+                out.writeLong(checked.getChecksum().getValue());
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(file)) throw new IOException("Unable to rename " + tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            saved.set(false);
+            throw new KVDBException("Unable to save bloom filter : " + e.getMessage());
+        }
+        //a put raced with us after the filter was copied
+        if(!saved.get()) file.delete();
+    }
+
+    /* number of bits of the filter */
+    public long getBitCount() {
+        return bitCount;
+    }
+    public int getHashCount() {
+        return hashCount;
+    }
+    public long getMemoryBytes() {
+        return bitCount / 8;
+    }
+    /* number of keys added, keys written again are counted again */
+    public long getKeyCount() {
+        return keys.get();
+    }
+    /* number of lookups answered without reading the database */
+    public long getNegativeCount() {
+        return negatives.get();
+    }
+    /* false positive rate the filter was sized for */
+    public double getConfiguredFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+    /* false positive rate expected from the bits set so far, 1 if filter is disabled */
+    public double getEstimatedFalsePositiveRate() {
+        if(stale) return 1;
+        long set = 0;
+        for(int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bitCount, hashCount);
+    }
+
+    private void invalidateSaved() {
+        if(saved.get() && saved.compareAndSet(true, false)) {
+            file.delete();
+        }
+    }
+
+    private static DBBloomFilter read(File file, String stamp, double falsePositiveRate) {
+        if(!file.exists()) return null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+                if(!stamp.equals(in.readUTF())) return null;
+                if(in.readDouble() != falsePositiveRate) return null;
+                int hashCount = in.readInt();
+                long keyCount = in.readLong();
+                int length = in.readInt();
+                if(hashCount <= 0 || length <= 0) return null;
+                long[] bits = new long[length];
+                for(int i = 0; i < length; i++) {
+                    bits[i] = in.readLong();
+                }
+                long checksum = checked.getChecksum().getValue();
+                if(in.readLong() != checksum) return null;
+                DBBloomFilter filter = new DBBloomFilter(bits, hashCount, falsePositiveRate, keyCount, file);
+                filter.saved.set(true);
+                return filter;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read bloom filter, it will be rebuilt : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /* identifies table contents well enough to detect writes made without the filter,
+     * null for a table without rowid opened read only before it had a change counter
+     */
+    private static String stamp(DBConnection c) throws KVDBException {
+        boolean clustered = c.pool.getSchemaVersion() >= DBConfig.SCHEMA_CLUSTERED;
+        if(clustered && c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null) == null) return null;
+        String[][] result = c.executeQueryForResult(clustered ? DBQuery.TABLE_STAMP_V2 : DBQuery.TABLE_STAMP, null);
+        if(result == null) return "";
+        StringBuilder stamp = new StringBuilder(clustered ? "v2" : "");
+        for(String column : result[0]) {
+            if(stamp.length() > 0) stamp.append(':');
+            stamp.append(column);
+        }
+        return stamp.toString();
+    }
+
+    /* 64 bit FNV-1a over key chars with a final mix, also used by DBSnapshot */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
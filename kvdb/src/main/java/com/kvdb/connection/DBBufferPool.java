@@ -0,0 +1,82 @@
+package com.kvdb.connection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Pool of direct byte buffers so values can be read through
+ * DBConnectionBase.get(key, pool) without allocating on the hot path.
+ * Buffers are kept in power of two size classes, buffers larger than
+ * max capacity are allocated on demand and never retained. Pool is thread safe.
+ */
+public class DBBufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MIN_CAPACITY = 1 << MIN_SHIFT;
+    /* capacity requested for the first read attempt of a value */
+    static final int DEFAULT_READ_CAPACITY = 4096;
+
+    private final int maxCapacity;
+    private final int maxBuffersPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+
+    public DBBufferPool() {
+        this(1024 * 1024, 16);
+    }
+
+    public DBBufferPool(int maxCapacity, int maxBuffersPerClass) {
+        if(maxCapacity < MIN_CAPACITY || maxBuffersPerClass < 0) {
+            throw new IllegalArgumentException("Invalid pool size");
+        }
+        this.maxCapacity = maxCapacity;
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        int classes = sizeClass(maxCapacity) + 1;
+        free = newQueues(classes);
+        freeCount = new AtomicInteger[classes];
+        for(int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /* get a cleared direct buffer with at least given capacity */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if(sizeClass < free.length) {
+            ByteBuffer buffer = free[sizeClass].poll();
+            if(buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            return ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /* give buffer back to pool, buffer must not be used by caller afterwards */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect()) return;
+        int capacity = buffer.capacity();
+        if(capacity > maxCapacity || Integer.bitCount(capacity) != 1 || capacity < MIN_CAPACITY) return;
+        int sizeClass = sizeClass(capacity);
+        if(freeCount[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+            freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        free[sizeClass].offer(buffer);
+    }
+
+    /* index of the smallest power of two class holding capacity */
+    private static int sizeClass(int capacity) {
+        return 32 - Integer.numberOfLeadingZeros((capacity - 1) | (MIN_CAPACITY - 1)) - MIN_SHIFT;
+    }
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int count) {
+        //generic arrays can only be created raw
+        return new ConcurrentLinkedQueue[count];
+    }
+}
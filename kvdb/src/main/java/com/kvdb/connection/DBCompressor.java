@@ -0,0 +1,218 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+
+/* Compresses string and blob values of a database at least threshold bytes
+ * long, shared by all its connections. A compressed value is stored with type
+ * ValueType.COMPRESSED as a frame of algorithm, original type, original length
+ * and the compressed bytes, so every value records whether and how it was
+ * compressed and small or incompressible values stay raw. Values are only
+ * stored compressed if that saves at least an eighth of their size.
+ */
+public class DBCompressor {
+    /* frame header is algorithm, original type and original length as varint */
+    private static final int MAX_HEADER = 2 + 5;
+    /* compressor of connections opened outside a pool, which only read compressed values */
+    static final DBCompressor DECOMPRESS_ONLY = new DBCompressor(null);
+
+    private final int algorithm;
+    private final int threshold;
+    private final int deflateLevel;
+    /* deflaters and inflaters hold native memory, they are reused instead of created per value */
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    DBCompressor(DBConfig config) {
+        this.algorithm = config == null ? DBConfig.COMPRESSION_NONE : config.compression;
+        this.threshold = config == null ? Integer.MAX_VALUE : Math.max(1, config.compressionThreshold);
+        this.deflateLevel = config == null ? Deflater.DEFAULT_COMPRESSION : config.deflateLevel;
+        if(algorithm < DBConfig.COMPRESSION_NONE || algorithm > DBConfig.COMPRESSION_DEFLATE) {
+            throw new IllegalArgumentException("Invalid compression " + algorithm);
+        }
+    }
+
+    /* true if new values may be compressed */
+    public boolean isEnabled() {
+        return algorithm != DBConfig.COMPRESSION_NONE;
+    }
+    /* true if a value of given length is worth trying to compress */
+    boolean accepts(int length) {
+        return algorithm != DBConfig.COMPRESSION_NONE && length >= threshold;
+    }
+
+    /* compressed frame of value[offset, offset + length) of given type, or null if
+     * value should be stored as it is
+     */
+    byte[] compress(byte[] value, int offset, int length, int type) {
+        if(!accepts(length)) return null;
+        long start = System.nanoTime();
+        //compressed value must be smaller than limit to be kept
+        int limit = length - (length >>> 3);
+        byte[] frame;
+        int size;
+        if(algorithm == DBConfig.COMPRESSION_LZ4) {
+            frame = new byte[MAX_HEADER + LZ4Block.maxCompressedLength(length)];
+            int header = writeHeader(frame, type, length);
+            size = header + LZ4Block.compress(value, offset, length, frame, header);
+        } else {
+            frame = new byte[MAX_HEADER + limit];
+            int header = writeHeader(frame, type, length);
+            size = deflate(value, offset, length, frame, header);
+        }
+        compressNanos.addAndGet(System.nanoTime() - start);
+        if(size < 0 || size >= limit) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        compressed.incrementAndGet();
+        uncompressedBytes.addAndGet(length);
+        compressedBytes.addAndGet(size);
+        byte[] result = new byte[size];
+        System.arraycopy(frame, 0, result, 0, size);
+        return result;
+    }
+
+    /* type value had before it was compressed */
+    int originalType(byte[] frame) throws KVDBException {
+        if(frame.length < 3) throw new KVDBException("Invalid compressed value");
+        return frame[1];
+    }
+    /* length of value once decompressed */
+    int originalLength(byte[] frame) throws KVDBException {
+        if(frame.length < 3) throw new KVDBException("Invalid compressed value");
+        int length = 0;
+        for(int i = 2, shift = 0; i < frame.length && shift < 35; i++, shift += 7) {
+            int b = frame[i];
+            length |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) return length;
+        }
+        throw new KVDBException("Invalid compressed value");
+    }
+
+    byte[] decompress(byte[] frame) throws KVDBException {
+        byte[] value = new byte[originalLength(frame)];
+        decompress(frame, value, 0);
+        return value;
+    }
+    /* decompress frame into dst at offset, dst must have room for originalLength bytes */
+    void decompress(byte[] frame, byte[] dst, int offset) throws KVDBException {
+        long start = System.nanoTime();
+        int length = originalLength(frame);
+        int header = 2;
+        while((frame[header++] & 0x80) != 0);
+        try {
+            switch (frame[0]) {
+                case DBConfig.COMPRESSION_LZ4:
+                    LZ4Block.decompress(frame, header, frame.length - header, dst, offset, length);
+                    break;
+                case DBConfig.COMPRESSION_DEFLATE:
+                    inflate(frame, header, frame.length - header, dst, offset, length);
+                    break;
+                default:
+                    throw new KVDBException("Unknown compression " + frame[0]);
+            }
+        } catch (IOException e) {
+            throw new KVDBException("Invalid compressed value : " + e.getMessage());
+        }
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /* number of values stored compressed */
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+    /* number of values over threshold stored raw as compression did not pay off */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+    public long getDecompressedCount() {
+        return decompressed.get();
+    }
+    /* original bytes of values stored compressed */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+    /* stored bytes of values stored compressed, including frame headers */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+    /* compressed bytes / original bytes of compressed values, 1 if nothing was compressed */
+    public double getCompressionRatio() {
+        long original = uncompressedBytes.get();
+        return original == 0 ? 1 : (double) compressedBytes.get() / original;
+    }
+    /* time spent compressing, including values which were then stored raw */
+    public long getCompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressNanos.get());
+    }
+    public long getDecompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decompressNanos.get());
+    }
+
+    private int writeHeader(byte[] frame, int type, int length) {
+        frame[0] = (byte) algorithm;
+        frame[1] = (byte) type;
+        int p = 2;
+        while((length & ~0x7f) != 0) {
+            frame[p++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        frame[p++] = (byte) length;
+        return p;
+    }
+    /* deflate into dst after header, returns frame size or -1 if it does not fit */
+    private int deflate(byte[] value, int offset, int length, byte[] dst, int header) {
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) deflater = new Deflater(deflateLevel);
+        try {
+            deflater.setInput(value, offset, length);
+            deflater.finish();
+            int p = header;
+            while(!deflater.finished()) {
+                if(p == dst.length) return -1;
+                p += deflater.deflate(dst, p, dst.length - p);
+            }
+            return p;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+    private void inflate(byte[] src, int offset, int length, byte[] dst, int dstOffset, int originalLength) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) inflater = new Inflater();
+        try {
+            inflater.setInput(src, offset, length);
+            int p = 0;
+            while(p < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(dst, dstOffset + p, originalLength - p);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                p += n;
+            }
+            if(p != originalLength) throw new IOException("Malformed deflate data");
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+}
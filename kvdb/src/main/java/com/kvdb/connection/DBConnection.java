@@ -1,5 +1,7 @@
 package com.kvdb.connection;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.kvdb.DB;
 import com.kvdb.DBQuery;
 import com.kvdb.KVDBException;
@@ -26,16 +28,42 @@ public class DBConnection extends DBConnectionBase{
 
     boolean finalized = false;
 
+    /* thread this connection is bound to by pool.getConnection, null if none */
+    volatile Thread owner;
+
+    /* time this connection was given back to the pool, in System.nanoTime */
+    long idleSince;
+
+    /* true while borrowed from pool, guards against releasing it twice */
+    final AtomicBoolean borrowed = new AtomicBoolean();
+
+    /* read only connection serving reads of other connections */
+    boolean reader;
+
+    /* System.nanoTime() the read/write transaction began, for metrics */
+    private long transactionStart;
+
     /* static method to create DBConnection instance */
     protected static DBConnection create(DBConfig c, DBConnectionPool _p) {
         return new DBConnection(c, _p);
     }
 
+    /* read only connection to same database which pool lends to other connections for reads */
+    static DBConnection createReader(DBConfig c, DBConnectionPool _p) {
+        DBConnection dbc = new DBConnection(new DBConfig(c.path, DB.OPEN_READONLY), _p);
+        dbc.reader = true;
+        dbc.metrics = null;
+        return dbc;
+    }
+
     private DBConnection(DBConfig c, DBConnectionPool _p) {
         config = c;
         state = new DBConnectionState(this);
         pool = _p;
         db = _p.getDB();
+        cache = _p.getValueCache();
+        compressor = _p.getCompressor();
+        metrics = _p.getMetrics();
     }
 
     /* Open database */
@@ -43,6 +71,8 @@ public class DBConnection extends DBConnectionBase{
         try {
             cPtr = nativeOpen(config.path,config.openFlags);
             Log.i(TAG,"Opened connection to database : " + Long.toHexString(cPtr));
+            DBMetrics m = pool.getMetrics();
+            if(m != null && m.slowNanos >= 0) startProfiling(m.slowNanos);
             state.isOpen = true;
             return true;
         } catch (KVDBException e) {
@@ -62,6 +92,10 @@ public class DBConnection extends DBConnectionBase{
         } else {
             try {
                 Log.i(TAG,"Closing connection to database : " + cPtr);
+                closeStatements();
+                //counters of the native connection are lost once it closes
+                DBMetrics m = pool.getMetrics();
+                if(m != null) collectStats(m);
                 nativeClose(cPtr);
                 cPtr = 0;
                 state.isOpen = false;
@@ -70,7 +104,7 @@ public class DBConnection extends DBConnectionBase{
             }
         }
     }
-    /*Connection will be removed from pool*/
+    /*Connection is given back to pool, it must not be used afterwards*/
     public void release(){
         pool.releaseConnection(this);
     }
@@ -81,7 +115,7 @@ public class DBConnection extends DBConnectionBase{
             if(needClose) throw new KVDBException("Connection close already called");
             if(state.isReadWriteActive()) throw new KVDBException("Nested transaction not allowed");
             if(!pool.canProceedWithRead()) throw new KVDBException("Write active and not in WAL");
-            execute(DBQuery.BEGIN_TRANSACTION);
+            executeInternal(DBQuery.BEGIN_TRANSACTION);
             state.setReadTransactionActive(true);
         }
     }
@@ -97,18 +131,95 @@ public class DBConnection extends DBConnectionBase{
                     pool.releaseWriteLock();
                     throw new KVDBException("Connection was closed");
                 }
-                execute(DBQuery.BEGIN_TRANSACTION);
+                executeInternal(DBQuery.BEGIN_TRANSACTION);
                 state.setWriteTransactionActive(true);
+                if(metrics != null) transactionStart = System.nanoTime();
+            } else {
+                throw new KVDBException("Cannot acquire write lock");
+            }
+        }
+    }
+
+    /* Apply all operations of the batch atomically. Batch runs in its own
+     * BEGIN IMMEDIATE transaction holding the write lock, or as part of the
+     * read/write transaction already active on this connection
+     */
+    public void write(WriteBatch batch) throws KVDBException {
+        if(batch == null) throw new KVDBException("Batch cannot be null");
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            writeLocked(batch);
+        } finally {
+            if(start != 0) metrics.record(DBMetrics.BATCH, start);
+        }
+    }
+    private void writeLocked(WriteBatch batch) throws KVDBException {
+        synchronized (this) {
+            if(needClose) throw new KVDBException("Connection close already called");
+            if(batch.size() == 0) return;
+            if(state.isWriteTransActive) {
+                writeBatch(batch, false);
+                return;
+            }
+            if(state.isReadTransActive) throw new KVDBException("Cannot write batch in read transaction");
+            if(pool.acquireWriteLockWait(3000)){
+                try {
+                    /*It might happen that during acquire lock connection was closed*/
+                    if(needClose) throw new KVDBException("Connection was closed");
+                    writeBatch(batch, true);
+                } finally {
+                    pool.releaseWriteLock();
+                }
             } else {
                 throw new KVDBException("Cannot acquire write lock");
             }
         }
     }
 
+    /* Statements which write take the write lock like a batch, unless they are
+     * part of the read/write transaction already active on this connection
+     */
+    @Override
+    int executeStatement(long statement, boolean readOnly) throws KVDBException {
+        if(readOnly) return super.executeStatement(statement, true);
+        synchronized (this) {
+            if(needClose) throw new KVDBException("Connection close already called");
+            if(state.isWriteTransActive) return super.executeStatement(statement, false);
+            if(state.isReadTransActive) throw new KVDBException("Cannot write in read transaction");
+            if(pool.acquireWriteLockWait(3000)){
+                try {
+                    return super.executeStatement(statement, false);
+                } finally {
+                    pool.releaseWriteLock();
+                }
+            } else {
+                throw new KVDBException("Cannot acquire write lock");
+            }
+        }
+    }
+
+    /* Value output streams opened outside of a transaction hold the write lock
+     * until they are closed, inside a read/write transaction they use its lock
+     */
+    @Override
+    boolean beginStreamWrite() throws KVDBException {
+        synchronized (this) {
+            if(needClose) throw new KVDBException("Connection close already called");
+            if(state.isWriteTransActive) return false;
+            if(state.isReadTransActive) throw new KVDBException("Cannot write in read transaction");
+            if(!pool.acquireWriteLockWait(3000)) throw new KVDBException("Cannot acquire write lock");
+            return true;
+        }
+    }
+    @Override
+    void endStreamWrite() {
+        pool.releaseWriteLock();
+    }
+
     /* End read transaction */
     public void endReadTransaction() throws KVDBException {
         synchronized(this) {
-            execute(DBQuery.COMMIT);
+            executeInternal(DBQuery.COMMIT);
             state.setReadTransactionActive(false);
             endTransactionCheck();
         }
@@ -117,19 +228,23 @@ public class DBConnection extends DBConnectionBase{
     /* End read/write transaction */
     public void endReadWriteTransaction() throws KVDBException {
         synchronized(this) {
-            execute(DBQuery.COMMIT);
+            executeInternal(DBQuery.COMMIT);
             state.setWriteTransactionActive(false);
             pool.releaseWriteLock();
+            transactionEnded();
+            invalidateWritten();
             endTransactionCheck();
         }
     }
     /*rollback transaction*/
     public void rollbackTransaction() throws KVDBException {
         synchronized(this) {
-            execute(DBQuery.ROLLBACK);
+            executeInternal(DBQuery.ROLLBACK);
             if (state.isWriteTransActive) {
                 state.setWriteTransactionActive(false);
                 pool.releaseWriteLock();
+                invalidateWritten();
+                transactionEnded();
             }
             if (state.isReadTransActive) {
                 state.setReadTransactionActive(false);
@@ -137,6 +252,26 @@ public class DBConnection extends DBConnectionBase{
             endTransactionCheck();
         }
     }
+    private void transactionEnded() {
+        if(metrics != null && transactionStart != 0) metrics.record(DBMetrics.TRANSACTION, transactionStart);
+        transactionStart = 0;
+    }
+    /* reads outside of transactions go to a reader connection so they run in
+     * parallel to writes, reads inside a transaction must see its own writes
+     */
+    @Override
+    DBConnectionBase acquireReader() {
+        if(reader || state.isReadWriteActive()) return null;
+        return pool.acquireReader();
+    }
+    @Override
+    void releaseReader(DBConnectionBase r) {
+        pool.releaseReader((DBConnection) r);
+    }
+    @Override
+    boolean inTransaction() {
+        return state.isReadWriteActive();
+    }
     private void endTransactionCheck(){
         if(needClose) {
             close();
@@ -1,15 +1,28 @@
 package com.kvdb.connection;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 
+import com.kvdb.DBQuery;
 import com.kvdb.KVDBException;
 
 /*Connection base class containing all the API's supported*/
 public class DBConnectionBase {
+    /* scan flags: only return keys, or return keys in descending order */
+    public static final int SCAN_KEYS_ONLY = 0x1;
+    public static final int SCAN_REVERSE = 0x2;
+    /* x'', sqlite orders blobs after text so it ends string keys and starts binary ones */
+    private static final byte[] FIRST_BINARY_KEY = new byte[0];
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /* SQLite database connection pointer referring to native sql context*/
     long cPtr;
 
@@ -18,147 +31,599 @@ public class DBConnectionBase {
      */
     private final Object lock = new Object();
 
-    /* Execute raw SQL query */
+    /* Read cache shared by all connections of the database, null if disabled */
+    DBValueCache cache;
+
+    /* Bloom filter of keys shared by all connections of the database, null if disabled */
+    volatile DBBloomFilter bloom;
+
+    /* Layout of the kvstore table, see DBQuery.SCHEMA_VERSION. Set by the pool
+     * when a migration switches tables
+     */
+    volatile int schemaVersion = 1;
+    /* layout the native fixed statements are prepared for, guarded by lock */
+    private int nativeSchemaVersion = 1;
+
+    /* Latency metrics of the database, null if disabled. Reader connections have
+     * none, reads they serve are timed by the connection which lent them
+     */
+    DBMetrics metrics;
+
+    /* Compression of large values shared by all connections of the database */
+    DBCompressor compressor = DBCompressor.DECOMPRESS_ONLY;
+    /* stored type of the value last read by a native getter, guarded by lock */
+    private final int[] valueType = new int[1];
+
+    /* keys written in the current transaction, invalidated again once it ends */
+    private final HashSet<String> dirtyKeys = new HashSet<String>();
+    /* too many keys written in the current transaction, clear whole cache once it ends */
+    private boolean dirtyAll;
+    private static final int MAX_DIRTY_KEYS = 1024;
+
+    /* cursors and prepared queries of this connection which are not closed yet */
+    private final ArrayList<DBResult> cursors = new ArrayList<DBResult>();
+    private final ArrayList<PreparedQuery> preparedQueries = new ArrayList<PreparedQuery>();
+    /* blob handles of value streams which are not closed yet */
+    private final ArrayList<DBValueBlob> blobs = new ArrayList<DBValueBlob>();
+
+    /* Execute raw SQL query. It may change any key or value so read cache is
+     * cleared and bloom filter stops filtering until database is opened again
+     */
     public void execute(String sql) throws KVDBException {
+        synchronized (lock) {
+            DBBloomFilter filter = bloom;
+            if(filter != null) filter.markStale();
+            try {
+                nativeExecute(cPtr, sql);
+            } finally {
+                rawWritten();
+            }
+        }
+    }
+    /* Execute statement of a schema migration. It copies or converts rows but
+     * adds no key, so the bloom filter keeps filtering. Read cache is cleared
+     */
+    public void executeMigration(String sql) throws KVDBException {
+        synchronized (lock) {
+            try {
+                nativeExecute(cPtr, sql);
+            } finally {
+                rawWritten();
+            }
+        }
+    }
+    /* Execute transaction control statement, it does not change values */
+    void executeInternal(String sql) throws KVDBException {
         synchronized (lock) {
             nativeExecute(cPtr, sql);
         }
     }
     /* insert (key,value) where value is boolean */
     public void putBoolean(String key, boolean value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutBoolean(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutBoolean(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is short */
     public void putShort(String key, short value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutShort(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutShort(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is an integer */
     public void putInt(String key, int value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutInt(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutInt(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is long */
     public void putLong(String key, long value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutLong(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutLong(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is float */
     public void putFloat(String key, float value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutFloat(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutFloat(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is double */
     public void putDouble(String key, double value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            nativePutDouble(cPtr, key, value);
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                adding(key);
+                nativePutDouble(ptr(), key, value);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value byte array */
     public void put(String key, byte[] data) throws KVDBException {
-        synchronized (lock) {
+        long start = startTimer();
+        try {
             isValid(key,data);
-            nativePut(cPtr, key, data);
+            putBlob(key, data);
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
+        }
+    }
+    /* insert (key,value) where value is remaining bytes of buffer. Direct buffers
+     * are bound in place without a copy. Buffer position is moved to its limit
+     */
+    public void put(String key, ByteBuffer value) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key,value);
+            if(compressor.accepts(value.remaining())) {
+                //value is compressed from a copy, in place binding would not save anything
+                byte[] data = new byte[value.remaining()];
+                value.duplicate().get(data);
+                putBlob(key, data);
+                value.position(value.limit());
+                return;
+            }
+            synchronized (lock) {
+                adding(key);
+                int length = value.remaining();
+                if(value.isDirect()) {
+                    nativePutBuffer(ptr(), key, value, null, value.position(), length);
+                } else if(value.hasArray()) {
+                    nativePutBuffer(ptr(), key, null, value.array(), value.arrayOffset() + value.position(), length);
+                } else {
+                    byte[] data = new byte[length];
+                    value.duplicate().get(data);
+                    nativePutBuffer(ptr(), key, null, data, 0, length);
+                }
+                value.position(value.limit());
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is string */
     public void put(String key, String value) throws KVDBException {
-        synchronized (lock) {
+        long start = startTimer();
+        try {
             isValid(key,value);
-            nativePutString(cPtr, key, value);
+            byte[] frame = null;
+            //length in chars is a lower bound of the UTF-8 length
+            if(compressor.accepts(value.length())) {
+                byte[] data = value.getBytes(UTF8);
+                frame = compressor.compress(data, 0, data.length, ValueType.STRING);
+            }
+            synchronized (lock) {
+                adding(key);
+                if(frame != null) {
+                    nativePut(ptr(), key, frame, ValueType.COMPRESSED);
+                } else {
+                    nativePutString(ptr(), key, value);
+                }
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
         }
     }
     /* insert (key,value) where value is object array */
     public void put(String key, Object[] value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key,value);
-            byte[] blob = objectToByteArray(value);
-            nativePut(cPtr, key, blob);
-        }
+        putObject(key, value);
     }
     /* insert (key,value) where value is an object */
     public void put(String key, Object value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key,value);
-            byte[] blob = objectToByteArray(value);
-            nativePut(cPtr, key, blob);
-        }
+        putObject(key, value);
     }
     /* insert (key,value) where value is Serializable array */
     public void put(String key, Serializable[] value) throws KVDBException {
-        synchronized (lock) {
-            isValid(key,value);
-            byte[] blob = objectToByteArray(value);
-            nativePut(cPtr, key, blob);
-        }
+        putObject(key, value);
     }
     /* insert (key,value) where value is Serializable object */
     public void put(String key, Serializable value) throws KVDBException {
-        synchronized (lock) {
+        putObject(key, value);
+    }
+    /* encode value with its codec and store it, encoding counts as part of the put */
+    private void putObject(String key, Object value) throws KVDBException {
+        long start = startTimer();
+        try {
             isValid(key,value);
-            byte[] blob = objectToByteArray(value);
-            nativePut(cPtr, key, blob);
+            putBlob(key, objectToByteArray(value));
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
+        }
+    }
+    /* store blob, compressed if it is large enough and compression pays off */
+    private void putBlob(String key, byte[] data) throws KVDBException {
+        byte[] frame = compressor.compress(data, 0, data.length, ValueType.BLOB);
+        synchronized (lock) {
+            adding(key);
+            if(frame != null) {
+                nativePut(ptr(), key, frame, ValueType.COMPRESSED);
+            } else {
+                nativePut(ptr(), key, data, ValueType.BLOB);
+            }
+            written(key);
         }
     }
     /*get api's*/
     public String get(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGet(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.get(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return null;
+                if(cache == null) return readString(key);
+                return (String) getCached(key, DBValueCache.KIND_STRING);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public boolean getBoolean(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetBoolean(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getBoolean(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return false;
+                if(cache == null) return nativeGetBoolean(ptr(), key);
+                return integer(key) != 0;
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public short getShort(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetShort(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getShort(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return 0;
+                if(cache == null) return nativeGetShort(ptr(), key);
+                return (short) integer(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public int getInt(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetInt(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getInt(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return 0;
+                if(cache == null) return nativeGetInt(ptr(), key);
+                return (int) integer(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public long getLong(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetLong(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getLong(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return 0;
+                if(cache == null) return nativeGetLong(ptr(), key);
+                return integer(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public float getFloat(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetFloat(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getFloat(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return 0;
+                if(cache == null) return nativeGetFloat(ptr(), key);
+                return (float) real(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public double getDouble(String key) throws KVDBException {
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetDouble(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getDouble(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return 0;
+                if(cache == null) return nativeGetDouble(ptr(), key);
+                return real(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public byte[] getBytes(String key) throws KVDBException{
-        synchronized (lock) {
-            isValid(key);
-            return nativeGetBytes(cPtr, key);
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getBytes(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return null;
+                if(cache == null) return readBytes(key);
+                byte[] value = (byte[]) getCached(key, DBValueCache.KIND_BYTES);
+                return value == null ? null : value.clone();
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    /* read value into dst at its position and return value length, or -1 if key
+     * is not present. If value is longer than dst.remaining() nothing is copied
+     * and dst is left unchanged, so caller can retry with a larger buffer
+     */
+    public int get(String key, ByteBuffer dst) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.get(key, dst);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key,dst);
+                if(dst.isReadOnly()) throw new KVDBException("Buffer is read only");
+                if(absent(key)) return -1;
+                int length;
+                if(dst.isDirect()) {
+                    length = nativeGetBuffer(ptr(), key, dst, null, dst.position(), dst.remaining(), valueType);
+                } else {
+                    length = nativeGetBuffer(ptr(), key, null, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(), valueType);
+                }
+                if(length >= 0 && valueType[0] == ValueType.COMPRESSED) return getCompressed(key, dst);
+                if(length > 0 && length <= dst.remaining()) {
+                    dst.position(dst.position() + length);
+                }
+                return length;
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    /* read value into a buffer taken from pool. Returned buffer is flipped for reading
+     * and should be given back with pool.release() when done. Returns null if key is not present
+     */
+    public ByteBuffer get(String key, DBBufferPool pool) throws KVDBException {
+        isValid(key,pool);
+        ByteBuffer buffer = pool.acquire(DBBufferPool.DEFAULT_READ_CAPACITY);
+        int length = get(key, buffer);
+        //value may change between attempts so retry until it fits
+        while(length > buffer.capacity()) {
+            pool.release(buffer);
+            buffer = pool.acquire(length);
+            length = get(key, buffer);
+        }
+        if(length < 0) {
+            pool.release(buffer);
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+    /* multi get api's. All keys are read in one native call and one implicit read
+     * transaction, so values come from a single consistent snapshot.
+     * Missing keys give null, or a cleared bit in found for primitive variants
+     */
+    public byte[][] multiGet(String[] keys) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.multiGet(keys);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            byte[][] values;
+            int[] types = new int[keys.length];
+            synchronized (lock) {
+                isValid(keys);
+                values = nativeMultiGet(ptr(), keys, types);
+            }
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] != null && types[i] == ValueType.COMPRESSED) values[i] = compressor.decompress(values[i]);
+            }
+            return values;
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public String[] multiGetString(String[] keys) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.multiGetString(keys);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            Object[] stored;
+            synchronized (lock) {
+                isValid(keys);
+                stored = nativeMultiGetString(ptr(), keys);
+            }
+            String[] values = new String[stored.length];
+            for(int i = 0; i < stored.length; i++) {
+                values[i] = decodeString(stored[i]);
+            }
+            return values;
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public long[] multiGetLong(String[] keys, BitSet found) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.multiGetLong(keys, found);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            long[] values;
+            boolean[] present;
+            synchronized (lock) {
+                isValid(keys);
+                values = new long[keys.length];
+                present = new boolean[keys.length];
+                nativeMultiGetLong(ptr(), keys, values, present);
+            }
+            setFound(found, present);
+            return values;
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public int[] multiGetInt(String[] keys, BitSet found) throws KVDBException {
+        long[] longs = multiGetLong(keys, found);
+        int[] values = new int[longs.length];
+        for(int i = 0; i < longs.length; i++) {
+            values[i] = (int) longs[i];
+        }
+        return values;
+    }
+    public double[] multiGetDouble(String[] keys, BitSet found) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.multiGetDouble(keys, found);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            double[] values;
+            boolean[] present;
+            synchronized (lock) {
+                isValid(keys);
+                values = new double[keys.length];
+                present = new boolean[keys.length];
+                nativeMultiGetDouble(ptr(), keys, values, present);
+            }
+            setFound(found, present);
+            return values;
+        } finally {
+            stopTimer(DBMetrics.GET, start);
         }
     }
     public <T> T getObject(String key, Class<T> className) throws KVDBException{
@@ -182,14 +647,885 @@ public class DBConnectionBase {
         byte[] data = getBytes(key);
         return byteArrayToObjectArray(data, className);
     }
+    /* true if a value is stored for key */
+    public boolean exists(String key) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.exists(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                isValid(key);
+                if(absent(key)) return false;
+                return nativeExists(cPtr, key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
     /*delete value corresponding to key*/
     public void delete(String key) throws KVDBException {
+        long start = startTimer();
+        try {
+            synchronized (lock) {
+                isValid(key);
+                nativeDelete(cPtr, key);
+                written(key);
+            }
+        } finally {
+            stopTimer(DBMetrics.DELETE, start);
+        }
+    }
+    /* binary key api's. Binary keys are stored as BLOB and ordered by unsigned
+     * byte comparison, apart from string keys which all sort before them. They
+     * skip the read cache and bloom filter, see DBKey for long and tuple keys
+     */
+    public void put(byte[] key, byte[] value) throws KVDBException {
+        isValid(key, value);
+        putBinary(key, value, ValueType.BLOB);
+    }
+    public void put(byte[] key, String value) throws KVDBException {
+        isValid(key, value);
+        putBinary(key, value.getBytes(UTF8), ValueType.STRING);
+    }
+    public void putLong(byte[] key, long value) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key);
+            synchronized (lock) {
+                nativeBinaryPutLong(ptr(), key, value);
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
+        }
+    }
+    private void putBinary(byte[] key, byte[] data, int type) throws KVDBException {
+        long start = startTimer();
+        try {
+            byte[] frame = compressor.compress(data, 0, data.length, type);
+            synchronized (lock) {
+                if(frame != null) {
+                    nativeBinaryPut(ptr(), key, frame, ValueType.COMPRESSED);
+                } else {
+                    nativeBinaryPut(ptr(), key, data, type);
+                }
+            }
+        } finally {
+            stopTimer(DBMetrics.PUT, start);
+        }
+    }
+    public byte[] getBytes(byte[] key) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key);
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getBytes(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                byte[] value = nativeBinaryGetBytes(ptr(), key, valueType);
+                if(value != null && valueType[0] == ValueType.COMPRESSED) value = compressor.decompress(value);
+                return value;
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public String get(byte[] key) throws KVDBException {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, UTF8);
+    }
+    public long getLong(byte[] key) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key);
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.getLong(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                return nativeBinaryGetLong(ptr(), key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public boolean exists(byte[] key) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key);
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.exists(key);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            synchronized (lock) {
+                return nativeBinaryExists(ptr(), key);
+            }
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    public void delete(byte[] key) throws KVDBException {
+        long start = startTimer();
+        try {
+            isValid(key);
+            synchronized (lock) {
+                nativeBinaryDelete(ptr(), key);
+            }
+        } finally {
+            stopTimer(DBMetrics.DELETE, start);
+        }
+    }
+    /* values of keys from one snapshot, null for missing keys */
+    public byte[][] multiGet(byte[][] keys) throws KVDBException {
+        long start = startTimer();
+        try {
+            if(keys == null) throw new KVDBException("Keys cannot be null");
+            for(byte[] key : keys) {
+                isValid(key);
+            }
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                try {
+                    return reader.multiGet(keys);
+                } finally {
+                    releaseReader(reader);
+                }
+            }
+            byte[][] values;
+            int[] types = new int[keys.length];
+            synchronized (lock) {
+                values = nativeBinaryMultiGet(ptr(), keys, types);
+            }
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] != null && types[i] == ValueType.COMPRESSED) values[i] = compressor.decompress(values[i]);
+            }
+            return values;
+        } finally {
+            stopTimer(DBMetrics.GET, start);
+        }
+    }
+    /* long keys, stored as the binary key DBKey.of(key) */
+    public void put(long key, byte[] value) throws KVDBException {
+        put(DBKey.of(key), value);
+    }
+    public void put(long key, String value) throws KVDBException {
+        put(DBKey.of(key), value);
+    }
+    public void putLong(long key, long value) throws KVDBException {
+        putLong(DBKey.of(key), value);
+    }
+    public byte[] getBytes(long key) throws KVDBException {
+        return getBytes(DBKey.of(key));
+    }
+    public String get(long key) throws KVDBException {
+        return get(DBKey.of(key));
+    }
+    public long getLong(long key) throws KVDBException {
+        return getLong(DBKey.of(key));
+    }
+    public boolean exists(long key) throws KVDBException {
+        return exists(DBKey.of(key));
+    }
+    public void delete(long key) throws KVDBException {
+        delete(DBKey.of(key));
+    }
+    public byte[][] multiGet(long[] keys) throws KVDBException {
+        if(keys == null) throw new KVDBException("Keys cannot be null");
+        byte[][] binary = new byte[keys.length][];
+        for(int i = 0; i < keys.length; i++) {
+            binary[i] = DBKey.of(keys[i]);
+        }
+        return multiGet(binary);
+    }
+    /* stream reading value of key in chunks without loading it whole, null if key
+     * is not present. Compressed values can only be read whole and are read into
+     * memory. Stream must be closed before the connection is released
+     */
+    public InputStream openValueInputStream(String key) throws KVDBException {
         synchronized (lock) {
             isValid(key);
-            nativeDelete(cPtr, key);
+            if(absent(key)) return null;
+            valueType[0] = -1;
+            long handle = nativeBlobOpen(ptr(), key, valueType);
+            DBValueBlob blob;
+            if(handle != 0) {
+                blob = new DBValueBlob(handle, key, nativeBlobLength(cPtr, handle), false, false);
+            } else if(valueType[0] == -1) {
+                return null;
+            } else if(valueType[0] == ValueType.COMPRESSED) {
+                return new ByteArrayInputStream(readBytes(key));
+            } else {
+                //clustered table holds the value itself, it is read by substr
+                int[] length = new int[1];
+                if(readChunk(key, 0, null, 0, 0, length) < 0) return null;
+                blob = new DBValueBlob(0, key, length[0], false, false);
+            }
+            blobs.add(blob);
+            return new DBValueInputStream(this, blob);
+        }
+    }
+    /* stream writing a blob value of exactly length bytes to key in chunks, replacing
+     * any value stored for it. Streamed values are stored uncompressed and only
+     * once the stream is closed after writing all of them. One output stream can
+     * be open on a connection at a time
+     */
+    public DBValueOutputStream openValueOutputStream(String key, int length) throws KVDBException {
+        if(length < 0) throw new KVDBException("Invalid value length " + length);
+        isValid(key);
+        boolean ownsWriteLock = beginStreamWrite();
+        try {
+            synchronized (lock) {
+                for(DBValueBlob open : blobs) {
+                    if(open.write) throw new KVDBException("Value output stream of " + open.key + " is still open");
+                }
+                DBValueBlob blob;
+                executeInternal(ownsWriteLock ? DBQuery.BEIGIN_IMMEDIATE : DBQuery.SAVEPOINT_STREAM);
+                try {
+                    adding(key);
+                    long handle;
+                    try {
+                        handle = nativeBlobCreate(ptr(), key, length);
+                    } finally {
+                        written(key);
+                    }
+                    blob = new DBValueBlob(handle, key, length, true, ownsWriteLock);
+                } catch (KVDBException e) {
+                    endStreamTransaction(ownsWriteLock, false);
+                    throw e;
+                }
+                blobs.add(blob);
+                ownsWriteLock = false;
+                return new DBValueOutputStream(this, blob);
+            }
+        } finally {
+            if(ownsWriteLock) endStreamWrite();
+        }
+    }
+    /* read up to buf.length bytes of value of key starting at offset into buf,
+     * returns number of bytes read, 0 past the end of value and -1 if key is not present
+     */
+    public int readAt(String key, int offset, byte[] buf) throws KVDBException {
+        if(buf == null) throw new KVDBException("Buffer cannot be null");
+        return readAt(key, offset, buf, 0, buf.length);
+    }
+    public int readAt(String key, int offset, byte[] buf, int off, int len) throws KVDBException {
+        if(buf == null) throw new KVDBException("Buffer cannot be null");
+        if(offset < 0 || off < 0 || len < 0 || len > buf.length - off) throw new KVDBException("Invalid range");
+        synchronized (lock) {
+            isValid(key);
+            if(absent(key)) return -1;
+            valueType[0] = -1;
+            long handle = nativeBlobOpen(ptr(), key, valueType);
+            if(handle == 0) {
+                if(valueType[0] == -1) return -1;
+                if(valueType[0] != ValueType.COMPRESSED) return readChunk(key, offset, buf, off, len, null);
+                byte[] value = readBytes(key);
+                if(value == null) return -1;
+                int n = Math.max(0, Math.min(len, value.length - offset));
+                if(n > 0) System.arraycopy(value, offset, buf, off, n);
+                return n;
+            }
+            try {
+                int n = Math.max(0, Math.min(len, nativeBlobLength(cPtr, handle) - offset));
+                if(n > 0) nativeBlobRead(cPtr, handle, buf, off, n, offset);
+                return n;
+            } finally {
+                nativeBlobClose(cPtr, handle);
+            }
+        }
+    }
+    void readBlob(DBValueBlob blob, byte[] b, int off, int len, int position) throws KVDBException {
+        synchronized (lock) {
+            if(blob.closed) throw new KVDBException("Value stream is closed");
+            if(blob.handle != 0) {
+                nativeBlobRead(cPtr, blob.handle, b, off, len, position);
+                return;
+            }
+            //without a blob handle a change is only seen when the length changes
+            int[] length = new int[1];
+            if(readChunk(blob.key, position, b, off, len, length) != len || length[0] != blob.length) {
+                throw new KVDBException("Value was changed or deleted while streaming it");
+            }
+        }
+    }
+    /* read up to len bytes of value of key from offset with substr, so only the
+     * chunk is copied to the heap. Returns bytes read or -1 if key is not present,
+     * the value length is put in length if given
+     */
+    private int readChunk(String key, int offset, byte[] buf, int off, int len, int[] length) throws KVDBException {
+        DBResult result = openCursor(DBQuery.VALUE_CHUNK, new Object[]{offset + 1L, (long) len, key});
+        try {
+            if(!result.next()) return -1;
+            int type = result.getInt(2);
+            if(type != ValueType.BLOB && type != ValueType.STRING && type != ValueType.UNTYPED) {
+                throw new KVDBException("Cannot stream value of type " + type);
+            }
+            if(length != null) length[0] = result.getInt(1);
+            byte[] chunk = result.getBytes(0);
+            int n = chunk == null ? 0 : Math.min(len, chunk.length);
+            if(n > 0) System.arraycopy(chunk, 0, buf, off, n);
+            return n;
+        } finally {
+            result.close();
+        }
+    }
+    void writeBlob(DBValueBlob blob, byte[] b, int off, int len, int position) throws KVDBException {
+        synchronized (lock) {
+            if(blob.closed) throw new KVDBException("Value stream is closed");
+            nativeBlobWrite(cPtr, blob.handle, b, off, len, position);
+            blob.written = position + len;
+        }
+    }
+    /* close blob of a stream, returns false if it was closed already */
+    boolean closeBlob(DBValueBlob blob) throws KVDBException {
+        synchronized (lock) {
+            if(blob.closed) return false;
+            blobs.remove(blob);
+            try {
+                releaseBlob(blob);
+            } finally {
+                //cache may hold the value as read while the stream was writing it
+                if(blob.write) written(blob.key);
+            }
+            return true;
+        }
+    }
+    private void releaseBlob(DBValueBlob blob) throws KVDBException {
+        blob.closed = true;
+        boolean complete = blob.written == blob.length;
+        try {
+            try {
+                if(blob.handle != 0) nativeBlobClose(cPtr, blob.handle);
+                if(blob.write && complete) touchMigrating(blob.key);
+            } catch (KVDBException e) {
+                if(blob.write) endStreamTransaction(blob.ownsWriteLock, false);
+                throw e;
+            }
+            if(blob.write) endStreamTransaction(blob.ownsWriteLock, complete);
+        } finally {
+            if(blob.ownsWriteLock) endStreamWrite();
+        }
+    }
+    /* copy a value streamed into the rowid table to the table it is migrated to */
+    private void touchMigrating(String key) throws KVDBException {
+        if(schemaVersion >= 2) return;
+        long statement = nativeCursorOpen(cPtr, DBQuery.TOUCH_MIGRATING, new Object[]{key});
+        try {
+            nativeStatementStep(cPtr, statement);
+        } finally {
+            nativeCursorClose(cPtr, statement, DBQuery.TOUCH_MIGRATING);
+        }
+    }
+    /* commit the value of an output stream, or roll it back if it is incomplete.
+     * A stream holding the write lock has a transaction of its own, inside a
+     * read/write transaction it has a savepoint
+     */
+    private void endStreamTransaction(boolean ownsWriteLock, boolean commit) throws KVDBException {
+        if(!ownsWriteLock) {
+            try {
+                if(!commit) executeInternal(DBQuery.ROLLBACK_STREAM);
+            } finally {
+                executeInternal(DBQuery.RELEASE_STREAM);
+            }
+        } else if(!commit) {
+            executeInternal(DBQuery.ROLLBACK);
+        } else {
+            try {
+                executeInternal(DBQuery.COMMIT);
+            } catch (KVDBException e) {
+                executeInternal(DBQuery.ROLLBACK);
+                throw e;
+            }
+        }
+    }
+    /* take the write lock for a value output stream outside of a transaction,
+     * returns true if the stream has to give it back with endStreamWrite
+     */
+    boolean beginStreamWrite() throws KVDBException {
+        return false;
+    }
+    void endStreamWrite() {
+    }
+    /* cursor over keys starting with prefix in key order. Column 0 is the key and
+     * column 1 the value, unless SCAN_KEYS_ONLY is set. Cursor must be closed
+     */
+    public DBResult scan(String prefix) throws KVDBException {
+        return scan(prefix, 0);
+    }
+    public DBResult scan(String prefix, int flags) throws KVDBException {
+        if(prefix == null) throw new KVDBException("Prefix cannot be null");
+        return scan(prefix, prefixEnd(prefix), 0, flags);
+    }
+    /* cursor over keys from fromKey (inclusive) to toKey (exclusive) in key order,
+     * returning at most limit rows. Null bounds and limit <= 0 are unbounded
+     */
+    public DBResult scan(String fromKey, String toKey, int limit) throws KVDBException {
+        return scan(fromKey, toKey, limit, 0);
+    }
+    public DBResult scan(String fromKey, String toKey, int limit, int flags) throws KVDBException {
+        return scanRange(fromKey, toKey == null ? FIRST_BINARY_KEY : toKey, limit, flags);
+    }
+    /* cursor over binary keys, the key column holds byte arrays */
+    public DBResult scan(byte[] prefix) throws KVDBException {
+        return scan(prefix, 0);
+    }
+    public DBResult scan(byte[] prefix, int flags) throws KVDBException {
+        if(prefix == null) throw new KVDBException("Prefix cannot be null");
+        return scan(prefix, DBKey.prefixEnd(prefix), 0, flags);
+    }
+    public DBResult scan(byte[] fromKey, byte[] toKey, int limit) throws KVDBException {
+        return scan(fromKey, toKey, limit, 0);
+    }
+    public DBResult scan(byte[] fromKey, byte[] toKey, int limit, int flags) throws KVDBException {
+        return scanRange(fromKey == null ? FIRST_BINARY_KEY : fromKey, toKey, limit, flags);
+    }
+    /* cursor over long keys from fromKey (inclusive) to toKey (exclusive), read
+     * keys back with DBKey.toLong
+     */
+    public DBResult scan(long fromKey, long toKey, int limit) throws KVDBException {
+        return scan(DBKey.of(fromKey), DBKey.of(toKey), limit, 0);
+    }
+    private DBResult scanRange(Object fromKey, Object toKey, int limit, int flags) throws KVDBException {
+        long start = startTimer();
+        try {
+            DBConnectionBase reader = acquireReader();
+            if(reader != null) {
+                //reader stays with the cursor until it is closed
+                DBResult result = null;
+                try {
+                    result = reader.scanRange(fromKey, toKey, limit, flags);
+                    result.readerOwner = this;
+                    return result;
+                } finally {
+                    if(result == null) releaseReader(reader);
+                }
+            }
+            ArrayList<Object> args = new ArrayList<Object>(3);
+            boolean keysOnly = (flags & SCAN_KEYS_ONLY) != 0;
+            //type column lets the cursor decompress values, it is not shown
+            String value = schemaVersion >= 2 ? DBQuery.STREAMED_VALUE + " AS _value," + DBQuery.STREAMED_TYPE + " AS _type"
+                    : "_value,_type";
+            String sql = rangeQuery(keysOnly ? "_key" : "_key," + value, fromKey, toKey, args)
+                    + " ORDER BY _key" + ((flags & SCAN_REVERSE) != 0 ? " DESC" : "");
+            if(limit > 0) {
+                sql += " LIMIT ?";
+                args.add(limit);
+            }
+            DBResult result = openCursor(sql, args.toArray());
+            if(!keysOnly) result.decodeValues(1);
+            return result;
+        } finally {
+            stopTimer(DBMetrics.SCAN, start);
+        }
+    }
+    /* number of string keys starting with prefix, all string keys for null */
+    public long getCount(String prefix) throws KVDBException {
+        if(prefix == null) return countRange(null, FIRST_BINARY_KEY);
+        String end = prefixEnd(prefix);
+        return countRange(prefix, end == null ? FIRST_BINARY_KEY : end);
+    }
+    /* number of binary and long keys starting with prefix, all of them for an empty prefix */
+    public long getCount(byte[] prefix) throws KVDBException {
+        if(prefix == null) throw new KVDBException("Prefix cannot be null");
+        return countRange(prefix, DBKey.prefixEnd(prefix));
+    }
+    private long countRange(Object fromKey, Object toKey) throws KVDBException {
+        DBConnectionBase reader = acquireReader();
+        if(reader != null) {
+            try {
+                return reader.countRange(fromKey, toKey);
+            } finally {
+                releaseReader(reader);
+            }
+        }
+        ArrayList<Object> args = new ArrayList<Object>(2);
+        DBResult result = openCursor(rangeQuery("count(*)", fromKey, toKey, args), args.toArray());
+        try {
+            return result.next() ? result.getLong(0) : 0;
+        } finally {
+            result.close();
+        }
+    }
+    /* open cursor over rows of query with arguments bound to its parameters */
+    DBResult openCursor(String sql, Object[] bindArgs) throws KVDBException {
+        synchronized (lock) {
+            long statement = nativeCursorOpen(cPtr, sql, bindArgs);
+            DBResult result = new DBResult(this, sql, statement, nativeCursorColumnNames(statement));
+            cursors.add(result);
+            return result;
+        }
+    }
+    int fillCursor(DBResult result, int[] types, long[] longs, double[] doubles, Object[] objects,
+                   int maxRows) throws KVDBException {
+        synchronized (lock) {
+            if(result.isClosed()) throw new KVDBException("Cursor is closed");
+            return nativeCursorFill(cPtr, result.statement, types, longs, doubles, objects, maxRows);
+        }
+    }
+    void closeCursor(DBResult result) {
+        synchronized (lock) {
+            if(result.isClosed()) return;
+            releaseCursor(result);
+            cursors.remove(result);
+        }
+    }
+    /* close cursors and prepared queries left open, statements must be released
+     * before connection closes
+     */
+    void closeStatements() {
+        synchronized (lock) {
+            for(DBResult result : cursors) {
+                releaseCursor(result);
+            }
+            cursors.clear();
+            for(DBValueBlob blob : blobs) {
+                try {
+                    releaseBlob(blob);
+                } catch (KVDBException e) {
+                    e.printStackTrace();
+                }
+            }
+            blobs.clear();
+            for(PreparedQuery query : preparedQueries) {
+                nativeFinalize(query.statement);
+                query.closed();
+            }
+            preparedQueries.clear();
+        }
+    }
+    /* cursors of prepared queries only reset the statement, others give it back to cache */
+    private void releaseCursor(DBResult result) {
+        if(result.sql == null) {
+            nativeReset(cPtr, result.statement);
+        } else {
+            nativeCursorClose(cPtr, result.statement, result.sql);
+        }
+        result.closed();
+    }
+    /* compile sql into a query which can be bound and run many times */
+    public PreparedQuery prepare(String sql) throws KVDBException {
+        if(sql == null) throw new KVDBException("Query cannot be null");
+        synchronized (lock) {
+            long statement = nativePrepare(cPtr, sql);
+            PreparedQuery query = new PreparedQuery(this, statement, nativeHolderCount(statement),
+                    nativeIsReadOnly(statement));
+            preparedQueries.add(query);
+            return query;
+        }
+    }
+    void bindLong(PreparedQuery query, int index, long value) throws KVDBException {
+        synchronized (lock) {
+            isOpen(query);
+            nativeBindLong(cPtr, query.statement, index, value);
+        }
+    }
+    void bindDouble(PreparedQuery query, int index, double value) throws KVDBException {
+        synchronized (lock) {
+            isOpen(query);
+            nativeBindDouble(cPtr, query.statement, index, value);
+        }
+    }
+    void bindObject(PreparedQuery query, int index, Object value) throws KVDBException {
+        synchronized (lock) {
+            isOpen(query);
+            nativeBindObject(cPtr, query.statement, index, value);
+        }
+    }
+    int executePrepared(PreparedQuery query) throws KVDBException {
+        isOpen(query);
+        return executeStatement(query.statement, query.isReadOnly());
+    }
+    DBResult openPreparedCursor(PreparedQuery query) throws KVDBException {
+        synchronized (lock) {
+            isOpen(query);
+            if(!query.isReadOnly()) throw new KVDBException("Query writes to database, use execute()");
+            DBResult result = new DBResult(this, null, query.statement, nativeCursorColumnNames(query.statement));
+            cursors.add(result);
+            return result;
+        }
+    }
+    void closePrepared(PreparedQuery query) {
+        synchronized (lock) {
+            if(query.statement == 0) return;
+            nativeFinalize(query.statement);
+            preparedQueries.remove(query);
+            query.closed();
+        }
+    }
+    /* run statement to its end and return number of changed rows. Connections
+     * route statements which write through their write path
+     */
+    int executeStatement(long statement, boolean readOnly) throws KVDBException {
+        synchronized (lock) {
+            if(readOnly) return nativeStatementStep(cPtr, statement);
+            DBBloomFilter filter = bloom;
+            if(filter != null) filter.markStale();
+            try {
+                return nativeStatementStep(cPtr, statement);
+            } finally {
+                rawWritten();
+            }
+        }
+    }
+    private void isOpen(PreparedQuery query) throws KVDBException {
+        if(query.statement == 0) throw new KVDBException("Query is closed");
+    }
+    /* select of columns for keys in [from, to), bounds are added to args */
+    private static String rangeQuery(String columns, Object from, Object to, ArrayList<Object> args) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" FROM kvstore");
+        if(from != null) {
+            sql.append(" WHERE _key >= ?");
+            args.add(from);
+        }
+        if(to != null) {
+            sql.append(from != null ? " AND" : " WHERE").append(" _key < ?");
+            args.add(to);
+        }
+        return sql.toString();
+    }
+    /* smallest key greater than every key starting with prefix, null if there is none.
+     * Keys are compared as modified UTF-8 bytes, in the code unit order of
+     * DBSnapshot.compareKeys, so the last code unit is incremented in that order
+     * and U+FFFF carries into the one before
+     */
+    static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while(end > 0) {
+            char last = prefix.charAt(end - 1);
+            if(last != Character.MAX_VALUE) {
+                //U+0000 sorts right after U+007F
+                char next = last == 0x7f ? 0 : last == 0 ? 0x80 : (char) (last + 1);
+                return prefix.substring(0, end - 1) + next;
+            }
+            end--;
+        }
+        return null;
+    }
+    /* apply batch operations in one native call, inside its own transaction if requested */
+    void writeBatch(WriteBatch batch, boolean ownTransaction) throws KVDBException {
+        int[] ops = batch.ops;
+        int[] types = batch.types;
+        Object[] values = batch.values;
+        if(compressor.isEnabled()) {
+            for(int i = 0; i < batch.size; i++) {
+                byte[] frame = compress(ops[i], values[i]);
+                if(frame == null) continue;
+                //compressed values go into copies, batch itself stays unchanged
+                if(ops == batch.ops) {
+                    ops = ops.clone();
+                    types = types.clone();
+                    values = values.clone();
+                }
+                ops[i] = WriteBatch.OP_PUT;
+                types[i] = ValueType.COMPRESSED;
+                values[i] = frame;
+            }
+        }
+        synchronized (lock) {
+            for(int i = 0; i < batch.size; i++) {
+                if(batch.ops[i] != WriteBatch.OP_DELETE) adding(batch.keys[i]);
+            }
+            nativeWriteBatch(ptr(), ops, types, batch.keys, values, batch.numbers,
+                    batch.size, ownTransaction);
+            for(int i = 0; i < batch.size; i++) {
+                written(batch.keys[i]);
+            }
+        }
+    }
+    /* compressed frame of a batch put value, or null to write it as it is */
+    private byte[] compress(int op, Object value) {
+        if(op == WriteBatch.OP_PUT) {
+            byte[] data = (byte[]) value;
+            return compressor.compress(data, 0, data.length, ValueType.BLOB);
+        }
+        if(op == WriteBatch.OP_PUT_STRING && compressor.accepts(((String) value).length())) {
+            byte[] data = ((String) value).getBytes(UTF8);
+            return compressor.compress(data, 0, data.length, ValueType.STRING);
+        }
+        return null;
+    }
+    /* read only connection to run a read outside of transactions on, or null to
+     * read on this connection. Overridden by pooled connections
+     */
+    DBConnectionBase acquireReader() {
+        return null;
+    }
+    /* give back connection returned by acquireReader */
+    void releaseReader(DBConnectionBase reader) {
+    }
+    /* true while an explicit transaction is active. Reads inside it bypass the
+     * shared read cache, which must only hold committed values
+     */
+    boolean inTransaction() {
+        return false;
+    }
+    /* true if bloom filter knows key is not stored, so no native call is needed */
+    private boolean absent(String key) {
+        DBBloomFilter filter = bloom;
+        return filter != null && !filter.mightContain(key);
+    }
+    /* add key to bloom filter before it is written */
+    private void adding(String key) {
+        DBBloomFilter filter = bloom;
+        if(filter != null) filter.add(key);
+    }
+    /* native connection for a call using its fixed statements, switched first to
+     * the statements of the current table layout. Called with lock held
+     */
+    private long ptr() {
+        int version = schemaVersion;
+        if(version != nativeSchemaVersion) {
+            nativeSetSchemaVersion(cPtr, version);
+            nativeSchemaVersion = version;
+        }
+        return cPtr;
+    }
+    /* page of keys in key order starting at from, used to build bloom filter */
+    String[] scanKeys(String from, int limit) throws KVDBException {
+        synchronized (lock) {
+            return nativeScanKeys(cPtr, from, limit);
+        }
+    }
+    /* value of key read through the shared read cache when possible */
+    private Object getCached(String key, int kind) throws KVDBException {
+        boolean useCache = !inTransaction() && cache.caches(kind);
+        long generation = 0;
+        if(useCache) {
+            Object value = cache.get(key, kind);
+            if(value != null) return value;
+            generation = cache.generation();
+        }
+        Object value;
+        switch (kind) {
+            case DBValueCache.KIND_BYTES:
+                value = readBytes(key);
+                break;
+            case DBValueCache.KIND_STRING:
+                value = readString(key);
+                break;
+            case DBValueCache.KIND_INTEGER:
+                value = nativeGetLong(ptr(), key);
+                break;
+            default:
+                value = nativeGetDouble(ptr(), key);
+                break;
+        }
+        if(useCache) cache.put(key, kind, value, generation);
+        return value;
+    }
+    /* System.nanoTime() an operation starts at, 0 without metrics so they cost nothing */
+    private long startTimer() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+    private void stopTimer(int operation, long start) {
+        DBMetrics m = metrics;
+        if(m != null && start != 0) m.record(operation, start);
+    }
+    /* value of key with compression removed, null if key is not present */
+    private byte[] readBytes(String key) throws KVDBException {
+        byte[] value = nativeGetBytes(ptr(), key, valueType);
+        if(value != null && valueType[0] == ValueType.COMPRESSED) value = compressor.decompress(value);
+        return value;
+    }
+    private String readString(String key) throws KVDBException {
+        return decodeString(nativeGet(ptr(), key));
+    }
+    /* string read by a native getter, which returns compressed values as their frame */
+    private String decodeString(Object value) throws KVDBException {
+        if(value instanceof byte[]) return new String(compressor.decompress((byte[]) value), UTF8);
+        return (String) value;
+    }
+    /* decompress value of key straight into dst, see get(String, ByteBuffer) */
+    private int getCompressed(String key, ByteBuffer dst) throws KVDBException {
+        byte[] frame = nativeGetBytes(ptr(), key, valueType);
+        if(frame == null) return -1;
+        //value was replaced by another connection since it was first read
+        if(valueType[0] != ValueType.COMPRESSED) {
+            if(frame.length <= dst.remaining()) dst.put(frame);
+            return frame.length;
+        }
+        int length = compressor.originalLength(frame);
+        if(length > dst.remaining()) return length;
+        if(dst.hasArray()) {
+            compressor.decompress(frame, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + length);
+        } else {
+            dst.put(compressor.decompress(frame));
+        }
+        return length;
+    }
+    private long integer(String key) throws KVDBException {
+        return (Long) getCached(key, DBValueCache.KIND_INTEGER);
+    }
+    private double real(String key) throws KVDBException {
+        return (Double) getCached(key, DBValueCache.KIND_REAL);
+    }
+    /* drop written key from read cache, and again when current transaction ends
+     * as other connections may cache the old committed value until then
+     */
+    private void written(String key) {
+        if(cache == null) return;
+        cache.invalidate(key);
+        if(inTransaction() && !dirtyAll) {
+            dirtyKeys.add(key);
+            if(dirtyKeys.size() > MAX_DIRTY_KEYS) {
+                dirtyAll = true;
+                dirtyKeys.clear();
+            }
+        }
+    }
+    /* raw sql may have changed any value, drop whole read cache now and again
+     * when current transaction ends
+     */
+    private void rawWritten() {
+        if(cache == null) return;
+        cache.clear();
+        if(inTransaction()) {
+            dirtyAll = true;
+            dirtyKeys.clear();
+        }
+    }
+    /* invalidate keys written by the transaction which just committed or rolled back */
+    void invalidateWritten() {
+        synchronized (lock) {
+            if(cache == null) return;
+            if(dirtyAll) {
+                cache.clear();
+            } else {
+                for(String key : dirtyKeys) {
+                    cache.invalidate(key);
+                }
+            }
+            dirtyKeys.clear();
+            dirtyAll = false;
         }
     }
     /* check validity of key,value */
+    private void isValid(byte[] key, Object value) throws KVDBException{
+        if(key == null) throw new KVDBException("Key cannot be null");
+        if(value == null) throw new KVDBException("Value cannot be null");
+    }
+    private void isValid(byte[] key) throws KVDBException{
+        if(key == null) throw new KVDBException("Key cannot be null");
+    }
     private void isValid(String key, Object value) throws KVDBException{
         if(key == null) throw new KVDBException("Key cannot be null");
         if(value == null) throw new KVDBException("Value cannot be null");
@@ -198,67 +1534,149 @@ public class DBConnectionBase {
     private void isValid(String key) throws KVDBException{
         if(key == null) throw new KVDBException("Key cannot be null");
     }
-    /*serialise object to byte array*/
-    private byte[] objectToByteArray(Object o) throws KVDBException{
-        byte[] result = null;
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream output = new ObjectOutputStream(stream);
-            output.writeObject(o);
-            output.close();
-            result = stream.toByteArray();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new KVDBException(e.getMessage());
+    /* check validity of keys */
+    private void isValid(String[] keys) throws KVDBException{
+        if(keys == null) throw new KVDBException("Keys cannot be null");
+        for(String key : keys) {
+            isValid(key);
+        }
+    }
+    /* copy presence flags of a multi get to caller supplied bitmap */
+    private void setFound(BitSet found, boolean[] present) {
+        if(found == null) return;
+        found.clear();
+        for(int i = 0; i < present.length; i++) {
+            if(present[i]) found.set(i);
         }
-        return result;
+    }
+    /*serialise object to byte array through the codec chosen for its class*/
+    static byte[] objectToByteArray(Object o) throws KVDBException{
+        return CodecRegistry.getDefault().encode(o);
     }
     /*deserialise byte array to object*/
-    @SuppressWarnings("unchecked")
     private <T> T byteArrayToObject(byte[] data, Class<T> className) throws KVDBException{
-        T result = null;
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-        ObjectInputStream input = null;
-        try {
-            input = new ObjectInputStream(in);
-            result = (T)input.readObject();
-            input.close();
-            in.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new KVDBException("Error deserializing : " + e.getMessage());
+        Object result = CodecRegistry.getDefault().decode(data);
+        if(result == null || className.isPrimitive()) return cast(result);
+        if(className.isArray() && result instanceof Object[]) {
+            return cast(toArray((Object[]) result, className.getComponentType()));
         }
-        return result;
+        if(!className.isInstance(result)) {
+            throw new KVDBException("Stored value is " + result.getClass().getName() + " not " + className.getName());
+        }
+        return className.cast(result);
     }
     /*deserialise byte array to object array*/
-    @SuppressWarnings("unchecked")
     private <T> T[] byteArrayToObjectArray(byte[] data, Class<T> className) throws KVDBException{
-        T[] result = null;
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-        ObjectInputStream input = null;
-        try {
-            input = new ObjectInputStream(in);
-            result = (T[])input.readObject();
-            input.close();
-            in.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new KVDBException("Error deserialising" + e.getMessage());
+        Object result = CodecRegistry.getDefault().decode(data);
+        if(result == null) return null;
+        if(!(result instanceof Object[])) {
+            throw new KVDBException("Stored value is " + result.getClass().getName() + " not an array");
+        }
+        return cast(toArray((Object[]) result, className));
+    }
+    /* array with given component type holding the elements of values */
+    private static Object toArray(Object[] values, Class<?> component) throws KVDBException {
+        if(component.isPrimitive()) throw new KVDBException("Stored value is not a " + component.getName() + " array");
+        if(values.getClass().getComponentType() == component) return values;
+        Object[] result = (Object[]) Array.newInstance(component, values.length);
+        try {
+            System.arraycopy(values, 0, result, 0, values.length);
+        } catch (ArrayStoreException e) {
+            throw new KVDBException("Stored array elements are not " + component.getName());
         }
         return result;
     }
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+    /* number of string keys, binary keys are counted by getCount(byte[]) */
     public long getCount() throws KVDBException {
         synchronized (lock) {
             return nativeCountKeys(cPtr,null);
         }
     }
+    /* Run query and return a cursor stepping through its rows, values keep their
+     * sqlite type and compressed values are returned as stored. bindArgs are
+     * bound to the ? parameters of the query in order and may hold null, numbers,
+     * booleans, strings and byte arrays. Statement is reused by later queries
+     * with the same sql once the cursor is closed
+     */
+    public DBResult query(String sql, Object[] bindArgs) throws KVDBException {
+        if(sql == null) throw new KVDBException("Query cannot be null");
+        return openCursor(sql, bindArgs);
+    }
+    /* All rows of query converted to strings, use query() for large results */
     public String[][] executeQueryForResult(String query, Object[] bindArgs) throws KVDBException {
+        if(bindArgs != null && bindArgs.length > 0) {
+            return toStrings(query(query, bindArgs));
+        }
         synchronized (lock) {
             return nativeExecuteForResult(cPtr,query);
         }
     }
-    public void executeQuery(String query, Object[] bindArgs){
-        //TODO: use native api to prepare, bind and execute
+    /* Run query with bindArgs bound to its parameters, ignoring any rows. The
+     * compiled statement is kept in the statement cache for the next call
+     */
+    public void executeQuery(String query, Object[] bindArgs) throws KVDBException {
+        if(query == null) throw new KVDBException("Query cannot be null");
+        long statement;
+        boolean readOnly;
+        synchronized (lock) {
+            statement = nativeCursorOpen(cPtr, query, bindArgs);
+            readOnly = nativeIsReadOnly(statement);
+        }
+        try {
+            executeStatement(statement, readOnly);
+        } finally {
+            synchronized (lock) {
+                nativeCursorClose(cPtr, statement, query);
+            }
+        }
+    }
+    /* rows of cursor as strings, null values become empty strings */
+    private static String[][] toStrings(DBResult result) throws KVDBException {
+        try {
+            ArrayList<String[]> rows = new ArrayList<String[]>();
+            while(result.next()) {
+                String[] row = new String[result.getColumnCount()];
+                for(int i = 0; i < row.length; i++) {
+                    String value = result.getString(i);
+                    row[i] = value != null ? value : "";
+                }
+                rows.add(row);
+            }
+            return rows.isEmpty() ? null : rows.toArray(new String[rows.size()][]);
+        } finally {
+            result.close();
+        }
+    }
+    /* record statements running at least slowNanos in the native slow statement log */
+    void startProfiling(long slowNanos) {
+        synchronized (lock) {
+            nativeSetProfiling(cPtr, slowNanos);
+        }
+    }
+    /* move counters and slow statements of the native connection into metrics */
+    void collectStats(DBMetrics into) {
+        synchronized (lock) {
+            if(cPtr == 0) return;
+            long[] nanos = new long[DBMetrics.MAX_SLOW_STATEMENTS];
+            String[] slow = nativeTakeSlowStatements(cPtr, nanos);
+            into.collected(nativeTakeConnectionStats(cPtr), slow, nanos);
+        }
+    }
+    /* number of statements served from the native prepared statement cache */
+    public long getStatementCacheHits() throws KVDBException {
+        synchronized (lock) {
+            return nativeStatementCacheStats(cPtr)[0];
+        }
+    }
+    /* number of statements which had to be compiled by the native connection */
+    public long getStatementCacheMisses() throws KVDBException {
+        synchronized (lock) {
+            return nativeStatementCacheStats(cPtr)[1];
+        }
     }
     protected static native long nativeOpen(String path, int openFlags) throws KVDBException;
     protected static native void nativeClose(long cptr) throws KVDBException;
@@ -269,7 +1687,7 @@ public class DBConnectionBase {
     private native int nativeHolderCount(long statementPtr);
     private native boolean nativeIsReadOnly(long statementPtr);
     private native int nativeGetColumns(long connectionPtr, long statementPtr);
-    private static native void nativePut(long cptr, String key, byte[] value) throws KVDBException;
+    private static native void nativePut(long cptr, String key, byte[] value, int type) throws KVDBException;
     private native void nativePutString(long cptr, String key, String value) throws KVDBException;
     private native void nativePutShort(long cptr, String key, short val) throws KVDBException;
     private native void nativePutInt(long cptr, String key, int val) throws KVDBException;
@@ -278,8 +1696,8 @@ public class DBConnectionBase {
     private native void nativePutFloat(long cptr, String key, float val) throws KVDBException;
     private native void nativePutLong(long cptr, String key, long val) throws KVDBException;
     private native void nativeDelete(long cptr, String key) throws KVDBException;
-    private native byte[] nativeGetBytes(long cptr, String key) throws KVDBException;
-    private native String nativeGet(long cptr, String key) throws KVDBException;
+    private native byte[] nativeGetBytes(long cptr, String key, int[] type) throws KVDBException;
+    private native Object nativeGet(long cptr, String key) throws KVDBException;
     private native short nativeGetShort(long cptr, String key) throws KVDBException;
     private native int nativeGetInt(long cptr, String key) throws KVDBException;
     private native boolean nativeGetBoolean(long cptr, String key) throws KVDBException;
@@ -289,4 +1707,45 @@ public class DBConnectionBase {
     private native boolean nativeExists(long cptr, String key) throws KVDBException;
     private native long nativeCountKeys (long cptr, String prefix) throws KVDBException;
     private native String[][] nativeExecuteForResult(long cptr, String sql) throws KVDBException;
+    private static native long[] nativeStatementCacheStats(long cptr);
+    private static native long[] nativeTakeConnectionStats(long cptr);
+    private static native void nativeSetProfiling(long cptr, long slowNanos);
+    private static native String[] nativeTakeSlowStatements(long cptr, long[] nanos);
+    private static native String[] nativeScanKeys(long cptr, String from, int limit) throws KVDBException;
+    private static native long nativeCursorOpen(long cptr, String sql, Object[] bindArgs) throws KVDBException;
+    private static native String[] nativeCursorColumnNames(long statementPtr);
+    private static native int nativeCursorFill(long cptr, long statementPtr, int[] types, long[] longs, double[] doubles,
+                                               Object[] objects, int maxRows) throws KVDBException;
+    private static native void nativeCursorClose(long cptr, long statementPtr, String sql);
+    private static native void nativeBindLong(long cptr, long statementPtr, int index, long value) throws KVDBException;
+    private static native void nativeBindDouble(long cptr, long statementPtr, int index, double value) throws KVDBException;
+    private static native void nativeBindObject(long cptr, long statementPtr, int index, Object value) throws KVDBException;
+    private static native int nativeStatementStep(long cptr, long statementPtr) throws KVDBException;
+    private static native void nativeFinalize(long statementPtr);
+    private static native byte[][] nativeMultiGet(long cptr, String[] keys, int[] types) throws KVDBException;
+    private static native Object[] nativeMultiGetString(long cptr, String[] keys) throws KVDBException;
+    private static native void nativeMultiGetLong(long cptr, String[] keys, long[] values, boolean[] found) throws KVDBException;
+    private static native void nativeMultiGetDouble(long cptr, String[] keys, double[] values, boolean[] found) throws KVDBException;
+    private static native void nativePutBuffer(long cptr, String key, ByteBuffer direct, byte[] array,
+                                               int offset, int length) throws KVDBException;
+    private static native void nativeSetSchemaVersion(long cptr, int version);
+    private static native void nativeBinaryPut(long cptr, byte[] key, byte[] value, int type) throws KVDBException;
+    private static native void nativeBinaryPutLong(long cptr, byte[] key, long value) throws KVDBException;
+    private static native byte[] nativeBinaryGetBytes(long cptr, byte[] key, int[] type) throws KVDBException;
+    private static native long nativeBinaryGetLong(long cptr, byte[] key);
+    private static native boolean nativeBinaryExists(long cptr, byte[] key) throws KVDBException;
+    private static native void nativeBinaryDelete(long cptr, byte[] key) throws KVDBException;
+    private static native byte[][] nativeBinaryMultiGet(long cptr, byte[][] keys, int[] types) throws KVDBException;
+    private static native long nativeBlobOpen(long cptr, String key, int[] type) throws KVDBException;
+    private static native long nativeBlobCreate(long cptr, String key, int length) throws KVDBException;
+    private static native int nativeBlobLength(long cptr, long blob) throws KVDBException;
+    private static native void nativeBlobRead(long cptr, long blob, byte[] buf, int offset, int length,
+                                              int position) throws KVDBException;
+    private static native void nativeBlobWrite(long cptr, long blob, byte[] buf, int offset, int length,
+                                               int position) throws KVDBException;
+    private static native void nativeBlobClose(long cptr, long blob) throws KVDBException;
+    private static native int nativeGetBuffer(long cptr, String key, ByteBuffer direct, byte[] array,
+                                              int offset, int capacity, int[] type) throws KVDBException;
+    private static native void nativeWriteBatch(long cptr, int[] ops, int[] types, String[] keys, Object[] values,
+                                                long[] numbers, int count, boolean ownTransaction) throws KVDBException;
 }
@@ -1,125 +1,326 @@
 package com.kvdb.connection;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.kvdb.DB;
 import com.kvdb.KVDBException;
 import com.kvdb.internal.DBConfig;
 import com.kvdb.internal.Log;
 
-/* DBConnection pool containing active connections */
+/* DBConnection pool containing active connections. Connections are borrowed
+ * from a bounded set shared by all threads and given back with release(),
+ * callers wait up to the configured time when all of them are in use.
+ * Connections idle for longer than the idle timeout are closed.
+ *
+ * The pool has no pool wide lock. getConnection on a thread which already has
+ * its connection only reads a thread local, borrowing takes a permit of a
+ * semaphore sized to the pool and pops an idle connection off a concurrent deque.
+ *
+ * In WAL mode reads made outside of transactions run on separate read only
+ * connections, so they never queue behind a writer holding its connection.
+ * Readers are lent for a single read and do not count against pool size.
+ */
 public class DBConnectionPool {
     private static final String TAG = "DBConnectionPool";
-    private final Object lock = new Object();
-    private int maxPoolSize;
-    private boolean isOpen;
-    private int activeConnections;
-    private DBConfig config;
-    private WeakReference<DB> db;
+    private final int maxPoolSize;
+    private volatile boolean closed;
+    private final DBConfig config;
+    private final WeakReference<DB> db;
 
-    /*List of connections*/
-    private final ArrayList<DBConnection> connections = new ArrayList<DBConnection>();
+    /* one permit per connection which may be borrowed */
+    private final Semaphore permits;
+    /* connections not borrowed by anyone, most recently released first */
+    private final LinkedBlockingDeque<DBConnection> idle = new LinkedBlockingDeque<DBConnection>();
+
+    /* pool metrics */
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    /* read cache shared by connections of this pool, null if disabled */
+    private final DBValueCache valueCache;
+    /* bloom filter of keys shared by connections of this pool, null if disabled */
+    private volatile DBBloomFilter bloomFilter;
+    /* layout of the kvstore table, see DBQuery */
+    private volatile int schemaVersion = DBConfig.SCHEMA_ROWID;
+    /* compression of values written through connections of this pool */
+    private final DBCompressor compressor;
+    /* latency histograms and sqlite counters, null if disabled */
+    private final DBMetrics metrics;
+
+    /*List of connections, borrowed or idle*/
+    private final CopyOnWriteArrayList<DBConnection> connections = new CopyOnWriteArrayList<DBConnection>();
+
+    /* read only connections, idle ones are waiting in idleReaders */
+    private final CopyOnWriteArrayList<DBConnection> readers = new CopyOnWriteArrayList<DBConnection>();
+    private final ConcurrentLinkedQueue<DBConnection> idleReaders = new ConcurrentLinkedQueue<DBConnection>();
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private final AtomicLong readerReads = new AtomicLong();
+    /* set once a reader could not be opened, reads stay on their own connection */
+    private volatile boolean readersDisabled;
 
     /*Single mutex used to share write lock between connections
      * so that only one connection will be writing to database at a time
      * this lock is not acquired during read only transactions
      */
     Semaphore mutex;
-    /* Thread local connection as we do not have asynchronus operations for a connection
-    *  there is no use of having multiple connections over same thread. We can consider
-    *  multiple connections when we implement asychronus tasks in DB connection class
-    */
-    ThreadLocal<DBConnection> threadLocal = new ThreadLocal<DBConnection>() {
-        /*@Override
-        protected DBConnection initialValue(){
-            try {
-                Log.i(TAG,"Initial connection open on thread " + Thread.currentThread());
-                return newConnection();
-            } catch (KVDBException e) {
-                e.printStackTrace();
-            }
-            return null;
-        }*/
-    };
+    /* Connection borrowed by getConnection for the current thread, it is returned
+     * by later calls on the same thread until released. Only used with thread affinity
+     */
+    ThreadLocal<DBConnection> threadLocal = new ThreadLocal<DBConnection>();
 
     public static DBConnectionPool create(String path, int flags, DB db) {
         if (path == null) {
             throw new IllegalArgumentException("Path provided is null");
         }
-        DBConnectionPool pool = new DBConnectionPool(path,flags,db);
+        return create(new DBConfig(path,flags),db);
+    }
+
+    public static DBConnectionPool create(DBConfig config, DB db) {
+        if (config == null || config.path == null) {
+            throw new IllegalArgumentException("Path provided is null");
+        }
+        DBConnectionPool pool = new DBConnectionPool(config,db);
         return pool;
     }
 
-    private DBConnectionPool(String path, int flags, DB _db){
-        config = new DBConfig(path,flags);
+    private DBConnectionPool(DBConfig c, DB _db){
+        config = c;
         db = new WeakReference<DB>(_db);
-        setMaxPoolSize();
+        maxPoolSize = Math.max(1, c.maxPoolSize);
+        permits = new Semaphore(maxPoolSize);
         mutex = new Semaphore(1);
-
+        valueCache = c.readCacheBytes > 0 ? new DBValueCache(c.readCacheBytes, c.readCachePrimitives) : null;
+        compressor = new DBCompressor(c);
+        metrics = c.metrics ? new DBMetrics(this, c.slowStatementMs) : null;
+        readersDisabled = !c.wal || c.readerPoolSize <= 0 || (c.openFlags & DB.OPEN_READONLY) != 0;
     }
-    /* get or set new connection from thread local element*/
+    /* get connection of current thread, borrowing one from pool if thread has none.
+     * Without thread affinity every call borrows a connection which must be released
+     */
     public DBConnection getConnection() throws KVDBException {
-        synchronized (lock) {
-            DBConnection c = threadLocal.get();
-            if (c == null) {
-                c = newConnection();
-                threadLocal.set(c);
-                Log.i(TAG, "Connection open on thread " + Thread.currentThread().getName() + " > " + c.toString());
-            }
+        if(!config.threadAffinity) return borrowConnection(config.poolWaitMs);
+        Thread current = Thread.currentThread();
+        DBConnection c = threadLocal.get();
+        //owner is cleared by release on any thread, so a stale thread local never matches
+        if (c != null && c.owner == current) {
             if(!c.isOpen()) c.open();
             return c;
         }
+        c = borrowConnection(config.poolWaitMs);
+        c.owner = current;
+        threadLocal.set(c);
+        return c;
+    }
+    /* borrow a connection which is not bound to any thread, waiting up to timeout
+     * when all connections are in use. It must be given back with release()
+     */
+    public DBConnection borrowConnection(long timeoutMs) throws KVDBException {
+        if(closed) throw new KVDBException("Connection pool is closed");
+        if(!permits.tryAcquire()) {
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KVDBException("Interrupted while waiting for connection");
+            } finally {
+                recordWait(System.nanoTime() - start);
+            }
+            if(!acquired) {
+                timeoutCount.incrementAndGet();
+                throw new KVDBException("Timed out waiting for connection, all " + maxPoolSize + " in use");
+            }
+        }
+        DBConnection c;
+        try {
+            //close woke us up, pass permit on to next waiter
+            if(closed) throw new KVDBException("Connection pool is closed");
+            evictIdle(System.nanoTime());
+            while((c = idle.pollFirst()) != null && !c.isOpen()) {
+                removeConnection(c);
+            }
+            if(c == null) c = newConnection();
+        } catch (KVDBException e) {
+            permits.release();
+            throw e;
+        }
+        c.borrowed.set(true);
+        borrowCount.incrementAndGet();
+        return c;
     }
     /* get new connection to database through which we can interact with database*/
     private DBConnection newConnection() throws KVDBException {
-        synchronized (lock) {
-            if(activeConnections > maxPoolSize){
-                throw new KVDBException("Maximum pool size reached");
-            }
-            DBConnection dbc = DBConnection.create(config,this);
-            if(dbc.open()) {
-                connections.add(dbc);
-                activeConnections++;
-                isOpen = true;
-            } else {
-                throw new KVDBException("Unable to open connection");
+        DBConnection dbc = DBConnection.create(config,this);
+        if(!dbc.open()) throw new KVDBException("Unable to open connection");
+        connections.add(dbc);
+        //read filter after publishing connection so a concurrent setBloomFilter is not missed
+        dbc.bloom = bloomFilter;
+        dbc.schemaVersion = schemaVersion;
+        Log.i(TAG, "Connection open on thread " + Thread.currentThread().getName() + " > " + dbc.toString());
+        return dbc;
+    }
+    /* idle reader connection, opening a new one while there are fewer than reader
+     * pool size. Returns null without waiting if none is available, caller then
+     * reads on its own connection. Reader must be given back with releaseReader()
+     */
+    DBConnection acquireReader() {
+        if(readersDisabled || closed) return null;
+        DBConnection r = idleReaders.poll();
+        if(r == null) {
+            if(readerCount.incrementAndGet() > config.readerPoolSize) {
+                readerCount.decrementAndGet();
+                return null;
             }
-            return dbc;
+            r = newReader();
+            if(r == null) return null;
         }
+        readerReads.incrementAndGet();
+        return r;
     }
-    /*release connection after used. It tries closing connection to database at native
-     * but may not if connection is active but we will still remove from pool
-     * Connection will close after transaction is complete as we set flag
+    void releaseReader(DBConnection r) {
+        if(closed) {
+            closeConnection(r);
+            return;
+        }
+        idleReaders.offer(r);
+        //close raced with us, nobody else will close it
+        if(closed && idleReaders.remove(r)) closeConnection(r);
+    }
+    private DBConnection newReader() {
+        DBConnection r = DBConnection.createReader(config, this);
+        if(!r.open()) {
+            Log.e(TAG, "Unable to open reader connection, reads stay on their connection");
+            readersDisabled = true;
+            readerCount.decrementAndGet();
+            return null;
+        }
+        readers.add(r);
+        r.bloom = bloomFilter;
+        r.schemaVersion = schemaVersion;
+        if(closed && readers.remove(r)) {
+            closeConnection(r);
+            return null;
+        }
+        Log.i(TAG, "Reader connection open on thread " + Thread.currentThread().getName() + " > " + r.toString());
+        return r;
+    }
+    /* give connection back to pool so other callers can borrow it. A connection
+     * with an active transaction is closed instead once the transaction completes,
+     * as is every connection after the pool is closed. Connection must not be used
+     * by caller afterwards
      */
     public void releaseConnection(DBConnection dbc){
-        synchronized (lock) {
-            if(connections.contains(dbc)){
+        //only the first release of a borrow gives its permit back
+        if(!dbc.borrowed.compareAndSet(true, false)) return;
+        if(threadLocal.get() == dbc) threadLocal.set(null);
+        dbc.owner = null;
+        if(dbc.finalized || !dbc.isOpen() || dbc.state.isReadWriteActive() || closed) {
+            closeConnection(dbc);
+            removeConnection(dbc);
+        } else {
+            dbc.idleSince = System.nanoTime();
+            idle.offerFirst(dbc);
+            //close raced with us, nobody else will close it
+            if(closed && idle.removeFirstOccurrence(dbc)) {
                 closeConnection(dbc);
-                connections.remove(dbc);
-                threadLocal.set(null);
-                activeConnections--;
+                removeConnection(dbc);
             }
-            if(activeConnections == 0) isOpen = false;
         }
+        permits.release();
+        evictIdle(System.nanoTime());
     }
-    void setMaxPoolSize(){
-        maxPoolSize = 5; //maximum 5 connection per database
+    /* close every connection and reader which nobody has borrowed */
+    public void closeIdleConnections(){
+        DBConnection c;
+        while((c = idle.pollFirst()) != null) {
+            closeConnection(c);
+            removeConnection(c);
+        }
+        DBConnection r;
+        while((r = idleReaders.poll()) != null) {
+            closeConnection(r);
+            readers.remove(r);
+            readerCount.decrementAndGet();
+        }
+    }
+    /* close connections idle for longer than idle timeout, least recently used first */
+    private void evictIdle(long now){
+        long timeout = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMs);
+        Iterator<DBConnection> it = idle.descendingIterator();
+        while(it.hasNext()) {
+            DBConnection c = it.next();
+            if(now - c.idleSince < timeout) break;
+            //a borrower may have taken it meanwhile
+            if(idle.removeLastOccurrence(c)) {
+                closeConnection(c);
+                removeConnection(c);
+            }
+        }
+    }
+    private void removeConnection(DBConnection dbc){
+        connections.remove(dbc);
+    }
+
+    /* number of connections currently open, borrowed or idle */
+    public int getOpenCount(){
+        return connections.size();
+    }
+    /* number of connections currently borrowed */
+    public int getBorrowedCount(){
+        return Math.max(0, maxPoolSize - permits.availablePermits());
+    }
+    /* borrowed connections relative to maximum pool size */
+    public double getUtilization(){
+        return (double) getBorrowedCount() / maxPoolSize;
+    }
+    public long getBorrowCount(){
+        return borrowCount.get();
+    }
+    /* number of borrows which had to wait for a connection */
+    public long getWaitCount(){
+        return waitCount.get();
+    }
+    /* number of borrows which gave up waiting */
+    public long getTimeoutCount(){
+        return timeoutCount.get();
+    }
+    public long getTotalWaitMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+    public long getMaxWaitMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+    /* number of reader connections open */
+    public int getReaderCount(){
+        return readers.size();
+    }
+    /* number of reads served by reader connections */
+    public long getReaderReadCount(){
+        return readerReads.get();
+    }
+    private void recordWait(long wait){
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(wait);
+        long max;
+        while(wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait));
     }
     /*If WAL is enabled we can read in parallel to write
      * but only one connection can write to the database
      */
     boolean canProceedWithRead(){
-        if(config.wal) {
-            return true;
-        } else {
-            for(DBConnection con : connections) {
-                if(con.state.isWriteTransActive) return false;
-            }
-            return true;
-        }
+        return config.wal || mutex.availablePermits() > 0;
     }
     /* close connection call to connection*/
     void closeConnection(DBConnection connection) {
@@ -131,24 +332,34 @@ public class DBConnectionPool {
     }
     /*closes all connections made from this pool*/
     void close(){
-        synchronized (lock) {
-            for(DBConnection c : connections) {
-                closeConnection(c);
-            }
-            connections.clear();
-            isOpen = false;
+        //borrowed connections and readers are closed when they are given back
+        closed = true;
+        for(DBConnection c : connections) {
+            closeConnection(c);
+        }
+        connections.clear();
+        idle.clear();
+        DBConnection r;
+        while((r = idleReaders.poll()) != null) {
+            closeConnection(r);
         }
+        readers.clear();
+        //wake up borrowers waiting for a permit, each one passes it on to the next
+        permits.release();
     }
     boolean isOpen(){
-        return isOpen;
+        return !connections.isEmpty();
     }
     /* write lock apis used by connections to gain write lock*/
     boolean acquireWriteLockWait(int timeout){
+        long start = metrics == null ? 0 : System.nanoTime();
         try {
             return mutex.tryAcquire(timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            if(start != 0) metrics.record(DBMetrics.LOCK_WAIT, start);
         }
     }
     boolean acquireWriteLockWaitInf(){
@@ -166,10 +377,59 @@ public class DBConnectionPool {
     void releaseWriteLock(){
         mutex.release();
     }
-    ArrayList<DBConnection> getActiveConnections(){
+    List<DBConnection> getActiveConnections(){
         return connections;
     }
     DB getDB(){
         return db.get();
     }
+    public DBValueCache getValueCache(){
+        return valueCache;
+    }
+    /* start filtering gets of all connections through bloom filter. Must be set
+     * before connections write, keys written earlier are not in the filter
+     */
+    public void setBloomFilter(DBBloomFilter filter){
+        bloomFilter = filter;
+        for(DBConnection c : connections) {
+            c.bloom = filter;
+        }
+        for(DBConnection r : readers) {
+            r.bloom = filter;
+        }
+    }
+    public DBBloomFilter getBloomFilter(){
+        return bloomFilter;
+    }
+    /* switch all connections to the statements of a table layout, set by DB at
+     * open and when a migration replaces the table
+     */
+    public void setSchemaVersion(int version){
+        schemaVersion = version;
+        for(DBConnection c : connections) {
+            c.schemaVersion = version;
+        }
+        for(DBConnection r : readers) {
+            r.schemaVersion = version;
+        }
+    }
+    public int getSchemaVersion(){
+        return schemaVersion;
+    }
+    public DBCompressor getCompressor(){
+        return compressor;
+    }
+    public DBMetrics getMetrics(){
+        return metrics;
+    }
+    /* take native counters of every open connection into metrics */
+    void collectStats(){
+        if(metrics == null) return;
+        for(DBConnection c : connections) {
+            c.collectStats(metrics);
+        }
+        for(DBConnection r : readers) {
+            r.collectStats(metrics);
+        }
+    }
 }
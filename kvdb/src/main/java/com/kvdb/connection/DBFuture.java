@@ -0,0 +1,106 @@
+package com.kvdb.connection;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Result of an operation which is completed by the database on another thread.
+ * Operations cannot be cancelled once submitted
+ */
+public class DBFuture<T> implements Future<T> {
+    /* callback for callers which must not block waiting on get() */
+    public interface Listener<T> {
+        /* called once with the result, or with the error the operation failed with */
+        void onComplete(T result, Throwable error);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile T value;
+    private volatile Throwable error;
+    /* listeners waiting for completion, null once they have been run */
+    private ArrayList<Listener<T>> listeners = new ArrayList<Listener<T>>(1);
+
+    /* complete with result, ignored if already completed */
+    boolean complete(T result) {
+        if(!completed.compareAndSet(false, true)) return false;
+        value = result;
+        done.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    /* complete with failure, ignored if already completed */
+    boolean fail(Throwable cause) {
+        if(!completed.compareAndSet(false, true)) return false;
+        error = cause;
+        done.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    /* run listener on the thread completing this future, or right away on the
+     * calling thread if it is already done. Listeners must not block
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if(listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(value, error);
+    }
+
+    private void notifyListeners() {
+        ArrayList<Listener<T>> pending;
+        synchronized (this) {
+            pending = listeners;
+            listeners = null;
+        }
+        for(Listener<T> listener : pending) {
+            try {
+                listener.onComplete(value, error);
+            } catch (RuntimeException e) {
+                //one failing listener must not keep the others from running
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit)) throw new TimeoutException();
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if(error != null) throw new ExecutionException(error);
+        return value;
+    }
+}
@@ -0,0 +1,87 @@
+package com.kvdb.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Latency histogram in nanoseconds with log linear buckets like HdrHistogram:
+ * every power of two range is split into SUB_BUCKETS buckets, so recorded values
+ * are kept to within 12.5% at any magnitude in a fixed 4 KB of counters.
+ * Recording is a few atomic increments and never allocates
+ */
+public class DBHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+    public long getTotalNanos() {
+        return total.get();
+    }
+    public long getMaxNanos() {
+        return max.get();
+    }
+    public long getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+    /* smallest bucket bound at or above percentile (0 - 100) of recorded values */
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if(n == 0) return 0;
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n);
+        if(rank == 0) rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + micros(getMeanNanos()) + "us p50=" + micros(getPercentileNanos(50)) +
+                "us p99=" + micros(getPercentileNanos(99)) + "us max=" + micros(getMaxNanos()) + "us";
+    }
+
+    /* values below SUB_BUCKETS get a bucket each, larger ones keep their top SUB_BITS + 1 bits */
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
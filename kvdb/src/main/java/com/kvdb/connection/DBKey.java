@@ -0,0 +1,132 @@
+package com.kvdb.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.kvdb.KVDBException;
+
+/* Encodings of binary keys. Binary keys are compared as unsigned bytes, so
+ * a long is stored big endian with its sign bit flipped to sort as a number,
+ * and a tuple as its elements one after another, each tagged with its type.
+ * Strings and byte arrays in a tuple end with 0x00, a 0x00 inside them is
+ * written as 0x00 0xFF. The encoding of the first elements of a tuple is a
+ * prefix of the whole tuple, so all keys below one are scanned with scan(prefix)
+ */
+public final class DBKey {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int TAG_BYTES = 0x01;
+    private static final int TAG_STRING = 0x02;
+    private static final int TAG_LONG = 0x03;
+
+    private DBKey() {
+    }
+
+    /* 8 byte key of a long, in the order of the numbers */
+    public static byte[] of(long key) {
+        byte[] bytes = new byte[8];
+        putLong(bytes, 0, key);
+        return bytes;
+    }
+    /* long of a key made by of(long) */
+    public static long toLong(byte[] key) throws KVDBException {
+        if(key == null || key.length != 8) throw new KVDBException("Not a long key");
+        return getLong(key, 0);
+    }
+    /* smallest key greater than every key starting with prefix, null if there is none */
+    public static byte[] prefixEnd(byte[] prefix) {
+        int end = prefix.length;
+        while(end > 0 && prefix[end - 1] == (byte) 0xff) {
+            end--;
+        }
+        if(end == 0) return null;
+        byte[] next = Arrays.copyOf(prefix, end);
+        next[end - 1]++;
+        return next;
+    }
+    public static Tuple tuple() {
+        return new Tuple();
+    }
+    /* elements of a tuple key, as Long, String and byte[] */
+    public static Object[] decode(byte[] key) throws KVDBException {
+        List<Object> elements = new ArrayList<Object>();
+        int i = 0;
+        while(i < key.length) {
+            int tag = key[i++];
+            if(tag == TAG_LONG) {
+                if(i + 8 > key.length) throw new KVDBException("Truncated tuple key");
+                elements.add(getLong(key, i));
+                i += 8;
+                continue;
+            }
+            if(tag != TAG_BYTES && tag != TAG_STRING) throw new KVDBException("Invalid tuple key");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            while(true) {
+                if(i >= key.length) throw new KVDBException("Truncated tuple key");
+                byte b = key[i++];
+                if(b != 0) {
+                    bytes.write(b);
+                } else if(i < key.length && key[i] == (byte) 0xff) {
+                    bytes.write(0);
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            elements.add(tag == TAG_STRING ? new String(bytes.toByteArray(), UTF8) : bytes.toByteArray());
+        }
+        return elements.toArray();
+    }
+
+    /* Builds a composite key element by element */
+    public static final class Tuple {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+
+        private Tuple() {
+        }
+
+        public Tuple add(long value) {
+            byte[] bytes = new byte[9];
+            bytes[0] = TAG_LONG;
+            putLong(bytes, 1, value);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+        /* utf-8 orders strings by code point */
+        public Tuple add(String value) {
+            return add(TAG_STRING, value.getBytes(UTF8));
+        }
+        public Tuple add(byte[] value) {
+            return add(TAG_BYTES, value);
+        }
+        private Tuple add(int tag, byte[] value) {
+            out.write(tag);
+            for(byte b : value) {
+                out.write(b);
+                if(b == 0) out.write(0xff);
+            }
+            out.write(0);
+            return this;
+        }
+        public byte[] toBytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        value ^= Long.MIN_VALUE;
+        for(int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value ^ Long.MIN_VALUE;
+    }
+}
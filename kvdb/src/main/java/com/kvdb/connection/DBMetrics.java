@@ -0,0 +1,156 @@
+package com.kvdb.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kvdb.internal.Log;
+
+/* Operation counts and latencies of a database, shared by all its connections.
+ * Only exists when DBConfig.metrics is set, connections of a database without
+ * metrics skip timing altogether.
+ *
+ * Counters kept by sqlite connections (busy retries, page cache hits and misses,
+ * slow statements) are collected from open connections when they are read and
+ * from every connection as it closes
+ */
+public class DBMetrics {
+    private static final String TAG = "DBMetrics";
+
+    /* operations with a latency histogram */
+    public static final int GET = 0;
+    public static final int PUT = 1;
+    public static final int DELETE = 2;
+    public static final int SCAN = 3;
+    public static final int BATCH = 4;
+    /* read/write transaction from begin to commit or rollback */
+    public static final int TRANSACTION = 5;
+    /* wait for the database write lock */
+    public static final int LOCK_WAIT = 6;
+    private static final String[] NAMES = {"get", "put", "delete", "scan", "batch", "transaction", "lock wait"};
+
+    /* number of slow statements kept, older ones are dropped */
+    static final int MAX_SLOW_STATEMENTS = 100;
+
+    /* statement which took longer than DBConfig.slowStatementMs */
+    public static final class SlowStatement {
+        public final String sql;
+        public final long nanos;
+        /* System.currentTimeMillis() when it was collected */
+        public final long collectedAt;
+
+        SlowStatement(String sql, long nanos, long collectedAt) {
+            this.sql = sql;
+            this.nanos = nanos;
+            this.collectedAt = collectedAt;
+        }
+        @Override
+        public String toString() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos) + " ms : " + sql;
+        }
+    }
+
+    private final DBConnectionPool pool;
+    final long slowNanos;
+    private final DBHistogram[] histograms = new DBHistogram[NAMES.length];
+    private final AtomicLong busyRetries = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final ConcurrentLinkedQueue<SlowStatement> slowStatements = new ConcurrentLinkedQueue<SlowStatement>();
+    private final AtomicInteger slowCount = new AtomicInteger();
+
+    DBMetrics(DBConnectionPool pool, long slowStatementMs) {
+        this.pool = pool;
+        this.slowNanos = slowStatementMs < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(slowStatementMs);
+        for(int i = 0; i < histograms.length; i++) {
+            histograms[i] = new DBHistogram();
+        }
+    }
+
+    /* record operation which started at System.nanoTime() start */
+    void record(int operation, long start) {
+        histograms[operation].record(System.nanoTime() - start);
+    }
+    /* add counters taken from a native connection */
+    void collected(long[] stats, String[] slowSql, long[] slowNanos) {
+        busyRetries.addAndGet(stats[0]);
+        cacheHits.addAndGet(stats[1]);
+        cacheMisses.addAndGet(stats[2]);
+        pagesWritten.addAndGet(stats[3]);
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < slowSql.length; i++) {
+            SlowStatement slow = new SlowStatement(slowSql[i], slowNanos[i], now);
+            Log.w(TAG, "Slow statement " + slow);
+            slowStatements.offer(slow);
+            if(slowCount.incrementAndGet() > MAX_SLOW_STATEMENTS && slowStatements.poll() != null) {
+                slowCount.decrementAndGet();
+            }
+        }
+    }
+
+    public DBHistogram getHistogram(int operation) {
+        return histograms[operation];
+    }
+    public static String getName(int operation) {
+        return NAMES[operation];
+    }
+    /* times a connection found the database locked and waited to retry */
+    public long getBusyRetries() {
+        pool.collectStats();
+        return busyRetries.get();
+    }
+    public long getPageCacheHits() {
+        pool.collectStats();
+        return cacheHits.get();
+    }
+    public long getPageCacheMisses() {
+        pool.collectStats();
+        return cacheMisses.get();
+    }
+    /* pages written to the database file or its WAL, against the puts made
+     * this shows write amplification
+     */
+    public long getPagesWritten() {
+        pool.collectStats();
+        return pagesWritten.get();
+    }
+    /* total time spent waiting for the write lock */
+    public long getWriteLockWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(histograms[LOCK_WAIT].getTotalNanos());
+    }
+    /* most recent slow statements, oldest first */
+    public List<SlowStatement> getSlowStatements() {
+        pool.collectStats();
+        return new ArrayList<SlowStatement>(slowStatements);
+    }
+    public void reset() {
+        pool.collectStats();
+        for(DBHistogram h : histograms) {
+            h.reset();
+        }
+        busyRetries.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        pagesWritten.set(0);
+        while(slowStatements.poll() != null) {
+            slowCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i < histograms.length; i++) {
+            s.append(NAMES[i]).append(" : ").append(histograms[i]).append('\n');
+        }
+        s.append("busy retries : ").append(getBusyRetries())
+                .append(", page cache hits : ").append(cacheHits.get())
+                .append(", misses : ").append(cacheMisses.get())
+                .append(", pages written : ").append(pagesWritten.get());
+        return s.toString();
+    }
+}
@@ -1,11 +1,216 @@
 package com.kvdb.connection;
 
-import java.util.Iterator;
-
-/*TODO : Implement */
-public class DBResult {
-    int columns;
-    int rows;
-    String[][] result;
-    Iterator<String> it;
+import java.io.Closeable;
+import java.nio.charset.Charset;
+
+import com.kvdb.KVDBException;
+
+/* Cursor over the rows of a query, backed by a live native statement which is
+ * taken from the connection statement cache and given back on close.
+ * Rows are fetched from the statement in chunks of fetch size rows per native
+ * call, so results are never materialized all at once. Cursor must be closed
+ * when done, it holds a read snapshot of the database until it reaches the end.
+ * A cursor belongs to the connection which opened it and is closed with it.
+ * Cursors of scan return values decoded like get does, cursors of query return
+ * values as they are stored, compressed ones as their frame.
+ */
+public class DBResult implements Closeable {
+    /* column types, same as sqlite fundamental types */
+    public static final int TYPE_INTEGER = 1;
+    public static final int TYPE_FLOAT = 2;
+    public static final int TYPE_STRING = 3;
+    public static final int TYPE_BLOB = 4;
+    public static final int TYPE_NULL = 5;
+
+    public static final int DEFAULT_FETCH_SIZE = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DBConnectionBase connection;
+    /* connection which lent its reader connection to this cursor, if any */
+    DBConnectionBase readerOwner;
+    final String sql;
+    long statement;
+    private final String[] columnNames;
+    /* columns fetched per row, one more than shown when values are decoded */
+    private final int stride;
+    private int columns;
+    /* column of values decoded with the type in the last column, -1 if none */
+    private int valueColumn = -1;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    /* current chunk of rows, cell of a row and column is row * stride + column */
+    private int[] types;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+    private int rows;
+    private int row = -1;
+    private boolean done;
+    private boolean closed;
+
+    DBResult(DBConnectionBase connection, String sql, long statement, String[] columnNames) {
+        this.connection = connection;
+        this.sql = sql;
+        this.statement = statement;
+        this.columnNames = columnNames;
+        this.stride = columnNames.length;
+        this.columns = columnNames.length;
+    }
+
+    /* decode compressed values of column by the value type selected as last
+     * column, which is hidden. Called before the first fetch
+     */
+    void decodeValues(int column) {
+        valueColumn = column;
+        columns = stride - 1;
+    }
+
+    /* number of rows fetched by each native call */
+    public void setFetchSize(int fetchSize) {
+        if(fetchSize <= 0) throw new IllegalArgumentException("Invalid fetch size");
+        this.fetchSize = fetchSize;
+    }
+
+    /* move to next row, returns false once there are no more rows */
+    public boolean next() throws KVDBException {
+        if(closed) throw new KVDBException("Cursor is closed");
+        if(++row < rows) return true;
+        if(done) return false;
+        fetch();
+        return row < rows;
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+    /* type of value in column of current row, one of the TYPE constants */
+    public int getType(int column) throws KVDBException {
+        return types[cell(column)];
+    }
+    public boolean isNull(int column) throws KVDBException {
+        return getType(column) == TYPE_NULL;
+    }
+    public long getLong(int column) throws KVDBException {
+        int cell = cell(column);
+        switch (types[cell]) {
+            case TYPE_INTEGER:
+                return longs[cell];
+            case TYPE_FLOAT:
+                return (long) doubles[cell];
+            case TYPE_NULL:
+                return 0;
+            default:
+                return parseLong(getString(column));
+        }
+    }
+    public int getInt(int column) throws KVDBException {
+        return (int) getLong(column);
+    }
+    public double getDouble(int column) throws KVDBException {
+        int cell = cell(column);
+        switch (types[cell]) {
+            case TYPE_INTEGER:
+                return longs[cell];
+            case TYPE_FLOAT:
+                return doubles[cell];
+            case TYPE_NULL:
+                return 0;
+            default:
+                try {
+                    return Double.parseDouble(getString(column).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+    public String getString(int column) throws KVDBException {
+        int cell = cell(column);
+        switch (types[cell]) {
+            case TYPE_INTEGER:
+                return Long.toString(longs[cell]);
+            case TYPE_FLOAT:
+                return Double.toString(doubles[cell]);
+            case TYPE_STRING:
+                return (String) objects[cell];
+            case TYPE_BLOB:
+                return new String((byte[]) objects[cell], UTF8);
+            default:
+                return null;
+        }
+    }
+    public byte[] getBytes(int column) throws KVDBException {
+        int cell = cell(column);
+        switch (types[cell]) {
+            case TYPE_BLOB:
+                return (byte[]) objects[cell];
+            case TYPE_NULL:
+                return null;
+            default:
+                return getString(column).getBytes(UTF8);
+        }
+    }
+
+    /* release native statement, cursor cannot be used afterwards */
+    @Override
+    public void close() {
+        if(!closed) connection.closeCursor(this);
+        if(readerOwner != null) {
+            readerOwner.releaseReader(connection);
+            readerOwner = null;
+        }
+    }
+    /* called by connection once statement is released */
+    void closed() {
+        closed = true;
+        statement = 0;
+        objects = null;
+        rows = 0;
+    }
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void fetch() throws KVDBException {
+        int cells = fetchSize * stride;
+        if(types == null || types.length != cells) {
+            types = new int[cells];
+            longs = new long[cells];
+            doubles = new double[cells];
+            objects = new Object[cells];
+        }
+        rows = connection.fillCursor(this, types, longs, doubles, objects, fetchSize);
+        row = 0;
+        if(rows < fetchSize) done = true;
+        if(valueColumn >= 0) decode();
+    }
+    private void decode() throws KVDBException {
+        DBCompressor compressor = connection.compressor;
+        for(int r = 0; r < rows; r++) {
+            int cell = r * stride + valueColumn;
+            int type = r * stride + stride - 1;
+            if(types[cell] != TYPE_BLOB || types[type] != TYPE_INTEGER || longs[type] != ValueType.COMPRESSED) continue;
+            //strings are stored as blobs too, so the decoded value stays one
+            objects[cell] = compressor.decompress((byte[]) objects[cell]);
+        }
+    }
+    private int cell(int column) throws KVDBException {
+        if(closed) throw new KVDBException("Cursor is closed");
+        if(row < 0 || row >= rows) throw new KVDBException("Cursor is not on a row");
+        if(column < 0 || column >= columns) throw new KVDBException("Invalid column " + column);
+        return row * stride + column;
+    }
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value.trim());
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+    }
 }
@@ -0,0 +1,460 @@
+package com.kvdb.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.kvdb.KVDBException;
+
+/* Read only snapshot file written by DBSnapshotWriter, served straight from
+ * memory mapped regions without native calls. Opening reads the header and maps
+ * the file, so it takes the same time whatever the file size. A lookup checks
+ * the bloom filter, binary searches the block index and walks one block, and
+ * allocates nothing but the value it returns: exists, getLong, getDouble and
+ * get(key, ByteBuffer) do not allocate at all.
+ *
+ * A snapshot is thread safe. Its file must not be changed while it is open, the
+ * mapping is released once the snapshot is garbage collected.
+ */
+public class DBSnapshot {
+    static final int MAGIC = 0x4b56534e;
+    static final int VERSION = 1;
+    /* magic, version, region bits, hash count, key count, block count, index
+     * offset, bloom offset, bloom words and file length
+     */
+    static final int HEADER = 4 * 4 + 6 * 8;
+    /* key length, value length and type of every entry */
+    static final int ENTRY_HEADER = 4 + 4 + 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final ByteBuffer[] regions;
+    private final int regionBits;
+    private final long regionMask;
+    private final int hashCount;
+    private final long keyCount;
+    private final long blockCount;
+    private final long indexOffset;
+    private final long bloomOffset;
+    private final long bloomBits;
+    /* duplicates of regions for bulk copies, which need a position of their own */
+    private final ThreadLocal<ByteBuffer[]> copies = new ThreadLocal<ByteBuffer[]>();
+    private volatile boolean closed;
+
+    public static DBSnapshot open(File file) throws KVDBException {
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                long length = in.length();
+                if(length < HEADER || in.readInt() != MAGIC) throw new KVDBException("Not a snapshot : " + file);
+                int version = in.readInt();
+                if(version != VERSION) throw new KVDBException("Unsupported snapshot version " + version);
+                int regionBits = in.readInt();
+                int hashCount = in.readInt();
+                long keyCount = in.readLong();
+                long blockCount = in.readLong();
+                long indexOffset = in.readLong();
+                long bloomOffset = in.readLong();
+                long bloomWords = in.readLong();
+                long fileLength = in.readLong();
+                if(regionBits < 12 || regionBits > 30 || fileLength != length || blockCount < 0
+                        || indexOffset < HEADER || indexOffset + 8 * blockCount > length
+                        || (bloomOffset != 0 && (bloomWords <= 0 || hashCount <= 0 || bloomOffset + 8 * bloomWords > length))) {
+                    throw new KVDBException("Corrupt snapshot : " + file);
+                }
+                long regionSize = 1L << regionBits;
+                ByteBuffer[] regions = new ByteBuffer[(int) ((length + regionSize - 1) >>> regionBits)];
+                FileChannel channel = in.getChannel();
+                for(int i = 0; i < regions.length; i++) {
+                    long start = (long) i << regionBits;
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, length - start));
+                }
+                return new DBSnapshot(file, regions, regionBits, hashCount, keyCount, blockCount, indexOffset,
+                        bloomOffset, bloomWords * 64);
+            } finally {
+                //mapped regions stay valid once the file is closed
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new KVDBException("Cannot open snapshot " + file + " : " + e.getMessage());
+        }
+    }
+
+    private DBSnapshot(File file, ByteBuffer[] regions, int regionBits, int hashCount, long keyCount, long blockCount,
+                       long indexOffset, long bloomOffset, long bloomBits) {
+        this.file = file;
+        this.regions = regions;
+        this.regionBits = regionBits;
+        this.regionMask = (1L << regionBits) - 1;
+        this.hashCount = hashCount;
+        this.keyCount = keyCount;
+        this.blockCount = blockCount;
+        this.indexOffset = indexOffset;
+        this.bloomOffset = bloomOffset;
+        this.bloomBits = bloomBits;
+    }
+
+    public File getFile() {
+        return file;
+    }
+    public long getKeyCount() {
+        return keyCount;
+    }
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /* false if key is definitely not in snapshot, true if it may be or the
+     * snapshot has no bloom filter
+     */
+    public boolean mightContain(String key) {
+        if(bloomOffset == 0) return true;
+        long hash = DBBloomFilter.hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bloomBits;
+            if((readLong(bloomOffset + (bit >>> 6) * 8) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+    public boolean exists(String key) throws KVDBException {
+        return find(key) >= 0;
+    }
+    /* value of key as string, null if key is not present */
+    public String get(String key) throws KVDBException {
+        long entry = find(key);
+        return entry < 0 ? null : stringOf(entry);
+    }
+    /* value of key as bytes, numbers as their decimal text. Null if key is not present */
+    public byte[] getBytes(String key) throws KVDBException {
+        long entry = find(key);
+        return entry < 0 ? null : bytesOf(entry);
+    }
+    /* value of key as number, 0 if key is not present */
+    public long getLong(String key) throws KVDBException {
+        long entry = find(key);
+        return entry < 0 ? 0 : longOf(entry);
+    }
+    public double getDouble(String key) throws KVDBException {
+        long entry = find(key);
+        return entry < 0 ? 0 : doubleOf(entry);
+    }
+    /* same contract as DBConnection.get(String, ByteBuffer): value is copied into
+     * dst only if it fits, returns value length or -1 if key is not present
+     */
+    public int get(String key, ByteBuffer dst) throws KVDBException {
+        if(dst == null) throw new KVDBException("Buffer cannot be null");
+        long entry = find(key);
+        return entry < 0 ? -1 : copyValue(entry, dst);
+    }
+
+    /* cursor over keys starting with prefix in key order */
+    public Cursor scan(String prefix) throws KVDBException {
+        if(prefix == null) throw new KVDBException("Prefix cannot be null");
+        return scan(prefix, DBConnectionBase.prefixEnd(prefix), 0);
+    }
+    /* cursor over keys from fromKey (inclusive) to toKey (exclusive) in key order,
+     * returning at most limit rows. Null bounds and limit <= 0 are unbounded
+     */
+    public Cursor scan(String fromKey, String toKey, int limit) throws KVDBException {
+        checkOpen();
+        return new Cursor(fromKey, toKey, limit);
+    }
+
+    /* stop serving lookups. Mapped memory is given back once the snapshot is garbage collected */
+    public void close() {
+        closed = true;
+    }
+
+    /* order of string keys in sqlite and in snapshots. Keys are bound as modified
+     * UTF-8, whose bytes compare like UTF-16 code units, apart from U+0000 which
+     * is encoded as C0 80 and sorts between U+007F and U+0080
+     */
+    public static int compareKeys(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for(int i = 0; i < n; i++) {
+            int ca = unitOrder(a.charAt(i));
+            int cb = unitOrder(b.charAt(i));
+            if(ca != cb) return ca < cb ? -1 : 1;
+        }
+        return a.length() - b.length();
+    }
+    /* rank of code unit in modified UTF-8 byte order */
+    static int unitOrder(int unit) {
+        if(unit == 0) return 0x80;
+        return unit < 0x80 ? unit : unit + 1;
+    }
+
+    /* Cursor over the entries of a snapshot, not thread safe */
+    public class Cursor {
+        private final String fromKey;
+        private final String toKey;
+        private final int limit;
+        private int returned;
+        private long block = -1;
+        /* next entry to visit and entries left in its block */
+        private long next;
+        private int left;
+        private long current = -1;
+        private boolean done;
+
+        Cursor(String fromKey, String toKey, int limit) {
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.limit = limit;
+        }
+
+        /* move to next entry, returns false once there are no more */
+        public boolean next() throws KVDBException {
+            checkOpen();
+            current = -1;
+            if(done || (limit > 0 && returned >= limit)) return false;
+            if(block < 0) {
+                long first = fromKey == null ? 0 : Math.max(0, findBlock(fromKey));
+                if(first >= blockCount) return end();
+                enter(first);
+            }
+            long entry = step();
+            //first call skips entries of the start block before fromKey
+            while(entry >= 0 && returned == 0 && fromKey != null && compareStored(fromKey, entry) > 0) {
+                entry = step();
+            }
+            if(entry < 0 || (toKey != null && compareStored(toKey, entry) <= 0)) return end();
+            current = entry;
+            returned++;
+            return true;
+        }
+        public String getKey() throws KVDBException {
+            long entry = entry();
+            int keyLength = readInt(entry);
+            return decode(entry + ENTRY_HEADER, keyLength);
+        }
+        /* type the value was written with, one of the ValueType constants */
+        public int getType() throws KVDBException {
+            return typeOf(entry());
+        }
+        public String getString() throws KVDBException {
+            return stringOf(entry());
+        }
+        public byte[] getBytes() throws KVDBException {
+            return bytesOf(entry());
+        }
+        public long getLong() throws KVDBException {
+            return longOf(entry());
+        }
+        public double getDouble() throws KVDBException {
+            return doubleOf(entry());
+        }
+        /* copy value into dst if it fits, returns value length */
+        public int get(ByteBuffer dst) throws KVDBException {
+            if(dst == null) throw new KVDBException("Buffer cannot be null");
+            return copyValue(entry(), dst);
+        }
+
+        private void enter(long b) {
+            block = b;
+            long offset = readLong(indexOffset + 8 * b);
+            left = readInt(offset);
+            next = offset + 4;
+        }
+        private long step() {
+            while(left == 0) {
+                if(block + 1 >= blockCount) return -1;
+                enter(block + 1);
+            }
+            long entry = next;
+            next += ENTRY_HEADER + readInt(entry) + readInt(entry + 4);
+            left--;
+            return entry;
+        }
+        private boolean end() {
+            done = true;
+            return false;
+        }
+        private long entry() throws KVDBException {
+            checkOpen();
+            if(current < 0) throw new KVDBException("No current entry");
+            return current;
+        }
+    }
+
+    /* position of entry of key, -1 if key is not present */
+    private long find(String key) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+        checkOpen();
+        if(!mightContain(key)) return -1;
+        long b = findBlock(key);
+        if(b < 0) return -1;
+        long offset = readLong(indexOffset + 8 * b);
+        int entries = readInt(offset);
+        long entry = offset + 4;
+        for(int i = 0; i < entries; i++) {
+            int order = compareStored(key, entry);
+            if(order == 0) return entry;
+            if(order < 0) return -1;
+            entry += ENTRY_HEADER + readInt(entry) + readInt(entry + 4);
+        }
+        return -1;
+    }
+    /* last block whose first key is not greater than key, -1 if key precedes all keys */
+    private long findBlock(String key) {
+        long lo = 0;
+        long hi = blockCount - 1;
+        long found = -1;
+        while(lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long first = readLong(indexOffset + 8 * mid) + 4;
+            if(compareStored(key, first) >= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+    /* compare key to key of entry, decoding the stored UTF-8 in place to the
+     * code units compareKeys orders by
+     */
+    private int compareStored(String key, long entry) {
+        int length = readInt(entry);
+        ByteBuffer region = regions[(int) ((entry + ENTRY_HEADER) >>> regionBits)];
+        int p = (int) ((entry + ENTRY_HEADER) & regionMask);
+        int end = p + length;
+        int i = 0;
+        //low surrogate of a stored supplementary character, -1 if none
+        int low = -1;
+        while(i < key.length() && (p < end || low >= 0)) {
+            int stored;
+            if(low >= 0) {
+                stored = low;
+                low = -1;
+            } else {
+                int b = region.get(p) & 0xff;
+                if(b < 0x80) {
+                    stored = b;
+                    p += 1;
+                } else if(b < 0xe0) {
+                    stored = ((b & 0x1f) << 6) | (region.get(p + 1) & 0x3f);
+                    p += 2;
+                } else if(b < 0xf0) {
+                    stored = ((b & 0x0f) << 12) | ((region.get(p + 1) & 0x3f) << 6) | (region.get(p + 2) & 0x3f);
+                    p += 3;
+                } else {
+                    int codePoint = ((b & 0x07) << 18) | ((region.get(p + 1) & 0x3f) << 12)
+                            | ((region.get(p + 2) & 0x3f) << 6) | (region.get(p + 3) & 0x3f);
+                    stored = Character.highSurrogate(codePoint);
+                    low = Character.lowSurrogate(codePoint);
+                    p += 4;
+                }
+            }
+            int c = unitOrder(key.charAt(i));
+            int s = unitOrder(stored);
+            if(c != s) return c < s ? -1 : 1;
+            i++;
+        }
+        if(i < key.length()) return 1;
+        return p < end || low >= 0 ? -1 : 0;
+    }
+
+    private int typeOf(long entry) {
+        return region(entry + 8).get(offset(entry + 8));
+    }
+    private long valueOffset(long entry) {
+        return entry + ENTRY_HEADER + readInt(entry);
+    }
+    private String stringOf(long entry) {
+        int type = typeOf(entry);
+        if(isInteger(type)) return Long.toString(readLong(valueOffset(entry)));
+        if(isReal(type)) return Double.toString(Double.longBitsToDouble(readLong(valueOffset(entry))));
+        return decode(valueOffset(entry), readInt(entry + 4));
+    }
+    private byte[] bytesOf(long entry) {
+        int type = typeOf(entry);
+        if(isInteger(type) || isReal(type)) return stringOf(entry).getBytes(UTF8);
+        byte[] value = new byte[readInt(entry + 4)];
+        copy(valueOffset(entry)).get(value);
+        return value;
+    }
+    private long longOf(long entry) {
+        int type = typeOf(entry);
+        if(isInteger(type)) return readLong(valueOffset(entry));
+        if(isReal(type)) return (long) Double.longBitsToDouble(readLong(valueOffset(entry)));
+        try {
+            return Long.parseLong(stringOf(entry).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    private double doubleOf(long entry) {
+        int type = typeOf(entry);
+        if(isInteger(type)) return readLong(valueOffset(entry));
+        if(isReal(type)) return Double.longBitsToDouble(readLong(valueOffset(entry)));
+        try {
+            return Double.parseDouble(stringOf(entry).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    /* numbers are copied as 8 bytes, like the stored value */
+    private int copyValue(long entry, ByteBuffer dst) throws KVDBException {
+        if(dst.isReadOnly()) throw new KVDBException("Buffer is read only");
+        int length = readInt(entry + 4);
+        if(length <= dst.remaining()) {
+            ByteBuffer value = copy(valueOffset(entry));
+            int limit = value.limit();
+            value.limit(value.position() + length);
+            dst.put(value);
+            value.limit(limit);
+        }
+        return length;
+    }
+    private String decode(long position, int length) {
+        ByteBuffer source = copy(position);
+        if(source.hasArray()) {
+            return new String(source.array(), source.arrayOffset() + source.position(), length, UTF8);
+        }
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        return new String(bytes, UTF8);
+    }
+    /* duplicate of region holding position, positioned there */
+    private ByteBuffer copy(long position) {
+        ByteBuffer[] duplicates = copies.get();
+        if(duplicates == null) {
+            duplicates = new ByteBuffer[regions.length];
+            copies.set(duplicates);
+        }
+        int r = (int) (position >>> regionBits);
+        if(duplicates[r] == null) duplicates[r] = regions[r].duplicate();
+        ByteBuffer copy = duplicates[r];
+        copy.position((int) (position & regionMask));
+        return copy;
+    }
+    private ByteBuffer region(long position) {
+        return regions[(int) (position >>> regionBits)];
+    }
+    private int offset(long position) {
+        return (int) (position & regionMask);
+    }
+    /* numbers never cross a region boundary, as blocks and the index do not */
+    private int readInt(long position) {
+        return region(position).getInt(offset(position));
+    }
+    private long readLong(long position) {
+        return region(position).getLong(offset(position));
+    }
+    private void checkOpen() throws KVDBException {
+        if(closed) throw new KVDBException("Snapshot is closed");
+    }
+    private static boolean isInteger(int type) {
+        return type >= ValueType.BOOLEAN && type <= ValueType.LONG;
+    }
+    private static boolean isReal(int type) {
+        return type == ValueType.FLOAT || type == ValueType.DOUBLE;
+    }
+}
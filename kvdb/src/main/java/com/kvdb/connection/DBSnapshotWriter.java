@@ -0,0 +1,257 @@
+package com.kvdb.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.kvdb.DBQuery;
+import com.kvdb.KVDBException;
+import com.kvdb.internal.Log;
+
+/* Exports the kvstore table of a database into an immutable snapshot file
+ * read by DBSnapshot. Layout, all numbers big endian:
+ *
+ *   header   DBSnapshot.HEADER bytes, see DBSnapshot
+ *   blocks   entry count, then entries of key length, value length, type,
+ *            key as UTF-8 and value, in key order
+ *   index    offset of every block, 8 byte aligned
+ *   bloom    bits of an optional bloom filter of keys, 8 byte aligned
+ *
+ * A block never crosses a region boundary, so the reader can map a file of
+ * any size as regions of at most 2 GB. Numbers are stored as 8 bytes, strings
+ * as UTF-8 and compressed values decompressed.
+ */
+public class DBSnapshotWriter {
+    private static final String TAG = "DBSnapshotWriter";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private int blockSize = 1024;
+    private int regionBits = 30;
+    private double bloomFalsePositiveRate = 0.01;
+    private boolean bloomFilter = true;
+
+    private DataOutputStream out;
+    private long position;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private int blockEntries;
+    private long[] blockOffsets = new long[64];
+    private int blockCount;
+    private long keyCount;
+    private String lastKey;
+
+    public DBSnapshotWriter(File file) {
+        this.file = file;
+    }
+
+    /* bytes of entries per block, a lookup reads one block after the index search */
+    public DBSnapshotWriter setBlockSize(int blockSize) {
+        if(blockSize < 64) throw new IllegalArgumentException("Invalid block size " + blockSize);
+        this.blockSize = blockSize;
+        return this;
+    }
+    /* size of the regions a file is mapped in, power of two up to 1 GB. Also
+     * bounds the largest entry
+     */
+    public DBSnapshotWriter setRegionSize(int regionSize) {
+        if(regionSize < 4096 || regionSize > (1 << 30) || Integer.bitCount(regionSize) != 1) {
+            throw new IllegalArgumentException("Invalid region size " + regionSize);
+        }
+        this.regionBits = Integer.numberOfTrailingZeros(regionSize);
+        return this;
+    }
+    /* embed a bloom filter of keys so lookups of missing keys skip the index */
+    public DBSnapshotWriter setBloomFilter(boolean bloomFilter, double falsePositiveRate) {
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("Invalid false positive rate");
+        this.bloomFilter = bloomFilter;
+        this.bloomFalsePositiveRate = falsePositiveRate;
+        return this;
+    }
+
+    /* write every key and value of database of c, as of one read transaction.
+     * Returns number of keys written
+     */
+    public long export(DBConnection c) throws KVDBException {
+        c.beginReadTransaction();
+        try {
+            long count = c.getCount();
+            DBResult result = c.query(c.schemaVersion >= 2 ? DBQuery.SNAPSHOT_EXPORT_V2 : DBQuery.SNAPSHOT_EXPORT, null);
+            try {
+                result.setFetchSize(256);
+                return write(c, result, count);
+            } finally {
+                result.close();
+            }
+        } finally {
+            c.endReadTransaction();
+        }
+    }
+
+    private long write(DBConnection c, DBResult result, long expectedKeys) throws KVDBException {
+        File tmp = new File(file.getPath() + ".tmp");
+        //key count is exact as it was taken in the same read transaction
+        long[] bloom = null;
+        int hashCount = 0;
+        if(bloomFilter && expectedKeys > 0) {
+            long bits = (long) Math.ceil(-expectedKeys * Math.log(bloomFalsePositiveRate) / (Math.log(2) * Math.log(2)));
+            long words = Math.max(1, (bits + 63) / 64);
+            if(words > Integer.MAX_VALUE - 8) throw new KVDBException("Too many keys for snapshot bloom filter");
+            bloom = new long[(int) words];
+            hashCount = Math.max(1, (int) Math.round((double) words * 64 / expectedKeys * Math.log(2)));
+        }
+        blockCount = 0;
+        keyCount = 0;
+        lastKey = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                out.write(new byte[DBSnapshot.HEADER]);
+                position = DBSnapshot.HEADER;
+                while(result.next()) {
+                    String key = result.getString(0);
+                    int type = (int) result.getLong(1);
+                    byte[] value;
+                    switch (result.getType(2)) {
+                        case DBResult.TYPE_INTEGER:
+                            value = ByteBuffer.allocate(8).putLong(result.getLong(2)).array();
+                            if(type == ValueType.UNTYPED) type = ValueType.LONG;
+                            break;
+                        case DBResult.TYPE_FLOAT:
+                            value = ByteBuffer.allocate(8).putLong(Double.doubleToRawLongBits(result.getDouble(2))).array();
+                            if(type == ValueType.UNTYPED) type = ValueType.DOUBLE;
+                            break;
+                        case DBResult.TYPE_STRING:
+                            value = result.getString(2).getBytes(UTF8);
+                            if(type == ValueType.UNTYPED) type = ValueType.STRING;
+                            break;
+                        case DBResult.TYPE_BLOB:
+                            value = result.getBytes(2);
+                            if(type == ValueType.COMPRESSED) {
+                                type = c.compressor.originalType(value);
+                                value = c.compressor.decompress(value);
+                            } else if(type == ValueType.UNTYPED) {
+                                type = ValueType.BLOB;
+                            }
+                            break;
+                        default:
+                            continue;
+                    }
+                    if(bloom != null) addToBloom(bloom, hashCount, key);
+                    add(key, type, value);
+                }
+                finishBlock();
+                long indexOffset = align();
+                for(int i = 0; i < blockCount; i++) {
+                    out.writeLong(blockOffsets[i]);
+                }
+                position += 8L * blockCount;
+                long bloomOffset = 0;
+                if(bloom != null) {
+                    bloomOffset = align();
+                    for(long word : bloom) {
+                        out.writeLong(word);
+                    }
+                    position += 8L * bloom.length;
+                }
+                out.close();
+                out = null;
+                RandomAccessFile header = new RandomAccessFile(tmp, "rw");
+                try {
+                    header.writeInt(DBSnapshot.MAGIC);
+                    header.writeInt(DBSnapshot.VERSION);
+                    header.writeInt(regionBits);
+                    header.writeInt(bloom == null ? 0 : hashCount);
+                    header.writeLong(keyCount);
+                    header.writeLong(blockCount);
+                    header.writeLong(indexOffset);
+                    header.writeLong(bloomOffset);
+                    header.writeLong(bloom == null ? 0 : bloom.length);
+                    header.writeLong(position);
+                    header.getFD().sync();
+                } finally {
+                    header.close();
+                }
+            } finally {
+                if(out != null) out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw new KVDBException("Cannot write snapshot " + file + " : " + e.getMessage());
+        } catch (KVDBException e) {
+            tmp.delete();
+            throw e;
+        }
+        if((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            throw new KVDBException("Cannot replace snapshot " + file);
+        }
+        Log.i(TAG, "Exported " + keyCount + " keys in " + blockCount + " blocks to " + file);
+        return keyCount;
+    }
+
+    private void add(String key, int type, byte[] value) throws IOException, KVDBException {
+        if(lastKey != null && DBSnapshot.compareKeys(key, lastKey) <= 0) {
+            throw new KVDBException("Keys are not in order : " + key);
+        }
+        lastKey = key;
+        byte[] keyBytes = key.getBytes(UTF8);
+        int entry = DBSnapshot.ENTRY_HEADER + keyBytes.length + value.length;
+        long regionSize = 1L << regionBits;
+        if(4L + entry > regionSize) throw new KVDBException("Value of " + key + " is larger than a snapshot region");
+        if(blockEntries > 0 && block.size() + entry > blockSize) finishBlock();
+        //a block must fit in what is left of its region
+        if(blockEntries > 0 && (position & (regionSize - 1)) + block.size() + entry > regionSize) finishBlock();
+        if(blockEntries == 0) {
+            long left = regionSize - (position & (regionSize - 1));
+            if(4 + entry > left) pad(left);
+            blockOut.writeInt(0);
+        }
+        blockOut.writeInt(keyBytes.length);
+        blockOut.writeInt(value.length);
+        blockOut.writeByte(type);
+        blockOut.write(keyBytes);
+        blockOut.write(value);
+        blockEntries++;
+        keyCount++;
+    }
+    private void finishBlock() throws IOException {
+        if(blockEntries == 0) return;
+        if(blockCount == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        blockOffsets[blockCount++] = position;
+        byte[] bytes = block.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(0, blockEntries);
+        out.write(bytes);
+        position += bytes.length;
+        block.reset();
+        blockEntries = 0;
+    }
+    /* same double hashing as DBBloomFilter */
+    private static void addToBloom(long[] bloom, int hashCount, String key) {
+        long hash = DBBloomFilter.hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bitCount = (long) bloom.length * 64;
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+    /* pad to the next 8 byte boundary, returns it */
+    private long align() throws IOException {
+        pad((8 - (position & 7)) & 7);
+        return position;
+    }
+    private void pad(long bytes) throws IOException {
+        for(long i = 0; i < bytes; i++) {
+            out.write(0);
+        }
+        position += bytes;
+    }
+}
@@ -0,0 +1,27 @@
+package com.kvdb.connection;
+
+/* Open sqlite incremental blob handle of a single value, shared by the value
+ * streams and the connection which closes it if the stream is left open.
+ * Values the clustered table holds itself have no blob handle and are read a
+ * chunk at a time
+ */
+final class DBValueBlob {
+    /* native blob handle, 0 if value is read by chunks */
+    final long handle;
+    final String key;
+    final int length;
+    final boolean write;
+    /* stream took the pool write lock for itself and gives it back on close */
+    final boolean ownsWriteLock;
+    /* bytes written so far, the value is only kept once all of it is written */
+    int written;
+    boolean closed;
+
+    DBValueBlob(long handle, String key, int length, boolean write, boolean ownsWriteLock) {
+        this.handle = handle;
+        this.key = key;
+        this.length = length;
+        this.write = write;
+        this.ownsWriteLock = ownsWriteLock;
+    }
+}
@@ -0,0 +1,150 @@
+package com.kvdb.connection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Bounded LRU cache of values shared by all connections of a database.
+ * Entries are sized by key and value bytes and evicted once the byte budget
+ * is exceeded. Values are remembered together with the getter kind that read
+ * them, so a getInt never answers from a value decoded by getString.
+ *
+ * Connections only fill and read the cache outside explicit transactions and
+ * invalidate keys after they are written and again when their transaction
+ * ends. A fill is dropped if any key was invalidated while the value was read
+ * from SQLite, so a slow reader can never put back a value which is older than
+ * the last commit.
+ */
+public class DBValueCache {
+    /* getter kind a value was decoded with */
+    static final int KIND_BYTES = 0;
+    static final int KIND_STRING = 1;
+    static final int KIND_INTEGER = 2;
+    static final int KIND_REAL = 3;
+
+    /* approximate bookkeeping cost of an entry besides its key and value */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final class Entry {
+        final int kind;
+        final Object value;
+        final int size;
+
+        Entry(int kind, Object value, int size) {
+            this.kind = kind;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final boolean primitives;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long bytes;
+    /* incremented by every invalidation, fills started before it are dropped */
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    DBValueCache(long maxBytes, boolean primitives) {
+        if(maxBytes <= 0) throw new IllegalArgumentException("Invalid cache size");
+        this.maxBytes = maxBytes;
+        this.primitives = primitives;
+    }
+
+    /* true if values of given kind are kept in cache */
+    boolean caches(int kind) {
+        return primitives || kind == KIND_BYTES || kind == KIND_STRING;
+    }
+
+    /* cached value for key or null. Byte arrays are shared, callers must copy */
+    Object get(String key, int kind) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if(entry != null && entry.kind == kind) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /* generation to pass to put() for a value about to be read */
+    long generation() {
+        return generation.get();
+    }
+
+    /* remember value read after given generation, unless a key changed meanwhile */
+    void put(String key, int kind, Object value, long readGeneration) {
+        if(value == null) return;
+        int size = ENTRY_OVERHEAD + 2 * key.length() + sizeOf(value);
+        if(size > maxBytes) return;
+        synchronized (entries) {
+            if(generation.get() != readGeneration) return;
+            Entry old = entries.put(key, new Entry(kind, value, size));
+            if(old != null) bytes -= old.size;
+            bytes += size;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while(bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /* drop cached value of key */
+    void invalidate(String key) {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Entry old = entries.remove(key);
+            if(old != null) bytes -= old.size;
+        }
+    }
+
+    /* drop all cached values */
+    public void clear() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+    public long getMissCount() {
+        return misses.get();
+    }
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+    /* hits / (hits + misses), 0 if nothing was looked up yet */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+    /* estimated bytes held by cached entries */
+    public long getSizeBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static int sizeOf(Object value) {
+        if(value instanceof byte[]) return ((byte[]) value).length;
+        if(value instanceof String) return 2 * ((String) value).length();
+        return 8;
+    }
+}
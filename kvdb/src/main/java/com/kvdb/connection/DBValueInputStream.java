@@ -0,0 +1,81 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.kvdb.KVDBException;
+
+/* Reads a value in chunks straight out of the database page cache, so values
+ * of any size are read with no more heap than the caller's buffer. The stream
+ * keeps a read snapshot open until closed and fails if the value is changed
+ * or deleted meanwhile. Values put whole into the clustered table of schema
+ * version 2 are read a chunk at a time with substr instead, there only a
+ * change of length is noticed. It belongs to the connection which opened it
+ * and is closed together with it.
+ */
+public class DBValueInputStream extends InputStream {
+    private final DBConnectionBase connection;
+    private final DBValueBlob blob;
+    private int position;
+    private int mark;
+
+    DBValueInputStream(DBConnectionBase connection, DBValueBlob blob) {
+        this.connection = connection;
+        this.blob = blob;
+    }
+
+    /* total length of the value */
+    public int length() {
+        return blob.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if(len == 0) return 0;
+        int n = Math.min(len, blob.length - position);
+        if(n <= 0) return -1;
+        try {
+            connection.readBlob(blob, b, off, n, position);
+        } catch (KVDBException e) {
+            throw new IOException(e.getMessage());
+        }
+        position += n;
+        return n;
+    }
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, blob.length - position));
+        position += skipped;
+        return skipped;
+    }
+    @Override
+    public int available() {
+        return blob.length - position;
+    }
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+    @Override
+    public void close() throws IOException {
+        try {
+            connection.closeBlob(blob);
+        } catch (KVDBException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
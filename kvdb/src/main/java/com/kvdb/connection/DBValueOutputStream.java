@@ -0,0 +1,65 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.kvdb.KVDBException;
+
+/* Writes a value of a length fixed up front in chunks straight into the
+ * database. The stream runs in a transaction of its own, or in a savepoint of
+ * the read/write transaction already active, so the value is stored only once
+ * all of it was written and readers never see it partly written. Outside of a
+ * transaction the stream holds the write lock until closed, other writes of
+ * the connection meanwhile are committed or discarded along with the value.
+ * On schema version 2 the value is kept in kvstore_blob, as the clustered
+ * table has no incremental blob io.
+ */
+public class DBValueOutputStream extends OutputStream {
+    private final DBConnectionBase connection;
+    private final DBValueBlob blob;
+    private int position;
+
+    DBValueOutputStream(DBConnectionBase connection, DBValueBlob blob) {
+        this.connection = connection;
+        this.blob = blob;
+    }
+
+    /* bytes still to be written to complete the value */
+    public int remaining() {
+        return blob.length - position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if(len > blob.length - position) {
+            throw new IOException("Value is " + blob.length + " bytes long, cannot write past its end");
+        }
+        if(len == 0) return;
+        try {
+            connection.writeBlob(blob, b, off, len, position);
+        } catch (KVDBException e) {
+            throw new IOException(e.getMessage());
+        }
+        position += len;
+    }
+    /* close stream, storing the value if it was written completely. A value
+     * closed early is discarded and close reports it
+     */
+    @Override
+    public void close() throws IOException {
+        boolean open;
+        try {
+            open = connection.closeBlob(blob);
+        } catch (KVDBException e) {
+            throw new IOException(e.getMessage());
+        }
+        if(open && position < blob.length) {
+            throw new IOException("Value closed after " + position + " of " + blob.length + " bytes, it was not stored");
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.kvdb.connection;
+
+/* Reads the fields of an object and builds it back from them, so classes
+ * registered with CodecRegistry.registerType are stored by the compact codec
+ * without reflection. Field values may be of any type the codec supports.
+ */
+public interface FieldAccessor<T> {
+    /* field values of value, always in the same order */
+    Object[] getFields(T value);
+    /* new object from field values in the order returned by getFields. Values
+     * written by an older version of the class may have fewer fields
+     */
+    T newInstance(Object[] fields);
+}
@@ -0,0 +1,270 @@
+package com.kvdb.connection;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kvdb.KVDBException;
+import com.kvdb.internal.DBConfig;
+import com.kvdb.internal.Log;
+
+/* Write-behind queue shared by all threads of a database. Writes are put on a
+ * lock free queue and a single writer thread commits everything that arrived
+ * within the configured window as one transaction, so concurrent writers share
+ * one fsync. Returned futures complete once their write is committed.
+ */
+public class GroupCommitQueue {
+    private static final String TAG = "GroupCommitQueue";
+    /* longest idle sleep of the writer, it normally gets woken up by submit */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* single write waiting in the queue */
+    static final class Request {
+        final int op;
+        final int type;
+        final String key;
+        final Object value;
+        final long number;
+        final WriteBatch batch;
+        final DBFuture<Void> future = new DBFuture<Void>();
+
+        Request(int op, int type, String key, Object value, long number) {
+            this.op = op;
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.number = number;
+            this.batch = null;
+        }
+        Request(WriteBatch batch) {
+            this.op = WriteBatch.OP_DELETE;
+            this.type = ValueType.UNTYPED;
+            this.key = null;
+            this.value = null;
+            this.number = 0;
+            this.batch = batch;
+        }
+        int size() {
+            return batch != null ? batch.size() : 1;
+        }
+        void addTo(WriteBatch target) throws KVDBException {
+            if(batch != null) {
+                target.addAll(batch);
+            } else {
+                target.add(op, type, key, value, number);
+            }
+        }
+    }
+
+    private final DBConnectionPool pool;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public static GroupCommitQueue create(DBConnectionPool pool, DBConfig config) {
+        GroupCommitQueue queue = new GroupCommitQueue(pool, config);
+        queue.writer.start();
+        return queue;
+    }
+
+    private GroupCommitQueue(DBConnectionPool pool, DBConfig config) {
+        this.pool = pool;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.groupCommitWindowMs));
+        this.maxBatch = Math.max(1, config.groupCommitMaxBatch);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "KVDB-group-commit");
+        writer.setDaemon(true);
+    }
+
+    /* insert (key,value) where value is boolean */
+    public DBFuture<Void> putBoolean(String key, boolean value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_INTEGER, ValueType.BOOLEAN, key, null, value ? 1 : 0));
+    }
+    /* insert (key,value) where value is short */
+    public DBFuture<Void> putShort(String key, short value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_INTEGER, ValueType.SHORT, key, null, value));
+    }
+    /* insert (key,value) where value is an integer */
+    public DBFuture<Void> putInt(String key, int value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_INTEGER, ValueType.INT, key, null, value));
+    }
+    /* insert (key,value) where value is long */
+    public DBFuture<Void> putLong(String key, long value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_INTEGER, ValueType.LONG, key, null, value));
+    }
+    /* insert (key,value) where value is float */
+    public DBFuture<Void> putFloat(String key, float value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_REAL, ValueType.FLOAT, key, null, Double.doubleToRawLongBits(value)));
+    }
+    /* insert (key,value) where value is double */
+    public DBFuture<Void> putDouble(String key, double value) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_PUT_REAL, ValueType.DOUBLE, key, null, Double.doubleToRawLongBits(value)));
+    }
+    /* insert (key,value) where value byte array */
+    public DBFuture<Void> put(String key, byte[] data) throws KVDBException {
+        isValid(data);
+        return submit(new Request(WriteBatch.OP_PUT, ValueType.BLOB, key, data, 0));
+    }
+    /* insert (key,value) where value is string */
+    public DBFuture<Void> put(String key, String value) throws KVDBException {
+        isValid(value);
+        return submit(new Request(WriteBatch.OP_PUT_STRING, ValueType.STRING, key, value, 0));
+    }
+    /* insert (key,value) where value is Serializable object */
+    public DBFuture<Void> put(String key, Serializable value) throws KVDBException {
+        isValid(value);
+        return submit(new Request(WriteBatch.OP_PUT, ValueType.BLOB, key, DBConnectionBase.objectToByteArray(value), 0));
+    }
+    /* delete value corresponding to key */
+    public DBFuture<Void> delete(String key) throws KVDBException {
+        return submit(new Request(WriteBatch.OP_DELETE, ValueType.UNTYPED, key, null, 0));
+    }
+    /* write all operations of batch atomically as part of a group, batch must not
+     * be changed until returned future is done
+     */
+    public DBFuture<Void> write(WriteBatch batch) throws KVDBException {
+        if(batch == null) throw new KVDBException("Batch cannot be null");
+        return submit(new Request(batch));
+    }
+
+    /* number of transactions committed by the writer thread */
+    public long getCommitCount() {
+        return commits.get();
+    }
+    /* number of operations written by the writer thread */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /* stop accepting writes, commit everything queued and stop writer thread.
+     * Called by DB.close
+     */
+    public void close() throws KVDBException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVDBException("Interrupted while closing group commit queue");
+        }
+    }
+
+    private DBFuture<Void> submit(Request request) throws KVDBException {
+        if(request.key == null && request.batch == null) throw new KVDBException("Key cannot be null");
+        if(closed) throw new KVDBException("Group commit queue is closed");
+        queue.offer(request);
+        //close raced with us, take request back unless writer already has it
+        if(closed && queue.remove(request)) {
+            throw new KVDBException("Group commit queue is closed");
+        }
+        //writer only needs a wake up when it may be idle or when a group is full
+        int count = pending.incrementAndGet();
+        if(count == 1 || count == maxBatch) {
+            LockSupport.unpark(writer);
+        }
+        return request.future;
+    }
+
+    private void writeLoop() {
+        DBConnection connection = null;
+        WriteBatch batch = new WriteBatch();
+        ArrayList<Request> group = new ArrayList<Request>();
+        try {
+            while(true) {
+                Request request = queue.poll();
+                if(request == null) {
+                    if(closed && queue.isEmpty()) break;
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                //collect everything arriving within the window, up to max batch size
+                long deadline = System.nanoTime() + windowNanos;
+                int size = 0;
+                while(true) {
+                    if(request != null) {
+                        pending.decrementAndGet();
+                        group.add(request);
+                        size += request.size();
+                        if(size >= maxBatch) break;
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if(remaining <= 0 || closed) break;
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    request = queue.poll();
+                }
+                if(connection == null) {
+                    connection = pool.getConnection();
+                }
+                commit(connection, batch, group);
+                group.clear();
+            }
+        } catch (Throwable e) {
+            //any failure stops the writer, nothing queued may be left waiting
+            Log.e(TAG, "Group commit writer stopped : " + e);
+            failPending(group, e);
+        } finally {
+            if(connection != null) connection.release();
+        }
+    }
+
+    private void commit(DBConnection connection, WriteBatch batch, ArrayList<Request> group) {
+        try {
+            batch.clear();
+            for(Request request : group) {
+                request.addTo(batch);
+            }
+            connection.write(batch);
+            commits.incrementAndGet();
+            writes.addAndGet(batch.size());
+            for(Request request : group) {
+                request.future.complete(null);
+            }
+        } catch (KVDBException e) {
+            //group failed as a whole, retry writes one by one so only failing ones report errors
+            for(Request request : group) {
+                try {
+                    batch.clear();
+                    request.addTo(batch);
+                    connection.write(batch);
+                    commits.incrementAndGet();
+                    writes.addAndGet(batch.size());
+                    request.future.complete(null);
+                } catch (KVDBException ex) {
+                    request.future.fail(ex);
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void failPending(ArrayList<Request> group, Throwable e) {
+        closed = true;
+        for(Request request : group) {
+            request.future.fail(e);
+        }
+        Request request;
+        while((request = queue.poll()) != null) {
+            request.future.fail(e);
+        }
+    }
+
+    private void isValid(Object value) throws KVDBException {
+        if(value == null) throw new KVDBException("Value cannot be null");
+    }
+}
@@ -0,0 +1,177 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+
+/* LZ4 block format compressor and decompressor. Uses a single hash table of
+ * 4 byte sequences and greedy matching, which trades some ratio for speed
+ * the same way the reference fast mode does. Output is a plain LZ4 block
+ * without frame header or checksum.
+ */
+final class LZ4Block {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    /* last literals of a block are never part of a match, as required by the format */
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private LZ4Block() {
+    }
+
+    /* worst case compressed size of length bytes */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /* compress src[srcOff, srcOff + length) into dst at dstOff, returns compressed length.
+     * dst must have room for maxCompressedLength(length) bytes
+     */
+    static int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + length;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int dp = dstOff;
+        int anchor = srcOff;
+        if(length >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];
+            int limit = srcEnd - MF_LIMIT;
+            int sp = srcOff + 1;
+            //table holds positions relative to srcOff plus one, 0 is an empty slot
+            table[hash(readInt(src, srcOff))] = 1;
+            while(sp < limit) {
+                //search for a match, stepping faster through incompressible data
+                int attempts = 1 << SKIP_TRIGGER;
+                int match;
+                while(true) {
+                    int h = hash(readInt(src, sp));
+                    match = table[h] - 1 + srcOff;
+                    table[h] = sp - srcOff + 1;
+                    if(match >= srcOff && sp - match <= MAX_DISTANCE && readInt(src, match) == readInt(src, sp)) break;
+                    sp += attempts++ >>> SKIP_TRIGGER;
+                    if(sp >= limit) {
+                        return writeLast(src, anchor, srcEnd, dst, dp) - dstOff;
+                    }
+                }
+                //extend match backwards over literals
+                while(sp > anchor && match > srcOff && src[sp - 1] == src[match - 1]) {
+                    sp--;
+                    match--;
+                }
+                int matchLength = MIN_MATCH;
+                while(sp + matchLength < matchLimit && src[sp + matchLength] == src[match + matchLength]) {
+                    matchLength++;
+                }
+                dp = writeSequence(src, anchor, sp - anchor, sp - match, matchLength, dst, dp);
+                sp += matchLength;
+                anchor = sp;
+                if(sp < limit) {
+                    table[hash(readInt(src, sp - 2))] = sp - 2 - srcOff + 1;
+                }
+            }
+        }
+        return writeLast(src, anchor, srcEnd, dst, dp) - dstOff;
+    }
+
+    /* decompress block src[srcOff, srcOff + length) into dst at dstOff, which must
+     * have room for exactly originalLength bytes. Returns originalLength
+     */
+    static int decompress(byte[] src, int srcOff, int length, byte[] dst, int dstOff, int originalLength) throws IOException {
+        int sp = srcOff;
+        int srcEnd = srcOff + length;
+        int dp = dstOff;
+        int dstEnd = dstOff + originalLength;
+        while(sp < srcEnd) {
+            int token = src[sp++] & 0xff;
+            int literals = token >>> 4;
+            if(literals == 15) {
+                int b;
+                do {
+                    if(sp >= srcEnd) throw new IOException("Malformed lz4 block");
+                    b = src[sp++] & 0xff;
+                    literals += b;
+                } while(b == 255);
+            }
+            if(literals > srcEnd - sp || literals > dstEnd - dp) throw new IOException("Malformed lz4 block");
+            System.arraycopy(src, sp, dst, dp, literals);
+            sp += literals;
+            dp += literals;
+            if(sp == srcEnd) break;
+            if(srcEnd - sp < 2) throw new IOException("Malformed lz4 block");
+            int offset = (src[sp] & 0xff) | ((src[sp + 1] & 0xff) << 8);
+            sp += 2;
+            int matchLength = token & 0xf;
+            if(matchLength == 15) {
+                int b;
+                do {
+                    if(sp >= srcEnd) throw new IOException("Malformed lz4 block");
+                    b = src[sp++] & 0xff;
+                    matchLength += b;
+                } while(b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int match = dp - offset;
+            if(offset == 0 || match < dstOff || matchLength > dstEnd - dp) throw new IOException("Malformed lz4 block");
+            //matches may overlap the bytes they produce, copy forward byte by byte then
+            if(offset >= matchLength) {
+                System.arraycopy(dst, match, dst, dp, matchLength);
+                dp += matchLength;
+            } else {
+                for(int i = 0; i < matchLength; i++) {
+                    dst[dp++] = dst[match++];
+                }
+            }
+        }
+        if(dp != dstEnd) throw new IOException("Malformed lz4 block");
+        return originalLength;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength,
+                                     byte[] dst, int dp) {
+        int tokenPos = dp++;
+        int token;
+        if(literals >= 15) {
+            token = 15 << 4;
+            dp = writeLength(literals - 15, dst, dp);
+        } else {
+            token = literals << 4;
+        }
+        System.arraycopy(src, literalStart, dst, dp, literals);
+        dp += literals;
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if(extra >= 15) {
+            token |= 15;
+            dp = writeLength(extra - 15, dst, dp);
+        } else {
+            token |= extra;
+        }
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+    private static int writeLast(byte[] src, int anchor, int srcEnd, byte[] dst, int dp) {
+        int literals = srcEnd - anchor;
+        if(literals >= 15) {
+            dst[dp++] = (byte) (15 << 4);
+            dp = writeLength(literals - 15, dst, dp);
+        } else {
+            dst[dp++] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, anchor, dst, dp, literals);
+        return dp + literals;
+    }
+    private static int writeLength(int length, byte[] dst, int dp) {
+        while(length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
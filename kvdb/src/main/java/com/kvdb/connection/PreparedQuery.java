@@ -0,0 +1,101 @@
+package com.kvdb.connection;
+
+import java.io.Closeable;
+
+import com.kvdb.KVDBException;
+
+/* Query compiled once and executed many times on the connection which prepared
+ * it. Parameters are numbered from 1 in the order of ? in the sql and are
+ * cleared after every execution, so bind all of them again before the next.
+ * Statements which write go through the write lock of the connection pool
+ * unless the connection already has a read/write transaction.
+ * Query must be closed when no longer needed, it is closed with its connection.
+ */
+public class PreparedQuery implements Closeable {
+    private final DBConnectionBase connection;
+    long statement;
+    private final int parameterCount;
+    private final boolean readOnly;
+    /* cursor of the last query(), statement can only step one cursor at a time */
+    private DBResult cursor;
+
+    PreparedQuery(DBConnectionBase connection, long statement, int parameterCount, boolean readOnly) {
+        this.connection = connection;
+        this.statement = statement;
+        this.parameterCount = parameterCount;
+        this.readOnly = readOnly;
+    }
+
+    /* number of ? parameters of the query */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+    /* true if query does not write to database */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public PreparedQuery bindLong(int index, long value) throws KVDBException {
+        connection.bindLong(this, index, value);
+        return this;
+    }
+    public PreparedQuery bindDouble(int index, double value) throws KVDBException {
+        connection.bindDouble(this, index, value);
+        return this;
+    }
+    public PreparedQuery bindString(int index, String value) throws KVDBException {
+        connection.bindObject(this, index, value);
+        return this;
+    }
+    public PreparedQuery bindBytes(int index, byte[] value) throws KVDBException {
+        connection.bindObject(this, index, value);
+        return this;
+    }
+    public PreparedQuery bindNull(int index) throws KVDBException {
+        connection.bindObject(this, index, null);
+        return this;
+    }
+    /* bind args to parameters 1..args.length, values may be null, numbers,
+     * booleans, strings or byte arrays
+     */
+    public PreparedQuery bindAll(Object[] args) throws KVDBException {
+        if(args == null) return this;
+        for(int i = 0; i < args.length; i++) {
+            connection.bindObject(this, i + 1, args[i]);
+        }
+        return this;
+    }
+
+    /* run query to its end and return number of rows changed by it */
+    public int execute() throws KVDBException {
+        closeCursor();
+        return connection.executePrepared(this);
+    }
+    /* run query and return cursor over its rows. Closing the cursor, or running
+     * the query again, resets the query so it can be bound and run again
+     */
+    public DBResult query() throws KVDBException {
+        closeCursor();
+        cursor = connection.openPreparedCursor(this);
+        return cursor;
+    }
+
+    /* release native statement, query cannot be used afterwards */
+    @Override
+    public void close() {
+        if(statement == 0) return;
+        closeCursor();
+        connection.closePrepared(this);
+    }
+    /* called by connection once statement is released */
+    void closed() {
+        statement = 0;
+    }
+
+    private void closeCursor() {
+        if(cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+}
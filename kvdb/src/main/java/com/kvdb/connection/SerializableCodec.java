@@ -0,0 +1,40 @@
+package com.kvdb.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/* Fallback codec using java serialization, for Serializable values which the
+ * compact codec cannot write. Also reads values stored before codecs existed
+ */
+public class SerializableCodec implements ValueCodec {
+    public static final int ID = 1;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(stream);
+        output.writeObject(value);
+        output.close();
+        return stream.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            return input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Class not found : " + e.getMessage());
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.kvdb.connection;
+
+import com.kvdb.DB;
+import com.kvdb.KVDBException;
+
+/* StorageEngine over the kvstore table of a DB, each call on a connection
+ * borrowed from its pool for that call only
+ */
+public class SqliteEngine implements StorageEngine {
+    private final DB db;
+    private final long waitMs;
+
+    public SqliteEngine(DB db, long waitMs) {
+        this.db = db;
+        this.waitMs = waitMs;
+    }
+
+    /* database the engine runs on, for its connections and statistics */
+    public DB getDB() {
+        return db;
+    }
+
+    @Override
+    public String get(String key) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.get(key);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public byte[] getBytes(String key) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.getBytes(key);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public long getLong(String key) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.getLong(key);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public boolean exists(String key) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.exists(key);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public byte[][] multiGet(String[] keys) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.multiGet(keys);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void put(String key, String value) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            c.put(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void put(String key, byte[] value) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            c.put(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void putLong(String key, long value) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            c.putLong(key, value);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void delete(String key) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            c.delete(key);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void write(WriteBatch batch) throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            c.write(batch);
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public long getCount() throws KVDBException {
+        DBConnection c = db.borrowConnection(waitMs);
+        try {
+            return c.getCount();
+        } finally {
+            c.release();
+        }
+    }
+    @Override
+    public void close() throws KVDBException {
+        db.close();
+    }
+}
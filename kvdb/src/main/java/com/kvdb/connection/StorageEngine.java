@@ -0,0 +1,35 @@
+package com.kvdb.connection;
+
+import com.kvdb.KVDBException;
+
+/* Point lookup key value store a database is kept in, chosen with
+ * DBConfig.engine and opened with DB.openEngine. SqliteEngine keeps values in
+ * the kvstore table like DBConnection does, BitcaskEngine in append only log
+ * files with an in memory index of keys.
+ *
+ * Engines are thread safe. Values keep the type they were written with, as
+ * with DBConnection numbers read back as strings or bytes are their decimal text.
+ */
+public interface StorageEngine {
+    /* value of key as string, null if key is not present */
+    String get(String key) throws KVDBException;
+    /* value of key as bytes, null if key is not present */
+    byte[] getBytes(String key) throws KVDBException;
+    /* value of key as number, 0 if key is not present */
+    long getLong(String key) throws KVDBException;
+    boolean exists(String key) throws KVDBException;
+    /* values of keys in order, null for keys not present */
+    byte[][] multiGet(String[] keys) throws KVDBException;
+
+    void put(String key, String value) throws KVDBException;
+    void put(String key, byte[] value) throws KVDBException;
+    void putLong(String key, long value) throws KVDBException;
+    void delete(String key) throws KVDBException;
+    /* apply all operations of batch atomically */
+    void write(WriteBatch batch) throws KVDBException;
+
+    /* number of keys present */
+    long getCount() throws KVDBException;
+    /* flush writes and release files, engine cannot be used afterwards */
+    void close() throws KVDBException;
+}
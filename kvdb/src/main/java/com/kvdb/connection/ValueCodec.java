@@ -0,0 +1,19 @@
+package com.kvdb.connection;
+
+import java.io.IOException;
+
+/* Converts objects stored by put(key, Object) and read by getObject to bytes.
+ * The id of the codec is stored in front of every value it wrote, so it must
+ * never change once values were written. Ids below FIRST_CUSTOM_ID are used by
+ * built-in codecs. Codecs are shared by all threads and must be thread safe.
+ */
+public interface ValueCodec {
+    /* smallest id of a codec registered by applications, ids go up to 255 */
+    int FIRST_CUSTOM_ID = 16;
+
+    int getId();
+    /* value as bytes */
+    byte[] encode(Object value) throws IOException;
+    /* value stored in data[offset, offset + length) */
+    Object decode(byte[] data, int offset, int length) throws IOException;
+}
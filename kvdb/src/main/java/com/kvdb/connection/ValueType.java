@@ -0,0 +1,26 @@
+package com.kvdb.connection;
+
+/* Type of a value kept in the _type column of kvstore table,
+ * must match ValueType enum in native code
+ */
+final class ValueType {
+    /* text encoded value written before the _type column existed */
+    static final int UNTYPED = 0;
+    static final int BLOB = 1;
+    static final int STRING = 2;
+    static final int BOOLEAN = 3;
+    static final int SHORT = 4;
+    static final int INT = 5;
+    static final int LONG = 6;
+    static final int FLOAT = 7;
+    static final int DOUBLE = 8;
+    /* blob or string compressed by DBCompressor, original type is kept in the value */
+    static final int COMPRESSED = 9;
+    /* blob written by a value stream into kvstore_blob of schema version 2, the
+     * value is its rowid. Reads resolve it to the blob
+     */
+    static final int STREAMED = 10;
+
+    private ValueType() {
+    }
+}
@@ -0,0 +1,128 @@
+package com.kvdb.connection;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.kvdb.KVDBException;
+import com.kvdb.ShardedDB;
+
+/* Buffer of put/delete operations which are applied atomically by
+ * DBConnection.write in a single native call and a single transaction.
+ * A batch is not thread safe and can be reused after clear()
+ */
+public class WriteBatch {
+    /*Operation codes, must match BatchOperation in native code*/
+    static final int OP_DELETE = 0;
+    static final int OP_PUT = 1;
+    static final int OP_PUT_STRING = 2;
+    static final int OP_PUT_INTEGER = 3;
+    static final int OP_PUT_REAL = 4;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    int[] ops = new int[INITIAL_CAPACITY];
+    int[] types = new int[INITIAL_CAPACITY];
+    String[] keys = new String[INITIAL_CAPACITY];
+    /* byte[] or String values of put operations */
+    Object[] values = new Object[INITIAL_CAPACITY];
+    /* integer values, or raw long bits of real values */
+    long[] numbers = new long[INITIAL_CAPACITY];
+    int size;
+
+    /* insert (key,value) where value is boolean */
+    public void putBoolean(String key, boolean value) throws KVDBException {
+        add(OP_PUT_INTEGER, ValueType.BOOLEAN, key, null, value ? 1 : 0);
+    }
+    /* insert (key,value) where value is short */
+    public void putShort(String key, short value) throws KVDBException {
+        add(OP_PUT_INTEGER, ValueType.SHORT, key, null, value);
+    }
+    /* insert (key,value) where value is an integer */
+    public void putInt(String key, int value) throws KVDBException {
+        add(OP_PUT_INTEGER, ValueType.INT, key, null, value);
+    }
+    /* insert (key,value) where value is long */
+    public void putLong(String key, long value) throws KVDBException {
+        add(OP_PUT_INTEGER, ValueType.LONG, key, null, value);
+    }
+    /* insert (key,value) where value is float */
+    public void putFloat(String key, float value) throws KVDBException {
+        add(OP_PUT_REAL, ValueType.FLOAT, key, null, Double.doubleToRawLongBits(value));
+    }
+    /* insert (key,value) where value is double */
+    public void putDouble(String key, double value) throws KVDBException {
+        add(OP_PUT_REAL, ValueType.DOUBLE, key, null, Double.doubleToRawLongBits(value));
+    }
+    /* insert (key,value) where value byte array */
+    public void put(String key, byte[] data) throws KVDBException {
+        isValid(data);
+        add(OP_PUT, ValueType.BLOB, key, data, 0);
+    }
+    /* insert (key,value) where value is string */
+    public void put(String key, String value) throws KVDBException {
+        isValid(value);
+        add(OP_PUT_STRING, ValueType.STRING, key, value, 0);
+    }
+    /* insert (key,value) where value is an object */
+    public void put(String key, Object value) throws KVDBException {
+        isValid(value);
+        add(OP_PUT, ValueType.BLOB, key, DBConnectionBase.objectToByteArray(value), 0);
+    }
+    /* insert (key,value) where value is Serializable object */
+    public void put(String key, Serializable value) throws KVDBException {
+        isValid(value);
+        add(OP_PUT, ValueType.BLOB, key, DBConnectionBase.objectToByteArray(value), 0);
+    }
+    /* delete value corresponding to key */
+    public void delete(String key) throws KVDBException {
+        add(OP_DELETE, ValueType.UNTYPED, key, null, 0);
+    }
+    /* number of buffered operations */
+    public int size() {
+        return size;
+    }
+    /* remove all buffered operations so batch can be reused */
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+    /* operations of this batch split by ShardedDB.shardOf their key, in their
+     * original order. Batches of shards without operations are null
+     */
+    public WriteBatch[] split(int shards) throws KVDBException {
+        WriteBatch[] parts = new WriteBatch[shards];
+        for(int i = 0; i < size; i++) {
+            int shard = ShardedDB.shardOf(keys[i], shards);
+            if(parts[shard] == null) parts[shard] = new WriteBatch();
+            parts[shard].add(ops[i], types[i], keys[i], values[i], numbers[i]);
+        }
+        return parts;
+    }
+    /* append all operations of another batch */
+    void addAll(WriteBatch batch) throws KVDBException {
+        for(int i = 0; i < batch.size; i++) {
+            add(batch.ops[i], batch.types[i], batch.keys[i], batch.values[i], batch.numbers[i]);
+        }
+    }
+    void add(int op, int type, String key, Object value, long number) throws KVDBException {
+        if(key == null) throw new KVDBException("Key cannot be null");
+        if(size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            types = Arrays.copyOf(types, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        ops[size] = op;
+        types[size] = type;
+        keys[size] = key;
+        values[size] = value;
+        numbers[size] = number;
+        size++;
+    }
+    private void isValid(Object value) throws KVDBException {
+        if(value == null) throw new KVDBException("Value cannot be null");
+    }
+}
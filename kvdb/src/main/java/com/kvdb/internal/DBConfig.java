@@ -1,15 +1,104 @@
 package com.kvdb.internal;
 
 /*Config used by DBConnectionPool to apply across connections */
-public final class DBConfig {
+public final class DBConfig implements Cloneable {
+    /* compression algorithms of compressed values */
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_LZ4 = 1;
+    public static final int COMPRESSION_DEFLATE = 2;
+    /* layouts of the kvstore table, see DBQuery */
+    public static final int SCHEMA_ROWID = 1;
+    public static final int SCHEMA_CLUSTERED = 2;
+    /* storage engines of DB.openEngine */
+    public static final int ENGINE_SQLITE = 0;
+    public static final int ENGINE_BITCASK = 1;
+
     /*Path of the database */
     public String path;
     /*Flags set to open the database*/
     public int openFlags;
     /* Write ahead logging flag */
     public boolean wal = true;
+    /* Maximum number of connections open at the same time */
+    public int maxPoolSize = 5;
+    /* Time to wait for a connection when all of them are in use */
+    public long poolWaitMs = 3000;
+    /* Idle connections are closed after this time */
+    public long idleTimeoutMs = 60000;
+    /* getConnection keeps returning the same connection on a thread until it is
+     * released. If disabled every getConnection borrows a connection of its own
+     */
+    public boolean threadAffinity = true;
+    /* Group commit: writes submitted through GroupCommitQueue are committed
+     * together by a single writer thread, one transaction per window
+     */
+    public boolean groupCommit = false;
+    /* Time to wait for more writes after the first write of a group arrives */
+    public long groupCommitWindowMs = 2;
+    /* Maximum number of writes committed in one transaction */
+    public int groupCommitMaxBatch = 1000;
+    /* Byte budget of the read cache shared by all connections, 0 disables it */
+    public long readCacheBytes = 0;
+    /* Keep decoded numbers and booleans in read cache, not only strings and blobs */
+    public boolean readCachePrimitives = true;
+    /* Bloom filter of keys so gets of missing keys skip the database */
+    public boolean bloomFilter = false;
+    /* Number of keys bloom filter is sized for, at least twice the keys present at open */
+    public long bloomExpectedKeys = 100000;
+    /* False positive rate of bloom filter at expected number of keys */
+    public double bloomFalsePositiveRate = 0.01;
+    /* Read only connections used for reads outside of transactions, so readers
+     * never wait on the connection of a writer. Only used in WAL mode, the
+     * default, 0 disables them
+     */
+    public int readerPoolSize = 2;
+    /* Compression of string and blob values written from now on. Compressed values
+     * are always read back, whatever this is set to
+     */
+    public int compression = COMPRESSION_NONE;
+    /* Values shorter than this many bytes are stored uncompressed */
+    public int compressionThreshold = 1024;
+    /* Deflate level from 1 (fastest) to 9 (smallest) */
+    public int deflateLevel = 6;
+    /* Per operation latency histograms and sqlite counters, see DB.getMetrics() */
+    public boolean metrics = false;
+    /* Statements running at least this long are kept in the slow statement log
+     * of metrics, negative disables statement profiling
+     */
+    public long slowStatementMs = 100;
+    /* Threads of DB.getAsyncConnection() running queued operations */
+    public int asyncThreads = 2;
+    /* Operations of DB.getAsyncConnection() queued or running at once before
+     * submitting waits, for at most poolWaitMs
+     */
+    public int asyncMaxInFlight = 1024;
+    /* Table layout new databases are created with. Databases of an older layout
+     * are migrated to it in background when opened for writing, newer ones are
+     * kept as they are
+     */
+    public int schemaVersion = SCHEMA_CLUSTERED;
+    /* Storage engine of DB.openEngine. A bitcask database is a directory at path */
+    public int engine = ENGINE_SQLITE;
+    /* Bitcask segment files are rotated once they grow past this size */
+    public long bitcaskSegmentBytes = 64L * 1024 * 1024;
+    /* Flush every bitcask write to disk before it returns */
+    public boolean bitcaskSync = false;
+    /* Merge bitcask segments in background once this fraction of their bytes
+     * is overwritten or deleted, 0 disables background merges
+     */
+    public double bitcaskMergeRatio = 0.5;
     public DBConfig(String _p, int _f) {
         path = _p;
         openFlags = _f;
     }
+    /* copy of this config for database at another path, used for the shards of a ShardedDB */
+    public DBConfig withPath(String _p) {
+        try {
+            DBConfig copy = (DBConfig) super.clone();
+            copy.path = _p;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package com.kvdb.internal;
 
 import com.kvdb.DB;
+import com.kvdb.ShardedDB;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
@@ -12,6 +13,8 @@ public class DBRegister {
 
     /* Mapping path > DB instance*/
     static final HashMap<String, WeakReference<DB>> map = new HashMap<>();
+    /* Mapping path > sharded DB instance, its shards are registered in map too*/
+    static final HashMap<String, WeakReference<ShardedDB>> shardedMap = new HashMap<>();
 
     /* Register db instance mapping to a particular path*/
     public static void register(String path, DB db) {
@@ -37,4 +40,22 @@ public class DBRegister {
             return null;
         }
     }
+    /* Register sharded db instance mapping to the path it was opened with*/
+    public static void registerSharded(String path, ShardedDB db) {
+        if(path == null || db == null) return;
+        synchronized(shardedMap){
+            shardedMap.put(path,new WeakReference<ShardedDB>(db));
+        }
+    }
+    /* Returns sharded DB instance if it exists for a particular path*/
+    public static ShardedDB getSharded(String path){
+        synchronized (shardedMap) {
+            if(shardedMap.containsKey(path)){
+                ShardedDB db = shardedMap.get(path).get();
+                if(db == null) shardedMap.remove(path);
+                return db;
+            }
+            return null;
+        }
+    }
 }
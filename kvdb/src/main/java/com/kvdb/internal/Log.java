@@ -1,6 +1,6 @@
 package com.kvdb.internal;
 
-/* TODO: Add options to enable disable certain logs */
+/* Logs to System.out, messages below the level set with setLevel are dropped */
 public final class Log {
     public static final int VERBOSE = 0;
     public static final int DEBUG = 1;
@@ -9,21 +9,35 @@ public final class Log {
     public static final int ERROR = 4;
     public static final int ASSERT = 5;
    
+    private static volatile int level = VERBOSE;
+
     private Log() {
     }
+    /* lowest level which is still printed, ASSERT silences all logs */
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+    public static boolean isLoggable(int l) {
+        return l >= level;
+    }
     public static void v(String tag, String msg) {
+        if(level > VERBOSE) return;
         System.out.println("[V]" + tag + " " + msg);
     }
     public static void d(String tag, String msg) {
+        if(level > DEBUG) return;
         System.out.println("[D]" + tag + " " + msg);
     }
     public static void i(String tag, String msg) {
+        if(level > INFO) return;
         System.out.println("[I]" + tag + " " + msg);
     }
     public static void w(String tag, String msg) {
+        if(level > WARN) return;
         System.out.println("[W]" + tag + " " + msg);
     }
     public static void e(String tag, String msg) {
+        if(level > ERROR) return;
         System.out.println("[E]" + tag + " " + msg);
     }
 }
@@ -2,22 +2,14 @@
 #include "sqlite/sqlite3.h"
 #include <string>
 #include <vector>
+#include <list>
+#include <map>
+#include <set>
 #include <cstdlib>
-#include <sstream>
+#include <cstring>
 
 using namespace std;
 
-// as to_string is not available from std
-namespace me
-{
-    template<typename T> std::string to_string( const T& n )
-    {
-        std::ostringstream stream ;
-        stream << n ;
-        return stream.str() ;
-    }
-}
-
 // throw exception of type KVDBException through jni
 void throwException(JNIEnv *env, const char* msg) {
     jclass kvdbexception = env->FindClass("com/kvdb/KVDBException");
@@ -28,7 +20,8 @@ void throwException(JNIEnv *env, const char* msg) {
     env->ThrowNew(kvdbexception, msg);
 }
 
-//reset sql statemtent
+//reset sql statemtent. Keys and values are bound with SQLITE_STATIC so every
+//statement must be reset before the bound jni buffers are released
 int resetStatement(sqlite3_stmt* statement){
     int err = sqlite3_reset(statement);
     if(err == SQLITE_OK) {
@@ -59,7 +52,8 @@ jobjectArray compute_result(JNIEnv *env,sqlite3_stmt* statement){
         if(result == SQLITE_ROW) {
             vector<string> values;
             for(int col = 0; col < cols; col++) {
-                values.push_back((char*)sqlite3_column_blob(statement, col));
+                const char* text = (const char*)sqlite3_column_text(statement, col);
+                values.push_back(text != NULL ? text : "");
             }
             jvalues = make_row(env,cols,values,stringClass);
             results.push_back(jvalues);
@@ -76,8 +70,139 @@ jobjectArray compute_result(JNIEnv *env,sqlite3_stmt* statement){
     }
     return NULL;
 }
-static const char* readQuery = "select _value from kvstore where _key=?";
-static const char* writeQuery = "insert or replace into kvstore (_key,_value) values (?,?)";
+static const char* readQuery = "select _value,_type from kvstore where _key=?";
+/* schema version 2 keeps streamed values in kvstore_blob, their row holds its rowid */
+static const char* streamedReadQuery = "select case when _type=10 then"
+        " (select _value from kvstore_blob where rowid=kvstore._value) else _value end,"
+        " case when _type=10 then 1 else _type end from kvstore where _key=?";
+static const char* writeQuery = "insert or replace into kvstore (_key,_value,_type) values (?,?,?)";
+/* schema version 2 updates the row in place, the clustered table has no other index to keep */
+static const char* upsertQuery = "insert into kvstore (_key,_value,_type) values (?,?,?)"
+        " on conflict(_key) do update set _value=excluded._value,_type=excluded._type";
+/* sqlite version which first parses upsert */
+static const int UPSERT_VERSION = 3024000;
+static const char* deleteQuery = "delete from kvstore where _key=?";
+//string keys only, binary keys are blobs ordered after x''
+static const char* countQuery = "select count(*) from kvstore where _key < x'';";
+static const char* existsQuery = "select 1 from kvstore where _key=?";
+//binary keys are blobs, which sqlite orders after every text key
+static const char* scanKeysQuery = "select _key from kvstore where _key>=? and _key<x'' order by _key limit ?";
+static const char* rowidQuery = "select rowid,_type from kvstore where _key=?";
+static const char* streamedRowidQuery = "select case when _type=10 then _value end,_type from kvstore where _key=?";
+static const char* blobInsertQuery = "insert into kvstore_blob (_value) values (zeroblob(?))";
+static const char* beginQuery = "BEGIN TRANSACTION;";
+static const char* beginImmediateQuery = "BEGIN IMMEDIATE TRANSACTION;";
+static const char* commitQuery = "COMMIT TRANSACTION;";
+static const char* rollbackQuery = "ROLLBACK TRANSACTION;";
+
+/* statements used by the key value apis, prepared once per connection */
+enum FixedStatement {
+    READ_STATEMENT,
+    WRITE_STATEMENT,
+    DELETE_STATEMENT,
+    COUNT_STATEMENT,
+    EXISTS_STATEMENT,
+    SCAN_KEYS_STATEMENT,
+    ROWID_STATEMENT,
+    BLOB_INSERT_STATEMENT,
+    BEGIN_STATEMENT,
+    BEGIN_IMMEDIATE_STATEMENT,
+    COMMIT_STATEMENT,
+    ROLLBACK_STATEMENT,
+    FIXED_STATEMENT_COUNT
+};
+static const char* fixedQueries[FIXED_STATEMENT_COUNT] = {
+    readQuery, writeQuery, deleteQuery, countQuery, existsQuery, scanKeysQuery, rowidQuery,
+    blobInsertQuery, beginQuery, beginImmediateQuery, commitQuery, rollbackQuery
+};
+
+/* type of value stored in _type column, same as in ValueType.java.
+ * Numbers are stored as sqlite INTEGER or REAL so they are read back without parsing
+ */
+enum ValueType {
+    TYPE_UNTYPED = 0,
+    TYPE_BLOB = 1,
+    TYPE_STRING = 2,
+    TYPE_BOOLEAN = 3,
+    TYPE_SHORT = 4,
+    TYPE_INT = 5,
+    TYPE_LONG = 6,
+    TYPE_FLOAT = 7,
+    TYPE_DOUBLE = 8,
+    //blob or string compressed by DBCompressor, only decoded in java
+    TYPE_COMPRESSED = 9,
+    //blob written by a value stream into kvstore_blob, _value is its rowid
+    TYPE_STREAMED = 10
+};
+
+/* operation codes of a write batch, same as in WriteBatch.java */
+enum BatchOperation {
+    BATCH_DELETE = 0,
+    BATCH_PUT = 1,
+    BATCH_PUT_STRING = 2,
+    BATCH_PUT_INTEGER = 3,
+    BATCH_PUT_REAL = 4
+};
+
+/* maximum number of statements kept for arbitrary sql */
+static const size_t MAX_CACHED_STATEMENTS = 25;
+
+/* LRU of prepared statements for sql passed by the user, keyed by utf-16 sql text */
+struct StatementCache {
+    typedef pair<string, sqlite3_stmt*> Entry;
+    list<Entry> entries;
+    map<string, list<Entry>::iterator> index;
+
+    sqlite3_stmt* get(const string& sql) {
+        map<string, list<Entry>::iterator>::iterator it = index.find(sql);
+        if(it == index.end()) return NULL;
+        //move to front as most recently used
+        entries.splice(entries.begin(), entries, it->second);
+        return it->second->second;
+    }
+    /* remove statement from cache so a cursor can own it until it is given back */
+    sqlite3_stmt* take(const string& sql) {
+        map<string, list<Entry>::iterator>::iterator it = index.find(sql);
+        if(it == index.end()) return NULL;
+        sqlite3_stmt* statement = it->second->second;
+        entries.erase(it->second);
+        index.erase(it);
+        return statement;
+    }
+    void put(const string& sql, sqlite3_stmt* statement) {
+        //another statement for same sql was cached meanwhile, keep that one
+        if(index.find(sql) != index.end()) {
+            sqlite3_finalize(statement);
+            return;
+        }
+        entries.push_front(Entry(sql, statement));
+        index[sql] = entries.begin();
+        if(entries.size() > MAX_CACHED_STATEMENTS) {
+            Entry& last = entries.back();
+            sqlite3_finalize(last.second);
+            index.erase(last.first);
+            entries.pop_back();
+        }
+    }
+    void clear() {
+        for(list<Entry>::iterator it = entries.begin(); it != entries.end(); ++it) {
+            sqlite3_finalize(it->second);
+        }
+        entries.clear();
+        index.clear();
+    }
+};
+
+/* statement which ran longer than the slow statement threshold */
+struct SlowStatement {
+    string sql;
+    sqlite3_uint64 nanos;
+};
+
+/* slow statements kept per connection until java collects them, older ones are dropped */
+static const size_t MAX_SLOW_STATEMENTS = 64;
+/* total time a connection retries a busy database before giving up, as the old busy timeout */
+static const int BUSY_TIMEOUT_MS = 2500;
 
 /* class to for each connections*/
 struct DBConnection {
@@ -90,10 +215,116 @@ struct DBConnection {
     const int openFlags;
     const string path;
     string label;
+    sqlite3_stmt* fixed[FIXED_STATEMENT_COUNT];
+    StatementCache cache;
+    //value streams opened on this connection, closed with it
+    set<sqlite3_blob*> blobs;
+    jlong cacheHits;
+    jlong cacheMisses;
+    //busy handler retries not yet collected by java
+    jlong busyRetries;
+    //statements slower than this are recorded once profiling is on
+    sqlite3_uint64 slowNanos;
+    list<SlowStatement> slowStatements;
+    //layout of kvstore table the write statement is prepared for
+    int schemaVersion;
     DBConnection(sqlite3* db, int openFlags, const string& path) :
-        db(db), openFlags(openFlags), path(path) { }
+        db(db), openFlags(openFlags), path(path), cacheHits(0), cacheMisses(0), busyRetries(0), slowNanos(0),
+        schemaVersion(1) {
+        memset(fixed, 0, sizeof(fixed));
+    }
+    /* finalize every cached statement, must be done before closing db */
+    void finalizeStatements() {
+        for(set<sqlite3_blob*>::iterator it = blobs.begin(); it != blobs.end(); ++it) {
+            sqlite3_blob_close(*it);
+        }
+        blobs.clear();
+        for(int i = 0; i < FIXED_STATEMENT_COUNT; i++) {
+            sqlite3_finalize(fixed[i]);
+            fixed[i] = NULL;
+        }
+        cache.clear();
+    }
 };
 
+/* get one of the fixed statements, preparing it on first use */
+sqlite3_stmt* acquireStatement(DBConnection* connection, FixedStatement id) {
+    if(connection->fixed[id] != NULL) {
+        connection->cacheHits++;
+        return connection->fixed[id];
+    }
+    connection->cacheMisses++;
+    const char* sql = fixedQueries[id];
+    //older sqlite replaces the row, which in a table without rowid is still one b-tree
+    if(id == WRITE_STATEMENT && connection->schemaVersion >= 2 && sqlite3_libversion_number() >= UPSERT_VERSION) {
+        sql = upsertQuery;
+    } else if(id == READ_STATEMENT && connection->schemaVersion >= 2) {
+        sql = streamedReadQuery;
+    } else if(id == ROWID_STATEMENT && connection->schemaVersion >= 2) {
+        sql = streamedRowidQuery;
+    }
+    sqlite3_stmt* statement = NULL;
+    if(sqlite3_prepare_v2(connection->db, sql, -1, &statement, NULL) != SQLITE_OK) {
+        sqlite3_finalize(statement);
+        return NULL;
+    }
+    connection->fixed[id] = statement;
+    return statement;
+}
+
+/* run one of the fixed statements which does not need bindings */
+int stepStatement(DBConnection* connection, FixedStatement id) {
+    sqlite3_stmt* statement = acquireStatement(connection, id);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    int res = sqlite3_step(statement);
+    resetStatement(statement);
+    return res;
+}
+
+/* take statement for utf-16 sql out of the LRU cache for exclusive use, preparing
+ * it if not present. It is given back to the cache by releaseStatement16
+ */
+sqlite3_stmt* takeStatement16(DBConnection* connection, const jchar* sql, jsize length) {
+    string key(reinterpret_cast<const char*>(sql), length * sizeof(jchar));
+    sqlite3_stmt* statement = connection->cache.take(key);
+    if(statement != NULL) {
+        connection->cacheHits++;
+        return statement;
+    }
+    connection->cacheMisses++;
+    if(sqlite3_prepare16_v2(connection->db, sql, length * sizeof(jchar), &statement, NULL) != SQLITE_OK) {
+        sqlite3_finalize(statement);
+        return NULL;
+    }
+    return statement;
+}
+
+/* reset statement taken by takeStatement16 and put it back into the LRU cache */
+void releaseStatement16(DBConnection* connection, const jchar* sql, jsize length, sqlite3_stmt* statement) {
+    resetStatement(statement);
+    connection->cache.put(string(reinterpret_cast<const char*>(sql), length * sizeof(jchar)), statement);
+}
+
+/* get statement for utf-16 sql from the LRU cache, preparing it if not present */
+sqlite3_stmt* acquireStatement16(DBConnection* connection, const jchar* sql, jsize length) {
+    string key(reinterpret_cast<const char*>(sql), length * sizeof(jchar));
+    sqlite3_stmt* statement = connection->cache.get(key);
+    if(statement != NULL) {
+        connection->cacheHits++;
+        return statement;
+    }
+    connection->cacheMisses++;
+    if(sqlite3_prepare16_v2(connection->db, sql, length * sizeof(jchar), &statement, NULL) != SQLITE_OK) {
+        sqlite3_finalize(statement);
+        return NULL;
+    }
+    //empty sql (only comments or whitespace) gives no statement
+    if(statement != NULL) {
+        connection->cache.put(key, statement);
+    }
+    return statement;
+}
+
 // reference from android sqliteconnection.cpp
 // Called each time a statement begins execution, when tracing is enabled.
 static void sqliteTraceCallback(void *data, const char *sql) {
@@ -101,72 +332,356 @@ static void sqliteTraceCallback(void *data, const char *sql) {
     printf( "statement start %s: \"%s\"\n",
             connection->label.c_str(), sql);
 }
-// reference from android sqliteconnection.cpp
 // Called each time a statement finishes execution, when profiling is enabled.
+// Statements slower than the threshold are kept for the java slow statement log
 static void sqliteProfileCallback(void *data, const char *sql, sqlite3_uint64 tm) {
     DBConnection* connection = static_cast<DBConnection*>(data);
-    printf( "statement executed %s: \"%s\" took %0.3f ms\n",
-            connection->label.c_str(), sql, tm * 0.000001f);
+    if(tm < connection->slowNanos) return;
+    if(connection->slowStatements.size() == MAX_SLOW_STATEMENTS) {
+        connection->slowStatements.pop_front();
+    }
+    SlowStatement slow = { string(sql), tm };
+    connection->slowStatements.push_back(slow);
 }
 
-// get value in form of byte array
-int getValue(JNIEnv *env,DBConnection* connection, jstring jkey, jbyteArray* result){
-    sqlite3_stmt* statement;
-    const char* key =  env->GetStringUTFChars(jkey, NULL);
-    int res = sqlite3_prepare_v2(connection->db,readQuery,-1,&statement,0);
-    if(res == SQLITE_OK) {
-        res = sqlite3_bind_text(statement,1,key,-1,SQLITE_TRANSIENT);
-        if (res == SQLITE_OK) {
-            res = sqlite3_step(statement);
-            if(res == SQLITE_ROW){
-                jbyte* data = (jbyte*)sqlite3_column_blob(statement, 0);
-                int size = sqlite3_column_bytes(statement, 0);
-                *result = env->NewByteArray(size * sizeof(jbyte));
-                env->SetByteArrayRegion(*result, 0, size, data);
-            }
+// Busy handler with the waits of sqlite's own busy timeout, which also counts
+// every retry so lock contention shows up in metrics
+static int sqliteBusyCallback(void *data, int count) {
+    static const int delays[] = { 1, 2, 5, 10, 15, 20, 25, 25, 25, 50, 50, 100 };
+    static const int totals[] = { 0, 1, 3, 8, 18, 33, 53, 78, 103, 128, 178, 228 };
+    static const int steps = sizeof(delays) / sizeof(delays[0]);
+    DBConnection* connection = static_cast<DBConnection*>(data);
+    int delay, prior;
+    if(count < steps) {
+        delay = delays[count];
+        prior = totals[count];
+    } else {
+        delay = delays[steps - 1];
+        prior = totals[steps - 1] + delay * (count - (steps - 1));
+    }
+    if(prior + delay > BUSY_TIMEOUT_MS) {
+        delay = BUSY_TIMEOUT_MS - prior;
+        if(delay <= 0) return 0;
+    }
+    connection->busyRetries++;
+    sqlite3_sleep(delay);
+    return 1;
+}
+
+/* true if value row of read statement holds a compressed value */
+static bool isCompressed(sqlite3_stmt* statement) {
+    return sqlite3_column_int(statement, 1) == TYPE_COMPRESSED;
+}
+
+/* value column of read statement as byte array */
+static jbyteArray valueBytes(JNIEnv* env, sqlite3_stmt* statement) {
+    const jbyte* data = static_cast<const jbyte*>(sqlite3_column_blob(statement, 0));
+    int size = sqlite3_column_bytes(statement, 0);
+    jbyteArray value = env->NewByteArray(size);
+    env->SetByteArrayRegion(value, 0, size, data);
+    return value;
+}
+
+/* store type of value read into first element of java array, if one was given */
+static void setType(JNIEnv* env, jintArray jtype, jint type) {
+    if(jtype != NULL) {
+        env->SetIntArrayRegion(jtype, 0, 1, &type);
+    }
+}
+
+/* key bound to the key value statements, utf-8 text of a java string or the
+ * bytes of a binary key. Binary keys are stored as BLOB and ordered by memcmp
+ */
+struct Key {
+    const void* data;
+    int length;
+    bool binary;
+    Key(const char* text) : data(text), length(-1), binary(false) {}
+    Key(const void* bytes, int length) : data(bytes), length(length), binary(true) {}
+};
+
+static int bindKey(sqlite3_stmt* statement, const Key& key) {
+    if(key.binary) return sqlite3_bind_blob(statement, 1, key.data, key.length, SQLITE_STATIC);
+    return sqlite3_bind_text(statement, 1, static_cast<const char*>(key.data), key.length, SQLITE_STATIC);
+}
+
+/* binary key copied out of its java array, on the stack unless it is long */
+class BinaryKey {
+    jbyte stack[256];
+    vector<jbyte> heap;
+public:
+    Key key;
+    BinaryKey(JNIEnv* env, jbyteArray array) : key(stack, 0) {
+        jsize length = env->GetArrayLength(array);
+        jbyte* bytes = stack;
+        if(length > (jsize) sizeof(stack)) {
+            heap.resize(length);
+            bytes = &heap[0];
+        }
+        env->GetByteArrayRegion(array, 0, length, bytes);
+        key = Key(bytes, length);
+    }
+};
+
+// read value of key as byte array together with its _type
+int readValue(JNIEnv *env, DBConnection* connection, const Key& key, jbyteArray* result, jint* type){
+    sqlite3_stmt* statement = acquireStatement(connection, READ_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    int res = bindKey(statement, key);
+    if (res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW){
+            *result = valueBytes(env, statement);
+            *type = sqlite3_column_int(statement, 1);
         }
     }
+    resetStatement(statement);
+    return res;
+}
+
+// get value in form of byte array together with its _type
+int getValue(JNIEnv *env,DBConnection* connection, jstring jkey, jbyteArray* result, jint* type){
+    const char* key =  env->GetStringUTFChars(jkey, NULL);
+    int res = readValue(env, connection, key, result, type);
     env->ReleaseStringUTFChars(jkey, key);
-    sqlite3_finalize(statement);
     return res;
 }
-int getValueString(JNIEnv *env,DBConnection* connection, jstring jkey, char** result){
-    sqlite3_stmt* statement;
-    const char * key =  env->GetStringUTFChars(jkey, NULL);
-    int res = sqlite3_prepare_v2(connection->db,readQuery,-1,&statement,0);
-    if(res == SQLITE_OK) {
-        res = sqlite3_bind_text(statement,1,key,-1,SQLITE_TRANSIENT);
-        if (res == SQLITE_OK) {
-            res = sqlite3_step(statement);
-            if(res == SQLITE_ROW){
-                const char* str = (const char*)sqlite3_column_blob(statement, 0);
-                int size = sqlite3_column_bytes(statement, 0);
-                *result = (char*)malloc(size*sizeof(char));
-                memcpy(*result,str,size);
+/* numeric value read by the typed getters */
+struct Number {
+    jlong integer;
+    jdouble real;
+};
+
+// read value as number. INTEGER and REAL values are used as stored, text encoded
+// values written before the _type column existed are converted by sqlite in place
+int readNumber(DBConnection* connection, const Key& key, Number* number){
+    sqlite3_stmt* statement = acquireStatement(connection, READ_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    int res = bindKey(statement, key);
+    if (res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW){
+            switch(sqlite3_column_type(statement, 0)) {
+            case SQLITE_INTEGER:
+                number->integer = sqlite3_column_int64(statement, 0);
+                number->real = (jdouble) number->integer;
+                break;
+            case SQLITE_FLOAT:
+                number->real = sqlite3_column_double(statement, 0);
+                number->integer = (jlong) number->real;
+                break;
+            default: {
+                //legacy booleans were stored as a single 0 or 1 byte
+                const unsigned char* data = static_cast<const unsigned char*>(sqlite3_column_blob(statement, 0));
+                if(sqlite3_column_bytes(statement, 0) == 1 && data[0] <= 1) {
+                    number->integer = data[0];
+                    number->real = data[0];
+                } else {
+                    number->integer = sqlite3_column_int64(statement, 0);
+                    number->real = sqlite3_column_double(statement, 0);
+                }
+            }
             }
         }
     }
+    resetStatement(statement);
+    return res;
+}
+
+int getNumber(JNIEnv *env, DBConnection* connection, jstring jkey, Number* number){
+    const char * key =  env->GetStringUTFChars(jkey, NULL);
+    int res = readNumber(connection, key, number);
     env->ReleaseStringUTFChars(jkey, key);
-    sqlite3_finalize(statement);
+    return res;
+}
+
+// bind key and type of write statement and run it, value is bound by caller
+int writeValue(sqlite3_stmt* statement, const Key& key, int type, int res){
+    if(res == SQLITE_OK) {
+        res = bindKey(statement, key);
+    }
+    if(res == SQLITE_OK) {
+        res = sqlite3_bind_int(statement,3,type);
+    }
+    if(res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+    }
+    resetStatement(statement);
+    return res;
+}
+
+// look up key with exists statement, SQLITE_ROW if it is present
+int existsValue(DBConnection* connection, const Key& key){
+    sqlite3_stmt* statement = acquireStatement(connection, EXISTS_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    int res = bindKey(statement, key);
+    if (res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+    }
+    resetStatement(statement);
     return res;
 }
 
 // put function used to put (key,value). used by put apis
-int putValue(DBConnection* connection, const char* key, const char* value, int length){
-    sqlite3_stmt* statement;
-    int res = sqlite3_prepare_v2(connection->db,writeQuery,-1,&statement,NULL);
+int putValue(DBConnection* connection, const Key& key, const char* value, int length, int type){
+    sqlite3_stmt* statement = acquireStatement(connection, WRITE_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    return writeValue(statement, key, type,
+            sqlite3_bind_blob(statement,2,value,length*sizeof(char),SQLITE_STATIC));
+}
+
+// put (key,value) where value is stored as sqlite INTEGER
+int putInteger(DBConnection* connection, const Key& key, jlong value, int type){
+    sqlite3_stmt* statement = acquireStatement(connection, WRITE_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    return writeValue(statement, key, type, sqlite3_bind_int64(statement,2,value));
+}
+
+// put (key,value) where value is stored as sqlite REAL
+int putReal(DBConnection* connection, const Key& key, jdouble value, int type){
+    sqlite3_stmt* statement = acquireStatement(connection, WRITE_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    return writeValue(statement, key, type, sqlite3_bind_double(statement,2,value));
+}
+// delete function used by delete apis
+int deleteValue(DBConnection* connection, const Key& key){
+    sqlite3_stmt* statement = acquireStatement(connection, DELETE_STATEMENT);
+    if(statement == NULL) return sqlite3_errcode(connection->db);
+    int res = bindKey(statement, key);
     if(res == SQLITE_OK) {
-        res = sqlite3_bind_text(statement,1,key,-1,SQLITE_TRANSIENT);
-        if(res == SQLITE_OK) {
-            res = sqlite3_bind_blob(statement,2,value,length*sizeof(char),SQLITE_TRANSIENT);
-            if(res == SQLITE_OK) {
-                res = sqlite3_step(statement);
-            }
+        res = sqlite3_step(statement);
+    }
+    resetStatement(statement);
+    return res;
+}
+
+// apply a single write batch operation, returns SQLITE_DONE on success
+int applyBatchOperation(JNIEnv* env, DBConnection* connection, jint op, jint type, jstring jkey,
+        jobject jvalue, jlong number){
+    const char* key = env->GetStringUTFChars(jkey, NULL);
+    int res;
+    if(op == BATCH_PUT) {
+        jbyteArray array = static_cast<jbyteArray>(jvalue);
+        jsize length = env->GetArrayLength(array);
+        char* value = static_cast<char*>(env->GetPrimitiveArrayCritical(array, NULL));
+        res = putValue(connection, key, value, length, type);
+        env->ReleasePrimitiveArrayCritical(array, value, JNI_ABORT);
+    } else if(op == BATCH_PUT_STRING) {
+        jstring string = static_cast<jstring>(jvalue);
+        jsize length = env->GetStringUTFLength(string);
+        const char* value = env->GetStringUTFChars(string, NULL);
+        res = putValue(connection, key, value, length, type);
+        env->ReleaseStringUTFChars(string, value);
+    } else if(op == BATCH_PUT_INTEGER) {
+        res = putInteger(connection, key, number, type);
+    } else if(op == BATCH_PUT_REAL) {
+        //doubles are passed as raw long bits
+        jdouble real;
+        memcpy(&real, &number, sizeof(real));
+        res = putReal(connection, key, real, type);
+    } else {
+        res = deleteValue(connection, key);
+    }
+    env->ReleaseStringUTFChars(jkey, key);
+    return res;
+}
+
+/* receives the value row of every key found by multiGet */
+struct MultiGetVisitor {
+    virtual void onValue(JNIEnv* env, jsize index, sqlite3_stmt* statement) = 0;
+    virtual ~MultiGetVisitor() {}
+};
+
+/* look up one key of a multiGet, SQLITE_OK whether it is found or not */
+static int lookup(JNIEnv* env, sqlite3_stmt* statement, const Key& key, jsize index, MultiGetVisitor& visitor){
+    int res = bindKey(statement, key);
+    if(res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW) {
+            visitor.onValue(env, index, statement);
+            res = SQLITE_OK;
+        } else if(res == SQLITE_DONE) {
+            res = SQLITE_OK;
+        }
+    }
+    resetStatement(statement);
+    return res;
+}
+
+/* look up all keys with the cached read statement. If no transaction is active
+ * lookups run inside an implicit read transaction so they see one snapshot.
+ * Keys are strings, or byte arrays if binary is set
+ */
+int multiGet(JNIEnv* env, DBConnection* connection, jobjectArray jkeys, MultiGetVisitor& visitor, bool binary = false){
+    bool implicitTransaction = sqlite3_get_autocommit(connection->db) != 0;
+    if(implicitTransaction && stepStatement(connection, BEGIN_STATEMENT) != SQLITE_DONE) {
+        return sqlite3_errcode(connection->db);
+    }
+    sqlite3_stmt* statement = acquireStatement(connection, READ_STATEMENT);
+    int res = statement != NULL ? SQLITE_OK : sqlite3_errcode(connection->db);
+    jsize count = env->GetArrayLength(jkeys);
+    for(jsize i = 0; i < count && res == SQLITE_OK; i++) {
+        jobject jkey = env->GetObjectArrayElement(jkeys, i);
+        if(binary) {
+            BinaryKey key(env, static_cast<jbyteArray>(jkey));
+            res = lookup(env, statement, key.key, i, visitor);
+        } else {
+            const char* key = env->GetStringUTFChars(static_cast<jstring>(jkey), NULL);
+            res = lookup(env, statement, key, i, visitor);
+            env->ReleaseStringUTFChars(static_cast<jstring>(jkey), key);
         }
+        env->DeleteLocalRef(jkey);
+    }
+    if(implicitTransaction) {
+        stepStatement(connection, COMMIT_STATEMENT);
     }
-    sqlite3_finalize(statement);
     return res;
 }
+
+struct BytesVisitor : MultiGetVisitor {
+    jobjectArray values;
+    jint* types;
+    void onValue(JNIEnv* env, jsize index, sqlite3_stmt* statement) {
+        jbyteArray value = valueBytes(env, statement);
+        env->SetObjectArrayElement(values, index, value);
+        env->DeleteLocalRef(value);
+        types[index] = sqlite3_column_int(statement, 1);
+    }
+};
+
+/* strings, or byte arrays for compressed values which java decodes */
+struct StringVisitor : MultiGetVisitor {
+    jobjectArray values;
+    void onValue(JNIEnv* env, jsize index, sqlite3_stmt* statement) {
+        jobject value;
+        if(isCompressed(statement)) {
+            value = valueBytes(env, statement);
+        } else {
+            value = env->NewStringUTF((const char*)sqlite3_column_text(statement, 0));
+        }
+        env->SetObjectArrayElement(values, index, value);
+        env->DeleteLocalRef(value);
+    }
+};
+
+struct LongVisitor : MultiGetVisitor {
+    jlong* values;
+    jboolean* found;
+    void onValue(JNIEnv* env, jsize index, sqlite3_stmt* statement) {
+        values[index] = sqlite3_column_int64(statement, 0);
+        found[index] = JNI_TRUE;
+    }
+};
+
+struct DoubleVisitor : MultiGetVisitor {
+    jdouble* values;
+    jboolean* found;
+    void onValue(JNIEnv* env, jsize index, sqlite3_stmt* statement) {
+        values[index] = sqlite3_column_double(statement, 0);
+        found[index] = JNI_TRUE;
+    }
+};
+
 /* Create/Open sql connection to database */
 JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeOpen
 (JNIEnv * env , jclass clazz, jstring pathString, jint flags){
@@ -195,15 +710,15 @@ JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeOpen
         return 0;
     }
 
-    err = sqlite3_busy_timeout(db, 2500);
+    DBConnection* connection = new DBConnection(db, flags, path);
+    connection->label = string(path);
+    err = sqlite3_busy_handler(db, sqliteBusyCallback, connection);
     if(err != SQLITE_OK) {
         throwException(env, "Could not set busy timeout");
+        delete connection;
         sqlite3_close(db);
         return 0;
     }
-
-    DBConnection* connection = new DBConnection(db, flags, path);
-    connection->label = string(path);
     printf("Open Connection %p\n",connection);
     return reinterpret_cast<jlong>(connection);
 }
@@ -213,6 +728,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeClose
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     if(connection) {
         printf("Closing connection %p\n", connection->db);
+        connection->finalizeStatements();
         int err = sqlite3_close(connection->db);
         if (err != SQLITE_OK) {
             printf("sqlite3_close failed: %d\n", err);
@@ -226,13 +742,16 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeClose
 JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExecute
     (JNIEnv* env, jobject clazz, jlong connectionPtr, jstring sql){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    sqlite3_stmt* statement;
     jsize sqlLength = env->GetStringLength(sql);
     const jchar* sqlstmt = env->GetStringCritical(sql, NULL);
-    int err = sqlite3_prepare16_v2(connection->db,sqlstmt, sqlLength * sizeof(jchar), &statement, NULL);
+    sqlite3_stmt* statement = acquireStatement16(connection, sqlstmt, sqlLength);
     env->ReleaseStringCritical(sql, sqlstmt);
-    err = sqlite3_step(statement);
-    sqlite3_finalize(statement);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return;
+    }
+    int err = sqlite3_step(statement);
+    resetStatement(statement);
     if(err != SQLITE_DONE&& err!=SQLITE_ROW) {
         throwException(env, "Execute not done");
     }
@@ -253,18 +772,20 @@ JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePrepare
     int err = sqlite3_prepare16_v2(connection->db, sql, sqlLength * sizeof(jchar), &statement, NULL);
     env->ReleaseStringCritical(sqlString, sql);
     if(err != SQLITE_OK) {
-        throwException(env, "problem in preparing statement");
+        throwException(env, sqlite3_errmsg(connection->db));
+        return 0;
+    }
+    if(statement == NULL) {
+        throwException(env, "Query is empty");
         return 0;
     }
     return reinterpret_cast<jlong>(statement);
 }
 JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeReset
-    (JNIEnv * env, jobject obzz, jlong statementPtr, jlong){
+    (JNIEnv * env, jobject obzz, jlong connectionPtr, jlong statementPtr){
     sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
-    int err = resetStatement(statement);
-    if(err != SQLITE_OK) {
-        throwException(env, NULL);
-    }
+    //reset reports the error of the last step again, which was already thrown then
+    resetStatement(statement);
 }
 JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeHolderCount
   (JNIEnv* env, jobject obzz, jlong statementPtr) {
@@ -278,19 +799,20 @@ JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeIsRea
     return sqlite3_stmt_readonly(statement) != 0;
 }
 JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetColumns
-    (JNIEnv* env, jobject obzz, jlong statementPtr) {
+    (JNIEnv* env, jobject obzz, jlong connectionPtr, jlong statementPtr) {
     sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
     return sqlite3_column_count(statement);
 }
 
 JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePut
-    (JNIEnv * env, jobject obzz, jlong connectionPtr, jstring keyString, jbyteArray jvalue){
+    (JNIEnv * env, jclass clazz, jlong connectionPtr, jstring keyString, jbyteArray jvalue, jint type){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(keyString, NULL);
     jsize valueLength = env->GetArrayLength(jvalue);
     char* value = static_cast<char*>(env->GetPrimitiveArrayCritical(jvalue, NULL));
-    int result = putValue(connection,key,value,valueLength);
+    int result = putValue(connection,key,value,valueLength,type);
     env->ReleasePrimitiveArrayCritical(jvalue, value, JNI_ABORT);
+    env->ReleaseStringUTFChars(keyString, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting");
     }
@@ -305,9 +827,9 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutString
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring keyString, jstring valueString){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(keyString, NULL);
-    jsize valueLength = env->GetStringLength(valueString);
+    jsize valueLength = env->GetStringUTFLength(valueString);
     const char * value = env->GetStringUTFChars(valueString, NULL);
-    int result = putValue(connection,key,value,valueLength);
+    int result = putValue(connection,key,value,valueLength,TYPE_STRING);
     env->ReleaseStringUTFChars(keyString, key);
     env->ReleaseStringUTFChars(valueString, value);
     if(result != SQLITE_DONE) {
@@ -324,9 +846,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutShort
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey, jshort jvalue){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putInteger(connection,key,jvalue,TYPE_SHORT);
     env->ReleaseStringUTFChars(jkey, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting short");
@@ -342,9 +862,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutInt
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring keyString, jint jvalue) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(keyString, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putInteger(connection,key,jvalue,TYPE_INT);
     env->ReleaseStringUTFChars(keyString, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting integer");
@@ -360,9 +878,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutBoolea
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey, jboolean jvalue){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putInteger(connection,key,jvalue,TYPE_BOOLEAN);
     env->ReleaseStringUTFChars(jkey, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting boolean");
@@ -378,9 +894,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutDouble
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey, jdouble jvalue){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putReal(connection,key,jvalue,TYPE_DOUBLE);
     env->ReleaseStringUTFChars(jkey, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting double");
@@ -396,9 +910,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutFloat
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey, jfloat jvalue){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putReal(connection,key,jvalue,TYPE_FLOAT);
     env->ReleaseStringUTFChars(jkey, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting float");
@@ -414,9 +926,7 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutLong
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey, jlong jvalue){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    string s = me::to_string(jvalue);
-    char const *value = s.c_str();
-    int result = putValue(connection,key,value,s.length());
+    int result = putInteger(connection,key,jvalue,TYPE_LONG);
     env->ReleaseStringUTFChars(jkey, key);
     if(result != SQLITE_DONE) {
         throwException(env,"Error inserting long");
@@ -431,62 +941,63 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutLong
 JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeDelete
     (JNIEnv* env, jobject obzz,jlong connectionPtr,  jstring jkey){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    sqlite3_stmt* statement;
-    int result;
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    const char* query = "delete from kvstore where _key=?";
-    int res = sqlite3_prepare_v2(connection->db,query,-1,&statement,0);
-    if (res == SQLITE_OK) {
-        res = sqlite3_bind_text(statement,1,key,-1,SQLITE_TRANSIENT);
-        if (res == SQLITE_OK) {
-            res = sqlite3_step(statement);
-            if(res != SQLITE_ROW && res != SQLITE_DONE){
-                throwException(env,"No such key");
-            }
-        }
-    }
+    int res = deleteValue(connection, key);
     env->ReleaseStringUTFChars(jkey, key);
-    sqlite3_finalize(statement);
+    if(res != SQLITE_ROW && res != SQLITE_DONE){
+        throwException(env,"No such key");
+    }
 }
 
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativeGetBytes
- * Signature: (JLjava/lang/String;)[B
+ * Signature: (JLjava/lang/String;[I)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetBytes
-    (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring keyString) {
+    (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring keyString, jintArray jtype) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    jbyteArray array;
-    int res = getValue(env,connection,keyString,&array);
+    jbyteArray array = NULL;
+    jint type = TYPE_UNTYPED;
+    int res = getValue(env,connection,keyString,&array,&type);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    setType(env, jtype, type);
     return array;
 }
 
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativeGet
- * Signature: (JLjava/lang/String;)Ljava/lang/String;
+ * Signature: (JLjava/lang/String;)Ljava/lang/Object;
  */
-JNIEXPORT jstring JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGet
+JNIEXPORT jobject JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGet
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    jstring result = NULL;
-    sqlite3_stmt* statement;
+    jobject result = NULL;
+    sqlite3_stmt* statement = acquireStatement(connection, READ_STATEMENT);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
     const char * key =  env->GetStringUTFChars(jkey, NULL);
-    int res = sqlite3_prepare_v2(connection->db,readQuery,-1,&statement,0);
-    if(res == SQLITE_OK) {
-        res = sqlite3_bind_text(statement,1,key,-1,SQLITE_TRANSIENT);
-        if (res == SQLITE_OK) {
-            res = sqlite3_step(statement);
-            if(res == SQLITE_ROW){
-                const char* str = (const char*)sqlite3_column_blob(statement, 0);
-                int size = sqlite3_column_bytes(statement, 0);
+    int res = sqlite3_bind_text(statement,1,key,-1,SQLITE_STATIC);
+    if (res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW){
+            if(isCompressed(statement)) {
+                //compressed frame is decoded by caller
+                result = valueBytes(env, statement);
+            } else {
+                const char* str = (const char*)sqlite3_column_text(statement, 0);
                 result = env->NewStringUTF(str);
             }
         }
     }
+    resetStatement(statement);
     env->ReleaseStringUTFChars(jkey, key);
-    sqlite3_finalize(statement);
     return result;
 }
 
@@ -499,12 +1010,11 @@ JNIEXPORT jshort JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetShor
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jshort result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = atoi(data);
+        result = (jshort) number.integer;
     }
-    free(data);
     return result;
 }
 
@@ -517,12 +1027,11 @@ JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetInt
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jint result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = atoi(data);
+        result = (jint) number.integer;
     }
-    free(data);
     return result;
 }
 
@@ -535,12 +1044,11 @@ JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetBo
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jboolean result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = data[0];
+        result = number.integer != 0;
     }
-    free(data);
     return result;
 }
 
@@ -553,12 +1061,11 @@ JNIEXPORT jdouble JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetDou
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jdouble result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = atof(data);
+        result = number.real;
     }
-    free(data);
     return result;
 }
 
@@ -571,12 +1078,11 @@ JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetLong
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jlong result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = atoll(data);
+        result = number.integer;
     }
-    free(data);
     return result;
 }
 
@@ -589,12 +1095,11 @@ JNIEXPORT jfloat JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetFloa
     (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey) {
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
     jfloat result = 0;
-    char* data = NULL;
-    int res = getValueString(env,connection,jkey,&data);
+    Number number;
+    int res = getNumber(env,connection,jkey,&number);
     if(res == SQLITE_ROW) {
-        result = atof(data);
+        result = (jfloat) number.real;
     }
-    free(data);
     return result;
 }
 
@@ -605,51 +1110,907 @@ JNIEXPORT jfloat JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetFloa
  */
 JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExists
 (JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    const char * key =  env->GetStringUTFChars(jkey, NULL);
+    int res = existsValue(connection, key);
+    env->ReleaseStringUTFChars(jkey, key);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+    return res == SQLITE_ROW ? JNI_TRUE : JNI_FALSE;
+}
 
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryPut
+ * Signature: (J[B[BI)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryPut
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey, jbyteArray jvalue, jint type){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BinaryKey key(env, jkey);
+    jsize length = env->GetArrayLength(jvalue);
+    char* value = static_cast<char*>(env->GetPrimitiveArrayCritical(jvalue, NULL));
+    int res = putValue(connection, key.key, value, length, type);
+    env->ReleasePrimitiveArrayCritical(jvalue, value, JNI_ABORT);
+    if(res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
 }
 
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
- * Method:    nativeCountKeys
- * Signature: (JLjava/lang/String;)I
+ * Method:    nativeBinaryPutLong
+ * Signature: (J[BJ)V
  */
-JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCountKeys
-(JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey){
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryPutLong
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey, jlong value){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    const char* query = "select count(*) from kvstore;";
-    sqlite3_stmt* statement;
-    jlong data = 0;
-    int res = sqlite3_prepare_v2(connection->db,query,-1,&statement,0);
-    if(res == SQLITE_OK) {
-        res = sqlite3_step(statement);
-        if(res == SQLITE_ROW){
-            data = sqlite3_column_int(statement, 0);
-        }
+    BinaryKey key(env, jkey);
+    if(putInteger(connection, key.key, value, TYPE_LONG) != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
     }
-    sqlite3_reset(statement);
-    sqlite3_finalize(statement);
-    return data;
 }
 
-JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExecuteForResult
-(JNIEnv* env, jobject obzz, jlong connectionPtr, jstring sql){
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryGetBytes
+ * Signature: (J[B[I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryGetBytes
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey, jintArray jtype){
     DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
-    jsize sqlLength = env->GetStringLength(sql);
-    const jchar* sqlstmt = env->GetStringCritical(sql, NULL);
-    sqlite3_stmt* statement;
-    int err = sqlite3_prepare16_v2(connection->db, sqlstmt, sqlLength*sizeof(jchar), &statement, NULL);
-    env->ReleaseStringCritical(sql, sqlstmt);
-    if(err != SQLITE_OK) {
+    BinaryKey key(env, jkey);
+    jbyteArray array = NULL;
+    jint type = TYPE_UNTYPED;
+    int res = readValue(env, connection, key.key, &array, &type);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
         return NULL;
     }
-    jobjectArray ret = compute_result(env,statement);
-    err = sqlite3_reset(statement);
-    if(err == SQLITE_OK) {
-        err = sqlite3_clear_bindings(statement);
+    setType(env, jtype, type);
+    return array;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryGetLong
+ * Signature: (J[B)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryGetLong
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BinaryKey key(env, jkey);
+    Number number;
+    return readNumber(connection, key.key, &number) == SQLITE_ROW ? number.integer : 0;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryExists
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryExists
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BinaryKey key(env, jkey);
+    int res = existsValue(connection, key.key);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
     }
-    if(err != SQLITE_OK) {
-        throwException(env, NULL);
+    return res == SQLITE_ROW ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryDelete
+ * Signature: (J[B)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryDelete
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jbyteArray jkey){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BinaryKey key(env, jkey);
+    if(deleteValue(connection, key.key) != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
     }
-    sqlite3_finalize(statement);
-    return (ret);
-}
\ No newline at end of file
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeScanKeys
+ * Signature: (JLjava/lang/String;I)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeScanKeys
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring jfrom, jint limit){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = acquireStatement(connection, SCAN_KEYS_STATEMENT);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    const char * from =  env->GetStringUTFChars(jfrom, NULL);
+    vector<string> keys;
+    int res = sqlite3_bind_text(statement,1,from,-1,SQLITE_STATIC);
+    if (res == SQLITE_OK) {
+        res = sqlite3_bind_int(statement,2,limit);
+    }
+    if (res == SQLITE_OK) {
+        while((res = sqlite3_step(statement)) == SQLITE_ROW) {
+            const char* key = (const char*)sqlite3_column_text(statement, 0);
+            keys.push_back(key != NULL ? key : "");
+        }
+    }
+    resetStatement(statement);
+    env->ReleaseStringUTFChars(jfrom, from);
+    if(res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    jobjectArray result = env->NewObjectArray(keys.size(), env->FindClass("java/lang/String"), NULL);
+    for(size_t i = 0; i < keys.size(); i++) {
+        jstring key = env->NewStringUTF(keys[i].c_str());
+        env->SetObjectArrayElement(result, i, key);
+        env->DeleteLocalRef(key);
+    }
+    return result;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCountKeys
+ * Signature: (JLjava/lang/String;)I
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCountKeys
+(JNIEnv* env, jobject obzz, jlong connectionPtr, jstring jkey){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = acquireStatement(connection, COUNT_STATEMENT);
+    jlong data = 0;
+    if(statement != NULL) {
+        int res = sqlite3_step(statement);
+        if(res == SQLITE_ROW){
+            data = sqlite3_column_int64(statement, 0);
+        }
+        resetStatement(statement);
+    }
+    return data;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExecuteForResult
+(JNIEnv* env, jobject obzz, jlong connectionPtr, jstring sql){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    jsize sqlLength = env->GetStringLength(sql);
+    const jchar* sqlstmt = env->GetStringCritical(sql, NULL);
+    sqlite3_stmt* statement = acquireStatement16(connection, sqlstmt, sqlLength);
+    env->ReleaseStringCritical(sql, sqlstmt);
+    if(statement == NULL) {
+        return NULL;
+    }
+    jobjectArray ret = compute_result(env,statement);
+    int err = resetStatement(statement);
+    if(err != SQLITE_OK) {
+        throwException(env, NULL);
+    }
+    return (ret);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeStatementCacheStats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeStatementCacheStats
+(JNIEnv* env, jclass clazz, jlong connectionPtr){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    jlong stats[] = { connection->cacheHits, connection->cacheMisses };
+    jlongArray result = env->NewLongArray(2);
+    env->SetLongArrayRegion(result, 0, 2, stats);
+    return result;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeTakeConnectionStats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeTakeConnectionStats
+(JNIEnv* env, jclass clazz, jlong connectionPtr){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    //counters are reset as they are read, java adds them up over all connections
+    int current = 0, highwater = 0;
+    jlong stats[] = { connection->busyRetries, 0, 0, 0 };
+    connection->busyRetries = 0;
+    if(sqlite3_db_status(connection->db, SQLITE_DBSTATUS_CACHE_HIT, &current, &highwater, 1) == SQLITE_OK) {
+        stats[1] = current;
+    }
+    if(sqlite3_db_status(connection->db, SQLITE_DBSTATUS_CACHE_MISS, &current, &highwater, 1) == SQLITE_OK) {
+        stats[2] = current;
+    }
+    if(sqlite3_db_status(connection->db, SQLITE_DBSTATUS_CACHE_WRITE, &current, &highwater, 1) == SQLITE_OK) {
+        stats[3] = current;
+    }
+    jlongArray result = env->NewLongArray(4);
+    env->SetLongArrayRegion(result, 0, 4, stats);
+    return result;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeSetProfiling
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeSetProfiling
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong slowNanos){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    //sqlite 3.13 has no sqlite3_trace_v2, the profile callback gives the same timing
+    if(slowNanos < 0) {
+        sqlite3_profile(connection->db, NULL, NULL);
+        connection->slowStatements.clear();
+    } else {
+        connection->slowNanos = static_cast<sqlite3_uint64>(slowNanos);
+        sqlite3_profile(connection->db, sqliteProfileCallback, connection);
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeTakeSlowStatements
+ * Signature: (J[J)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeTakeSlowStatements
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlongArray jnanos){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    jsize count = static_cast<jsize>(connection->slowStatements.size());
+    jsize capacity = env->GetArrayLength(jnanos);
+    if(count > capacity) count = capacity;
+    jobjectArray result = env->NewObjectArray(count, env->FindClass("java/lang/String"), NULL);
+    for(jsize i = 0; i < count; i++) {
+        SlowStatement& slow = connection->slowStatements.front();
+        jstring sql = env->NewStringUTF(slow.sql.c_str());
+        env->SetObjectArrayElement(result, i, sql);
+        env->DeleteLocalRef(sql);
+        jlong nanos = static_cast<jlong>(slow.nanos);
+        env->SetLongArrayRegion(jnanos, i, 1, &nanos);
+        connection->slowStatements.pop_front();
+    }
+    return result;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeWriteBatch
+ * Signature: (J[I[I[Ljava/lang/String;[Ljava/lang/Object;[JIZ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeWriteBatch
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jintArray jops, jintArray jtypes, jobjectArray jkeys,
+        jobjectArray jvalues, jlongArray jnumbers, jint count, jboolean ownTransaction){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    if(ownTransaction && stepStatement(connection, BEGIN_IMMEDIATE_STATEMENT) != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return;
+    }
+    jint* ops = env->GetIntArrayElements(jops, NULL);
+    jint* types = env->GetIntArrayElements(jtypes, NULL);
+    jlong* numbers = env->GetLongArrayElements(jnumbers, NULL);
+    int res = SQLITE_DONE;
+    for(jint i = 0; i < count && res == SQLITE_DONE; i++) {
+        jstring key = static_cast<jstring>(env->GetObjectArrayElement(jkeys, i));
+        jobject value = env->GetObjectArrayElement(jvalues, i);
+        res = applyBatchOperation(env, connection, ops[i], types[i], key, value, numbers[i]);
+        env->DeleteLocalRef(key);
+        env->DeleteLocalRef(value);
+    }
+    env->ReleaseIntArrayElements(jops, ops, JNI_ABORT);
+    env->ReleaseIntArrayElements(jtypes, types, JNI_ABORT);
+    env->ReleaseLongArrayElements(jnumbers, numbers, JNI_ABORT);
+    if(res == SQLITE_DONE && ownTransaction) {
+        res = stepStatement(connection, COMMIT_STATEMENT);
+    }
+    if(res != SQLITE_DONE) {
+        string error(sqlite3_errmsg(connection->db));
+        if(ownTransaction) {
+            stepStatement(connection, ROLLBACK_STATEMENT);
+        }
+        throwException(env, error.c_str());
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGet
+ * Signature: (J[Ljava/lang/String;[I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGet
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jobjectArray jkeys, jintArray jtypes){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BytesVisitor visitor;
+    visitor.values = env->NewObjectArray(env->GetArrayLength(jkeys), env->FindClass("[B"), NULL);
+    visitor.types = env->GetIntArrayElements(jtypes, NULL);
+    int res = multiGet(env, connection, jkeys, visitor);
+    env->ReleaseIntArrayElements(jtypes, visitor.types, 0);
+    if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    return visitor.values;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryMultiGet
+ * Signature: (J[[B[I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryMultiGet
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jobjectArray jkeys, jintArray jtypes){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    BytesVisitor visitor;
+    visitor.values = env->NewObjectArray(env->GetArrayLength(jkeys), env->FindClass("[B"), NULL);
+    visitor.types = env->GetIntArrayElements(jtypes, NULL);
+    int res = multiGet(env, connection, jkeys, visitor, true);
+    env->ReleaseIntArrayElements(jtypes, visitor.types, 0);
+    if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    return visitor.values;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetString
+ * Signature: (J[Ljava/lang/String;)[Ljava/lang/Object;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetString
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jobjectArray jkeys){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    StringVisitor visitor;
+    visitor.values = env->NewObjectArray(env->GetArrayLength(jkeys), env->FindClass("java/lang/Object"), NULL);
+    if(multiGet(env, connection, jkeys, visitor) != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return NULL;
+    }
+    return visitor.values;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetLong
+ * Signature: (J[Ljava/lang/String;[J[Z)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetLong
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jobjectArray jkeys, jlongArray jvalues, jbooleanArray jfound){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    LongVisitor visitor;
+    visitor.values = env->GetLongArrayElements(jvalues, NULL);
+    visitor.found = env->GetBooleanArrayElements(jfound, NULL);
+    int res = multiGet(env, connection, jkeys, visitor);
+    env->ReleaseLongArrayElements(jvalues, visitor.values, 0);
+    env->ReleaseBooleanArrayElements(jfound, visitor.found, 0);
+    if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetDouble
+ * Signature: (J[Ljava/lang/String;[D[Z)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetDouble
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jobjectArray jkeys, jdoubleArray jvalues, jbooleanArray jfound){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    DoubleVisitor visitor;
+    visitor.values = env->GetDoubleArrayElements(jvalues, NULL);
+    visitor.found = env->GetBooleanArrayElements(jfound, NULL);
+    int res = multiGet(env, connection, jkeys, visitor);
+    env->ReleaseDoubleArrayElements(jvalues, visitor.values, 0);
+    env->ReleaseBooleanArrayElements(jfound, visitor.found, 0);
+    if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativePutBuffer
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;[BII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutBuffer
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring jkey, jobject directBuffer,
+        jbyteArray array, jint offset, jint length){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    const char* key = env->GetStringUTFChars(jkey, NULL);
+    int result;
+    if(directBuffer != NULL) {
+        //value is bound in place, no copy of the direct buffer is made
+        char* address = static_cast<char*>(env->GetDirectBufferAddress(directBuffer));
+        result = putValue(connection, key, address + offset, length, TYPE_BLOB);
+    } else {
+        char* value = static_cast<char*>(env->GetPrimitiveArrayCritical(array, NULL));
+        result = putValue(connection, key, value + offset, length, TYPE_BLOB);
+        env->ReleasePrimitiveArrayCritical(array, value, JNI_ABORT);
+    }
+    env->ReleaseStringUTFChars(jkey, key);
+    if(result != SQLITE_DONE) {
+        throwException(env,"Error inserting buffer");
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeGetBuffer
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;[BII[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetBuffer
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring jkey, jobject directBuffer,
+        jbyteArray array, jint offset, jint capacity, jintArray jtype){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = acquireStatement(connection, READ_STATEMENT);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return -1;
+    }
+    const char* key = env->GetStringUTFChars(jkey, NULL);
+    jint length = -1;
+    int res = sqlite3_bind_text(statement,1,key,-1,SQLITE_STATIC);
+    if(res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW) {
+            const void* data = sqlite3_column_blob(statement, 0);
+            length = sqlite3_column_bytes(statement, 0);
+            jint type = sqlite3_column_int(statement, 1);
+            setType(env, jtype, type);
+            //value is copied only if it fits, caller retries with larger buffer otherwise.
+            //Compressed values are read again by caller to decompress them into the buffer
+            if(length <= capacity && type != TYPE_COMPRESSED) {
+                if(directBuffer != NULL) {
+                    char* address = static_cast<char*>(env->GetDirectBufferAddress(directBuffer));
+                    memcpy(address + offset, data, length);
+                } else {
+                    env->SetByteArrayRegion(array, offset, length, static_cast<const jbyte*>(data));
+                }
+            }
+        }
+    }
+    resetStatement(statement);
+    env->ReleaseStringUTFChars(jkey, key);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+    return length;
+}
+
+/* bind a java value to statement parameter. Values are copied by sqlite as
+ * statements of cursors live longer than the jni call binding them
+ */
+int bindObject(JNIEnv* env, sqlite3_stmt* statement, int index, jobject value) {
+    if(value == NULL) {
+        return sqlite3_bind_null(statement, index);
+    }
+    if(env->IsInstanceOf(value, env->FindClass("java/lang/String"))) {
+        jstring string = static_cast<jstring>(value);
+        const char* text = env->GetStringUTFChars(string, NULL);
+        int res = sqlite3_bind_text(statement, index, text, env->GetStringUTFLength(string), SQLITE_TRANSIENT);
+        env->ReleaseStringUTFChars(string, text);
+        return res;
+    }
+    if(env->IsInstanceOf(value, env->FindClass("[B"))) {
+        jbyteArray array = static_cast<jbyteArray>(value);
+        jbyte* data = env->GetByteArrayElements(array, NULL);
+        int res = sqlite3_bind_blob(statement, index, data, env->GetArrayLength(array), SQLITE_TRANSIENT);
+        env->ReleaseByteArrayElements(array, data, JNI_ABORT);
+        return res;
+    }
+    if(env->IsInstanceOf(value, env->FindClass("java/lang/Boolean"))) {
+        jclass clazz = env->FindClass("java/lang/Boolean");
+        jboolean flag = env->CallBooleanMethod(value, env->GetMethodID(clazz, "booleanValue", "()Z"));
+        return sqlite3_bind_int(statement, index, flag ? 1 : 0);
+    }
+    jclass number = env->FindClass("java/lang/Number");
+    if(env->IsInstanceOf(value, env->FindClass("java/lang/Double")) ||
+            env->IsInstanceOf(value, env->FindClass("java/lang/Float"))) {
+        jdouble real = env->CallDoubleMethod(value, env->GetMethodID(number, "doubleValue", "()D"));
+        return sqlite3_bind_double(statement, index, real);
+    }
+    if(env->IsInstanceOf(value, number)) {
+        jlong integer = env->CallLongMethod(value, env->GetMethodID(number, "longValue", "()J"));
+        return sqlite3_bind_int64(statement, index, integer);
+    }
+    return SQLITE_MISMATCH;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorOpen
+ * Signature: (JLjava/lang/String;[Ljava/lang/Object;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorOpen
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring sql, jobjectArray bindArgs){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    jsize sqlLength = env->GetStringLength(sql);
+    const jchar* sqlstmt = env->GetStringChars(sql, NULL);
+    sqlite3_stmt* statement = takeStatement16(connection, sqlstmt, sqlLength);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errcode(connection->db) == SQLITE_OK ? "Query is empty" : sqlite3_errmsg(connection->db));
+        env->ReleaseStringChars(sql, sqlstmt);
+        return 0;
+    }
+    int res = SQLITE_OK;
+    jsize count = bindArgs != NULL ? env->GetArrayLength(bindArgs) : 0;
+    for(jsize i = 0; i < count && res == SQLITE_OK; i++) {
+        //class lookups of each binding are local references, drop them right away
+        env->PushLocalFrame(16);
+        res = bindObject(env, statement, i + 1, env->GetObjectArrayElement(bindArgs, i));
+        env->PopLocalFrame(NULL);
+    }
+    if(res != SQLITE_OK) {
+        throwException(env, res == SQLITE_MISMATCH ? "Unsupported bind argument type" : sqlite3_errmsg(connection->db));
+        releaseStatement16(connection, sqlstmt, sqlLength, statement);
+        env->ReleaseStringChars(sql, sqlstmt);
+        return 0;
+    }
+    env->ReleaseStringChars(sql, sqlstmt);
+    return reinterpret_cast<jlong>(statement);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorColumnNames
+ * Signature: (J)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorColumnNames
+(JNIEnv* env, jclass clazz, jlong statementPtr){
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int columns = sqlite3_column_count(statement);
+    jobjectArray names = env->NewObjectArray(columns, env->FindClass("java/lang/String"), NULL);
+    for(int i = 0; i < columns; i++) {
+        jstring name = env->NewStringUTF(sqlite3_column_name(statement, i));
+        env->SetObjectArrayElement(names, i, name);
+        env->DeleteLocalRef(name);
+    }
+    return names;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorFill
+ * Signature: (JJ[I[J[D[Ljava/lang/Object;I)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorFill
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jintArray jtypes, jlongArray jlongs,
+        jdoubleArray jdoubles, jobjectArray objects, jint maxRows){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int columns = sqlite3_column_count(statement);
+    vector<jint> types(maxRows * columns);
+    vector<jlong> longs(maxRows * columns);
+    vector<jdouble> doubles(maxRows * columns);
+    int rows = 0;
+    int res = SQLITE_ROW;
+    while(rows < maxRows && (res = sqlite3_step(statement)) == SQLITE_ROW) {
+        for(int col = 0; col < columns; col++) {
+            int cell = rows * columns + col;
+            int type = sqlite3_column_type(statement, col);
+            types[cell] = type;
+            jobject object = NULL;
+            if(type == SQLITE_INTEGER) {
+                longs[cell] = sqlite3_column_int64(statement, col);
+            } else if(type == SQLITE_FLOAT) {
+                doubles[cell] = sqlite3_column_double(statement, col);
+            } else if(type == SQLITE_TEXT) {
+                object = env->NewStringUTF((const char*)sqlite3_column_text(statement, col));
+            } else if(type == SQLITE_BLOB) {
+                const jbyte* data = (const jbyte*)sqlite3_column_blob(statement, col);
+                int size = sqlite3_column_bytes(statement, col);
+                jbyteArray array = env->NewByteArray(size);
+                env->SetByteArrayRegion(array, 0, size, data);
+                object = array;
+            }
+            env->SetObjectArrayElement(objects, cell, object);
+            if(object != NULL) env->DeleteLocalRef(object);
+        }
+        rows++;
+    }
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        sqlite3_reset(statement);
+        return 0;
+    }
+    //release read lock as soon as cursor reached the end
+    if(res == SQLITE_DONE) {
+        sqlite3_reset(statement);
+    }
+    if(rows > 0) {
+        env->SetIntArrayRegion(jtypes, 0, rows * columns, &types[0]);
+        env->SetLongArrayRegion(jlongs, 0, rows * columns, &longs[0]);
+        env->SetDoubleArrayRegion(jdoubles, 0, rows * columns, &doubles[0]);
+    }
+    return rows;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorClose
+ * Signature: (JJLjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorClose
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jstring sql){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    jsize sqlLength = env->GetStringLength(sql);
+    const jchar* sqlstmt = env->GetStringCritical(sql, NULL);
+    releaseStatement16(connection, sqlstmt, sqlLength, reinterpret_cast<sqlite3_stmt*>(statementPtr));
+    env->ReleaseStringCritical(sql, sqlstmt);
+}
+
+/* throw error of a failed bind, sqlite3_errmsg is not set by every bind failure */
+void checkBind(JNIEnv* env, DBConnection* connection, int res) {
+    if(res == SQLITE_RANGE) {
+        throwException(env, "Bind index out of range");
+    } else if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindLong
+ * Signature: (JJIJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindLong
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index, jlong value){
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    checkBind(env, reinterpret_cast<DBConnection*>(connectionPtr), sqlite3_bind_int64(statement, index, value));
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindDouble
+ * Signature: (JJID)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindDouble
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index, jdouble value){
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    checkBind(env, reinterpret_cast<DBConnection*>(connectionPtr), sqlite3_bind_double(statement, index, value));
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindObject
+ * Signature: (JJILjava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindObject
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index, jobject value){
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int res = bindObject(env, statement, index, value);
+    if(res == SQLITE_MISMATCH) {
+        throwException(env, "Unsupported bind argument type");
+    } else {
+        checkBind(env, reinterpret_cast<DBConnection*>(connectionPtr), res);
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeStatementStep
+ * Signature: (JJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeStatementStep
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int res;
+    while((res = sqlite3_step(statement)) == SQLITE_ROW);
+    if(res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+    resetStatement(statement);
+    return res == SQLITE_DONE ? sqlite3_changes(connection->db) : 0;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeFinalize
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeFinalize
+(JNIEnv* env, jclass clazz, jlong statementPtr){
+    sqlite3_finalize(reinterpret_cast<sqlite3_stmt*>(statementPtr));
+}
+
+/* blob handle of an open value stream, throws if it was already closed */
+static sqlite3_blob* findBlob(JNIEnv* env, DBConnection* connection, jlong blobPtr) {
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    if(connection->blobs.find(blob) == connection->blobs.end()) {
+        throwException(env, "Value stream is closed");
+        return NULL;
+    }
+    return blob;
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeSetSchemaVersion
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeSetSchemaVersion
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jint version){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    if(connection->schemaVersion == version) return;
+    connection->schemaVersion = version;
+    //prepared again with the sql of new layout on next use
+    FixedStatement layout[] = {READ_STATEMENT, WRITE_STATEMENT, ROWID_STATEMENT};
+    for(size_t i = 0; i < sizeof(layout) / sizeof(layout[0]); i++) {
+        sqlite3_finalize(connection->fixed[layout[i]]);
+        connection->fixed[layout[i]] = NULL;
+    }
+    //rows replaced by INSERT OR REPLACE only run the kvstore_blob delete trigger with this
+    if(version >= 2) sqlite3_exec(connection->db, "PRAGMA recursive_triggers=ON;", NULL, NULL, NULL);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobOpen
+ * Signature: (JLjava/lang/String;[I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobOpen
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring jkey, jintArray jtype){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = acquireStatement(connection, ROWID_STATEMENT);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return 0;
+    }
+    const char* key = env->GetStringUTFChars(jkey, NULL);
+    sqlite3_int64 rowid = 0;
+    jint type = 0;
+    int res = sqlite3_bind_text(statement,1,key,-1,SQLITE_STATIC);
+    if(res == SQLITE_OK) {
+        res = sqlite3_step(statement);
+        if(res == SQLITE_ROW) {
+            rowid = sqlite3_column_int64(statement, 0);
+            type = sqlite3_column_int(statement, 1);
+            setType(env, jtype, type);
+        }
+    }
+    resetStatement(statement);
+    env->ReleaseStringUTFChars(jkey, key);
+    if(res != SQLITE_ROW && res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return 0;
+    }
+    //compressed values are only decoded in java, caller reads them whole. Other
+    //values of the clustered table have no rowid, caller reads them by chunks
+    const char* table = "kvstore";
+    if(connection->schemaVersion >= 2) {
+        if(type != TYPE_STREAMED) return 0;
+        table = "kvstore_blob";
+    }
+    if(res == SQLITE_DONE || type == TYPE_COMPRESSED) return 0;
+    sqlite3_blob* blob = NULL;
+    if(sqlite3_blob_open(connection->db, "main", table, "_value", rowid, 0, &blob) != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        sqlite3_blob_close(blob);
+        return 0;
+    }
+    connection->blobs.insert(blob);
+    return reinterpret_cast<jlong>(blob);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobCreate
+ * Signature: (JLjava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobCreate
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring jkey, jint length){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_stmt* statement = acquireStatement(connection, WRITE_STATEMENT);
+    if(statement == NULL) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return 0;
+    }
+    //value is written as zeros of its full length, stream then fills it in place.
+    //The clustered table has no rowid to open a blob on, its row refers to a row
+    //of kvstore_blob holding the value instead
+    const char* table = "kvstore";
+    sqlite3_int64 rowid = 0;
+    int res = SQLITE_DONE;
+    if(connection->schemaVersion >= 2) {
+        table = "kvstore_blob";
+        sqlite3_stmt* insert = acquireStatement(connection, BLOB_INSERT_STATEMENT);
+        res = insert == NULL ? sqlite3_errcode(connection->db) : sqlite3_bind_int(insert, 1, length);
+        if(res == SQLITE_OK) res = sqlite3_step(insert);
+        if(insert != NULL) resetStatement(insert);
+        rowid = sqlite3_last_insert_rowid(connection->db);
+    }
+    if(res == SQLITE_DONE) {
+        const char* key = env->GetStringUTFChars(jkey, NULL);
+        if(connection->schemaVersion >= 2) {
+            res = writeValue(statement, key, TYPE_STREAMED, sqlite3_bind_int64(statement, 2, rowid));
+        } else {
+            res = writeValue(statement, key, TYPE_BLOB, sqlite3_bind_zeroblob(statement, 2, length));
+            rowid = sqlite3_last_insert_rowid(connection->db);
+        }
+        env->ReleaseStringUTFChars(jkey, key);
+    }
+    if(res != SQLITE_DONE) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        return 0;
+    }
+    sqlite3_blob* blob = NULL;
+    if(sqlite3_blob_open(connection->db, "main", table, "_value", rowid, 1, &blob) != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+        sqlite3_blob_close(blob);
+        return 0;
+    }
+    connection->blobs.insert(blob);
+    return reinterpret_cast<jlong>(blob);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobLength
+ * Signature: (JJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobLength
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr){
+    sqlite3_blob* blob = findBlob(env, reinterpret_cast<DBConnection*>(connectionPtr), blobPtr);
+    return blob == NULL ? 0 : sqlite3_blob_bytes(blob);
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobRead
+ * Signature: (JJ[BIII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobRead
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jbyteArray array, jint offset, jint length,
+        jint position){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_blob* blob = findBlob(env, connection, blobPtr);
+    if(blob == NULL) return;
+    jbyte* data = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(array, NULL));
+    int res = sqlite3_blob_read(blob, data + offset, length, position);
+    env->ReleasePrimitiveArrayCritical(array, data, res == SQLITE_OK ? 0 : JNI_ABORT);
+    if(res == SQLITE_ABORT) {
+        throwException(env, "Value was changed or deleted while streaming it");
+    } else if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobWrite
+ * Signature: (JJ[BIII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobWrite
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jbyteArray array, jint offset, jint length,
+        jint position){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_blob* blob = findBlob(env, connection, blobPtr);
+    if(blob == NULL) return;
+    jbyte* data = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(array, NULL));
+    int res = sqlite3_blob_write(blob, data + offset, length, position);
+    env->ReleasePrimitiveArrayCritical(array, data, JNI_ABORT);
+    if(res == SQLITE_ABORT) {
+        throwException(env, "Value was changed or deleted while streaming it");
+    } else if(res != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobClose
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobClose
+(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr){
+    DBConnection* connection = reinterpret_cast<DBConnection*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    //closing twice is harmless, connection may also have closed it already
+    if(connection->blobs.erase(blob) == 0) return;
+    if(sqlite3_blob_close(blob) != SQLITE_OK) {
+        throwException(env, sqlite3_errmsg(connection->db));
+    }
+}
@@ -82,10 +82,10 @@ JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetColumn
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativePut
- * Signature: (JLjava/lang/String;[B)V
+ * Signature: (JLjava/lang/String;[BI)V
  */
 JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePut
-  (JNIEnv *, jobject, jlong, jstring, jbyteArray);
+  (JNIEnv *, jclass, jlong, jstring, jbyteArray, jint);
 
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
@@ -154,17 +154,17 @@ JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeDelete
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativeGetBytes
- * Signature: (JLjava/lang/String;)[B
+ * Signature: (JLjava/lang/String;[I)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetBytes
-  (JNIEnv *, jobject, jlong, jstring);
+  (JNIEnv *, jobject, jlong, jstring, jintArray);
 
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativeGet
- * Signature: (JLjava/lang/String;)Ljava/lang/String;
+ * Signature: (JLjava/lang/String;)Ljava/lang/Object;
  */
-JNIEXPORT jstring JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGet
+JNIEXPORT jobject JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGet
   (JNIEnv *, jobject, jlong, jstring);
 
 /*
@@ -223,6 +223,62 @@ JNIEXPORT jfloat JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetFloa
 JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExists
   (JNIEnv *, jobject, jlong, jstring);
 
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryPut
+ * Signature: (J[B[BI)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryPut
+  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryPutLong
+ * Signature: (J[BJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryPutLong
+  (JNIEnv *, jclass, jlong, jbyteArray, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryGetBytes
+ * Signature: (J[B[I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryGetBytes
+  (JNIEnv *, jclass, jlong, jbyteArray, jintArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryGetLong
+ * Signature: (J[B)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryGetLong
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryExists
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryExists
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryDelete
+ * Signature: (J[B)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryDelete
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBinaryMultiGet
+ * Signature: (J[[B[I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBinaryMultiGet
+  (JNIEnv *, jclass, jlong, jobjectArray, jintArray);
+
 /*
  * Class:     com_kvdb_connection_DBConnectionBase
  * Method:    nativeCountKeys
@@ -239,6 +295,230 @@ JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCountKey
 JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeExecuteForResult
   (JNIEnv *, jobject, jlong, jstring);
 
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeStatementCacheStats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeStatementCacheStats
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeWriteBatch
+ * Signature: (J[I[I[Ljava/lang/String;[Ljava/lang/Object;[JIZ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeWriteBatch
+  (JNIEnv *, jclass, jlong, jintArray, jintArray, jobjectArray, jobjectArray, jlongArray, jint, jboolean);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGet
+ * Signature: (J[Ljava/lang/String;[I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGet
+  (JNIEnv *, jclass, jlong, jobjectArray, jintArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetString
+ * Signature: (J[Ljava/lang/String;)[Ljava/lang/Object;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetString
+  (JNIEnv *, jclass, jlong, jobjectArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetLong
+ * Signature: (J[Ljava/lang/String;[J[Z)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetLong
+  (JNIEnv *, jclass, jlong, jobjectArray, jlongArray, jbooleanArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeMultiGetDouble
+ * Signature: (J[Ljava/lang/String;[D[Z)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeMultiGetDouble
+  (JNIEnv *, jclass, jlong, jobjectArray, jdoubleArray, jbooleanArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativePutBuffer
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;[BII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativePutBuffer
+  (JNIEnv *, jclass, jlong, jstring, jobject, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeGetBuffer
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;[BII[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeGetBuffer
+  (JNIEnv *, jclass, jlong, jstring, jobject, jbyteArray, jint, jint, jintArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeScanKeys
+ * Signature: (JLjava/lang/String;I)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeScanKeys
+  (JNIEnv *, jclass, jlong, jstring, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorOpen
+ * Signature: (JLjava/lang/String;[Ljava/lang/Object;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorOpen
+  (JNIEnv *, jclass, jlong, jstring, jobjectArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorColumnNames
+ * Signature: (J)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorColumnNames
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorFill
+ * Signature: (JJ[I[J[D[Ljava/lang/Object;I)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorFill
+  (JNIEnv *, jclass, jlong, jlong, jintArray, jlongArray, jdoubleArray, jobjectArray, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeCursorClose
+ * Signature: (JJLjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeCursorClose
+  (JNIEnv *, jclass, jlong, jlong, jstring);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindLong
+ * Signature: (JJIJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindLong
+  (JNIEnv *, jclass, jlong, jlong, jint, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindDouble
+ * Signature: (JJID)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindDouble
+  (JNIEnv *, jclass, jlong, jlong, jint, jdouble);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBindObject
+ * Signature: (JJILjava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBindObject
+  (JNIEnv *, jclass, jlong, jlong, jint, jobject);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeStatementStep
+ * Signature: (JJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeStatementStep
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeFinalize
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeFinalize
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeSetSchemaVersion
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeSetSchemaVersion
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobOpen
+ * Signature: (JLjava/lang/String;[I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobOpen
+  (JNIEnv *, jclass, jlong, jstring, jintArray);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobCreate
+ * Signature: (JLjava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobCreate
+  (JNIEnv *, jclass, jlong, jstring, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobLength
+ * Signature: (JJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobLength
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobRead
+ * Signature: (JJ[BIII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobRead
+  (JNIEnv *, jclass, jlong, jlong, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobWrite
+ * Signature: (JJ[BIII)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobWrite
+  (JNIEnv *, jclass, jlong, jlong, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeBlobClose
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeBlobClose
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeTakeConnectionStats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeTakeConnectionStats
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeSetProfiling
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeSetProfiling
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     com_kvdb_connection_DBConnectionBase
+ * Method:    nativeTakeSlowStatements
+ * Signature: (J[J)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_com_kvdb_connection_DBConnectionBase_nativeTakeSlowStatements
+  (JNIEnv *, jclass, jlong, jlongArray);
+
 #ifdef __cplusplus
 }
 #endif
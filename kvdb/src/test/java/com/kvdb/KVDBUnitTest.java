@@ -2,14 +2,62 @@ package com.kvdb;
 
 import com.kvdb.DB;
 import com.kvdb.KVDBException;
+import com.kvdb.connection.AsyncDBConnection;
+import com.kvdb.connection.BitcaskEngine;
+import com.kvdb.connection.CodecRegistry;
+import com.kvdb.connection.DBBufferPool;
+import com.kvdb.connection.DBBloomFilter;
 import com.kvdb.connection.DBConnection;
+import com.kvdb.connection.DBConnectionPool;
+import com.kvdb.connection.DBFuture;
+import com.kvdb.connection.DBHistogram;
+import com.kvdb.connection.DBKey;
+import com.kvdb.connection.DBMetrics;
+import com.kvdb.connection.DBResult;
+import com.kvdb.connection.DBSnapshot;
+import com.kvdb.connection.DBSnapshotWriter;
+import com.kvdb.connection.PreparedQuery;
+import com.kvdb.connection.StorageEngine;
+import com.kvdb.connection.DBValueCache;
+import com.kvdb.connection.DBValueOutputStream;
+import com.kvdb.connection.FieldAccessor;
+import com.kvdb.connection.GroupCommitQueue;
+import com.kvdb.connection.WriteBatch;
+import com.kvdb.ShardedDB;
+import com.kvdb.ShardedResult;
+import com.kvdb.internal.DBConfig;
 
 import org.junit.Test;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -230,6 +278,1631 @@ public class KVDBUnitTest {
         c.release();
         c.release();
     }
+    @Test
+    public void testConnectionStatementCacheCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        c.put("cached", "value");
+        assertEquals("value", c.get("cached"));
+        //gets outside of transactions go to reader connections, keep them on this one
+        c.beginReadWriteTransaction();
+        long hits = c.getStatementCacheHits();
+        long misses = c.getStatementCacheMisses();
+        for(int i = 0; i < 100; i++){
+            c.put("cached", "value " + i);
+            assertEquals("value " + i, c.get("cached"));
+        }
+        assertEquals(hits + 200, c.getStatementCacheHits());
+        assertEquals(misses, c.getStatementCacheMisses());
+        c.endReadWriteTransaction();
+        c.release();
+    }
+    @Test
+    public void testConnectionWriteBatchCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        c.put("batch delete", "old");
+        WriteBatch batch = new WriteBatch();
+        for(int i = 0; i < 1000; i++){
+            batch.put("batch " + i, "value " + i);
+        }
+        batch.putInt("batch int", 42);
+        batch.putLong("batch long", 123456789012345L);
+        batch.putBoolean("batch boolean", true);
+        batch.putDouble("batch double", 2.5);
+        batch.put("batch bytes", "bytes".getBytes());
+        batch.delete("batch delete");
+        assertEquals(1006, batch.size());
+        c.write(batch);
+        assertEquals("value 999", c.get("batch 999"));
+        assertEquals(42, c.getInt("batch int"));
+        assertEquals(123456789012345L, c.getLong("batch long"));
+        assertTrue(c.getBoolean("batch boolean"));
+        assertEquals(2.5, c.getDouble("batch double"), 0.0);
+        assertEquals("bytes", new String(c.getBytes("batch bytes")));
+        assertNull(c.get("batch delete"));
+
+        batch.clear();
+        batch.put("batch in transaction", "value");
+        c.beginReadWriteTransaction();
+        c.write(batch);
+        c.rollbackTransaction();
+        assertNull(c.get("batch in transaction"));
+        c.release();
+    }
+    @Test
+    public void testConnectionMultiGetCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        c.put("multi string", "value");
+        c.put("multi bytes", "bytes".getBytes());
+        c.putLong("multi long", 123456789012345L);
+        c.putDouble("multi double", 0.5);
+        c.delete("multi missing");
+        String[] keys = {"multi string", "multi missing", "multi bytes"};
+        byte[][] values = c.multiGet(keys);
+        assertEquals("value", new String(values[0]));
+        assertNull(values[1]);
+        assertEquals("bytes", new String(values[2]));
+        String[] strings = c.multiGetString(keys);
+        assertEquals("value", strings[0]);
+        assertNull(strings[1]);
+
+        BitSet found = new BitSet();
+        long[] longs = c.multiGetLong(new String[]{"multi missing", "multi long"}, found);
+        assertFalse(found.get(0));
+        assertTrue(found.get(1));
+        assertEquals(123456789012345L, longs[1]);
+        double[] doubles = c.multiGetDouble(new String[]{"multi double", "multi missing"}, found);
+        assertTrue(found.get(0));
+        assertFalse(found.get(1));
+        assertEquals(0.5, doubles[0], 0.0);
+        c.release();
+    }
+    @Test
+    public void testConnectionPutByteBufferCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        byte[] data = new byte[10000];
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte) i;
+        }
+        ByteBuffer value = ByteBuffer.allocateDirect(data.length);
+        value.put(data).flip();
+        c.put("direct", value);
+        assertEquals(value.limit(), value.position());
+        c.put("heap", ByteBuffer.wrap(data, 100, 50));
+
+        ByteBuffer small = ByteBuffer.allocateDirect(16);
+        assertEquals(data.length, c.get("direct", small));
+        assertEquals(0, small.position());
+        assertEquals(-1, c.get("direct missing", small));
+        ByteBuffer heap = ByteBuffer.allocate(64);
+        assertEquals(50, c.get("heap", heap));
+        assertEquals(50, heap.position());
+        assertEquals(100, heap.get(0));
+
+        DBBufferPool pool = new DBBufferPool();
+        ByteBuffer read = c.get("direct", pool);
+        assertEquals(data.length, read.remaining());
+        for(int i = 0; i < data.length; i++){
+            assertEquals(data[i], read.get(i));
+        }
+        pool.release(read);
+        assertSame(read, pool.acquire(data.length));
+        assertNull(c.get("direct missing", pool));
+        c.release();
+    }
+    @Test
+    public void testConnectionPutDoublePrecisionCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        c.putDouble("precise double", Math.PI);
+        assertEquals(Math.PI, c.getDouble("precise double"), 0.0);
+        c.putLong("max long", Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, c.getLong("max long"));
+        assertEquals(String.valueOf(Long.MAX_VALUE), c.get("max long"));
+        c.release();
+    }
+    @Test
+    public void testConnectionLegacyValuesCheck() throws KVDBException {
+        DB db = DB.open(System.getProperty("user.home"),"legacy.db");
+        DBConnection c = db.getConnection();
+        assertFalse(!c.isOpen());
+        c.execute("DROP TABLE kvstore");
+        c.execute("CREATE TABLE kvstore (rowid INTEGER PRIMARY KEY AUTOINCREMENT, _key TEXT NOT NULL, _value BLOB)");
+        c.execute("CREATE UNIQUE INDEX keyindex ON kvstore (_key)");
+        c.execute("INSERT INTO kvstore (_key,_value) VALUES ('int', CAST('1234' AS BLOB))");
+        c.execute("INSERT INTO kvstore (_key,_value) VALUES ('double', CAST('5.25' AS BLOB))");
+        c.execute("INSERT INTO kvstore (_key,_value) VALUES ('boolean', x'01')");
+        c.execute("INSERT INTO kvstore (_key,_value) VALUES ('string', CAST('0123' AS BLOB))");
+        assertTrue(DB.upgradeSchema(c));
+        assertEquals(1234, c.getInt("int"));
+        assertEquals(5.25, c.getDouble("double"), 0.0);
+        assertTrue(c.getBoolean("boolean"));
+        assertEquals("0123", c.get("string"));
+
+        while(DB.migrateValues(c));
+        assertFalse(DB.upgradeSchema(c));
+        assertEquals("6", c.executeQueryForResult("SELECT _type FROM kvstore WHERE _key='int'", null)[0][0]);
+        assertEquals("8", c.executeQueryForResult("SELECT _type FROM kvstore WHERE _key='double'", null)[0][0]);
+        assertEquals(1234, c.getInt("int"));
+        assertEquals("1234", c.get("int"));
+        assertEquals(5.25, c.getDouble("double"), 0.0);
+        assertTrue(c.getBoolean("boolean"));
+        assertEquals("0123", c.get("string"));
+        c.release();
+    }
+    @Test
+    public void testSchemaMigrationCheck() throws Exception {
+        //new databases get the clustered table
+        DB fresh = DB.open(System.getProperty("user.home"), "schema2.db");
+        DBConnection f = fresh.getConnection();
+        assertEquals("2", f.executeQueryForResult("PRAGMA user_version;", null)[0][0]);
+        assertTrue(f.executeQueryForResult("SELECT sql FROM sqlite_master WHERE name='kvstore'", null)[0][0].contains("WITHOUT ROWID"));
+        //without a bloom filter writes run no counter trigger
+        assertNull(f.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null));
+        f.release();
+
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "schema1.db", DB.DEFAULT_FLAGS);
+        config.schemaVersion = DBConfig.SCHEMA_ROWID;
+        config.bloomFilter = true;
+        //an earlier run left schema1.db migrated already
+        for(String suffix : new String[]{"", "-wal", "-shm", "-bloom"}) {
+            new File(config.path + suffix).delete();
+        }
+        DB db = DB.open(config);
+        DBConnection c = db.getConnection();
+        assertEquals("1", c.executeQueryForResult("PRAGMA user_version;", null)[0][0]);
+        WriteBatch batch = new WriteBatch();
+        for(int i = 0; i < 2500; i++) {
+            batch.putInt(String.format("migrate %05d", i), i);
+        }
+        c.write(batch);
+        //smallest key there is, the copy must not start after it
+        c.put("", "empty key");
+
+        //writes made between chunks reach the new table through the triggers
+        DB.startLayoutMigration(c);
+        DB.startLayoutMigration(c);
+        assertTrue(DB.migrateLayout(c));
+        c.put("migrate 00005", "changed");
+        c.delete("migrate 00010");
+        c.put("migrate 02400", "ahead");
+        c.putLong("migrate new", 7);
+        //blob io runs no triggers, the stream copies its row itself
+        DBValueOutputStream streamed = c.openValueOutputStream("migrate streamed", 3);
+        streamed.write(new byte[]{7, 8, 9});
+        streamed.close();
+        while(DB.migrateLayout(c));
+        DB.switchLayout(c, db.getConnectionPool(), true);
+        assertEquals(2, db.getConnectionPool().getSchemaVersion());
+        assertEquals("2", c.executeQueryForResult("PRAGMA user_version;", null)[0][0]);
+        assertTrue(c.executeQueryForResult("SELECT sql FROM sqlite_master WHERE name='kvstore'", null)[0][0].contains("WITHOUT ROWID"));
+        assertNull(c.executeQueryForResult("SELECT 1 FROM sqlite_master WHERE name IN ('kvstore_v2', 'kvstore_migration')", null));
+        assertNotNull(c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null));
+        assertEquals(2502, c.getCount());
+        assertEquals("empty key", c.get(""));
+        assertArrayEquals(new byte[]{7, 8, 9}, c.getBytes("migrate streamed"));
+        assertEquals(4, c.getInt("migrate 00004"));
+        assertEquals("changed", c.get("migrate 00005"));
+        assertFalse(c.exists("migrate 00010"));
+        assertEquals("ahead", c.get("migrate 02400"));
+        assertEquals(2499, c.getInt("migrate 02499"));
+        assertEquals(7, c.getLong("migrate new"));
+        //migration adds no key, the filter keeps answering misses
+        assertTrue(db.getBloomFilter().getEstimatedFalsePositiveRate() < 1);
+        assertFalse(c.exists("migrate missing"));
+
+        //updates in place and streams through kvstore_blob on the clustered table
+        c.putInt("migrate 00004", 40);
+        assertEquals(40, c.getInt("migrate 00004"));
+        DBValueOutputStream out = c.openValueOutputStream("migrate stream", 4);
+        out.write(new byte[]{1, 2});
+        out.write(new byte[]{3, 4});
+        out.close();
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, c.getBytes("migrate stream"));
+        InputStream in = c.openValueInputStream("migrate stream");
+        assertEquals(3, in.skip(3));
+        assertEquals(4, in.read());
+        in.close();
+        assertEquals(2, c.readAt("migrate stream", 2, new byte[8]));
+        assertEquals(-1, c.readAt("migrate missing", 0, new byte[8]));
+        c.release();
+    }
+    @Test
+    public void testGroupCommitCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "groupcommit.db", DB.DEFAULT_FLAGS);
+        config.groupCommit = true;
+        config.groupCommitWindowMs = 5;
+        final GroupCommitQueue queue = DB.open(config).getGroupCommitQueue();
+        final List<Future<Void>> futures = Collections.synchronizedList(new ArrayList<Future<Void>>());
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++){
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 200; i++){
+                            futures.add(queue.putInt("group " + id + " " + i, i));
+                        }
+                    } catch (KVDBException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertEquals(1600, futures.size());
+        for(Future<Void> future : futures){
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1600, queue.getWriteCount());
+        assertTrue(queue.getCommitCount() < 1600);
+        DBConnection c = DB.open(config).getConnection();
+        assertEquals(199, c.getInt("group 7 199"));
+        c.release();
+
+        //close commits what is still queued and stops the writer, a new queue takes over
+        DB db = DB.open(config);
+        futures.clear();
+        for(int i = 0; i < 100; i++) {
+            futures.add(queue.putInt("group closed " + i, i));
+        }
+        db.close();
+        for(Future<Void> future : futures) {
+            assertTrue(future.isDone());
+            future.get();
+        }
+        try {
+            queue.putInt("group after close", 1);
+            fail("closed queue accepted a write");
+        } catch (KVDBException e) {
+            //expected
+        }
+        assertNotSame(queue, db.getGroupCommitQueue());
+        db.getGroupCommitQueue().putInt("group reopened", 1).get(10, TimeUnit.SECONDS);
+        c = db.getConnection();
+        assertEquals(99, c.getInt("group closed 99"));
+        assertEquals(1, c.getInt("group reopened"));
+        c.release();
+    }
+    @Test
+    public void testValueCacheCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "valuecache.db", DB.DEFAULT_FLAGS);
+        config.readCacheBytes = 4096;
+        DB db = DB.open(config);
+        DBValueCache cache = db.getValueCache();
+        final DBConnection c = db.getConnection();
+        c.putInt("cached int", 7);
+        c.put("cached string", "value");
+        assertEquals(7, c.getInt("cached int"));
+        assertEquals(7, c.getInt("cached int"));
+        assertEquals("value", c.get("cached string"));
+        assertEquals("value", c.get("cached string"));
+        assertEquals(2, cache.getHitCount());
+
+        //write from another connection must invalidate
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DBConnection other = DB.open(System.getProperty("user.home"), "valuecache.db").getConnection();
+                    other.putInt("cached int", 8);
+                    other.release();
+                } catch (KVDBException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        writer.join();
+        assertEquals(8, c.getInt("cached int"));
+
+        //rolled back write must not leave its value behind
+        c.beginReadWriteTransaction();
+        c.putInt("cached int", 9);
+        assertEquals(9, c.getInt("cached int"));
+        c.rollbackTransaction();
+        assertEquals(8, c.getInt("cached int"));
+        assertEquals(8, c.getInt("cached int"));
+
+        //values above budget are evicted
+        for(int i = 0; i < 100; i++) {
+            c.put("evict " + i, "some value to fill the cache " + i);
+            c.get("evict " + i);
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getSizeBytes() <= 4096);
+        c.release();
+    }
+    @Test
+    public void testBloomFilterCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "bloom.db", DB.DEFAULT_FLAGS);
+        config.bloomFilter = true;
+        config.bloomExpectedKeys = 1000;
+        DB db = DB.open(config);
+        DBConnection c = db.getConnection();
+        for(int i = 0; i < 100; i++) {
+            c.putInt("bloom " + i, i);
+        }
+        DBBloomFilter filter = db.getBloomFilter();
+        assertEquals(42, c.getInt("bloom 42"));
+        assertTrue(c.exists("bloom 42"));
+        assertFalse(c.exists("missing"));
+        assertNull(c.get("missing"));
+        assertNull(c.getBytes("missing"));
+        assertEquals(0, c.getInt("missing"));
+        assertTrue(filter.getNegativeCount() > 0);
+        assertTrue(filter.getEstimatedFalsePositiveRate() < 0.01);
+
+        //saved on close and loaded instead of rebuilt, first put deletes it again
+        db.close();
+        File saved = new File(config.path + "-bloom");
+        assertTrue(saved.exists());
+        c = db.getConnection();
+        DBBloomFilter loaded = DBBloomFilter.open(c, config);
+        assertEquals(filter.getKeyCount(), loaded.getKeyCount());
+        assertTrue(loaded.mightContain("bloom 99"));
+        c.put("bloom new", "value");
+        assertFalse(saved.exists());
+        c.release();
+
+        //keys replaced by a session without the filter, same count, length and last key
+        db.close();
+        File previous = new File(config.path + "-bloom.previous");
+        previous.delete();
+        Files.copy(saved.toPath(), previous.toPath());
+        c = db.getConnection();
+        for(int i = 0; i < 10; i++) {
+            c.delete("bloom 1" + i);
+            c.put("bloom 1" + (char) ('a' + i), "value");
+        }
+        c.release();
+        saved.delete();
+        assertTrue(previous.renameTo(saved));
+        c = db.getConnection();
+        loaded = DBBloomFilter.open(c, config);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(loaded.mightContain("bloom 1" + (char) ('a' + i)));
+        }
+        assertNotNull(c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null));
+        c.release();
+
+        //an open without the filter drops the change counter and the saved filter with it
+        db.close();
+        assertTrue(saved.exists());
+        DB plain = DB.open(new DBConfig(System.getProperty("user.home") + File.separator + "." + File.separator
+                + "bloom.db", DB.DEFAULT_FLAGS));
+        assertFalse(saved.exists());
+        c = plain.getConnection();
+        assertNull(c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null));
+        c.put("bloom plain", "value");
+        c.release();
+        //without a counter the filter is rebuilt and never saved
+        c = db.getConnection();
+        loaded = DBBloomFilter.open(c, config);
+        assertTrue(loaded.mightContain("bloom plain"));
+        loaded.save(c);
+        assertFalse(saved.exists());
+        c.release();
+        plain.close();
+        //the next open with the filter brings the counter back
+        c = db.getConnection();
+        DB.setChangeCounter(c, true);
+        assertNotNull(c.executeQueryForResult(DBQuery.SELECT_CHANGE_COUNTER, null));
+        c.release();
+    }
+    @Test
+    public void testConnectionScanCheck() throws KVDBException {
+        DBConnection c = DB.open(System.getProperty("user.home")).getConnection();
+        for(int i = 0; i < 10; i++) {
+            c.putInt("scan:" + i, i);
+        }
+        c.put("scan;", "after prefix");
+        c.put("scam", "before prefix");
+
+        DBResult result = c.scan("scan:");
+        result.setFetchSize(3);
+        int count = 0;
+        while(result.next()) {
+            assertEquals("scan:" + count, result.getString(0));
+            assertEquals(DBResult.TYPE_INTEGER, result.getType(1));
+            assertEquals(count, result.getInt(1));
+            count++;
+        }
+        result.close();
+        assertEquals(10, count);
+        assertEquals(10, c.getCount("scan:"));
+
+        result = c.scan("scan:2", "scan:8", 3, DBConnection.SCAN_KEYS_ONLY | DBConnection.SCAN_REVERSE);
+        assertEquals(1, result.getColumnCount());
+        assertTrue(result.next());
+        assertEquals("scan:7", result.getString(0));
+        assertTrue(result.next());
+        assertTrue(result.next());
+        assertEquals("scan:5", result.getString(0));
+        assertFalse(result.next());
+        result.close();
+
+        result = c.scan("scan;");
+        assertTrue(result.next());
+        assertEquals("after prefix", result.getString(1));
+        assertArrayEquals("after prefix".getBytes(), result.getBytes(1));
+        result.close();
+
+        //prefixes ending in U+FFFF, U+007F and U+0000, keys sort by modified UTF-8 bytes
+        String[] prefixes = {"p\uFFFF", "p\u007f", "p\u0000"};
+        for(String prefix : prefixes) {
+            c.put(prefix + "a", "in");
+            c.put(prefix + "\uD83D\uDE00", "in");
+        }
+        c.put("p\u0080", "after");
+        c.put("q", "after");
+        for(String prefix : prefixes) {
+            assertEquals(2, c.getCount(prefix));
+            result = c.scan(prefix);
+            count = 0;
+            while(result.next()) {
+                assertTrue(result.getString(0).startsWith(prefix));
+                count++;
+            }
+            result.close();
+            assertEquals(2, count);
+        }
+        c.release();
+    }
+    @Test
+    public void testConnectionQueryCursorCheck() throws KVDBException {
+        DBConnection c = DB.open(System.getProperty("user.home")).getConnection();
+        c.putLong("query long", Long.MAX_VALUE);
+        c.putDouble("query double", 0.25);
+        c.put("query bytes", new byte[]{0, 1, 2});
+        c.put("query string", "text");
+        String sql = "SELECT _key, _value FROM kvstore WHERE _key >= ? AND _key < ? ORDER BY _key";
+        Object[] args = new Object[]{"query ", "query!"};
+
+        DBResult result = c.query(sql, args);
+        assertEquals("_value", result.getColumnName(1));
+        assertTrue(result.next());
+        assertEquals("query bytes", result.getString(0));
+        assertEquals(DBResult.TYPE_BLOB, result.getType(1));
+        assertArrayEquals(new byte[]{0, 1, 2}, result.getBytes(1));
+        assertTrue(result.next());
+        assertEquals(DBResult.TYPE_FLOAT, result.getType(1));
+        assertEquals(0.25, result.getDouble(1), 0);
+        assertTrue(result.next());
+        assertEquals(Long.MAX_VALUE, result.getLong(1));
+        //same sql while first cursor is still open gets its own statement
+        DBResult second = c.query(sql, new Object[]{"query string", "query t"});
+        assertTrue(second.next());
+        assertEquals("text", second.getString(1));
+        assertFalse(second.next());
+        second.close();
+        assertTrue(result.next());
+        assertFalse(result.next());
+        result.close();
+
+        //closed cursor gives its statement back for reuse
+        long misses = c.getStatementCacheMisses();
+        result = c.query(sql, args);
+        result.close();
+        assertEquals(misses, c.getStatementCacheMisses());
+        c.release();
+    }
+    @Test
+    public void testConnectionPreparedQueryCheck() throws KVDBException {
+        DBConnection c = DB.open(System.getProperty("user.home")).getConnection();
+        c.execute("CREATE TABLE IF NOT EXISTS prepared (id INTEGER, name TEXT, data BLOB, score REAL);");
+        c.execute("DELETE FROM prepared;");
+        PreparedQuery insert = c.prepare("INSERT INTO prepared (id, name, data, score) VALUES (?, ?, ?, ?);");
+        assertEquals(4, insert.getParameterCount());
+        assertFalse(insert.isReadOnly());
+        for(int i = 0; i < 5; i++) {
+            assertEquals(1, insert.bindLong(1, i).bindString(2, "name " + i).bindBytes(3, new byte[]{(byte) i})
+                    .bindDouble(4, i / 2.0).execute());
+        }
+        insert.bindAll(new Object[]{5, null, null, null}).execute();
+        insert.close();
+
+        PreparedQuery select = c.prepare("SELECT name, data, score FROM prepared WHERE id >= ? ORDER BY id;");
+        assertTrue(select.isReadOnly());
+        DBResult result = select.bindLong(1, 3).query();
+        assertTrue(result.next());
+        assertEquals("name 3", result.getString(0));
+        assertArrayEquals(new byte[]{3}, result.getBytes(1));
+        assertEquals(1.5, result.getDouble(2), 0);
+        assertTrue(result.next());
+        assertTrue(result.next());
+        assertTrue(result.isNull(0));
+        assertFalse(result.next());
+        result.close();
+        //reusable after reset
+        result = select.bindLong(1, 4).query();
+        assertTrue(result.next());
+        assertEquals("name 4", result.getString(0));
+        select.close();
+
+        c.executeQuery("UPDATE prepared SET name = ? WHERE id = ?;", new Object[]{"renamed", 0});
+        String[][] rows = c.executeQueryForResult("SELECT name FROM prepared WHERE id = ?;", new Object[]{0});
+        assertEquals("renamed", rows[0][0]);
+        c.release();
+    }
+    @Test
+    public void testSharedConnectionPoolCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "sharedpool.db", DB.DEFAULT_FLAGS);
+        config.maxPoolSize = 2;
+        config.threadAffinity = false;
+        config.poolWaitMs = 10000;
+        final DB db = DB.open(config);
+        db.getConnection().release();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[20];
+        for(int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 20; i++) {
+                            DBConnection c = db.getConnection();
+                            c.putInt("pool " + id, i);
+                            c.release();
+                        }
+                    } catch (KVDBException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        DBConnectionPool pool = db.getConnectionPool();
+        assertTrue(pool.getOpenCount() <= 2);
+        assertEquals(0, pool.getBorrowedCount());
+        assertTrue(pool.getBorrowCount() >= 400);
+
+        //borrowing past pool size times out
+        DBConnection first = db.borrowConnection(0);
+        DBConnection second = db.borrowConnection(0);
+        assertEquals(1.0, pool.getUtilization(), 0);
+        try {
+            db.borrowConnection(10);
+            fail("Borrow should time out");
+        } catch (KVDBException e) {
+            assertEquals(1, pool.getTimeoutCount());
+        }
+        //connection handed to another thread is still usable
+        final DBConnection shared = first;
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    shared.putInt("pool shared", 1);
+                    shared.release();
+                } catch (KVDBException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(0, failures.get());
+        assertEquals(1, second.getInt("pool shared"));
+        second.release();
+        pool.closeIdleConnections();
+        assertEquals(0, pool.getOpenCount());
+    }
+    @Test
+    public void testReaderConnectionsCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "readers.db", DB.DEFAULT_FLAGS);
+        config.readerPoolSize = 2;
+        final DB db = DB.open(config);
+        DBConnection c = db.getConnection();
+        for(int i = 0; i < 100; i++) {
+            c.putInt("reader " + i, i);
+        }
+        //reads see writes committed just before them
+        c.put("reader latest", "one");
+        assertEquals("one", c.get("reader latest"));
+        assertEquals(101, c.getCount("reader "));
+
+        //reads inside a transaction stay on the connection and see its writes
+        c.beginReadWriteTransaction();
+        c.put("reader latest", "two");
+        assertEquals("two", c.get("reader latest"));
+        c.endReadWriteTransaction();
+        assertEquals("two", c.get("reader latest"));
+
+        //readers serve gets while another connection holds a write transaction
+        DBConnection writer = db.borrowConnection(0);
+        writer.beginReadWriteTransaction();
+        writer.putInt("reader 0", -1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DBConnection r = db.getConnection();
+                        for(int i = 1; i < 100; i++) {
+                            if(r.getInt("reader " + i) != i) failures.incrementAndGet();
+                        }
+                        if(r.getInt("reader 0") != 0) failures.incrementAndGet();
+                        r.release();
+                    } catch (KVDBException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        writer.endReadWriteTransaction();
+        writer.release();
+        assertEquals(0, failures.get());
+        assertEquals(-1, c.getInt("reader 0"));
+
+        //scan keeps its reader until closed
+        DBResult result = c.scan("reader 1");
+        int rows = 0;
+        while(result.next()) rows++;
+        result.close();
+        assertEquals(11, rows);
+
+        DBConnectionPool pool = db.getConnectionPool();
+        assertTrue(pool.getReaderCount() > 0 && pool.getReaderCount() <= 2);
+        assertTrue(pool.getReaderReadCount() > 0);
+        c.release();
+        db.close();
+        assertEquals(0, pool.getReaderCount());
+    }
+    @Test
+    public void testConnectionPoolContentionCheck() throws Exception {
+        final int threadCount = 8;
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "contention.db", DB.DEFAULT_FLAGS);
+        config.maxPoolSize = threadCount;
+        final DB db = DB.open(config);
+        final int calls = 20000;
+        final AtomicInteger failures = new AtomicInteger();
+        final Set<DBConnection> held = Collections.newSetFromMap(new IdentityHashMap<DBConnection, Boolean>());
+        //every thread holds its connection while the others look theirs up
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        Thread[] threads = new Thread[threadCount];
+        for(int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DBConnection first = db.getConnection();
+                        synchronized (held) {
+                            if(!held.add(first)) failures.incrementAndGet();
+                        }
+                        barrier.await(10, TimeUnit.SECONDS);
+                        for(int i = 0; i < calls; i++) {
+                            if(db.getConnection() != first) failures.incrementAndGet();
+                        }
+                        barrier.await(10, TimeUnit.SECONDS);
+                        first.release();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(threadCount, held.size());
+        //no permit lost, every connection was given back
+        assertEquals(0, db.getConnectionPool().getBorrowedCount());
+    }
+    /* plain class stored through a registered field accessor */
+    static class Point {
+        final int x;
+        final int y;
+        final String label;
+        Point(int x, int y, String label) {
+            this.x = x;
+            this.y = y;
+            this.label = label;
+        }
+    }
+    @Test
+    public void testValueCodecCheck() throws Exception {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        CodecRegistry.getDefault().registerType(Point.class, 1, new FieldAccessor<Point>() {
+            @Override
+            public Object[] getFields(Point value) {
+                return new Object[]{value.x, value.y, value.label};
+            }
+            @Override
+            public Point newInstance(Object[] fields) {
+                return new Point((Integer) fields[0], (Integer) fields[1], (String) fields[2]);
+            }
+        });
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for(int i = 0; i < 50; i++) {
+            map.put("field " + i, i % 2 == 0 ? (Object) Long.valueOf(i) : new ArrayList<String>(Arrays.asList("a", "b")));
+        }
+        c.put("codec map", (Serializable) map);
+        assertEquals(map, c.get("codec map", HashMap.class));
+        //compact form is much smaller than java serialization of the same map
+        ByteArrayOutputStream java = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(java);
+        out.writeObject(map);
+        out.close();
+        assertTrue(c.getBytes("codec map").length * 2 < java.size());
+
+        c.put("codec ints", (Serializable) new int[]{1, -2, 300});
+        assertArrayEquals(new int[]{1, -2, 300}, c.get("codec ints", int[].class));
+        c.put("codec strings", new String[]{"x", null, "z"});
+        assertArrayEquals(new String[]{"x", null, "z"}, c.getArray("codec strings", String.class));
+
+        c.put("codec point", (Object) new Point(3, -4, "p"));
+        Point p = c.getObject("codec point", Point.class);
+        assertEquals(3, p.x);
+        assertEquals(-4, p.y);
+        assertEquals("p", p.label);
+        c.put("codec points", new Object[]{new Point(1, 2, null), 7});
+        Object[] mixed = c.getObjectArray("codec points", Object.class);
+        assertEquals(2, ((Point) mixed[0]).y);
+        assertEquals(7, mixed[1]);
+
+        //other serializable classes and values written before codecs stay readable
+        TreeMap<String, Integer> sorted = new TreeMap<String, Integer>();
+        sorted.put("b", 2);
+        sorted.put("a", 1);
+        c.put("codec tree", (Serializable) sorted);
+        assertEquals(sorted, c.get("codec tree", TreeMap.class));
+        c.put("codec legacy", java.toByteArray());
+        assertEquals(map, c.get("codec legacy", HashMap.class));
+        try {
+            c.get("codec map", TreeMap.class);
+            fail("Value of other class should not be returned");
+        } catch (KVDBException e) {
+            //expected
+        }
+        assertNull(c.getObject("codec missing", Point.class));
+        c.release();
+    }
+    @Test
+    public void testValueCompressionCheck() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 400; i++) {
+            text.append("compressible value ").append(i % 10).append(' ');
+        }
+        String large = text.toString();
+        byte[] bytes = large.getBytes("UTF-8");
+        int[] algorithms = {DBConfig.COMPRESSION_LZ4, DBConfig.COMPRESSION_DEFLATE};
+        for(int algorithm : algorithms) {
+            String path = System.getProperty("user.home") + File.separator + "compressed" + algorithm + ".db";
+            DBConfig config = new DBConfig(path, DB.DEFAULT_FLAGS);
+            config.compression = algorithm;
+            DB db = DB.open(config);
+            DBConnection c = db.getConnection();
+            c.put("zip string", large);
+            c.put("zip bytes", bytes);
+            c.put("zip object", (Serializable) new ArrayList<String>(Collections.nCopies(200, "element")));
+            long compressed = db.getCompressor().getCompressedCount();
+            //small values stay raw
+            c.put("zip small", "small");
+            assertEquals(compressed, db.getCompressor().getCompressedCount());
+            WriteBatch batch = new WriteBatch();
+            batch.put("zip batch", large);
+            c.write(batch);
+
+            assertEquals(large, c.get("zip string"));
+            assertEquals(large, c.get("zip batch"));
+            assertArrayEquals(bytes, c.getBytes("zip bytes"));
+            assertEquals(200, c.get("zip object", ArrayList.class).size());
+            assertEquals("small", c.get("zip small"));
+            byte[][] values = c.multiGet(new String[]{"zip bytes", "zip small", "zip missing"});
+            assertArrayEquals(bytes, values[0]);
+            assertNull(values[2]);
+            assertArrayEquals(new String[]{large, "small"}, c.multiGetString(new String[]{"zip string", "zip small"}));
+
+            ByteBuffer heap = ByteBuffer.allocate(bytes.length);
+            assertEquals(bytes.length, c.get("zip bytes", heap));
+            assertArrayEquals(bytes, heap.array());
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 10);
+            assertEquals(bytes.length, c.get("zip bytes", direct));
+            assertEquals(bytes.length, direct.position());
+            assertEquals(bytes.length, c.get("zip bytes", ByteBuffer.allocate(10)));
+
+            //scan returns the values get does, query the stored frames
+            DBResult scan = c.scan("zip ");
+            assertEquals(2, scan.getColumnCount());
+            int rows = 0;
+            while(scan.next()) {
+                String key = scan.getString(0);
+                if(key.equals("zip bytes")) {
+                    assertArrayEquals(bytes, scan.getBytes(1));
+                } else if(!key.equals("zip object")) {
+                    assertEquals(c.get(key), scan.getString(1));
+                }
+                rows++;
+            }
+            scan.close();
+            assertEquals(5, rows);
+            DBResult raw = c.query("SELECT _value FROM kvstore WHERE _key = ?", new Object[]{"zip string"});
+            assertTrue(raw.next());
+            assertTrue(raw.getBytes(0).length < bytes.length);
+            raw.close();
+
+            assertTrue(db.getCompressor().getCompressedCount() >= 4);
+            assertTrue(db.getCompressor().getCompressionRatio() < 0.5);
+            c.release();
+
+            //values stay readable by a database opened without compression
+            DB plain = DB.open(new DBConfig(System.getProperty("user.home") + File.separator + "." + File.separator
+                    + "compressed" + algorithm + ".db", DB.DEFAULT_FLAGS));
+            DBConnection p = plain.getConnection();
+            assertEquals(large, p.get("zip string"));
+            assertArrayEquals(bytes, p.getBytes("zip bytes"));
+            p.put("zip string", large);
+            assertEquals(large, p.get("zip string"));
+            assertEquals(0, plain.getCompressor().getCompressedCount());
+            p.release();
+        }
+    }
+    @Test
+    public void testValueStreamCheck() throws Exception {
+        DB db = DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE);
+        DBConnection c = db.getConnection();
+        //the pending stream must not find a value from an earlier run
+        c.delete("stream pending");
+        int length = 3 * 1024 * 1024 + 17;
+        byte[] chunk = new byte[64 * 1024];
+        DBValueOutputStream out = c.openValueOutputStream("stream large", length);
+        for(int written = 0; written < length; written += chunk.length) {
+            int n = Math.min(chunk.length, length - written);
+            for(int i = 0; i < n; i++) {
+                chunk[i] = (byte) ((written + i) * 31);
+            }
+            out.write(chunk, 0, n);
+        }
+        assertEquals(0, out.remaining());
+        out.close();
+
+        InputStream in = c.openValueInputStream("stream large");
+        long read = 0;
+        int n;
+        while((n = in.read(chunk)) > 0) {
+            for(int i = 0; i < n; i++) {
+                assertEquals((byte) ((read + i) * 31), chunk[i]);
+            }
+            read += n;
+        }
+        in.close();
+        assertEquals(length, read);
+
+        //positional reads fetch part of a value, stopping at its end
+        byte[] part = new byte[8];
+        assertEquals(8, c.readAt("stream large", 1000000, part));
+        assertEquals((byte) (1000003 * 31), part[3]);
+        assertEquals(2, c.readAt("stream large", length - 2, part));
+        assertEquals(0, c.readAt("stream large", length + 5, part));
+        assertEquals(-1, c.readAt("stream missing", 0, part));
+        assertNull(c.openValueInputStream("stream missing"));
+        c.put("stream string", "hello stream");
+        assertEquals(6, c.readAt("stream string", 6, new byte[10]));
+
+        //a value is only visible once written completely, one closed early is discarded
+        out = c.openValueOutputStream("stream pending", 4);
+        out.write(new byte[]{1, 2});
+        DBConnection other = db.borrowConnection(1000);
+        assertFalse(other.exists("stream pending"));
+        try {
+            out.close();
+            fail("Incomplete value should be reported");
+        } catch (IOException e) {
+            //expected
+        }
+        assertFalse(c.exists("stream pending"));
+        out = c.openValueOutputStream("stream pending", 2);
+        out.write(new byte[]{5, 6});
+        out.close();
+        assertArrayEquals(new byte[]{5, 6}, other.getBytes("stream pending"));
+        other.release();
+
+        //value written inside a transaction, a short write is reported on close
+        c.beginReadWriteTransaction();
+        c.put("stream before", "kept");
+        out = c.openValueOutputStream("stream short", 10);
+        out.write(new byte[]{1, 2, 3});
+        try {
+            out.write(new byte[8]);
+            fail("Write past the end of value should fail");
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            out.close();
+            fail("Incomplete value should be reported");
+        } catch (IOException e) {
+            //expected
+        }
+        c.endReadWriteTransaction();
+        assertNull(c.getBytes("stream short"));
+        assertEquals("kept", c.get("stream before"));
+
+        //streams left open are closed with the connection's statements
+        in = c.openValueInputStream("stream large");
+        c.release();
+        db.close();
+        c = db.getConnection();
+        try {
+            in.read();
+            fail("Stream of closed connection should fail");
+        } catch (IOException e) {
+            //expected
+        } finally {
+            c.release();
+        }
+    }
+    @Test
+    public void testClusteredValueStreamCheck() throws Exception {
+        DB db = DB.open(System.getProperty("user.home"), "clusteredstream.db");
+        DBConnection c = db.getConnection();
+        assertEquals(DBConfig.SCHEMA_CLUSTERED, db.getConnectionPool().getSchemaVersion());
+
+        //streamed values are kept in kvstore_blob, heap use does not grow with them
+        int length = 16 * 1024 * 1024;
+        byte[] chunk = new byte[64 * 1024];
+        long allocated = allocatedBytes();
+        DBValueOutputStream out = c.openValueOutputStream("clustered large", length);
+        for(int written = 0; written < length; written += chunk.length) {
+            Arrays.fill(chunk, (byte) (written / chunk.length));
+            out.write(chunk);
+        }
+        out.close();
+        InputStream in = c.openValueInputStream("clustered large");
+        int read = 0;
+        int n;
+        while((n = in.read(chunk)) > 0) {
+            assertEquals((byte) (read / chunk.length), chunk[0]);
+            assertEquals((byte) (read / chunk.length), chunk[n - 1]);
+            read += n;
+        }
+        in.close();
+        assertEquals(length, read);
+        if(allocated >= 0) assertTrue(allocatedBytes() - allocated < length / 8);
+        byte[] part = new byte[4];
+        assertEquals(4, c.readAt("clustered large", length - 4, part));
+        assertEquals((byte) (length / chunk.length - 1), part[3]);
+        assertEquals("1", c.executeQueryForResult("SELECT count(*) FROM kvstore_blob", null)[0][0]);
+
+        //blob goes with the value replacing or deleting it
+        c.put("clustered large", "small");
+        assertEquals("small", c.get("clustered large"));
+        out = c.openValueOutputStream("clustered scan", 2);
+        out.write(new byte[]{7, 8});
+        out.close();
+        DBResult result = c.scan("clustered scan");
+        assertTrue(result.next());
+        assertArrayEquals(new byte[]{7, 8}, result.getBytes(1));
+        result.close();
+        c.executeQuery("INSERT OR REPLACE INTO kvstore (_key,_value,_type) VALUES (?,?,1)",
+                new Object[]{"clustered scan", new byte[]{9}});
+        assertArrayEquals(new byte[]{9}, c.getBytes("clustered scan"));
+        out = c.openValueOutputStream("clustered deleted", 1);
+        out.write(1);
+        out.close();
+        c.delete("clustered deleted");
+        assertEquals("0", c.executeQueryForResult("SELECT count(*) FROM kvstore_blob", null)[0][0]);
+
+        //values put whole are read by chunks
+        byte[] text = "h\u00e9llo stream".getBytes("UTF-8");
+        c.put("clustered text", "h\u00e9llo stream");
+        in = c.openValueInputStream("clustered text");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] small = new byte[3];
+        while((n = in.read(small)) > 0) {
+            bytes.write(small, 0, n);
+        }
+        in.close();
+        assertArrayEquals(text, bytes.toByteArray());
+        assertEquals(3, c.readAt("clustered text", text.length - 3, new byte[8]));
+        assertEquals(0, c.readAt("clustered text", text.length + 1, new byte[8]));
+        c.release();
+    }
+    /* bytes allocated by current thread, -1 if the JVM does not count them */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    @Test
+    public void testMetricsCheck() throws Exception {
+        String path = System.getProperty("user.home") + File.separator + "metrics.db";
+        DBConfig config = new DBConfig(path, DB.DEFAULT_FLAGS);
+        config.metrics = true;
+        config.slowStatementMs = 0;
+        final DB db = DB.open(config);
+        DBConnection c = db.getConnection();
+        DBMetrics metrics = db.getMetrics();
+        metrics.reset();
+        for(int i = 0; i < 100; i++) {
+            c.putInt("metrics " + i, i);
+        }
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i, c.getInt("metrics " + i));
+        }
+        c.delete("metrics 0");
+        c.scan("metrics ").close();
+        c.beginReadWriteTransaction();
+        c.put("metrics tx", "value");
+        c.endReadWriteTransaction();
+        WriteBatch batch = new WriteBatch();
+        batch.put("metrics batch", "value");
+        c.write(batch);
+
+        DBHistogram gets = metrics.getHistogram(DBMetrics.GET);
+        assertEquals(100, gets.getCount());
+        assertEquals(101, metrics.getHistogram(DBMetrics.PUT).getCount());
+        assertEquals(1, metrics.getHistogram(DBMetrics.DELETE).getCount());
+        assertEquals(1, metrics.getHistogram(DBMetrics.SCAN).getCount());
+        assertEquals(1, metrics.getHistogram(DBMetrics.TRANSACTION).getCount());
+        assertEquals(1, metrics.getHistogram(DBMetrics.BATCH).getCount());
+        assertEquals(2, metrics.getHistogram(DBMetrics.LOCK_WAIT).getCount());
+        assertTrue(gets.getPercentileNanos(50) <= gets.getPercentileNanos(99));
+        assertTrue(gets.getPercentileNanos(99) <= gets.getMaxNanos());
+        assertTrue(gets.getMeanNanos() > 0);
+        assertTrue(metrics.getPageCacheHits() > 0);
+        //threshold 0 makes every statement slow
+        assertFalse(metrics.getSlowStatements().isEmpty());
+        assertTrue(metrics.getSlowStatements().size() <= 100);
+
+        //a second database on the same file retries while the first one holds the write lock
+        DBConfig otherConfig = new DBConfig(System.getProperty("user.home") + File.separator + "." + File.separator
+                + "metrics.db", DB.DEFAULT_FLAGS);
+        otherConfig.metrics = true;
+        DB other = DB.open(otherConfig);
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    DBConnection h = db.getConnection();
+                    h.beginReadWriteTransaction();
+                    h.put("metrics locked", "first");
+                    locked.countDown();
+                    //the write below starts while this holds the lock, however long it is held
+                    Thread.sleep(50);
+                    h.endReadWriteTransaction();
+                    h.release();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        DBConnection o = other.getConnection();
+        o.put("metrics locked", "second");
+        o.release();
+        holder.join();
+        assertEquals("second", c.get("metrics locked"));
+        assertTrue(other.getMetrics().getBusyRetries() > 0);
+        c.release();
+
+        //metrics are off by default
+        try {
+            DB.open(System.getProperty("user.home"),DB.OPEN_CREATE | DB.OPEN_READWRITE).getMetrics();
+            fail("Metrics should not be enabled");
+        } catch (KVDBException e) {
+            //expected
+        }
+    }
+    @Test
+    public void testAsyncConnectionCheck() throws Exception {
+        DB db = DB.open(System.getProperty("user.home"), "async.db");
+        //executor running tasks only when asked, so queued operations can be coalesced
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor manual = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        AsyncDBConnection async = AsyncDBConnection.create(db.getConnectionPool(), manual, 1, 8, 50);
+        List<DBFuture<Void>> writes = new ArrayList<DBFuture<Void>>();
+        for(int i = 0; i < 5; i++) {
+            writes.add(async.putAsync("async " + i, "value " + i));
+        }
+        writes.add(async.putAsync("async bytes", new byte[]{1, 2, 3}));
+        writes.add(async.deleteAsync("async 4"));
+        assertEquals(7, async.getInFlightCount());
+        async.getAsync("async 0");
+        //limit of 8 operations reached
+        try {
+            async.getAsync("async 1");
+            fail("In flight limit should be reached");
+        } catch (KVDBException e) {
+            //expected
+        }
+        while(!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        for(DBFuture<Void> write : writes) {
+            write.get(1, TimeUnit.SECONDS);
+        }
+        assertEquals(1, async.getWriteCallCount());
+        assertEquals(0, async.getInFlightCount());
+
+        final List<String> seen = new ArrayList<String>();
+        DBFuture<String> first = async.getAsync("async 1");
+        DBFuture<String> missing = async.getAsync("async 4");
+        DBFuture<byte[][]> multi = async.multiGetAsync(new String[]{"async bytes", "async 4"});
+        DBFuture<byte[]> bytes = async.getBytesAsync("async bytes");
+        first.addListener(new DBFuture.Listener<String>() {
+            @Override
+            public void onComplete(String result, Throwable error) {
+                seen.add(result);
+            }
+        });
+        long readCalls = async.getReadCallCount();
+        while(!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        assertEquals("value 1", first.get());
+        assertNull(missing.get());
+        assertArrayEquals(new byte[]{1, 2, 3}, multi.get()[0]);
+        assertNull(multi.get()[1]);
+        assertArrayEquals(new byte[]{1, 2, 3}, bytes.get());
+        assertEquals(Arrays.asList("value 1"), seen);
+        //two string gets in one call, the blob gets in another
+        assertEquals(readCalls + 2, async.getReadCallCount());
+
+        //listener added after completion runs at once
+        first.addListener(new DBFuture.Listener<String>() {
+            @Override
+            public void onComplete(String result, Throwable error) {
+                seen.add(result);
+            }
+        });
+        assertEquals(2, seen.size());
+
+        //default facade runs on its own threads
+        AsyncDBConnection pooled = db.getAsyncConnection();
+        List<DBFuture<Void>> puts = new ArrayList<DBFuture<Void>>();
+        for(int i = 0; i < 500; i++) {
+            puts.add(pooled.putAsync("async pooled " + i, "v" + i));
+        }
+        for(DBFuture<Void> put : puts) {
+            put.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals("v499", pooled.getAsync("async pooled 499").get(10, TimeUnit.SECONDS));
+        assertTrue(pooled.getWriteCallCount() <= 500);
+        async.close();
+
+        //close completes what is queued and frees every slot, a new facade takes over
+        puts.clear();
+        for(int i = 0; i < 100; i++) {
+            puts.add(pooled.putAsync("async closed " + i, "v" + i));
+        }
+        db.close();
+        for(DBFuture<Void> put : puts) {
+            assertTrue(put.isDone());
+            put.get();
+        }
+        assertEquals(0, pooled.getInFlightCount());
+        try {
+            pooled.putAsync("async after close", "v");
+            fail("closed facade accepted a write");
+        } catch (KVDBException e) {
+            //expected
+        }
+        assertNotSame(pooled, db.getAsyncConnection());
+        assertEquals("v99", db.getAsyncConnection().getAsync("async closed 99").get(10, TimeUnit.SECONDS));
+    }
+    @Test
+    public void testShardedCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "sharded.db", DB.DEFAULT_FLAGS);
+        ShardedDB db = DB.open(config, 4);
+        assertSame(db, DB.open(config, 4));
+        //keys left by an earlier run would change the counts
+        List<String> stale = new ArrayList<String>();
+        ShardedResult result = db.scan("shard ", DBConnection.SCAN_KEYS_ONLY);
+        while(result.next()) {
+            stale.add(result.getKey());
+        }
+        result.close();
+        for(String key : stale) {
+            db.delete(key);
+        }
+        for(int i = 0; i < 200; i++) {
+            db.put("shard " + (1000 + i), "value " + i);
+        }
+        //every shard gets some of the keys
+        for(int s = 0; s < db.getShardCount(); s++) {
+            DBConnection c = db.getShard(s).getConnection();
+            assertTrue(c.getCount("shard ") > 0);
+            c.release();
+        }
+        assertEquals(200, db.getCount("shard "));
+        assertEquals("value 7", db.get("shard 1007"));
+
+        WriteBatch batch = new WriteBatch();
+        batch.put("shard batch a", "a");
+        batch.put("shard batch b", new byte[]{2});
+        batch.putLong("shard batch c", 3);
+        batch.delete("shard 1000");
+        db.write(batch);
+        assertNull(db.get("shard 1000"));
+        assertEquals(3, db.getLong("shard batch c"));
+        String[] strings = db.multiGetString(new String[]{"shard batch a", "shard 1000", "shard 1199"});
+        assertEquals(Arrays.asList("a", null, "value 199"), Arrays.asList(strings));
+        assertArrayEquals(new byte[]{2}, db.multiGet(new String[]{"shard batch b"})[0]);
+
+        //merged scan returns keys of all shards in key order
+        result = db.scan("shard 1");
+        String previous = null;
+        int rows = 0;
+        while(result.next()) {
+            if(previous != null) assertTrue(previous.compareTo(result.getKey()) < 0);
+            previous = result.getKey();
+            rows++;
+        }
+        result.close();
+        assertEquals(199, rows);
+        result = db.scan("shard 1100", null, 3, DBConnection.SCAN_REVERSE | DBConnection.SCAN_KEYS_ONLY);
+        assertTrue(result.next());
+        assertEquals("shard batch c", result.getKey());
+        assertTrue(result.next());
+        assertEquals("shard batch b", result.getKey());
+        assertTrue(result.next());
+        assertFalse(result.next());
+        result.close();
+        //keys of different shards merge in sqlite's order, surrogates before U+E000 and NUL after U+007F
+        String[] ordered = {"shard order \u007f", "shard order \u0000", "shard order \u0080",
+                "shard order \uD800\uDC00", "shard order \uE000", "shard order \uFFFF"};
+        for(int i = 0; i < ordered.length; i++) {
+            db.putLong(ordered[i], i);
+        }
+        result = db.scan("shard order ");
+        for(String key : ordered) {
+            assertTrue(result.next());
+            assertEquals(key, result.getKey());
+        }
+        assertFalse(result.next());
+        result.close();
+        result = db.scan("shard order ", DBConnection.SCAN_REVERSE);
+        for(int i = ordered.length - 1; i >= 0; i--) {
+            assertTrue(result.next());
+            assertEquals(ordered[i], result.getKey());
+        }
+        assertFalse(result.next());
+        result.close();
+
+        //files of a database are only opened with the number of shards they were created with
+        try {
+            DB.open(config, 2);
+            fail("Shard count should be checked");
+        } catch (KVDBException e) {
+            //expected
+        }
+        try {
+            DB.open(new DBConfig(System.getProperty("user.home") + File.separator + "." + File.separator
+                    + "sharded.db", DB.DEFAULT_FLAGS), 2);
+            fail("Shard files should be checked");
+        } catch (KVDBException e) {
+            //expected
+        }
+        db.close();
+    }
+    @Test
+    public void testStorageEngineCheck() throws Exception {
+        File dir = new File(System.getProperty("user.home"), "bitcask");
+        File[] old = dir.listFiles();
+        if(old != null) {
+            for(File f : old) {
+                f.delete();
+            }
+        }
+        DBConfig config = new DBConfig(dir.getPath(), DB.DEFAULT_FLAGS);
+        config.engine = DBConfig.ENGINE_BITCASK;
+        config.bitcaskSegmentBytes = 4096;
+        config.bitcaskMergeRatio = 0;
+        StorageEngine engine = DB.openEngine(config);
+        assertTrue(engine instanceof BitcaskEngine);
+        try {
+            DB.openEngine(config);
+            fail("Engine should only be open once");
+        } catch (KVDBException e) {
+            //expected
+        }
+        engine.put("string", "value");
+        engine.put("bytes", new byte[]{1, 2, 3});
+        engine.putLong("long", 42);
+        WriteBatch batch = new WriteBatch();
+        batch.putDouble("double", 1.5);
+        batch.put("batch", "in batch");
+        batch.delete("string");
+        engine.write(batch);
+        assertNull(engine.get("string"));
+        assertFalse(engine.exists("string"));
+        assertArrayEquals(new byte[]{1, 2, 3}, engine.getBytes("bytes"));
+        assertEquals(42, engine.getLong("long"));
+        assertEquals("42", engine.get("long"));
+        assertEquals("1.5", engine.get("double"));
+        assertEquals(4, engine.getCount());
+        //overwrite enough to rotate segments and leave dead records behind
+        for(int i = 0; i < 500; i++) {
+            engine.put("key " + (i % 50), "value " + i);
+        }
+        BitcaskEngine bitcask = (BitcaskEngine) engine;
+        assertTrue(bitcask.getSegmentCount() > 1);
+        long before = bitcask.getTotalBytes();
+        bitcask.merge();
+        assertEquals(1, bitcask.getMergeCount());
+        assertTrue(bitcask.getTotalBytes() < before);
+        assertEquals("value 499", engine.get("key 49"));
+        assertEquals(54, engine.getCount());
+        engine.close();
+
+        //reopen from hint files, then from a segment without hint and a torn write
+        engine = DB.openEngine(config);
+        assertEquals("value 450", engine.get("key 0"));
+        engine.put("after reopen", "yes");
+        engine.close();
+        File last = null;
+        for(File f : dir.listFiles()) {
+            if(f.getName().endsWith(".data") && (last == null || f.getName().compareTo(last.getName()) > 0)) last = f;
+        }
+        assertTrue(new File(dir, last.getName().replace(".data", ".hint")).delete());
+        FileOutputStream torn = new FileOutputStream(last, true);
+        torn.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+        torn.close();
+        long length = last.length();
+        engine = DB.openEngine(config);
+        assertTrue(last.length() < length);
+        assertEquals("yes", engine.get("after reopen"));
+        assertEquals(55, engine.getCount());
+        assertArrayEquals(new byte[][]{"value 499".getBytes(), null}, engine.multiGet(new String[]{"key 49", "missing"}));
+
+        //an interrupted caller keeps its interrupt and does not close the files for everyone else
+        Thread.currentThread().interrupt();
+        assertEquals("yes", engine.get("after reopen"));
+        assertTrue(Thread.interrupted());
+        Thread.currentThread().interrupt();
+        engine.put("interrupted put", "done");
+        assertTrue(Thread.interrupted());
+        assertEquals("done", engine.get("interrupted put"));
+        engine.put("after interrupt", "yes");
+        assertEquals("value 499", engine.get("key 49"));
+        //interrupts landing inside the reads of another thread
+        final StorageEngine shared = engine;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch stop = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(stop.getCount() > 0) {
+                    try {
+                        if(!"value 450".equals(shared.get("key 0"))) failures.incrementAndGet();
+                    } catch (KVDBException e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        for(int i = 0; i < 200; i++) {
+            reader.interrupt();
+            assertEquals("value 499", engine.get("key 49"));
+            engine.put("during interrupts", "put " + i);
+        }
+        stop.countDown();
+        reader.join();
+        assertEquals(0, failures.get());
+        assertEquals("put 199", engine.get("during interrupts"));
+        engine.close();
+
+        //sqlite engine runs on the regular database
+        StorageEngine sqlite = DB.openEngine(new DBConfig(System.getProperty("user.home") + File.separator + "engine.db", DB.DEFAULT_FLAGS));
+        sqlite.put("engine key", "value");
+        assertEquals("value", sqlite.get("engine key"));
+        assertTrue(sqlite.exists("engine key"));
+    }
+    @Test
+    public void testSnapshotCheck() throws Exception {
+        DBConfig config = new DBConfig(System.getProperty("user.home") + File.separator + "snapshot.db", DB.DEFAULT_FLAGS);
+        config.compression = DBConfig.COMPRESSION_LZ4;
+        config.compressionThreshold = 64;
+        DBConnection c = DB.open(config).getConnection();
+        char[] repeated = new char[3000];
+        Arrays.fill(repeated, 'x');
+        c.put("snap string", "value");
+        c.put("snap compressed", new String(repeated));
+        c.put("snap bytes", new byte[]{1, 2, 3});
+        c.putInt("snap int", 7);
+        c.putDouble("snap double", 2.5);
+        c.put("snap \u00e9t\u00e9", "unicode");
+        for(int i = 0; i < 500; i++) {
+            c.put("snap key " + (1000 + i), "value " + i);
+        }
+        File file = new File(System.getProperty("user.home"), "snapshot.kvs");
+        //small regions and blocks so blocks have to skip region ends
+        long keys = new DBSnapshotWriter(file).setBlockSize(256).setRegionSize(4096).export(c);
+        c.release();
+        assertEquals(506, keys);
+
+        DBSnapshot snapshot = DBSnapshot.open(file);
+        assertEquals(506, snapshot.getKeyCount());
+        assertTrue(snapshot.getBlockCount() > 1);
+        assertEquals("value", snapshot.get("snap string"));
+        assertEquals(new String(repeated), snapshot.get("snap compressed"));
+        assertArrayEquals(new byte[]{1, 2, 3}, snapshot.getBytes("snap bytes"));
+        assertEquals(7, snapshot.getLong("snap int"));
+        assertEquals("7", snapshot.get("snap int"));
+        assertEquals(2.5, snapshot.getDouble("snap double"), 0);
+        assertEquals("unicode", snapshot.get("snap \u00e9t\u00e9"));
+        for(int i = 0; i < 500; i++) {
+            assertEquals("value " + i, snapshot.get("snap key " + (1000 + i)));
+        }
+        assertNull(snapshot.get("snap missing"));
+        assertFalse(snapshot.exists("a before every key"));
+        assertFalse(snapshot.exists("z after every key"));
+        ByteBuffer dst = ByteBuffer.allocate(2);
+        assertEquals(3, snapshot.get("snap bytes", dst));
+        assertEquals(0, dst.position());
+        dst = ByteBuffer.allocate(8);
+        assertEquals(3, snapshot.get("snap bytes", dst));
+        assertEquals(3, dst.position());
+
+        DBSnapshot.Cursor cursor = snapshot.scan("snap key ");
+        int rows = 0;
+        while(cursor.next()) {
+            assertEquals("snap key " + (1000 + rows), cursor.getKey());
+            assertEquals("value " + rows, cursor.getString());
+            rows++;
+        }
+        assertEquals(500, rows);
+        cursor = snapshot.scan("snap key 1250", null, 2);
+        assertTrue(cursor.next());
+        assertEquals("snap key 1250", cursor.getKey());
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+        cursor = snapshot.scan(null, "snap c", 0);
+        assertTrue(cursor.next());
+        assertEquals("snap bytes", cursor.getKey());
+        assertFalse(cursor.next());
+        snapshot.close();
+        try {
+            snapshot.get("snap string");
+            fail("Snapshot should be closed");
+        } catch (KVDBException e) {
+            //expected
+        }
+
+        //sqlite orders keys by UTF-16 code units with NUL after U+007F, so do snapshots
+        String[] ordered = {"k", "k\u007f", "k\u0000", "k\u0000a", "k\u0080", "k\uD800\uDC00", "k\uE000", "k\uFFFF"};
+        c = DB.open(System.getProperty("user.home"), "snapshotorder.db").getConnection();
+        for(int i = 0; i < ordered.length; i++) {
+            c.putInt(ordered[i], i);
+        }
+        DBResult scan = c.scan("k");
+        for(String key : ordered) {
+            assertTrue(scan.next());
+            assertEquals(key, scan.getString(0));
+        }
+        assertFalse(scan.next());
+        scan.close();
+        File orderFile = new File(System.getProperty("user.home"), "snapshotorder.kvs");
+        assertEquals(ordered.length, new DBSnapshotWriter(orderFile).setBlockSize(64).export(c));
+        c.release();
+        snapshot = DBSnapshot.open(orderFile);
+        for(int i = 0; i < ordered.length; i++) {
+            assertEquals(i, snapshot.getLong(ordered[i]));
+        }
+        assertNull(snapshot.get("k\uD800"));
+        cursor = snapshot.scan("k\u0000", "k\uE000", 0);
+        for(int i = 2; i < 6; i++) {
+            assertTrue(cursor.next());
+            assertEquals(ordered[i], cursor.getKey());
+        }
+        assertFalse(cursor.next());
+        snapshot.close();
+    }
+
+    @Test
+    public void testBinaryKeyCheck() throws Exception {
+        DB db = DB.open(System.getProperty("user.home"), "binarykey.db");
+        DBConnection c = db.getConnection();
+        byte[] key = new byte[]{'a', 0, (byte) 0xff};
+        c.put(key, new byte[]{1, 2, 3});
+        //binary key reads go to reader connections like the string ones
+        long readerReads = db.getConnectionPool().getReaderReadCount();
+        assertTrue(c.exists(key));
+        assertFalse(c.exists(new byte[]{'a'}));
+        assertEquals(readerReads + 2, db.getConnectionPool().getReaderReadCount());
+        assertArrayEquals(new byte[]{1, 2, 3}, c.getBytes(key));
+        assertNull(c.getBytes(new byte[]{'a', 0}));
+        //a binary key never matches the string with the same bytes
+        c.put(new byte[]{'k'}, "binary");
+        c.put("k", "text");
+        assertEquals("binary", c.get(new byte[]{'k'}));
+        assertEquals("text", c.get("k"));
+        byte[][] values = c.multiGet(new byte[][]{key, new byte[]{'x'}});
+        assertArrayEquals(new byte[]{1, 2, 3}, values[0]);
+        assertNull(values[1]);
+        c.delete(key);
+        assertFalse(c.exists(key));
+
+        //long keys scan in numeric order, negatives first
+        for(long i = -5; i <= 5; i++) {
+            c.putLong(i * 1000, i);
+        }
+        assertEquals(-3, c.getLong(-3000L));
+        assertEquals("5", String.valueOf(DBKey.toLong(DBKey.of(5))));
+        DBResult range = c.scan(-2000L, 3000L, 0);
+        long expected = -2;
+        while(range.next()) {
+            assertEquals(expected * 1000, DBKey.toLong(range.getBytes(0)));
+            expected++;
+        }
+        range.close();
+        assertEquals(3, expected);
+
+        //tuples round trip and scan by their leading elements
+        byte[] user = DBKey.tuple().add("user").add(42).toBytes();
+        for(int i = 0; i < 3; i++) {
+            c.put(DBKey.tuple().add("user").add(42).add(new byte[]{(byte) i, 0}).toBytes(), "item " + i);
+        }
+        c.put(DBKey.tuple().add("user").add(43).toBytes(), "other");
+        Object[] elements = DBKey.decode(DBKey.tuple().add("user").add(-1).add(new byte[]{0, 1}).toBytes());
+        assertEquals("user", elements[0]);
+        assertEquals(-1L, elements[1]);
+        assertArrayEquals(new byte[]{0, 1}, (byte[]) elements[2]);
+        DBResult items = c.scan(user, DBConnection.SCAN_REVERSE);
+        int count = 0;
+        while(items.next()) {
+            assertEquals("item " + (2 - count), items.getString(1));
+            count++;
+        }
+        items.close();
+        assertEquals(3, count);
+
+        //string scans and prefix counts only see string keys
+        DBResult strings = c.scan("", null, 0);
+        assertTrue(strings.next());
+        assertEquals("k", strings.getString(0));
+        assertFalse(strings.next());
+        strings.close();
+        assertEquals(1, c.getCount(""));
+        assertEquals(1, c.getCount((String) null));
+        assertEquals(1, c.getCount());
+        //binary and long keys have their own count
+        assertEquals(16, c.getCount(new byte[0]));
+        assertEquals(3, c.getCount(user));
+        assertEquals(1, c.getCount(new byte[]{'k'}));
+        //a snapshot holds string keys only and expects as many as getCount
+        File file = new File(System.getProperty("user.home"), "binarykey.kvs");
+        assertEquals(1, new DBSnapshotWriter(file).export(c));
+        c.release();
+    }
     public static void main(String[] args){
         Result result = JUnitCore.runClasses(KVDBUnitTest.class);
         for(Failure f : result.getFailures()){
@@ -237,4 +1910,4 @@ public class KVDBUnitTest {
         }
         System.out.println(result.wasSuccessful());
     }
-}
\ No newline at end of file
+}